@@ -0,0 +1,89 @@
+package com.challengeandresponse.imoperator.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.challengeandresponse.appstack.AppStackDelimitedPath;
+import com.challengeandresponse.imoperator.agent.BaseAgent;
+import com.challengeandresponse.imoperator.agent.CommandRouter;
+import com.challengeandresponse.imoperator.agent.Vocabulary;
+
+/**
+ * AppStack dispatch of the methods BaseAgent registers, the way BaseAgent.processPacket()
+ * does it for each chat command: parse the text into a path, then get() it.
+ * shutdown is called with "?" so the benchmark doesn't shut anything down.
+ * The router* benchmarks make the same calls through a CommandRouter, for comparison.
+ *
+ * @author jim
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppStackDispatchBenchmark {
+
+	private BaseAgent agent;
+	private CommandRouter router;
+
+	@Setup
+	public void setup()
+	throws Exception {
+		agent = new BenchAgent(new NullEventLogger());
+		router = new CommandRouter(agent,false);
+		router.register(Vocabulary.Methods.SHUTDOWN,"shutdown");
+		router.register(Vocabulary.Methods.GET_STATUS,"getStatus");
+		router.register(Vocabulary.Methods.DATE,"date");
+	}
+
+	@Benchmark
+	public Object date()
+	throws Exception {
+		return agent.get(new AppStackDelimitedPath("date"),null);
+	}
+
+	@Benchmark
+	public Object getStatusAll()
+	throws Exception {
+		return agent.get(new AppStackDelimitedPath("getStatus/*"),null);
+	}
+
+	@Benchmark
+	public Object getStatusOne()
+	throws Exception {
+		return agent.get(new AppStackDelimitedPath("getStatus/loopSleepTime"),null);
+	}
+
+	@Benchmark
+	public Object shutdownParams()
+	throws Exception {
+		return agent.get(new AppStackDelimitedPath("shutdown/?"),null);
+	}
+
+	@Benchmark
+	public Object catalog()
+	throws Exception {
+		return agent.get(new AppStackDelimitedPath("?"),null);
+	}
+
+	@Benchmark
+	public Object routerDate()
+	throws Exception {
+		return router.dispatch("date",null);
+	}
+
+	@Benchmark
+	public Object routerGetStatusOne()
+	throws Exception {
+		return router.dispatch("getStatus/loopSleepTime",null);
+	}
+
+	@Benchmark
+	public Object routerCatalog()
+	throws Exception {
+		return router.dispatch("?",null);
+	}
+
+}
@@ -0,0 +1,31 @@
+package com.challengeandresponse.imoperator.benchmark;
+
+import org.jivesoftware.smack.PacketCollector;
+
+import com.challengeandresponse.appstack.AppStackException;
+import com.challengeandresponse.eventlogger.EventLoggerI;
+import com.challengeandresponse.imoperator.agent.BaseAgent;
+
+/**
+ * The smallest possible BaseAgent, for benchmarking the parts of BaseAgent that
+ * work without a connection (AppStack dispatch, status). It is never run().
+ *
+ * @author jim
+ */
+public class BenchAgent
+extends BaseAgent {
+
+	public BenchAgent(EventLoggerI el)
+	throws AppStackException {
+		super(el,null,-1,"localhost","bench","bench","bench");
+	}
+
+	@Override
+	public void init() {
+	}
+
+	@Override
+	public void destroy(PacketCollector pc) {
+	}
+
+}
@@ -0,0 +1,48 @@
+package com.challengeandresponse.imoperator.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.challengeandresponse.imoperator.service.IMOperator;
+
+/**
+ * Runs the JMH benchmarks for IMOperator's hot paths and writes the results as JSON,
+ * so that runs from different versions can be compared.
+ *
+ * <p>The benchmarks are in this package, one class per hot path:<br />
+ * <li>UniversalIQProviderBenchmark - unmarshalling MMObject payloads of several sizes</li>
+ * <li>CommContextBenchmark - building the CommContext for each inbound chat and M2M packet</li>
+ * <li>ProcessorChatAcceptBenchmark - ProcessorChat.accept() at each debug level</li>
+ * <li>AppStackDispatchBenchmark - AppStack.get() for BaseAgent's shutdown, getStatus and date</li>
+ * <li>CompositeFilterBenchmark - a CompositeFilter with many PacketClassFilters, against the agent's IndexedCompositeFilter</li>
+ * <li>PayloadCodecBenchmark - MMObject payloads as XStream XML against the BinaryCodec</li>
+ * </p>
+ *
+ * <p>The benchmarks are a project of their own, in the benchmark folder, so that only they depend on JMH.
+ * Its classpath has the agent project and JMH (the JMH classpath variable), and JMH's annotation processor
+ * must be enabled so the benchmark classes get generated. Then run this class. The results go to
+ * imoperator-benchmarks-VERSION.json in the current directory, so files from different versions
+ * sit side by side. Other JMH command line options may be given as arguments, for example
+ * "-p payloadSize=100" to run only one payload size.</p>
+ *
+ * @author jim
+ */
+public class BenchmarkRunner {
+
+	public static final String RESULT_FILE = "imoperator-benchmarks-"+IMOperator.VERSION_SHORT.replace(' ','-')+".json";
+
+	public static void main(String[] args)
+	throws Exception {
+		Options opt = new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.include(BenchmarkRunner.class.getPackage().getName()+".*Benchmark")
+			.resultFormat(ResultFormatType.JSON)
+			.result(RESULT_FILE)
+			.build();
+		new Runner(opt).run();
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.challengeandresponse.imoperator.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Message;
+import org.openjdk.jmh.annotations.*;
+
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
+import com.challengeandresponse.imoperator.service.CommContext;
+
+/**
+ * Building the CommContext that ProcessorChat.processPacket() and ProcessorM2M.processPacket()
+ * make for every inbound packet, for a chat message and for an M2M IQ: a new one each time with
+ * fromPacket(), and a reused per-thread one with reset(), as the processors now do.
+ *
+ * @author jim
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommContextBenchmark {
+
+	private Message chat;
+	private MMObject iq;
+	private ThreadLocal <CommContext> contexts;
+
+	@Setup
+	public void setup() {
+		chat = new Message("bench@localhost/to", Message.Type.chat);
+		chat.setFrom("someone@localhost/laptop");
+		chat.setBody("date");
+		iq = new MMObject(Integer.valueOf(12));
+		iq.setFrom("smoig@localhost/smoig");
+		iq.setTo("bench@localhost/to");
+		contexts = CommContext.perThread("com.challengeandresponse.imoperator.service.ProcessorChat");
+	}
+
+	@Benchmark
+	public CommContext chatPacket() {
+		return CommContext.fromPacket("com.challengeandresponse.imoperator.service.ProcessorChat",chat);
+	}
+
+	@Benchmark
+	public CommContext m2mPacket() {
+		return CommContext.fromPacket("com.challengeandresponse.imoperator.service.ProcessorM2M",iq);
+	}
+
+	@Benchmark
+	public CommContext chatPacketReused() {
+		return contexts.get().reset(chat);
+	}
+
+	@Benchmark
+	public String chatPacketReusedBareJid() {
+		return contexts.get().reset(chat).getStringProperty(CommContext.PROP_SERVICE_USERNAME_NO_RESOURCE,"");
+	}
+
+}
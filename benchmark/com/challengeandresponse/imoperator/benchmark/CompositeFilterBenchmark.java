@@ -0,0 +1,80 @@
+package com.challengeandresponse.imoperator.benchmark;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.openjdk.jmh.annotations.*;
+
+import com.challengeandresponse.imoperator.agent.IndexedCompositeFilter;
+import com.challengeandresponse.imoperator.comm.CompositeFilter;
+import com.challengeandresponse.imoperator.comm.PacketClassFilter;
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
+
+/**
+ * The agent's CompositeFilter, as built by BaseAgent.addPCRecognizedClass(), with nClasses
+ * PacketClassFilters. The recognized class is added last, so an MMObject is the worst case
+ * for a filter that tries its include filters in order. A chat message, which matches nothing,
+ * is measured too. The other recognized classes are array classes (MMObject[], MMObject[][], ...)
+ * only because they are an easy source of distinct classes.
+ * The ...Indexed benchmarks measure the IndexedCompositeFilter that BaseAgent uses now, with the same
+ * classes, which should cost the same whatever nClasses is.
+ *
+ * @author jim
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompositeFilterBenchmark {
+
+	@Param({"1", "10", "50"})
+	public int nClasses;
+
+	private PacketFilter filter;
+	private IndexedCompositeFilter indexed;
+	private MMObject iq;
+	private Message chat;
+
+	@Setup
+	public void setup() {
+		CompositeFilter cf = new CompositeFilter();
+		for (int i = 1; i < nClasses; i++)
+			cf.addIncludeFilter(new PacketClassFilter(Array.newInstance(MMObject.class, new int[i]).getClass()));
+		cf.addIncludeFilter(new PacketClassFilter(MMObject.class));
+		filter = cf;
+		indexed = new IndexedCompositeFilter();
+		for (int i = 1; i < nClasses; i++)
+			indexed.addIncludeClass(Array.newInstance(MMObject.class, new int[i]).getClass());
+		indexed.addIncludeClass(MMObject.class);
+
+		iq = new MMObject(Integer.valueOf(12));
+		iq.setFrom("smoig@localhost/smoig");
+		chat = new Message("bench@localhost/to", Message.Type.chat);
+		chat.setFrom("someone@localhost/laptop");
+	}
+
+	@Benchmark
+	public boolean acceptRecognized() {
+		return filter.accept(iq);
+	}
+
+	@Benchmark
+	public boolean rejectUnrecognized() {
+		return filter.accept(chat);
+	}
+
+	@Benchmark
+	public boolean acceptRecognizedIndexed() {
+		return indexed.accept(iq);
+	}
+
+	@Benchmark
+	public boolean rejectUnrecognizedIndexed() {
+		return indexed.accept(chat);
+	}
+
+}
@@ -0,0 +1,24 @@
+package com.challengeandresponse.imoperator.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+
+/**
+ * An EventLogger that throws everything away, so that benchmarks measure
+ * the code that builds log messages and not the logger's I/O.
+ *
+ * @author jim
+ */
+public class NullEventLogger
+implements EventLoggerI {
+
+	public void addEvent(String s) {
+	}
+
+	public List <String> getLastN(int n) {
+		return new ArrayList <String> ();
+	}
+
+}
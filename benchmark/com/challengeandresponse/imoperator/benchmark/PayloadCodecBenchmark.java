@@ -0,0 +1,99 @@
+package com.challengeandresponse.imoperator.benchmark;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import com.challengeandresponse.imoperator.agent.BinaryCodec;
+import com.challengeandresponse.imoperator.agent.BinaryIQ;
+import com.challengeandresponse.imoperator.agent.BinaryIQProvider;
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
+import com.challengeandresponse.imoperator.universaliq.UniversalIQProvider;
+
+/**
+ * An MMObject's trip to XML and back, the XStream way (UniversalIQ and the UniversalIQProvider) against the
+ * BinaryCodec way (a BinaryIQ and the BinaryIQProvider), for payloads of several sizes. The payload is a list
+ * of payloadSize Integers, as in UniversalIQProviderBenchmark. marshal measures toXML(), which is what goes on
+ * the wire; unmarshal starts from the parser positioned on the query element, as Smack's packet reader leaves it.
+ * The size of each form's XML is printed at setup.
+ *
+ * @author jim
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadCodecBenchmark {
+
+	@Param({"1", "100", "10000"})
+	public int payloadSize;
+
+	private UniversalIQProvider uiqp;
+	private BinaryIQProvider biqp;
+	private BinaryCodec codec;
+	private MMObject mmo;
+	private String xstreamXml;
+	private String binaryXml;
+
+	@Setup
+	public void setup()
+	throws Exception {
+		uiqp = new UniversalIQProvider();
+		ProviderManager.getInstance().addIQProvider("query", MMObject.class.getName(), uiqp);
+		codec = new BinaryCodec();
+		biqp = new BinaryIQProvider();
+		biqp.addCodec(codec);
+		ArrayList <Integer> payload = new ArrayList <Integer> (payloadSize);
+		for (int i = 0; i < payloadSize; i++)
+			payload.add(Integer.valueOf(i));
+		mmo = new MMObject(payload);
+		mmo.setFrom("bench@localhost/from");
+		mmo.setTo("bench@localhost/to");
+		xstreamXml = mmo.toXML();
+		binaryXml = BinaryIQ.encode(mmo, codec).toXML();
+		System.out.println("payloadSize "+payloadSize+": XStream "+xstreamXml.length()+" chars, "+codec.getName()+" "+binaryXml.length()+" chars");
+	}
+
+	@Benchmark
+	public String marshalXStream() {
+		return mmo.toXML();
+	}
+
+	@Benchmark
+	public String marshalBinary()
+	throws Exception {
+		return BinaryIQ.encode(mmo, codec).toXML();
+	}
+
+	@Benchmark
+	public void unmarshalXStream(Blackhole bh)
+	throws Exception {
+		bh.consume(uiqp.parseIQ(queryParser(xstreamXml)));
+	}
+
+	@Benchmark
+	public void unmarshalBinary(Blackhole bh)
+	throws Exception {
+		bh.consume(biqp.parseIQ(queryParser(binaryXml)));
+	}
+
+	private static XmlPullParser queryParser(String xml)
+	throws Exception {
+		XmlPullParser parser = new MXParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		parser.setInput(new StringReader(xml));
+		int event = parser.next();
+		while (! ((event == XmlPullParser.START_TAG) && "query".equals(parser.getName())))
+			event = parser.next();
+		return parser;
+	}
+
+}
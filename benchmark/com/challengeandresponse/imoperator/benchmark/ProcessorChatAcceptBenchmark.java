@@ -0,0 +1,59 @@
+package com.challengeandresponse.imoperator.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Message;
+import org.openjdk.jmh.annotations.*;
+
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
+import com.challengeandresponse.imoperator.service.ProcessorChat;
+
+/**
+ * ProcessorChat.accept() runs on every inbound stanza. This measures it at debug
+ * levels 0 (off), 1 and 2 (logs every packet), for a chat message (accepted)
+ * and an IQ (rejected). The event logger discards everything, so the numbers are the
+ * cost of building the log messages, not of writing them.
+ *
+ * @author jim
+ */
+@SuppressWarnings("deprecation")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorChatAcceptBenchmark {
+
+	@Param({"0", "1", "2"})
+	public int debugLevel;
+
+	private ProcessorChat processor;
+	private Message chat;
+	private MMObject iq;
+
+	@Setup
+	public void setup()
+	throws Exception {
+		processor = new ProcessorChat(null, null, new NullEventLogger(), new ArrayList <String> ());
+		processor.setDebugLevel(debugLevel);
+		chat = new Message("imoperator@localhost/operator", Message.Type.chat);
+		chat.setFrom("someone@localhost/laptop");
+		chat.setBody("date");
+		iq = new MMObject(Integer.valueOf(12));
+		iq.setFrom("smoig@localhost/smoig");
+		iq.setTo("imoperator@localhost/operator");
+	}
+
+	@Benchmark
+	public boolean acceptChat() {
+		return processor.accept(chat);
+	}
+
+	@Benchmark
+	public boolean rejectIQ() {
+		return processor.accept(iq);
+	}
+
+}
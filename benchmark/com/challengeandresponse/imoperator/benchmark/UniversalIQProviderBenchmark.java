@@ -0,0 +1,63 @@
+package com.challengeandresponse.imoperator.benchmark;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
+import com.challengeandresponse.imoperator.universaliq.UniversalIQProvider;
+
+/**
+ * UniversalIQProvider turning the XML of an inbound MMObject back into an object,
+ * for payloads of several sizes. The payload is a list of payloadSize Integers.
+ * The parser is positioned on the query element first, the way Smack's packet reader
+ * does before it calls a provider.
+ *
+ * @author jim
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UniversalIQProviderBenchmark {
+
+	@Param({"1", "100", "10000"})
+	public int payloadSize;
+
+	private UniversalIQProvider uiqp;
+	private String xml;
+
+	@Setup
+	public void setup() {
+		uiqp = new UniversalIQProvider();
+		ProviderManager.getInstance().addIQProvider("query", MMObject.class.getName(), uiqp);
+		ArrayList <Integer> payload = new ArrayList <Integer> (payloadSize);
+		for (int i = 0; i < payloadSize; i++)
+			payload.add(Integer.valueOf(i));
+		MMObject mmo = new MMObject(payload);
+		mmo.setFrom("bench@localhost/from");
+		mmo.setTo("bench@localhost/to");
+		xml = mmo.toXML();
+	}
+
+	@Benchmark
+	public void unmarshal(Blackhole bh)
+	throws Exception {
+		XmlPullParser parser = new MXParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		parser.setInput(new StringReader(xml));
+		int event = parser.next();
+		while (! ((event == XmlPullParser.START_TAG) && "query".equals(parser.getName())))
+			event = parser.next();
+		bh.consume(uiqp.parseIQ(parser));
+	}
+
+}
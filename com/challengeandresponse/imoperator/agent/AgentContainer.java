@@ -0,0 +1,548 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.*;
+
+import com.challengeandresponse.appstack.AppStack;
+import com.challengeandresponse.appstack.AppStackException;
+import com.challengeandresponse.appstack.AppStackPathI;
+import com.challengeandresponse.eventlogger.EventLoggerI;
+
+/**
+ * Runs many BaseAgents in one JVM, and keeps an eye on them.
+ *
+ * <p>A BaseAgent spends nearly all its time waiting in its run loop, so giving each one a platform
+ * thread of its own (new Thread(tg, agent), as in the examples) caps a host at a few hundred agents.
+ * The container runs each agent on a virtual thread when the JVM has them (Java 21 and later), so
+ * waiting agents cost a small heap object rather than a thread stack. On older JVMs it falls back
+ * to platform threads with a small stack.</p>
+ *
+ * <p>The container also:<br />
+ * <li>registers recognized classes with the UniversalIQProvider that every BaseAgent shares (registerRecognizedClass())</li>
+ * <li>supervises: an agent whose run() fails or returns without being asked to shut down is recorded as FAILED,
+ * or, if it was hosted with an AgentFactory, replaced by a new one after a backoff delay</li>
+ * <li>accounts for each agent's resources: uptime, run loop passes, time spent in the run loop and in handlers,
+ * IQs handled, and CPU time when the JVM can measure it for the agent's thread</li>
+ * <li>answers AppStack queries, so it can be driven over chat like an agent:
+ * agents/* lists every agent's summary, agents/NAME one agent's, agentStatus/NAME/... is passed to
+ * that agent's getStatus, and startAgent/NAME and stopAgent/NAME start and stop one</li>
+ * </p>
+ *
+ * @author jim
+ */
+public class AgentContainer
+extends AppStack {
+
+	public static enum State { NEW, RUNNING, RESTARTING, STOPPED, FAILED }
+
+	/**
+	 * Makes a fresh agent, for hosting agents that the container may restart.
+	 * A BaseAgent's run() is only called once, so a restart needs a new instance.
+	 */
+	public static interface AgentFactory {
+		public BaseAgent newAgent()
+		throws AppStackException;
+	}
+
+	/**
+	 * One hosted agent, and the container's record of it
+	 */
+	private static class Hosted {
+		final String name;
+		final AgentFactory factory;
+		volatile BaseAgent agent;
+		volatile Thread thread;
+		volatile State state;
+		volatile boolean stopRequested;
+		volatile long startedAt;
+		volatile int restarts;
+		volatile String lastFailure;	// why the agent last failed, until a restarted agent is running again
+
+		Hosted(String name, BaseAgent agent, AgentFactory factory) {
+			this.name = name;
+			this.agent = agent;
+			this.factory = factory;
+			this.state = State.NEW;
+		}
+	}
+
+	/** the stack size for agents run on platform threads */
+	public static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_UNSTARTED;
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		}
+		catch (Exception e) {
+			// no virtual threads in this JVM
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_UNSTARTED = unstarted;
+	}
+
+	private final EventLoggerI el;
+	private final Map <String,Hosted> agents;	// by name, in the order they were hosted
+	private final ThreadGroup threadGroup;
+	private boolean useVirtualThreads;
+	private int maxRestarts;
+	private long restartBackoffMsec;
+	private long maxRestartBackoffMsec;
+
+
+	/**
+	 * @param el an event logger for the container's own events (agents log to their own)
+	 * @throws AppStackException if the AppStack methods can't be registered
+	 */
+	public AgentContainer(EventLoggerI el)
+	throws AppStackException {
+		this.el = el;
+		this.agents = Collections.synchronizedMap(new LinkedHashMap <String,Hosted> ());
+		this.threadGroup = new ThreadGroup("agents");
+		this.useVirtualThreads = isVirtualThreadsAvailable();
+		this.maxRestarts = 5;
+		this.restartBackoffMsec = 1000;
+		this.maxRestartBackoffMsec = 60000;
+
+		this.addMethod(Vocabulary.Methods.AGENTS, "agents");
+		this.addMethod(Vocabulary.Methods.AGENT_STATUS, "agentStatus");
+		this.addMethod(Vocabulary.Methods.START_AGENT, "startAgent");
+		this.addMethod(Vocabulary.Methods.STOP_AGENT, "stopAgent");
+	}
+
+
+	/**
+	 * @return true if this JVM can run agents on virtual threads
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		return (OF_VIRTUAL != null);
+	}
+
+	/**
+	 * Choose virtual threads (the default, where available) or platform threads for agents started from now on
+	 * @param useVirtualThreads false for platform threads. true is ignored if the JVM has no virtual threads.
+	 */
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		this.useVirtualThreads = useVirtualThreads && isVirtualThreadsAvailable();
+	}
+
+	/**
+	 * Set how agents hosted with an AgentFactory are restarted. The delay before a restart
+	 * doubles with each restart of the same agent, from backoffMsec up to maxBackoffMsec.
+	 * @param maxRestarts the most times one agent is restarted before it is left FAILED
+	 * @param backoffMsec the delay before the first restart
+	 * @param maxBackoffMsec the longest delay before a restart
+	 */
+	public void setRestartPolicy(int maxRestarts, long backoffMsec, long maxBackoffMsec) {
+		if ((maxRestarts < 0) || (backoffMsec < 0) || (maxBackoffMsec < backoffMsec))
+			throw new IllegalArgumentException("Bad restart policy");
+		this.maxRestarts = maxRestarts;
+		this.restartBackoffMsec = backoffMsec;
+		this.maxRestartBackoffMsec = maxBackoffMsec;
+	}
+
+
+	/**
+	 * Register a class with the UniversalIQProvider shared by all agents, once for the whole container.
+	 * Agents that call addRecognizedClass() for the same class later find it already registered.
+	 * @param recognizedClass a descendant of UniversalIQ
+	 */
+	public void registerRecognizedClass(Class<?> recognizedClass) {
+		BaseAgent.registerSharedIQProvider(recognizedClass);
+	}
+
+
+	/**
+	 * Host an agent. It isn't started until start() is called. If it stops on its own it isn't restarted.
+	 * @param name the name the agent is known by in the container, unique
+	 * @param agent the agent, not yet run
+	 * @throws IllegalArgumentException if the name is taken
+	 */
+	public void host(String name, BaseAgent agent) {
+		add(new Hosted(name, agent, null));
+	}
+
+	/**
+	 * Host an agent made by a factory. If the agent fails or stops without being asked to,
+	 * a new one is made and started, as set by setRestartPolicy().
+	 * @param name the name the agent is known by in the container, unique
+	 * @param factory makes the agent, now and for each restart
+	 * @throws AppStackException if the factory fails
+	 * @throws IllegalArgumentException if the name is taken
+	 */
+	public void host(String name, AgentFactory factory)
+	throws AppStackException {
+		add(new Hosted(name, factory.newAgent(), factory));
+	}
+
+	private void add(Hosted h) {
+		if ((h.name == null) || (h.name.length() == 0) || (h.name.indexOf('/') >= 0))
+			throw new IllegalArgumentException("Agent names must be non-empty and can't contain '/'");
+		synchronized (agents) {
+			if (agents.containsKey(h.name))
+				throw new IllegalArgumentException("There is already an agent called "+h.name);
+			agents.put(h.name, h);
+		}
+	}
+
+
+	/**
+	 * Start a hosted agent
+	 * @param name the agent's name
+	 * @return true if it was started, false if there's no such agent or it is already running
+	 */
+	public boolean start(final String name) {
+		final Hosted h = agents.get(name);
+		if (h == null)
+			return false;
+		synchronized (h) {
+			if ((h.thread != null) && h.thread.isAlive())
+				return false;
+			if ((h.state == State.STOPPED) || (h.state == State.FAILED)) {
+				// run() only runs once per agent, so starting again needs a new one
+				if (h.factory == null)
+					return false;
+				try {
+					h.agent = h.factory.newAgent();
+				}
+				catch (AppStackException ase) {
+					h.lastFailure = ase.toString();
+					return false;
+				}
+			}
+			h.stopRequested = false;
+			h.thread = newThread(new Runnable() {
+				public void run() {
+					supervise(h);
+				}
+			}, "agent-"+name);
+			h.state = State.RUNNING;
+			h.startedAt = System.currentTimeMillis();
+			h.thread.start();
+		}
+		el.addEvent("AgentContainer started "+name+" on a "+(isVirtual(h.thread) ? "virtual" : "platform")+" thread");
+		return true;
+	}
+
+	/**
+	 * Start every hosted agent that isn't running
+	 * @return the number started
+	 */
+	public int startAll() {
+		int n = 0;
+		String[] names = getAgentNames();
+		for (int i = 0; i < names.length; i++)
+			if (start(names[i]))
+				n++;
+		return n;
+	}
+
+
+	/**
+	 * Ask an agent to shut down, and wait for it
+	 * @param name the agent's name
+	 * @param timeoutMsec how long to wait for its run() to return
+	 * @return true if it has stopped, false if there's no such agent or it is still shutting down
+	 */
+	public boolean stop(String name, long timeoutMsec) {
+		Hosted h = agents.get(name);
+		if (h == null)
+			return false;
+		requestStop(h);
+		return join(h, timeoutMsec);
+	}
+
+	/**
+	 * Ask every agent to shut down at once, then wait for them all
+	 * @param timeoutMsec how long to wait altogether
+	 * @return the number still running when the time ran out
+	 */
+	public int stopAll(long timeoutMsec) {
+		Hosted[] all = hosted();
+		for (int i = 0; i < all.length; i++)
+			requestStop(all[i]);
+		long deadline = System.currentTimeMillis() + timeoutMsec;
+		int running = 0;
+		for (int i = 0; i < all.length; i++)
+			if (! join(all[i], Math.max(1, deadline - System.currentTimeMillis())))
+				running++;
+		return running;
+	}
+
+	private void requestStop(Hosted h) {
+		h.stopRequested = true;
+		h.agent.requestShutdown();
+		Thread t = h.thread;
+		if ((t != null) && (h.state == State.RESTARTING))
+			t.interrupt();	// don't sit out the backoff
+	}
+
+	private boolean join(Hosted h, long timeoutMsec) {
+		Thread t = h.thread;
+		if (t == null)
+			return true;
+		try {
+			t.join(timeoutMsec);
+		}
+		catch (InterruptedException ie) {
+		}
+		return ! t.isAlive();
+	}
+
+
+	/**
+	 * Run an agent, and keep running replacements for it while the restart policy allows
+	 */
+	private void supervise(Hosted h) {
+		while (true) {
+			BaseAgent agent = h.agent;
+			boolean threw = false;
+			try {
+				agent.run();
+			}
+			catch (Throwable t) {
+				threw = true;
+				h.lastFailure = t.toString();
+				el.addEvent("AgentContainer: agent "+h.name+" failed: "+t);
+			}
+			if (h.stopRequested || agent.isShutdownRequested()) {
+				h.state = State.STOPPED;
+				el.addEvent("AgentContainer: agent "+h.name+" stopped");
+				return;
+			}
+			if (! threw)
+				h.lastFailure = "run() returned without a shutdown";
+			if ((h.factory == null) || (h.restarts >= maxRestarts)) {
+				h.state = State.FAILED;
+				el.addEvent("AgentContainer: agent "+h.name+" failed and will not be restarted");
+				return;
+			}
+			h.state = State.RESTARTING;
+			long delay = restartBackoffMsec;
+			for (int i = 0; (i < h.restarts) && (delay < maxRestartBackoffMsec); i++)
+				delay *= 2;
+			delay = Math.min(delay, maxRestartBackoffMsec);
+			el.addEvent("AgentContainer: restarting agent "+h.name+" in "+delay+" msec");
+			try {
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException ie) {
+			}
+			if (h.stopRequested) {
+				h.state = State.STOPPED;
+				return;
+			}
+			try {
+				h.agent = h.factory.newAgent();
+			}
+			catch (AppStackException ase) {
+				h.lastFailure = ase.toString();
+				h.state = State.FAILED;
+				el.addEvent("AgentContainer: could not make a new "+h.name+": "+ase.getMessage());
+				return;
+			}
+			h.restarts++;
+			h.startedAt = System.currentTimeMillis();
+			h.state = State.RUNNING;
+		}
+	}
+
+
+	private Thread newThread(Runnable r, String name) {
+		if (useVirtualThreads) {
+			try {
+				Object builder = OF_VIRTUAL.invoke(null);
+				builder = BUILDER_NAME.invoke(builder, name);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, r);
+			}
+			catch (Exception e) {
+				el.addEvent("AgentContainer could not make a virtual thread, using a platform thread: "+e);
+			}
+		}
+		return new Thread(threadGroup, r, name, PLATFORM_STACK_SIZE);
+	}
+
+	private static boolean isVirtual(Thread t) {
+		try {
+			return ((Boolean) Thread.class.getMethod("isVirtual").invoke(t)).booleanValue();
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * @return the names of the hosted agents, in the order they were hosted
+	 */
+	public String[] getAgentNames() {
+		synchronized (agents) {
+			return agents.keySet().toArray(new String[agents.size()]);
+		}
+	}
+
+	/**
+	 * @param name an agent's name
+	 * @return the agent currently running under that name (a replacement, if it has been restarted), or null
+	 */
+	public BaseAgent getAgent(String name) {
+		Hosted h = agents.get(name);
+		return (h == null) ? null : h.agent;
+	}
+
+	/**
+	 * @param name an agent's name
+	 * @return the agent's state, or null if there's no such agent
+	 */
+	public State getState(String name) {
+		Hosted h = agents.get(name);
+		return (h == null) ? null : h.state;
+	}
+
+	private Hosted[] hosted() {
+		synchronized (agents) {
+			return agents.values().toArray(new Hosted[agents.size()]);
+		}
+	}
+
+
+	/**
+	 * The container's accounting for one agent
+	 * @param name an agent's name
+	 * @return its state, restarts, uptime and resource use, or null if there's no such agent
+	 */
+	public Map <String,Object> getSummary(String name) {
+		Hosted h = agents.get(name);
+		return (h == null) ? null : summary(h);
+	}
+
+	private Map <String,Object> summary(Hosted h) {
+		Map <String,Object> m = new LinkedHashMap <String,Object> ();
+		BaseAgent agent = h.agent;
+		Thread t = h.thread;
+		AgentMetrics metrics = agent.getMetrics();
+		// the supervisor is inside the restarted agent's run(), so the failure is cleared here once that agent is running
+		if ((h.lastFailure != null) && (h.state == State.RUNNING) && agent.isRunning())
+			h.lastFailure = null;
+		m.put(Vocabulary.Status.AGENT_STATE, h.state.toString());
+		m.put(Vocabulary.Status.AGENT_THREAD, (t == null) ? "none" : (isVirtual(t) ? "virtual" : "platform"));
+		m.put(Vocabulary.Status.AGENT_RESTARTS, Integer.valueOf(h.restarts));
+		m.put(Vocabulary.Status.AGENT_UPTIME_MSEC, Long.valueOf((h.state == State.RUNNING) ? System.currentTimeMillis() - h.startedAt : 0));
+		m.put(Vocabulary.Status.RUNTIME_NRUNS, Long.valueOf(metrics.getPass().getCount()));
+		m.put(Vocabulary.Status.AGENT_LOOP_MSEC, Long.valueOf(metrics.getPass().getTotalNanos() / 1000000L));
+		m.put(Vocabulary.Status.AGENT_HANDLER_MSEC, Long.valueOf(metrics.getProcessing().getTotalNanos() / 1000000L));
+		m.put(Vocabulary.Status.AGENT_IQS_HANDLED, Long.valueOf(metrics.getProcessing().getCount()));
+		long cpu = cpuNanos(t);
+		if (cpu >= 0)
+			m.put(Vocabulary.Status.AGENT_CPU_MSEC, Long.valueOf(cpu / 1000000L));
+		if (h.lastFailure != null)
+			m.put(Vocabulary.Status.AGENT_LAST_FAILURE, h.lastFailure);
+		return m;
+	}
+
+	/**
+	 * @return the CPU time of the agent's own thread, or -1 if the JVM can't say (virtual threads, for instance).
+	 * Time spent on IQ worker pools isn't included; see AGENT_HANDLER_MSEC for that.
+	 */
+	private static long cpuNanos(Thread t) {
+		if ((t == null) || (! t.isAlive()) || isVirtual(t))
+			return -1;
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (! mx.isThreadCpuTimeSupported())
+			return -1;
+		try {
+			return mx.getThreadCpuTime(t.getId());
+		}
+		catch (UnsupportedOperationException uoe) {
+			return -1;
+		}
+	}
+
+
+
+	/// APPSTACK METHODS
+
+	/**
+	 * agents/* - every agent's summary, by name<br />
+	 * agents/? - the agents' names<br />
+	 * agents/NAME - one agent's summary, and agents/NAME/KEY one item of it
+	 */
+	public Object agents(AppStackPathI aspi, Object o) {
+		if (! aspi.hasNext())
+			return null;
+		String s = aspi.popNext();
+		if (AppStack.getGetAllSymbol().equals(s)) {
+			Map <String,Object> all = new LinkedHashMap <String,Object> ();
+			Hosted[] hs = hosted();
+			for (int i = 0; i < hs.length; i++)
+				all.put(hs[i].name, summary(hs[i]));
+			return all;
+		}
+		else if (AppStack.getGetParamsSymbol().equals(s))
+			return Arrays.asList(getAgentNames());
+		Map <String,Object> summary = getSummary(s);
+		if ((summary == null) || (! aspi.hasNext()))
+			return summary;
+		s = aspi.popNext();
+		if (AppStack.getGetAllSymbol().equals(s))
+			return summary;
+		else if (AppStack.getGetParamsSymbol().equals(s))
+			return summary.keySet();
+		return summary.get(s);
+	}
+
+	/**
+	 * agentStatus/NAME/... - the rest of the path is handed to that agent's getStatus,
+	 * e.g. agentStatus/example1/* or agentStatus/example1/latency/pass
+	 */
+	public Object agentStatus(AppStackPathI aspi, Object o) {
+		if (! aspi.hasNext())
+			return null;
+		String s = aspi.popNext();
+		if (AppStack.getGetParamsSymbol().equals(s))
+			return Arrays.asList(getAgentNames());
+		BaseAgent agent = getAgent(s);
+		return (agent == null) ? null : agent.getStatus(aspi, o);
+	}
+
+	/**
+	 * startAgent/NAME - start a hosted agent that isn't running
+	 */
+	public String startAgent(AppStackPathI aspi, Object o) {
+		if (! aspi.hasNext())
+			return null;
+		String s = aspi.popNext();
+		if (AppStack.getGetParamsSymbol().equals(s))
+			return "NAME";
+		return start(s) ? "Started "+s : "Could not start "+s;
+	}
+
+	/**
+	 * stopAgent/NAME - ask a hosted agent to shut down. Doesn't wait for it.
+	 */
+	public String stopAgent(AppStackPathI aspi, Object o) {
+		if (! aspi.hasNext())
+			return null;
+		String s = aspi.popNext();
+		if (AppStack.getGetParamsSymbol().equals(s))
+			return "NAME";
+		Hosted h = agents.get(s);
+		if (h == null)
+			return "No agent called "+s;
+		requestStop(h);
+		return "Stopping "+s;
+	}
+
+}
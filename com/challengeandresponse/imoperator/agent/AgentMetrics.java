@@ -0,0 +1,124 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.challengeandresponse.appstack.AppStack;
+import com.challengeandresponse.appstack.AppStackPathI;
+
+/**
+ * Timing for a BaseAgent, kept in lock-free counters and LatencyHistograms
+ * rather than in the status PropertyThang, so the run loop and IQ handlers can record
+ * on every pass and every packet without taking locks or boxing numbers.
+ *
+ * <p>Three durations are tracked:<br />
+ * <li>queued - from when an IQ reached the agent to when its processIQPacket() handler started</li>
+ * <li>processing - how long each processIQPacket() call took</li>
+ * <li>pass - how long each call to processIQ() from the run loop took</li>
+ * </p>
+ * <p>"queued" and "processing" are only recorded for agents that use the provided processIQ().
+ * "queued" counts from arrival at the inbound queue if setInboundCapacity() was used, or from
+ * when the packet was taken out of the PacketCollector if not.</p>
+ *
+ * @author jim
+ */
+public class AgentMetrics {
+
+	public static final String QUEUED = "queued";
+	public static final String PROCESSING = "processing";
+	public static final String PASS = "pass";
+
+	private final LatencyHistogram queued;
+	private final LatencyHistogram processing;
+	private final LatencyHistogram pass;
+	private final AtomicLong lastPassNanos;
+
+
+	public AgentMetrics() {
+		queued = new LatencyHistogram();
+		processing = new LatencyHistogram();
+		pass = new LatencyHistogram();
+		lastPassNanos = new AtomicLong(0);
+	}
+
+
+	public void recordQueued(long nanos) {
+		queued.record(nanos);
+	}
+
+	public void recordProcessing(long nanos) {
+		processing.record(nanos);
+	}
+
+	public void recordPass(long nanos) {
+		pass.record(nanos);
+		lastPassNanos.set(nanos);
+	}
+
+
+	public LatencyHistogram getQueued() {
+		return queued;
+	}
+
+	public LatencyHistogram getProcessing() {
+		return processing;
+	}
+
+	public LatencyHistogram getPass() {
+		return pass;
+	}
+
+	public long getLastPassNanos() {
+		return lastPassNanos.get();
+	}
+
+
+	/**
+	 * @return the summaries of all the histograms, keyed by histogram name
+	 */
+	public Map <String,Object> getSummary() {
+		Map <String,Object> m = new LinkedHashMap <String,Object> ();
+		m.put(QUEUED,queued.getSummary());
+		m.put(PROCESSING,processing.getSummary());
+		m.put(PASS,pass.getSummary());
+		return m;
+	}
+
+
+	/**
+	 * AppStack-style lookup into the metrics, for getStatus/latency/...<br />
+	 * latency/* returns every histogram's summary, latency/? lists the histogram names,
+	 * latency/processing returns one summary, and latency/processing/p99Usec returns one number.
+	 * @param aspi the path, positioned after "latency"
+	 * @return the matching value, or null if nothing matches
+	 */
+	public Object get(AppStackPathI aspi) {
+		if (! aspi.hasNext())
+			return null;
+		String s = aspi.popNext();
+		if (AppStack.getGetAllSymbol().equals(s))
+			return getSummary();
+		else if (AppStack.getGetParamsSymbol().equals(s))
+			return getSummary().keySet();
+		LatencyHistogram h = null;
+		if (QUEUED.equals(s))
+			h = queued;
+		else if (PROCESSING.equals(s))
+			h = processing;
+		else if (PASS.equals(s))
+			h = pass;
+		if (h == null)
+			return null;
+		Map <String,Object> summary = h.getSummary();
+		if (! aspi.hasNext())
+			return summary;
+		s = aspi.popNext();
+		if (AppStack.getGetAllSymbol().equals(s))
+			return summary;
+		else if (AppStack.getGetParamsSymbol().equals(s))
+			return summary.keySet();
+		return summary.get(s);
+	}
+
+}
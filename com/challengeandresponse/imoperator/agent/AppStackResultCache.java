@@ -0,0 +1,228 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * A cache of results for read-only AppStack queries, such as the getStatus/*, "?" and date
+ * polls monitoring bots send over chat.
+ *
+ * <p>Only commands marked with setTtl() are cached, each for its own time-to-live. A path is
+ * keyed by its normalized form - whitespace trimmed, empty elements and trailing delimiters
+ * dropped - so "getStatus/*" and " getStatus//* " share an entry. The first element of the path
+ * is the command that decides whether and for how long a result is kept.</p>
+ *
+ * <p>The cache holds at most maxEntries results, evicting the least recently used when it's full.
+ * Commands registered with neverCache(), such as shutdown, are refused by setTtl() and always
+ * bypass the cache, since running them is the point.</p>
+ *
+ * <p>Typical use:<br />
+ * <code>
+ * String key = cache.keyFor(path);<br />
+ * Object result = (key == null) ? null : cache.get(key);<br />
+ * if (result == null) {<br />
+ * &nbsp;&nbsp;result = ...run the path...;<br />
+ * &nbsp;&nbsp;if (key != null) cache.put(key, result);<br />
+ * }
+ * </code></p>
+ *
+ * @author jim
+ */
+public class AppStackResultCache {
+
+	private static class Entry {
+		final Object value;
+		final long expires;
+
+		Entry(Object value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxEntries;
+	private final ConcurrentMap <String,Long> ttls;		// command -> msec
+	private final Set <String> never;
+	private final LinkedHashMap <String,Entry> entries;	// access-ordered, so the eldest is the least recently used
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+
+
+	/**
+	 * @param maxEntries the most results to keep
+	 */
+	public AppStackResultCache(int maxEntries) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		this.maxEntries = maxEntries;
+		this.ttls = new ConcurrentHashMap <String,Long> ();
+		this.never = new HashSet <String> ();
+		this.hits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+		this.evictions = new AtomicLong(0);
+		this.entries = new LinkedHashMap <String,Entry> (16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry <String,Entry> eldest) {
+				if (size() > AppStackResultCache.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+
+	/**
+	 * Cache the results of a command
+	 * @param command the command name, as the first element of a path, e.g. "getStatus" or "?"
+	 * @param ttlMsec how long a result stays valid
+	 * @throws IllegalArgumentException if the command was marked neverCache()
+	 */
+	public synchronized void setTtl(String command, long ttlMsec) {
+		if (never.contains(command))
+			throw new IllegalArgumentException(command+" is never cached");
+		if (ttlMsec <= 0)
+			throw new IllegalArgumentException("ttlMsec must be positive");
+		ttls.put(command, Long.valueOf(ttlMsec));
+	}
+
+	/**
+	 * Make sure a command is never cached, even if setTtl() is called for it later
+	 * @param command the command name
+	 */
+	public synchronized void neverCache(String command) {
+		never.add(command);
+		ttls.remove(command);
+	}
+
+
+	/**
+	 * @param path a path as typed, e.g. "getStatus/*"
+	 * @return the path's cache key, or null if its command isn't cached
+	 */
+	public String keyFor(String path) {
+		if (path == null)
+			return null;
+		StringBuilder sb = new StringBuilder(path.length());
+		String command = null;
+		int len = path.length();
+		int i = 0;
+		while (i < len) {
+			int next = path.indexOf(CommandRouter.DELIMITER, i);
+			if (next < 0)
+				next = len;
+			int s = i;
+			int e = next;
+			while ((s < e) && (path.charAt(s) <= ' '))
+				s++;
+			while ((e > s) && (path.charAt(e-1) <= ' '))
+				e--;
+			if (e > s) {
+				if (command == null) {
+					command = path.substring(s, e);
+					if (! ttls.containsKey(command))
+						return null;
+				}
+				else {
+					sb.append(CommandRouter.DELIMITER);
+				}
+				sb.append(path, s, e);
+			}
+			i = next + 1;
+		}
+		return (command == null) ? null : sb.toString();
+	}
+
+
+	/**
+	 * @param key a key from keyFor()
+	 * @return the cached result, or null if there isn't one or it has expired
+	 */
+	public Object get(String key) {
+		Entry e;
+		synchronized (this) {
+			e = entries.get(key);
+			if ((e != null) && (e.expires <= System.currentTimeMillis())) {
+				entries.remove(key);
+				e = null;
+			}
+		}
+		if (e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return e.value;
+	}
+
+
+	/**
+	 * Keep a result under its key, for its command's TTL
+	 * @param key a key from keyFor()
+	 * @param value the result. null results aren't kept.
+	 */
+	public void put(String key, Object value) {
+		if ((key == null) || (value == null))
+			return;
+		int slash = key.indexOf(CommandRouter.DELIMITER);
+		Long ttl = ttls.get((slash < 0) ? key : key.substring(0, slash));
+		if (ttl == null)
+			return;
+		synchronized (this) {
+			entries.put(key, new Entry(value, System.currentTimeMillis() + ttl.longValue()));
+		}
+	}
+
+
+	/**
+	 * Forget every cached result
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+
+	/**
+	 * Write the cache's counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.RESULT_CACHE_SIZE,size());
+		status.setProperty(Vocabulary.Status.RESULT_CACHE_MAX_ENTRIES,maxEntries);
+		status.setProperty(Vocabulary.Status.RESULT_CACHE_HITS,getHitCount());
+		status.setProperty(Vocabulary.Status.RESULT_CACHE_MISSES,getMissCount());
+		status.setProperty(Vocabulary.Status.RESULT_CACHE_EVICTIONS,getEvictionCount());
+	}
+
+}
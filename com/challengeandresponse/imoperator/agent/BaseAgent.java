@@ -1,15 +1,24 @@
 package com.challengeandresponse.imoperator.agent;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.provider.ProviderManager;
 
 import com.challengeandresponse.appstack.*;
 import com.challengeandresponse.eventlogger.EventLoggerI;
 import com.challengeandresponse.imoperator.comm.*;
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
 import com.challengeandresponse.imoperator.universaliq.UniversalIQProvider;
 import com.challengeandresponse.utils.ChatUtils;
 import com.challengeandresponse.utils.PropertyThang;
@@ -34,7 +43,9 @@ import com.challengeandresponse.utils.PropertyThang;
  * <p>When the agent is unavailable:<br />
  * The Smack library's PacketCollector user here CONTINUES receiving IQ messages from the server
  * even if cancel() has been called on it, and even if its Presence is "unavailable". Thus,
- * packets sent to a disinterested agent based on this class will be LOST. The SimpleXMPPConnection
+ * packets sent to a disinterested agent based on this class will be LOST. setInboundCapacity() at least
+ * keeps the number of those packets held in memory bounded, and setInboundJournal() keeps the packets the
+ * agent has taken in, but not yet handled, on disk for the next run. The SimpleXMPPConnection
  * does test for presence and throws an exception if the addressee's Presence (as of the last
  * update) is "unavailable".</p>
  * 
@@ -47,7 +58,8 @@ import com.challengeandresponse.utils.PropertyThang;
  * <p>
  * The child agent's init() method is the place to put AT LEAST one call to
  * addRecognizedClass() -- if you don't do this, the agent won't hear any
- * IQ messages. Then, in its processIQ method, handle the incoming messages.
+ * IQ messages. Then, in its processIQ method, handle the incoming messages,
+ * or implement processIQPacket() and let the provided processIQ() hand it one packet at a time.
  * Only classes registered with addRecognizedClass() will be passed to processIQ().
  * </p>
  * 
@@ -74,17 +86,81 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 	
 	// IQ XML -> OBJECT translation via the universal provider
 	private ProviderManager pm;
-	private UniversalIQProvider uiqp;
+	private UniversalIQProvider uiqp;	// SHARED_IQ_PROVIDER
+	
+	// one provider serves every agent in the JVM: the ProviderManager is a singleton, so one registration per class does for all of them
+	private static final UniversalIQProvider SHARED_IQ_PROVIDER = new UniversalIQProvider();
+	// and one for MMObjects encoded by a PayloadCodecI, registered by the first agent to call setPayloadCodec()
+	private static final BinaryIQProvider SHARED_BINARY_PROVIDER = new BinaryIQProvider();
 
-	private boolean running;
+	private volatile boolean running;
+	private volatile boolean shutdownRequested;	// set by requestShutdown(), so a supervisor can tell a shutdown from a failure
 	private int loopSleepTime;
 	private int shutdownSleepTime;
+	private boolean eventDispatch;	// if true, the run loop wakes as soon as an IQ arrives instead of sleeping loopSleepTime
 	
 	private PropertyThang status;
 	private SimpleXMPPConnection xmppc;
 	
 	private PacketCollector iqPc; 		// collects IQ packets containing M2M traffic with classes matching those in the iqPcf
-	private CompositeFilter iqCompositeFilter;  // composite filter for the PacketCollector
+	private IndexedCompositeFilter iqCompositeFilter;  // composite filter for the PacketCollector
+	private PacketSignal iqSignal;		// hears the same packets as iqPc, to wake the run loop in event dispatch mode
+	private IQExecutorI iqExecutor;	// if not null, processIQPacket() calls run here instead of on the run loop's thread
+	private InboundQueue inbound;		// if not null, a bounded queue that iqPc is emptied into as packets arrive
+	private AgentMetrics metrics;		// latency histograms for the run loop and IQ handlers
+	private ClassMetrics classMetrics;	// traffic and latency for each recognized IQ class
+	private CommandRouter commands;		// chat commands registered with addMethod(), resolved without AppStack's per-call lookup
+	private long outboundWindowMsec;	// if >= 0, chat replies are batched through an OutboundBatcher with this window
+	private int outboundMaxBatch;
+	private OutboundBatcher outbound;	// made in run() once connected, if outboundWindowMsec >= 0
+	private AppStackResultCache resultCache;	// if not null, chat replies for cacheable commands are kept here
+	private CheckpointStore checkpoint;	// if not null, the status structure is saved here and restored by run()
+	private long checkpointIntervalMsec;
+	private long lastCheckpoint;
+	private Set <String> statusNamespaces;	// every namespace handed out by getStatus(namespace), for checkpointing
+	private InboundJournal journal;	// if not null, inbound IQs are written here before they are handled
+	private java.io.File holdSpillDirectory;	// if not null, sendIQ() holds stanzas for unavailable recipients in a StoreAndForwardQueue
+	private int holdMemoryThreshold;
+	private int holdMaxPerRecipient;
+	private long holdTtlMsec;
+	private StoreAndForwardQueue held;	// made in run() once connected, if holdSpillDirectory is set
+	private ComponentConnection component;	// if not null, the agent's traffic goes over this shared connection instead of its own
+	private String componentJid;		// the agent's JID in the component's domain, once registered
+	private ThreadPoolExecutor componentMessages;	// runs processPacket() for messages the component routes here, one at a time
+	private ResendBuffer resend;		// if not null, a lost connection is reconnected, and stanzas that may have been lost with it are sent again
+	private long reconnectInitialMsec;
+	private long reconnectMaxMsec;
+	private int reconnectMaxAttempts;
+	private volatile boolean connectionLost;	// set by connectionClosedOnError() until the run loop reconnects
+	private volatile long nextReconnectAt;
+	private long connectionLostAt;
+	private int reconnectAttempt;
+	private long reconnects;
+	private long lastOutageMsec;
+	private XMPPConnection boundConnection;	// the XMPPConnection the agent's listeners and collector are on
+	private final Random jitter;
+	private final IQRequestTracker requests;	// IQs sent with sendIQAsync(), waiting for their answers
+	private long mmWindowMsec;		// if >= 0, sendMMObject() batches through an MMBatcher with this window
+	private int mmMaxBatch;
+	private MMBatcher mmBatcher;		// made in run() once connected, if mmWindowMsec >= 0
+	private boolean batchDelivery;		// if true, MMBatch envelopes reach processIQPacket() whole instead of unpacked
+	private boolean batchesRecognized;	// MMBatch has been added to the recognized classes
+	private final AtomicLong batchesReceived;
+	private final AtomicLong batchItemsUnpacked;
+	private final AtomicLong batchItemsRejected;
+	private CodecNegotiator codecs;	// if not null, MMObjects go out encoded by its codec to peers that advertise it
+	
+	/** the inbound queue capacity given to an agent on a ComponentConnection that didn't call setInboundCapacity() */
+	public static final int COMPONENT_INBOUND_CAPACITY = 1024;
+	
+	/** how long sendIQAsync() waits for an answer, if no timeout is given */
+	public static final long DEFAULT_IQ_TIMEOUT_MSEC = 30000;
+	
+	/** how long the ResendBuffer keeps an unanswered IQ, once setReconnect() turns it on */
+	public static final long RESEND_TTL_MSEC = 5L * 60L * 1000L;
+	
+	/** the most chat replies the result cache keeps, once setCacheable() turns it on */
+	public static final int RESULT_CACHE_ENTRIES = 256;
 	
 	public static final String BASE_NAMESPACE = "com.challengeandresponse.imoperator.agent.BaseAgent";
 	
@@ -124,33 +200,93 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 		
 		this.xmppc = null;
 
-		iqCompositeFilter = new CompositeFilter();
+		iqCompositeFilter = new IndexedCompositeFilter();
 		iqPc = null;
+		iqSignal = new PacketSignal();
+		iqExecutor = null;
+		inbound = null;
+		metrics = new AgentMetrics();
+		classMetrics = new ClassMetrics();
+		outboundWindowMsec = -1;
+		outboundMaxBatch = 0;
+		outbound = null;
+		resultCache = null;
+		checkpoint = null;
+		checkpointIntervalMsec = 0;
+		journal = null;
+		holdSpillDirectory = null;
+		held = null;
+		component = null;
+		componentJid = null;
+		resend = null;
+		connectionLost = false;
+		boundConnection = null;
+		jitter = new Random();
+		requests = new IQRequestTracker(username+"-"+resource);
+		// answers to sendIQAsync() requests go to their futures, not the collector
+		iqCompositeFilter.addExcludeFilter(requests);
+		mmWindowMsec = -1;
+		mmMaxBatch = 0;
+		mmBatcher = null;
+		batchDelivery = false;
+		batchesRecognized = false;
+		batchesReceived = new AtomicLong(0);
+		batchItemsUnpacked = new AtomicLong(0);
+		batchItemsRejected = new AtomicLong(0);
+		codecs = null;
+		statusNamespaces = Collections.synchronizedSet(new LinkedHashSet <String> ());
+		statusNamespaces.add(BASE_NAMESPACE);
 		pm = ProviderManager.getInstance();
-		uiqp = new UniversalIQProvider();
+		uiqp = SHARED_IQ_PROVIDER;
 		
 		this.loopSleepTime = status.getIntProperty("loopSleepTime", 1000);
 		this.shutdownSleepTime = status.getIntProperty("shutdownSleepTime", 2000);
+		this.eventDispatch = false;
+		status.setProperty(Vocabulary.Status.EVENT_DISPATCH,eventDispatch);
 		this.running = false;
+		this.shutdownRequested = false;
 
 		// add the appStack methods
+		this.commands = new CommandRouter(this,false);
 		this.addMethod(Vocabulary.Methods.SHUTDOWN, "shutdown");
 		this.addMethod(Vocabulary.Methods.GET_STATUS,"getStatus");
 		this.addMethod(Vocabulary.Methods.DATE,"date");
 	}
 
+
+	/**
+	 * Registers the method with the AppStack as usual, and also with the agent's CommandRouter,
+	 * so that chat messages naming it are dispatched without a per-message reflective lookup.
+	 * @throws AppStackException if the agent has no public method of that name taking
+	 * (AppStackPathI, Object) or (AppStackPathI)
+	 */
+	@Override
+	public void addMethod(String name, String methodName)
+	throws AppStackException {
+		// AppStack first, so a method it rejects never gets a route. One the router rejects is still reachable through AppStack.
+		super.addMethod(name, methodName);
+		commands.register(name, methodName);
+	}
+
 		
 	/**
 	 * Add a "recognized class" for this agent's PacketCollector
 	 * This method adds the class to the IQ packet filter for the agent, and also
 	 * registers the UniversalIQProvider to marshal IQ's into local objects.
 	 * Classes should be descendants of UniversalIQ.
+	 * Recognizing any MMObject class recognizes MMBatch too, so that batches of the class are heard. See setBatchDelivery().
 	 * @param recognizedClass the class to add
 	 */
 	@SuppressWarnings("unchecked")
 	public void addPCRecognizedClass(Class recognizedClass) {
 		addRecognizedClass(recognizedClass);
-		iqCompositeFilter.addIncludeFilter(new PacketClassFilter(recognizedClass));
+		iqCompositeFilter.addIncludeClass(recognizedClass);
+		classMetrics.register(recognizedClass);
+		if ((! batchesRecognized) && (recognizedClass != null) && MMObject.class.isAssignableFrom(recognizedClass)) {
+			batchesRecognized = true;
+			if (recognizedClass != MMBatch.class)
+				addPCRecognizedClass(MMBatch.class);
+		}
 	}
 	
 	
@@ -165,8 +301,24 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 	 */
 	@SuppressWarnings("unchecked")
 	public void addRecognizedClass(Class recognizedClass) {
-		if (recognizedClass != null)
-			pm.addIQProvider("query", recognizedClass.getName(), uiqp);
+		registerSharedIQProvider(recognizedClass);
+	}
+	
+	
+	/**
+	 * Register the shared UniversalIQProvider for a class, unless it is registered already.
+	 * Every BaseAgent in the JVM uses the same provider, so a class needs registering only once,
+	 * however many agents recognize it.
+	 * @param recognizedClass the class, a descendant of UniversalIQ
+	 */
+	public static void registerSharedIQProvider(Class<?> recognizedClass) {
+		if (recognizedClass == null)
+			return;
+		ProviderManager pm = ProviderManager.getInstance();
+		synchronized (SHARED_IQ_PROVIDER) {
+			if (pm.getIQProvider("query", recognizedClass.getName()) != SHARED_IQ_PROVIDER)
+				pm.addIQProvider("query", recognizedClass.getName(), SHARED_IQ_PROVIDER);
+		}
 	}
 	
 	
@@ -227,7 +379,7 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 	 * which is found in this class's member called BASE_NAMESPACE.
 	 * Any other label (short or long) is valid. The advantage of 
 	 * stashing subclass status properties this way is that the base agent
-	 * will eventually persist its status structure, so agents can have 
+	 * persists its status structure when setCheckpoint() is used, so agents can have 
 	 * limited persistence by storing their state in the 'status' structure.
 	 * </p>
 	 * Sample calling:<br />
@@ -237,21 +389,35 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 	 * @return a hook to the base agent's status PropertyThang, filtered for the provided namespace. To see the base agent's namespace, use BaseAgent.BASE_NAMESPACE
 	 */
 	public PropertyThang getStatus(String namespace) {
+			statusNamespaces.add(namespace);
 			return new PropertyThang(status,namespace);
 	}
 
 	
 	
 	/**
-	 * Retrieve a single status object for this Agent, or null if the named status object does not exist
+	 * Retrieve a single status object for this Agent, or null if the named status object does not exist.
+	 * The path "latency" leads to the agent's latency histograms instead of the status structure,
+	 * for example getStatus/latency/* or getStatus/latency/processing/p99Usec. See AgentMetrics.get().
+	 * The path "classes" leads to the per-class counters, for example getStatus/classes/* or 
+	 * getStatus/classes/MMObject. See ClassMetrics.get().
+	 * The path "filters" leads to the IQ filter's hit counters, for example getStatus/filters/* or
+	 * getStatus/filters/excludes. See IndexedCompositeFilter.get().
 	 * @return the property, if a name matches the next name on the stack, the status object if the next item is the ALL symbol, and null if there was no match
 	 */
 	public Object getStatus(AppStackPathI aspi, Object o) {
 		if (! aspi.hasNext()) {
 			return null;
 		}
+		refreshStatus();
 		String s = aspi.popNext();
-		if (AppStack.getGetAllSymbol().equals(s))
+		if (Vocabulary.Status.LATENCY.equals(s))
+			return metrics.get(aspi);
+		else if (Vocabulary.Status.CLASSES.equals(s))
+			return classMetrics.get(aspi);
+		else if (Vocabulary.Status.FILTERS.equals(s))
+			return iqCompositeFilter.get(aspi);
+		else if (AppStack.getGetAllSymbol().equals(s))
 			return status.getPropertyKeysAndValues();
 		else if (AppStack.getGetParamsSymbol().equals(s))
 			return status.getPropertyKeys();
@@ -265,14 +431,43 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 		if (AppStack.getGetParamsSymbol().equals(s))
 			return "now";
 		else if ("now".equals(s)) {
-			xmppc.sendPresence(Presence.Type.unavailable, Presence.Mode.away);
-			iqPc.cancel(); // stop additional packets from being collected
-			this.running = false;
+			requestShutdown();
 			return "Shutting down";
 		}
 		else
 			return null;
 	}
+	
+	/**
+	 * Stop the agent: the same as the shutdown/now command. run() finishes its current pass, 
+	 * calls destroy() and returns. Safe to call before the agent has connected.
+	 */
+	public void requestShutdown() {
+		this.shutdownRequested = true;
+		if (xmppc != null)
+			xmppc.sendPresence(Presence.Type.unavailable, Presence.Mode.away);
+		if ((component != null) && (componentJid != null))
+			component.sendPresence(componentJid, false);
+		if (iqPc != null)
+			iqPc.cancel(); // stop additional packets from being collected
+		this.running = false;
+		iqSignal.wakeup(); // don't make the run loop sit out its wait
+	}
+	
+	/**
+	 * @return true if requestShutdown() (or the shutdown/now command) has been called. If run() returns
+	 * without this, the agent stopped because startup failed or the connection was lost.
+	 */
+	public boolean isShutdownRequested() {
+		return shutdownRequested;
+	}
+	
+	/**
+	 * @return true while run() is in its main loop
+	 */
+	public boolean isRunning() {
+		return running;
+	}
 
 	/**
 	 * Just returns the current date and time. aspi is ignored.
@@ -283,11 +478,839 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 		return (new Date()).toString();
 	}
 
+	/**
+	 * Choose how the run loop waits between calls to processIQ().
+	 * <p>With event dispatch off (the default) the loop sleeps loopSleepTime msec after every pass,
+	 * so an arriving IQ can wait up to that long before processIQ() sees it.<br />
+	 * With event dispatch on, the loop blocks until the PacketCollector receives a packet, or until
+	 * loopSleepTime msec pass with nothing arriving, whichever is first. Idle agents then only
+	 * wake once per loopSleepTime, and busy agents see each packet as soon as it arrives.</p>
+	 * <p>processIQ() is called the same way in both modes, so existing implementations don't change.
+	 * Call this from the constructor or init().</p>
+	 *
+	 * @param eventDispatch true to wake the loop on packet arrival, false to poll on a fixed sleep
+	 */
+	public void setEventDispatch(boolean eventDispatch) {
+		this.eventDispatch = eventDispatch;
+		status.setProperty(Vocabulary.Status.EVENT_DISPATCH,eventDispatch);
+	}
+	
+	public boolean isEventDispatch() {
+		return eventDispatch;
+	}
+	
+
+	/**
+	 * Run processIQPacket() calls on a pool of worker threads instead of on the run loop's thread.
+	 * This only affects agents that use the provided processIQ(), which hands each packet
+	 * to processIQPacket(). Agents that override processIQ() do their own dispatching and are unaffected.
+	 * <p>The pool is bounded: when queueDepth packets are already waiting, the run loop runs the next
+	 * handler itself, which slows intake until the workers catch up. The pool's size and current
+	 * queue depth are reported by getStatus. Call this from the constructor or init().</p>
+	 *
+	 * @param threads the number of worker threads, e.g. Runtime.getRuntime().availableProcessors()
+	 * @param queueDepth the number of packets that may wait for a worker
+	 * @param virtualThreads true to use virtual threads for the workers, if the JVM has them
+	 */
+	public void setIQWorkerPool(int threads, int queueDepth, boolean virtualThreads) {
+		setIQExecutor(new IQWorkerPool(username+"-"+resource, threads, queueDepth, virtualThreads));
+	}
+	
+	/**
+	 * Like setIQWorkerPool(), but packets are handled in order per sender. Each sender's bare JID
+	 * is hashed to one of nLanes lanes, and each lane handles its packets one at a time in arrival order,
+	 * so two IQs from the same JID are never handled concurrently or out of order. Different senders
+	 * are handled in parallel, one thread per lane.
+	 * <p>When a lane's queue is full, the run loop waits for room, which slows intake. The number of lanes
+	 * and each lane's current queue depth are reported by getStatus. Call this from the constructor or init().</p>
+	 * 
+	 * @param nLanes the number of lanes, e.g. Runtime.getRuntime().availableProcessors()
+	 * @param queueDepthPerLane the number of packets that may wait in each lane
+	 * @param virtualThreads true to use virtual threads for the lanes, if the JVM has them
+	 */
+	public void setIQLanes(int nLanes, int queueDepthPerLane, boolean virtualThreads) {
+		setIQExecutor(new IQLaneExecutor(username+"-"+resource, nLanes, queueDepthPerLane, virtualThreads));
+	}
+	
+	/**
+	 * Put a limit on how many inbound IQs can be waiting for this agent. Packets are moved out of the
+	 * PacketCollector as they arrive, into a queue that holds at most capacity packets. When it's full,
+	 * the overflow policy decides what happens to the next packet: drop the oldest waiting packet, drop the
+	 * new one, or drop the new one and reply to its sender with a "wait" (resource-constraint) error so the sender backs off.
+	 * The number of packets shed is reported by getStatus.
+	 * <p>This needs the provided processIQ(), which reads from the queue. If a subclass overrides processIQ()
+	 * it reads the PacketCollector directly, so the limit is not applied and a warning is logged at startup.
+	 * Call this from the constructor or init().</p>
+	 * 
+	 * @param capacity the most inbound packets that may wait for processing
+	 * @param overflow what to do with packets that arrive when the queue is full
+	 */
+	public void setInboundCapacity(int capacity, InboundQueue.Overflow overflow) {
+		inbound = new InboundQueue(capacity, overflow);
+		refreshStatus();
+	}
+	
+	/**
+	 * Send chat replies through an OutboundBatcher: they are queued, and sent together once the oldest
+	 * has waited windowMsec or maxBatch are waiting, with replies to the same person merged into one message.
+	 * sendChat() and the provided processPacket() use it; call flushOutbound() to send at once.
+	 * sendIQ(), sendPacket() and sendHeldChat() send a recipient's waiting replies before writing to it
+	 * directly, so nothing overtakes them. The batcher's counters are reported by getStatus. Call this from the constructor or init(),
+	 * before run() connects.
+	 * 
+	 * @param windowMsec the longest a reply waits to be sent
+	 * @param maxBatch the number of waiting replies that triggers a send before the window is up
+	 */
+	public void setOutboundBatching(long windowMsec, int maxBatch) {
+		if (windowMsec < 0)
+			throw new IllegalArgumentException("windowMsec must not be negative");
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be at least 1");
+		this.outboundWindowMsec = windowMsec;
+		this.outboundMaxBatch = maxBatch;
+	}
+	
+	/**
+	 * Cache the chat replies to a read-only command for a while, so repeated polls
+	 * (getStatus/*, ?, date) are answered without running and rendering the command again.
+	 * Paths are cached separately, so getStatus/* and getStatus/loopSleepTime each have their own entry.
+	 * shutdown can't be cached. The cache's hit and miss counts are reported by getStatus.
+	 * 
+	 * @param command the command, as the first element of a path: a method name registered with addMethod(), or "?" or "*"
+	 * @param ttlMsec how long a reply stays valid
+	 * @throws IllegalArgumentException if the command must not be cached, or ttlMsec isn't positive
+	 */
+	public void setCacheable(String command, long ttlMsec) {
+		if (resultCache == null) {
+			AppStackResultCache c = new AppStackResultCache(RESULT_CACHE_ENTRIES);
+			c.neverCache(Vocabulary.Methods.SHUTDOWN);
+			resultCache = c;
+		}
+		resultCache.setTtl(command, ttlMsec);
+		refreshStatus();
+	}
+	
+	/**
+	 * @return the cache of chat replies, or null if setCacheable() hasn't been called
+	 */
+	public AppStackResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	/**
+	 * Send a chat message, through the OutboundBatcher if setOutboundBatching() was called,
+	 * or straight to the connection if not. Batched messages are checked for the recipient's
+	 * presence when they are sent, and failures are logged rather than thrown.
+	 * @param to the recipient
+	 * @param body the message text
+	 * @throws SimpleXMPPException if sent straight to the connection, and the connection refused it
+	 */
+	public void sendChat(String to, String body)
+	throws SimpleXMPPException {
+		if (connectionLost && holdWhileLost(chatMessage(to, body)))
+			return;
+		if (outbound != null)
+			outbound.sendMessage(to, body);
+		else if (component != null)
+			sendPacket(chatMessage(to, body));
+		else
+			xmppc.sendMessage(to, body);
+	}
+	
+	/**
+	 * Send the chat messages waiting in the OutboundBatcher for a recipient, before anything else is sent
+	 * to it straight to the connection, so stanzas to one recipient go out in the order they were sent
+	 */
+	private void flushChatTo(String to) {
+		if (outbound != null)
+			outbound.flushTo(to);
+	}
+	
+	/**
+	 * Send any chat messages waiting in the OutboundBatcher now. Does nothing if batching is off.
+	 */
+	public void flushOutbound() {
+		if (outbound != null)
+			outbound.flush();
+	}
+	
+	/**
+	 * @return the agent's OutboundBatcher, or null if batching is off or the agent hasn't connected
+	 */
+	public OutboundBatcher getOutboundBatcher() {
+		return outbound;
+	}
+	
+	/**
+	 * Send MMObjects through an MMBatcher: sendMMObject() queues them by recipient, and each recipient's
+	 * objects go out together in MMBatch envelopes once the oldest has waited windowMsec, or as soon as one
+	 * recipient has maxBatch waiting. Call this from the constructor or init(), before run() connects.
+	 * @param windowMsec the longest an object waits before it is sent. 0 sends on the next pass of the batcher's thread.
+	 * @param maxBatch the most objects in one envelope
+	 */
+	public void setMMBatching(long windowMsec, int maxBatch) {
+		if (windowMsec < 0)
+			throw new IllegalArgumentException("windowMsec must not be negative");
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be at least 1");
+		this.mmWindowMsec = windowMsec;
+		this.mmMaxBatch = maxBatch;
+	}
+	
+	/**
+	 * Send an MMObject, through the MMBatcher if setMMBatching() was called, otherwise with sendIQ() right away.
+	 * A batched object's packet ID is not kept, so it can't be waited on with sendIQAsync(): the receiver sees
+	 * the envelope's ID with the object's position appended.
+	 * @param to the recipient's JID
+	 * @param mmo the object
+	 * @throws SimpleXMPPException if batching is off and sendIQ() refused the object
+	 */
+	public void sendMMObject(String to, MMObject mmo)
+	throws SimpleXMPPException {
+		if (mmBatcher != null)
+			mmBatcher.send(to, mmo);
+		else
+			sendIQ(to, mmo);
+	}
+	
+	/**
+	 * Send any MMObjects waiting in the MMBatcher now. Does nothing if batching is off.
+	 */
+	public void flushMMObjects() {
+		if (mmBatcher != null)
+			mmBatcher.flush();
+	}
+	
+	/**
+	 * @return the agent's MMBatcher, or null if batching is off or the agent hasn't connected
+	 */
+	public MMBatcher getMMBatcher() {
+		return mmBatcher;
+	}
+	
+	/**
+	 * Choose how the provided processIQ() hands on an MMBatch that arrives. By default (false) the batch is
+	 * unpacked, and each MMObject in it that passes the agent's filter reaches processIQPacket() as if it had
+	 * come on its own; the ones that don't pass are counted as rejected. With true, processIQPacket() gets the
+	 * MMBatch itself, and can handle the whole lot at once through MMBatch.unpack() or getItems().
+	 * Agents that override processIQ() always get the MMBatch itself.
+	 * @param wholeBatches true to deliver batches whole
+	 */
+	public void setBatchDelivery(boolean wholeBatches) {
+		this.batchDelivery = wholeBatches;
+	}
+	
+	public boolean isBatchDelivery() {
+		return batchDelivery;
+	}
+	
+	/**
+	 * Send MMObjects encoded by a PayloadCodecI, such as the BinaryCodec, instead of as XStream XML, to peers
+	 * that can decode them, and decode them when they arrive. The agent advertises the codec in its available
+	 * presence, and a CodecNegotiator notes which peers advertise it too. sendIQ() then encodes each MMObject for
+	 * one of those peers into a BinaryIQ; everything else, including MMObjects the codec can't encode, goes as XML.
+	 * The receiver's BinaryIQProvider turns a BinaryIQ back into the MMObject that was sent, so its handlers see
+	 * the same objects either way. The counters are reported by getStatus.
+	 * <p>Only recognized MMObject classes are decoded, and with the BinaryCodec, only payload classes on its allow
+	 * list: JDK values and collections are on it, and the agent's own payload classes must be added with BinaryCodec.allow().</p>
+	 * <p>On a ComponentConnection the codec is advertised, but peers' presence isn't heard, so peers must be
+	 * declared to the negotiator with getCodecNegotiator().declare().</p>
+	 * Call this from the constructor or init(), before run() connects.
+	 * @param codec the codec to offer
+	 */
+	public void setPayloadCodec(PayloadCodecI codec) {
+		SHARED_BINARY_PROVIDER.addCodec(codec);
+		synchronized (SHARED_BINARY_PROVIDER) {
+			if (pm.getIQProvider(BinaryIQ.ELEMENT, BinaryIQ.NAMESPACE) != SHARED_BINARY_PROVIDER)
+				pm.addIQProvider(BinaryIQ.ELEMENT, BinaryIQ.NAMESPACE, SHARED_BINARY_PROVIDER);
+		}
+		this.codecs = new CodecNegotiator(codec);
+	}
+	
+	/**
+	 * @return the agent's CodecNegotiator, or null if setPayloadCodec() hasn't been called
+	 */
+	public CodecNegotiator getCodecNegotiator() {
+		return codecs;
+	}
+	
+	/**
+	 * Save the status structure, including every namespace handed out by getStatus(namespace),
+	 * to a CheckpointStore in the given file. run() restores it before connecting and calling init(),
+	 * so an agent that restarts picks up the state it left off with. After that it is saved every
+	 * intervalMsec from the run loop, and once more at shutdown. Each save writes only the properties
+	 * that changed since the one before. Call this from the constructor, before run().
+	 * 
+	 * @param file the checkpoint file
+	 * @param intervalMsec how often to save while running. 0 saves only at shutdown.
+	 */
+	public void setCheckpoint(java.io.File file, long intervalMsec) {
+		if (intervalMsec < 0)
+			throw new IllegalArgumentException("intervalMsec must not be negative");
+		if (checkpoint != null)
+			checkpoint.close();
+		checkpoint = new CheckpointStore(file);
+		checkpointIntervalMsec = intervalMsec;
+		refreshStatus();
+	}
+	
+	/**
+	 * @return the agent's checkpoint store, or null if setCheckpoint() hasn't been called
+	 */
+	public CheckpointStore getCheckpoint() {
+		return checkpoint;
+	}
+	
+	/**
+	 * Copy the last checkpoint, if there is one, into the status structure
+	 */
+	private void restoreCheckpoint() {
+		try {
+			Map <String,Map<String,Object>> saved = checkpoint.load();
+			int n = 0;
+			Iterator <Map.Entry<String,Map<String,Object>>> nsIt = saved.entrySet().iterator();
+			while (nsIt.hasNext()) {
+				Map.Entry<String,Map<String,Object>> nsEntry = nsIt.next();
+				PropertyThang pt = BASE_NAMESPACE.equals(nsEntry.getKey()) ? status : getStatus(nsEntry.getKey());
+				Iterator <Map.Entry<String,Object>> it = nsEntry.getValue().entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<String,Object> e = it.next();
+					pt.setProperty(e.getKey(), e.getValue());
+					n++;
+				}
+			}
+			el.addEvent("Restored "+n+" status properties from checkpoint "+checkpoint.getFile());
+			Iterator <String> unreadable = checkpoint.getUnreadable().iterator();
+			while (unreadable.hasNext())
+				el.addEvent("Skipped unreadable checkpoint entry "+unreadable.next());
+		}
+		catch (java.io.IOException ioe) {
+			el.addEvent("Could not restore checkpoint "+checkpoint.getFile()+", starting without it: "+ioe.getMessage());
+		}
+		lastCheckpoint = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Save the status structure's changes since the last checkpoint
+	 */
+	private void saveCheckpoint() {
+		lastCheckpoint = System.currentTimeMillis();
+		refreshStatus();
+		Map <String,Map<String,Object>> snapshot = new LinkedHashMap <String,Map<String,Object>> ();
+		Object[] namespaces = statusNamespaces.toArray();
+		for (int i = 0; i < namespaces.length; i++) {
+			String ns = (String) namespaces[i];
+			PropertyThang pt = BASE_NAMESPACE.equals(ns) ? status : new PropertyThang(status,ns);
+			snapshot.put(ns, pt.getPropertyKeysAndValues());
+		}
+		try {
+			checkpoint.save(snapshot);
+		}
+		catch (java.io.IOException ioe) {
+			el.addEvent("Could not write checkpoint "+checkpoint.getFile()+": "+ioe.getMessage());
+		}
+	}
+	
+	/**
+	 * Keep a write-ahead journal of inbound IQs in the given directory. The provided processIQ() appends
+	 * each pass's packets to the journal and commits them with a single fsync before handing them to
+	 * processIQPacket(), and marks each one done when its handler returns. At shutdown, packets that
+	 * arrived but weren't handled are journalled instead of lost. On the next run, after init(),
+	 * the packets that were never marked done are handled again (so a packet may be handled twice,
+	 * if the agent stopped between handling it and recording that).
+	 * <p>This needs the provided processIQ(), like setInboundCapacity(). Call this from the constructor, before run().</p>
+	 * 
+	 * @param directory the journal's directory, one per agent
+	 * @param segmentBytes the size of each journal file, see InboundJournal.DEFAULT_SEGMENT_BYTES
+	 * @throws java.io.IOException if the journal can't be opened
+	 */
+	public void setInboundJournal(java.io.File directory, long segmentBytes)
+	throws java.io.IOException {
+		if (journal != null)
+			journal.close();
+		journal = new InboundJournal(directory, segmentBytes);
+		refreshStatus();
+	}
+	
+	/**
+	 * @return the agent's inbound journal, or null if setInboundJournal() hasn't been called
+	 */
+	public InboundJournal getInboundJournal() {
+		return journal;
+	}
+	
+	/**
+	 * Handle the packets an earlier run journalled and never finished
+	 */
+	private void replayJournal() {
+		List <InboundJournal.Entry> entries = journal.pending();
+		if (entries.isEmpty())
+			return;
+		el.addEvent("Replaying "+entries.size()+" unfinished IQs from the inbound journal");
+		for (int i = 0; i < entries.size(); i++) {
+			InboundJournal.Entry e = entries.get(i);
+			IQ iq = null;
+			try {
+				iq = IQParser.parse(e.xml);
+			}
+			catch (java.io.IOException ioe) {
+				el.addEvent("Dropping journalled IQ "+e.id+": "+ioe.getMessage());
+			}
+			if (iq == null) {
+				journal.markDone(e.id);
+				continue;
+			}
+			dispatchInbound(iq, System.nanoTime(), e.id);
+		}
+	}
+	
+	/**
+	 * Journal packets that arrived but won't be handled this run, so the next run handles them
+	 */
+	private void journalUnprocessed() {
+		int n = 0;
+		try {
+			if (inbound != null) {
+				InboundQueue.Entry e = inbound.poll();
+				while (e != null) {
+					journal.append(e.packet);
+					n++;
+					e = inbound.poll();
+				}
+			}
+			if (iqPc != null) {
+				Packet p = iqPc.pollResult();
+				while (p != null) {
+					journal.append(p);
+					n++;
+					p = iqPc.pollResult();
+				}
+			}
+		}
+		catch (java.io.IOException ioe) {
+			el.addEvent("Could not journal unprocessed IQs: "+ioe.getMessage());
+		}
+		if (n > 0)
+			el.addEvent("Journalled "+n+" unprocessed IQs for the next run");
+	}
+	
+	/**
+	 * Hold stanzas for recipients who are unavailable, instead of failing. sendIQ() and sendHeldChat()
+	 * then go through a StoreAndForwardQueue: stanzas the connection refuses because the recipient's
+	 * presence is unavailable are kept, and sent in a burst when the recipient's available presence arrives.
+	 * The queue's counters are reported by getStatus. Call this from the constructor or init(), before run() connects.
+	 * 
+	 * @param spillDirectory where each recipient's stanzas past memoryThreshold are written
+	 * @param memoryThreshold the most stanzas kept in memory for one recipient
+	 * @param maxPerRecipient the most stanzas held for one recipient; more are refused
+	 * @param ttlMsec how long a stanza is held before it is dropped
+	 */
+	public void setStoreAndForward(java.io.File spillDirectory, int memoryThreshold, int maxPerRecipient, long ttlMsec) {
+		if (spillDirectory == null)
+			throw new IllegalArgumentException("spillDirectory must not be null");
+		if (memoryThreshold < 0)
+			throw new IllegalArgumentException("memoryThreshold must not be negative");
+		if (maxPerRecipient < 1)
+			throw new IllegalArgumentException("maxPerRecipient must be at least 1");
+		if (ttlMsec <= 0)
+			throw new IllegalArgumentException("ttlMsec must be positive");
+		this.holdSpillDirectory = spillDirectory;
+		this.holdMemoryThreshold = memoryThreshold;
+		this.holdMaxPerRecipient = maxPerRecipient;
+		this.holdTtlMsec = ttlMsec;
+	}
+	
+	/**
+	 * Send an IQ. If setStoreAndForward() was called and the recipient is unavailable, the IQ is held
+	 * and sent when the recipient comes back, rather than refused. If setPayloadCodec() was called, an MMObject
+	 * for a peer that can decode the codec is sent as a BinaryIQ.
+	 * @param to the recipient's JID
+	 * @param iq the IQ to send
+	 * @throws SimpleXMPPException if the connection refused the IQ and it couldn't be held:
+	 * store-and-forward is off, the recipient is available (so the refusal was for another reason),
+	 * or the recipient's hold is full
+	 */
+	public void sendIQ(String to, IQ iq)
+	throws SimpleXMPPException {
+		if (codecs != null)
+			iq = codecs.encode(to, iq);
+		flushChatTo(to);
+		if ((component != null) || connectionLost) {
+			iq.setTo(to);
+			try {
+				sendPacket(iq);
+			}
+			catch (IllegalStateException ise) {
+				// the component connection is closed, and there is no resend buffer to keep the IQ
+				throw new SimpleXMPPException(ise.getMessage());
+			}
+		}
+		else if (held == null) {
+			if (resend != null)
+				resend.sending(iq);
+			try {
+				xmppc.sendIQ(to, iq, true);
+			}
+			catch (SimpleXMPPException sxe) {
+				if (resend != null)
+					resend.notSent(iq);
+				throw sxe;
+			}
+		}
+		else if (! held.sendIQ(to, iq))
+			throw new SimpleXMPPException("Too many stanzas held for "+to);
+	}
+	
+	/**
+	 * Send a get or set IQ and return a future for its answer, waiting DEFAULT_IQ_TIMEOUT_MSEC.
+	 * @see #sendIQAsync(String, IQ, long)
+	 */
+	public CompletableFuture <IQ> sendIQAsync(String to, IQ iq) {
+		return sendIQAsync(to, iq, DEFAULT_IQ_TIMEOUT_MSEC);
+	}
+	
+	/**
+	 * Send a get or set IQ and return a future for its answer, instead of waiting for the answer to
+	 * turn up in the PacketCollector on a later pass. The answer is matched by packet ID, must come from the
+	 * recipient (see IQRequestTracker), and doesn't reach processIQ() or processIQPacket(). The future completes with the result IQ, or exceptionally with:
+	 * an IQRequestTracker.ErrorResponse if the answer is an error, a TimeoutException if there is no answer
+	 * within timeoutMsec, or the SimpleXMPPException if the IQ couldn't be sent. Cancelling the future
+	 * forgets the request. Any number of requests may be waiting at once. The IQ goes out through sendIQ(),
+	 * so it is held or resent as sendIQ() would.
+	 * <p>The future is completed on the thread that received the answer, so work that follows from it
+	 * should be attached with thenApplyAsync() and the like.</p>
+	 * 
+	 * @param to the recipient's JID
+	 * @param iq the request. It is given a packet ID if it has none.
+	 * @param timeoutMsec how long to wait for the answer. 0 waits until the agent shuts down.
+	 * @return a future for the answer
+	 */
+	public CompletableFuture <IQ> sendIQAsync(String to, IQ iq, long timeoutMsec) {
+		CompletableFuture <IQ> answer = requests.expect(to, iq, timeoutMsec);
+		try {
+			sendIQ(to, iq);
+		}
+		catch (SimpleXMPPException sxe) {
+			requests.failed(iq.getPacketID(), sxe);
+		}
+		return answer;
+	}
+	
+	/**
+	 * @return the tracker of requests sent with sendIQAsync(), never null
+	 */
+	public IQRequestTracker getRequestTracker() {
+		return requests;
+	}
+	
+	/**
+	 * Send a chat message, holding it for an unavailable recipient as sendIQ() does.
+	 * Held messages skip the OutboundBatcher.
+	 * @param to the recipient's JID
+	 * @param body the message text
+	 * @throws SimpleXMPPException if the message was refused and couldn't be held
+	 */
+	public void sendHeldChat(String to, String body)
+	throws SimpleXMPPException {
+		if (held == null) {
+			sendChat(to, body);
+			return;
+		}
+		flushChatTo(to);
+		if (! held.sendMessage(to, body))
+			throw new SimpleXMPPException("Too many stanzas held for "+to);
+	}
+	
+	/**
+	 * @return the agent's StoreAndForwardQueue, or null if store-and-forward is off or the agent hasn't connected
+	 */
+	public StoreAndForwardQueue getStoreAndForward() {
+		return held;
+	}
+	
+	/**
+	 * Run the agent over a shared ComponentConnection, instead of logging in to the server as a client.
+	 * The agent's JID becomes username@domain/resource, where domain is the component's domain, and
+	 * the hostname, port, servicename and password given to the constructor are not used.
+	 * <p>In this mode inbound IQs always go through the agent's inbound queue (one of
+	 * COMPONENT_INBOUND_CAPACITY packets, dropping the newest, unless setInboundCapacity() was called), so the
+	 * agent must handle them in processIQPacket(): run() refuses to start an agent that overrides processIQ().
+	 * Chat messages are queued (up to COMPONENT_INBOUND_CAPACITY) for the agent's own message thread, which calls
+	 * processPacket() with them one at a time.
+	 * REJECT_WAIT sheds packets without replying. setOutboundBatching() and setStoreAndForward() work on the
+	 * client connection only, and are ignored. The component must be connected before run() is called.</p>
+	 * Call this from the constructor, before run().
+	 * @param cc the component connection, shared with other agents
+	 */
+	public void setComponent(ComponentConnection cc) {
+		this.component = cc;
+	}
+	
+	/**
+	 * @return the agent's ComponentConnection, or null if it runs over its own client connection
+	 */
+	public ComponentConnection getComponent() {
+		return component;
+	}
+	
+	/**
+	 * Reconnect when the connection is lost, instead of ending the agent. The run loop keeps going:
+	 * IQs already taken in are still handled, and stanzas sent while the connection is down are kept.
+	 * Reconnect attempts are spaced by an exponential backoff from initialDelayMsec up to maxDelayMsec,
+	 * each delay randomized down by up to half so that many agents dropped at once don't all return at once.
+	 * init() is not called again: the agent logs in, puts its listeners on the new connection, and sends again
+	 * everything in its ResendBuffer - stanzas sent while it was down, and IQs sent with sendIQAsync() whose
+	 * answers haven't come, which may have been lost with the connection. Other stanzas written just before the
+	 * connection dropped can't be told from ones that arrived, and aren't sent again: see ResendBuffer.
+	 * The counters are reported by getStatus.
+	 * In component mode the shared ComponentConnection is reconnected by whichever of its agents gets there first.
+	 * Call this from the constructor or init().
+	 * 
+	 * @param initialDelayMsec the delay before the first attempt
+	 * @param maxDelayMsec the longest delay between attempts
+	 * @param maxAttempts give up, and end the agent, after this many failed attempts in a row. 0 never gives up.
+	 * @param resendCapacity the most stanzas kept for sending again
+	 */
+	public void setReconnect(long initialDelayMsec, long maxDelayMsec, int maxAttempts, int resendCapacity) {
+		if (initialDelayMsec < 1)
+			throw new IllegalArgumentException("initialDelayMsec must be at least 1");
+		if (maxDelayMsec < initialDelayMsec)
+			throw new IllegalArgumentException("maxDelayMsec must be at least initialDelayMsec");
+		if (maxAttempts < 0)
+			throw new IllegalArgumentException("maxAttempts must not be negative");
+		this.reconnectInitialMsec = initialDelayMsec;
+		this.reconnectMaxMsec = maxDelayMsec;
+		this.reconnectMaxAttempts = maxAttempts;
+		this.resend = new ResendBuffer(resendCapacity, RESEND_TTL_MSEC, requests);
+		refreshStatus();
+	}
+	
+	/**
+	 * @return the agent's ResendBuffer, or null if setReconnect() hasn't been called
+	 */
+	public ResendBuffer getResendBuffer() {
+		return resend;
+	}
+	
+	/**
+	 * @return true while the connection is lost and the agent is trying to reconnect
+	 */
+	public boolean isConnectionLost() {
+		return connectionLost;
+	}
+	
+	/**
+	 * Send a stanza from this agent, over the component connection or the client connection.
+	 * In component mode the stanza's from-address is set to the agent's JID.
+	 * @param p the stanza, with its to-address set
+	 */
+	public void sendPacket(Packet p) {
+		if (connectionLost && holdWhileLost(p))
+			return;
+		flushChatTo(p.getTo());
+		if (resend != null)
+			resend.sending(p);
+		try {
+			writePacket(p);
+		}
+		catch (IllegalStateException ise) {
+			// the connection went before connectionClosedOnError() was called
+			if (resend == null)
+				throw ise;
+			resend.notSent(p);
+			resend.queue(p);
+		}
+	}
+	
+	private void writePacket(Packet p) {
+		if (component != null) {
+			p.setFrom(componentJid);
+			component.sendPacket(p);
+		}
+		else {
+			xmppc.getXMPPConnection().sendPacket(p);
+		}
+	}
+	
+	/**
+	 * Keep a stanza in the ResendBuffer if the connection is down. Checked under the buffer's lock,
+	 * so nothing is queued after reconnect() has taken the buffer's contents.
+	 * @return true if the stanza was kept, false if the connection is up and it should be sent
+	 */
+	private boolean holdWhileLost(Packet p) {
+		if (resend == null)
+			return false;
+		synchronized (resend) {
+			if (! connectionLost)
+				return false;
+			resend.queue(p);
+			return true;
+		}
+	}
+	
+	/**
+	 * Show the agent as available, advertising its payload codec if it has one
+	 */
+	private void sendAvailablePresence() {
+		if (codecs == null) {
+			if (component != null)
+				component.sendPresence(componentJid, true);
+			else
+				xmppc.sendPresence(Presence.Type.available,Presence.Mode.available);
+			return;
+		}
+		Presence p = new Presence(Presence.Type.available);
+		p.setMode(Presence.Mode.available);
+		p.addExtension(codecs.advertisement());
+		writePacket(p);
+	}
+	
+	private static Message chatMessage(String to, String body) {
+		Message m = new Message(to, Message.Type.chat);
+		m.setBody(body);
+		return m;
+	}
+	
+	/**
+	 * Called by the ComponentConnection's reader thread with an IQ addressed to this agent. Filters it
+	 * the same way the client connection's PacketCollector would, and queues it for the run loop.
+	 * @return false if the agent isn't running, or the IQ isn't one of its recognized classes
+	 */
+	boolean deliverIQ(IQ iq) {
+		if ((! running) || (inbound == null) || (! iqCompositeFilter.accept(iq)))
+			return false;
+		classMetrics.processPacket(iq);
+		inbound.offer(iq);
+		iqSignal.wakeup();
+		return true;
+	}
+	
+	/**
+	 * Called by the ComponentConnection's reader thread with an IQ result or error addressed to this agent
+	 * @return true if it answered a sendIQAsync() request, and shouldn't be delivered to the agent as well
+	 */
+	boolean iqAnswered(IQ answer) {
+		if (resend != null)
+			resend.acknowledge(answer.getPacketID());
+		return requests.complete(answer);
+	}
+	
+	/**
+	 * Called by the ComponentConnection's reader thread with a message addressed to this agent.
+	 * The message is queued for the agent's own message thread, since the reader is shared by every
+	 * agent on the component and a slow chat command would hold up all of them.
+	 * @return false if the agent isn't running, doesn't accept() the message, or has COMPONENT_INBOUND_CAPACITY
+	 * messages waiting already
+	 */
+	boolean deliverMessage(final Message m) {
+		if ((! running) || (componentMessages == null) || (! accept(m)))
+			return false;
+		try {
+			componentMessages.execute(new Runnable() {
+				public void run() {
+					processPacket(m);
+				}
+			});
+			return true;
+		}
+		catch (RejectedExecutionException ree) {
+			return false;
+		}
+	}
+	
+	private void setIQExecutor(IQExecutorI executor) {
+		if (iqExecutor != null)
+			iqExecutor.shutdown(0);
+		iqExecutor = executor;
+		refreshStatus();
+	}
+	
+	/**
+	 * Get the agent's latency metrics. The same numbers are available over chat at getStatus/latency/*
+	 * @return the agent's metrics, never null
+	 */
+	public AgentMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Get the agent's per-class counters. Use getClassMetrics().snapshot() for a copy of all of them at once.
+	 * The same numbers are available over chat at getStatus/classes/*
+	 * @return the agent's per-class metrics, never null
+	 */
+	public ClassMetrics getClassMetrics() {
+		return classMetrics;
+	}
+	
+	/**
+	 * Copy live counters into the status structure. This is done when the status is read, 
+	 * rather than on every pass, to keep PropertyThang updates out of the run loop.
+	 */
+	private void refreshStatus() {
+		LatencyHistogram passes = metrics.getPass();
+		status.setProperty(Vocabulary.Status.RUNTIME_LAST_PASS,metrics.getLastPassNanos() / 1000000L);
+		status.setProperty(Vocabulary.Status.RUNTIME_TOTAL,passes.getTotalNanos() / 1000000L);
+		status.setProperty(Vocabulary.Status.RUNTIME_NRUNS,passes.getCount());
+		status.setProperty(Vocabulary.Status.RUNTIME_MEAN,passes.getMeanNanos() / 1000000L);
+		if (iqExecutor != null)
+			iqExecutor.reportStatus(status);
+		if (inbound != null)
+			inbound.reportStatus(status);
+		if (outbound != null)
+			outbound.reportStatus(status);
+		if (resultCache != null)
+			resultCache.reportStatus(status);
+		if (checkpoint != null)
+			checkpoint.reportStatus(status);
+		if (journal != null)
+			journal.reportStatus(status);
+		if (held != null)
+			held.reportStatus(status);
+		if (component != null)
+			component.reportStatus(status);
+		if (mmBatcher != null)
+			mmBatcher.reportStatus(status);
+		if (codecs != null) {
+			codecs.reportStatus(status);
+			status.setProperty(Vocabulary.Status.CODEC_DECODED,SHARED_BINARY_PROVIDER.getDecodedCount());
+			status.setProperty(Vocabulary.Status.CODEC_DECODE_FAILURES,SHARED_BINARY_PROVIDER.getFailedCount());
+		}
+		if (batchesRecognized) {
+			status.setProperty(Vocabulary.Status.BATCHES_RECEIVED,batchesReceived.get());
+			status.setProperty(Vocabulary.Status.BATCH_ITEMS_UNPACKED,batchItemsUnpacked.get());
+			status.setProperty(Vocabulary.Status.BATCH_ITEMS_REJECTED,batchItemsRejected.get());
+		}
+		requests.reportStatus(status);
+		if (resend != null) {
+			resend.reportStatus(status);
+			status.setProperty(Vocabulary.Status.CONNECTION_LOST,connectionLost);
+			status.setProperty(Vocabulary.Status.RECONNECTS,reconnects);
+			status.setProperty(Vocabulary.Status.RECONNECT_ATTEMPTS,reconnectAttempt);
+			status.setProperty(Vocabulary.Status.RECONNECT_LAST_OUTAGE_MSEC,lastOutageMsec);
+		}
+	}
+	
+	/**
+	 * @return true if the runtime class of this agent has its own processIQ(), rather than the one provided here
+	 */
+	private boolean overridesProcessIQ() {
+		try {
+			return (getClass().getMethod("processIQ", PacketCollector.class).getDeclaringClass() != BaseAgent.class);
+		}
+		catch (NoSuchMethodException nsme) {
+			return false;
+		}
+	}
+	
+	
+
 	/**
 	 * Get the XMPPConnection that's used by this agent.
 	 * Note that the connection could be null, and that no promises are made about the 
 	 * state of the connection (open, closed, logged in or not, etc).
-	 * @return the XMPPConnection that's used by this agent... could be null.
+	 * It is always null in component mode (see setComponent()), where the agent has no client
+	 * connection of its own; use getComponent() there.
+	 * @return the XMPPConnection that's used by this agent... null before run() connects, and always null in component mode.
 	 */
 	public SimpleXMPPConnection getXmppConnection() {
 		return xmppc;
@@ -309,14 +1332,27 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 	 * the messages as the argument. Any returned valued from the get() call is 
 	 * written back to the sender as a chat message, using the ChatUtils.objectToString 
 	 * method to make a best-effort at converting various return types to reasonable hat-compatible text.
+	 * Replies to commands marked with setCacheable() are sent from the result cache while they are fresh.
 	 */
 	public void processPacket(Packet packet) {
 		String message = ((Message) packet).getBody();
 		try {
-			xmppc.sendMessage(packet.getFrom(), ChatUtils.objectToString(get(new AppStackDelimitedPath(message),null),"\n"));
+			String key = (resultCache == null) ? null : resultCache.keyFor(message);
+			String reply = (key == null) ? null : (String) resultCache.get(key);
+			if (reply == null) {
+				reply = ChatUtils.objectToString(commands.dispatch(message,null),"\n");
+				if (key != null)
+					resultCache.put(key, reply);
+			}
+			sendChat(packet.getFrom(), reply);
 		}
 		catch (AppStackException ase) {
-			xmppc.sendNoExceptionMessage(packet.getFrom(), "Exception: "+ase.getMessage());
+			if (outbound != null)
+				outbound.sendMessage(packet.getFrom(), "Exception: "+ase.getMessage());
+			else if (component != null)
+				sendPacket(chatMessage(packet.getFrom(), "Exception: "+ase.getMessage()));
+			else
+				xmppc.sendNoExceptionMessage(packet.getFrom(), "Exception: "+ase.getMessage());
 		}
 		catch (SimpleXMPPException sxe) {
 		}
@@ -327,39 +1363,27 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 	/**
 	 * run() doesn't do anything special and could be overridden in a subclass...
 	 * a basic always-alive loop is provided here to make things easier.
-	 * <p>run() also gathers a few statistics and self-adjusts the between-loops
-	 * idle time.
+	 * <p>run() also times each pass into the agent's AgentMetrics, see getMetrics().
 	 */
 	public void run() {
-		// TODO: retrieve stashed state from somewhere ?
+		// pick up where the last run left off
+		if (checkpoint != null)
+			restoreCheckpoint();
 		
 		status.setProperty(Vocabulary.Status.AGENT_START_TIME,System.currentTimeMillis());
-		status.setProperty(Vocabulary.Status.RUNTIME_LAST_PASS,0);
-		status.setProperty(Vocabulary.Status.RUNTIME_TOTAL,0);
-		status.setProperty(Vocabulary.Status.RUNTIME_NRUNS,0);
-		status.setProperty(Vocabulary.Status.RUNTIME_MEAN,0);
+		refreshStatus();
 		
 		el.addEvent("Connecting agent to server");
 		try {
-			el.addEvent("Configuring SimpleXMPPConnection. Host:"+hostname+" Port:"+portnum+" Service name: "+servicename);
-			XMPPConfig config = new XMPPConfig(hostname, portnum, resource, servicename, username, password);
-			xmppc = new SimpleXMPPConnection(config,true);
-			xmppc.secureConnect();
-// OLD: the 3 lines above use the revised version of SimpleXMPPConnection
-//			if (hostname != null)
-//				xmppc = new SimpleXMPPConnection(hostname, portnum, servicename, true);
-//			else 
-//				xmppc = new SimpleXMPPConnection(null, -1, servicename, true);
-//			xmppc.secureConnect(username,password,resource);
-
-			status.setProperty(Vocabulary.Status.AGENT_JID,xmppc.getXMPPConnection().getUser());
-			// the agent has connectionListener methods to allow it to monitor its connection status
-			xmppc.getXMPPConnection().addConnectionListener(this);
-			/// CHAT PACKETS - are sent to a PacketListener.
-			xmppc.addPacketListenerAndFilter(this,this);
+			if (component != null)
+				joinComponent();
+			else
+				connectClient();
+			if (mmWindowMsec >= 0)
+				mmBatcher = new MMBatcher(this, el, mmWindowMsec, mmMaxBatch);
 			// run the subclass's init method, if there is one
 			el.addEvent("Agent started. Calling init() for local initializations.");
-			running = true;
+			running = (! shutdownRequested);
 		}
 		catch (Exception e) {
 			el.addEvent("Exception during pre-init() startup. Agent startup cancelled. Exception: "+e.getMessage());
@@ -374,12 +1398,44 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 				init(); // call the subclass's init() to set up things
 				
 				// init may set up the composite filter, so don't bind it til here...
-				/// IQ PACKETS -- are gathered in a PacketCollector and processed in the main loop
 				System.out.println("iqCompositeFilter is: "+iqCompositeFilter);
-				iqPc = xmppc.getXMPPConnection().createPacketCollector(iqCompositeFilter);
-				running = true;
-				// ready to go, so show the agent presence as "available"
-				xmppc.sendPresence(Presence.Type.available,Presence.Mode.available);
+				if (component != null) {
+					/// IQ PACKETS -- are handed to deliverIQ() by the component's reader, and queued for the main loop
+					if (overridesProcessIQ())
+						throw new Exception("processIQ() is overridden, but an agent on a component connection must use processIQPacket()");
+					if (inbound == null)
+						inbound = new InboundQueue(COMPONENT_INBOUND_CAPACITY, InboundQueue.Overflow.DROP_NEWEST);
+					inbound.setClassMetrics(classMetrics);
+					inbound.attach(null, null, iqSignal);
+					// finish what the last run left undone
+					if (journal != null)
+						replayJournal();
+					running = (! shutdownRequested);
+					// packets start arriving as soon as the JID is registered
+					component.register(componentJid, this);
+					sendAvailablePresence();
+				}
+				else {
+					if ((inbound != null) && overridesProcessIQ()) {
+						el.addEvent("processIQ() is overridden, so the inbound capacity limit does not apply");
+						inbound = null;
+					}
+					if ((journal != null) && overridesProcessIQ()) {
+						el.addEvent("processIQ() is overridden, so inbound IQs are not journalled");
+						journal.close();
+						journal = null;
+					}
+					if (inbound != null)
+						inbound.setClassMetrics(classMetrics);
+					/// IQ PACKETS -- are gathered in a PacketCollector and processed in the main loop
+					bindIQListeners(xmppc.getXMPPConnection());
+					// finish what the last run left undone
+					if (journal != null)
+						replayJournal();
+					running = (! shutdownRequested);
+					// ready to go, so show the agent presence as "available"
+					sendAvailablePresence();
+				}
 			}
 		}
 		catch (Exception e) {
@@ -391,31 +1447,244 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 		// main processing loop
 		// make the agent 'available' then enter the servicing loop
 		while (running) {
-			long startTime = System.currentTimeMillis();
+			long startTime = System.nanoTime();
 			processIQ(iqPc);
-			int runtime = (int) (System.currentTimeMillis() - startTime);
-
-			status.setProperty(Vocabulary.Status.RUNTIME_LAST_PASS,runtime);
-			status.setProperty(Vocabulary.Status.RUNTIME_TOTAL,status.getIntProperty(Vocabulary.Status.RUNTIME_TOTAL, 0)+runtime);
-			status.setProperty(Vocabulary.Status.RUNTIME_NRUNS,status.getIntProperty(Vocabulary.Status.RUNTIME_NRUNS, 0)+1);
-			status.setProperty(Vocabulary.Status.RUNTIME_MEAN,
-				status.getIntProperty(Vocabulary.Status.RUNTIME_TOTAL, 0)/status.getIntProperty(Vocabulary.Status.RUNTIME_NRUNS, 1));
+			metrics.recordPass(System.nanoTime() - startTime);
+			
+			if (connectionLost && (System.currentTimeMillis() >= nextReconnectAt))
+				reconnect();
+			if (held != null)
+				held.purgeExpired();
+			if (resend != null)
+				resend.purgeExpired();
+			if ((checkpoint != null) && (checkpointIntervalMsec > 0) &&
+					(System.currentTimeMillis() - lastCheckpoint >= checkpointIntervalMsec))
+				saveCheckpoint();
 
-			sleepMsec(loopSleepTime);
+			if (connectionLost)
+				iqSignal.await(Math.max(1, Math.min(loopSleepTime, nextReconnectAt - System.currentTimeMillis())));
+			else if (eventDispatch)
+				iqSignal.await(loopSleepTime);
+			else
+				sleepMsec(loopSleepTime);
+			// an interrupted wait would end at once on every pass, so take the interrupt as a request to stop
+			if (Thread.interrupted()) {
+				el.addEvent("Run loop interrupted. Shutting down");
+				requestShutdown();
+			}
 		}
 
 		/// SHUTTING DOWN... After main loop terminates, these shutdown processes happen
 		el.addEvent("Calling destroy() before shutdown");
 		destroy(iqPc);
 		
+		// let the workers finish whatever is queued, including anything destroy() handed them
+		if (iqExecutor != null) {
+			el.addEvent("Waiting for IQ workers to finish");
+			if (! iqExecutor.shutdown(shutdownSleepTime))
+				el.addEvent("IQ workers did not finish before shutdown");
+		}
+		
+		// nothing more will be answered
+		requests.close(new SimpleXMPPException("Agent shut down"));
+		
+		// keep what wasn't handled for next time, and write out the last done records
+		if (journal != null) {
+			journalUnprocessed();
+			journal.close();
+		}
+		
+		// send any replies and objects still waiting to be batched
+		if (mmBatcher != null)
+			mmBatcher.close();
+		if (outbound != null)
+			outbound.close();
+		
+		// save the state so that restart picks up where this left off
+		if (checkpoint != null) {
+			saveCheckpoint();
+			checkpoint.close();
+		}
+		
 		// sleep briefly, to allow outgoing traffic to, well, go out
 		el.addEvent("Agent disconnecting from server");
 		sleepMsec(shutdownSleepTime);
-		// drop the connection to the server. disconnect() sets an unavailable presence type
-		xmppc.disconnect();
+		// drop the connection to the server. disconnect() sets an unavailable presence type.
+		// a component connection is shared, so just stop routing to this agent
+		if (component != null) {
+			if (componentJid != null)
+				component.unregister(componentJid);
+			// answer the messages that arrived before the JID was unregistered
+			if (componentMessages != null) {
+				componentMessages.shutdown();
+				try {
+					if (! componentMessages.awaitTermination(shutdownSleepTime, TimeUnit.MILLISECONDS))
+						el.addEvent("Messages still waiting at shutdown: "+componentMessages.shutdownNow().size());
+				}
+				catch (InterruptedException ie) {
+					componentMessages.shutdownNow();
+				}
+				componentMessages = null;
+			}
+			if (componentJid != null)
+				component.sendPresence(componentJid, false);
+		}
+		else if (xmppc != null) {
+			xmppc.disconnect();
+		}
+
+	}
+	
+	
+	/**
+	 * Log in to the server as a client, and listen for chat messages
+	 */
+	private void connectClient()
+	throws Exception {
+		el.addEvent("Configuring SimpleXMPPConnection. Host:"+hostname+" Port:"+portnum+" Service name: "+servicename);
+		XMPPConfig config = new XMPPConfig(hostname, portnum, resource, servicename, username, password);
+		xmppc = new SimpleXMPPConnection(config,true);
+		xmppc.secureConnect();
+// OLD: the 3 lines above use the revised version of SimpleXMPPConnection
+//		if (hostname != null)
+//			xmppc = new SimpleXMPPConnection(hostname, portnum, servicename, true);
+//		else 
+//			xmppc = new SimpleXMPPConnection(null, -1, servicename, true);
+//		xmppc.secureConnect(username,password,resource);
 
-		//TODO: stash state somewhere before shutting down so that restart picks up where this left off
-		//TODO: stash unprocessed packets too? should there be a shutdown arg to ask for that?
+		status.setProperty(Vocabulary.Status.AGENT_JID,xmppc.getXMPPConnection().getUser());
+		if (outboundWindowMsec >= 0)
+			outbound = new OutboundBatcher(xmppc, el, outboundWindowMsec, outboundMaxBatch);
+		if (holdSpillDirectory != null) {
+			held = new StoreAndForwardQueue(xmppc, el, holdSpillDirectory, holdMemoryThreshold, holdMaxPerRecipient, holdTtlMsec);
+			held.setResendBuffer(resend);
+			held.attach();
+		}
+		// the agent has connectionListener methods to allow it to monitor its connection status
+		xmppc.getXMPPConnection().addConnectionListener(this);
+		/// CHAT PACKETS - are sent to a PacketListener.
+		xmppc.addPacketListenerAndFilter(this,this);
+		// peers' presence says whether they can decode the payload codec
+		if (codecs != null)
+			xmppc.getXMPPConnection().addPacketListener(codecs, new PacketTypeFilter(Presence.class));
+	}
+	
+	/**
+	 * Take this agent's JID on the shared component connection. Chat messages and IQs are routed
+	 * here once run() registers the JID, after init().
+	 */
+	private void joinComponent()
+	throws SimpleXMPPException {
+		if (! component.isConnected())
+			throw new SimpleXMPPException("Component connection for "+component.getDomain()+" is not connected");
+		componentJid = username+"@"+component.getDomain()+"/"+resource;
+		status.setProperty(Vocabulary.Status.AGENT_JID,componentJid);
+		componentMessages = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue <Runnable> (COMPONENT_INBOUND_CAPACITY),
+				IQWorkerPool.platformThreadFactory(username+"-"+resource+"-messages-"));
+		if (outboundWindowMsec >= 0)
+			el.addEvent("Outbound batching needs a client connection, and is off for "+componentJid);
+		if (holdSpillDirectory != null)
+			el.addEvent("Store-and-forward needs a client connection, and is off for "+componentJid);
+	}
+	
+	/**
+	 * Put the IQ collector and the listeners that feed and count it on a connection
+	 */
+	private void bindIQListeners(XMPPConnection conn) {
+		// the collector's filter counts each packet; the listeners hear the same packets, so theirs doesn't count again
+		iqPc = conn.createPacketCollector(iqCompositeFilter);
+		PacketFilter sameIQs = iqCompositeFilter.uncounted();
+		// count arrivals per class, in every dispatch mode
+		conn.addPacketListener(classMetrics, sameIQs);
+		if (inbound != null) {
+			// the bounded queue empties the collector as packets arrive, and wakes the loop itself
+			inbound.attach(iqPc, conn, iqSignal);
+			conn.addPacketListener(inbound, sameIQs);
+		}
+		else {
+			// the signal hears the same packets as the collector, and wakes the loop in event dispatch mode
+			conn.addPacketListener(iqSignal, sameIQs);
+		}
+		// answers to IQs this agent sent, which complete sendIQAsync() requests and release IQs from the resend buffer
+		PacketFilter iqs = new PacketTypeFilter(IQ.class);
+		conn.addPacketListener(requests, iqs);
+		if (resend != null)
+			conn.addPacketListener(resend, iqs);
+		boundConnection = conn;
+	}
+	
+	/**
+	 * Called from the run loop while the connection is lost, once the backoff delay is up. Logs in again
+	 * (unless Smack's own reconnection already has), moves the agent's listeners to the new connection if
+	 * there is one, and sends everything in the resend buffer. On failure, schedules the next attempt.
+	 */
+	private void reconnect() {
+		reconnectAttempt++;
+		try {
+			if (component != null) {
+				component.connect();	// does nothing if another agent on the component already reconnected it
+				component.register(componentJid, this);
+			}
+			else {
+				if (! xmppc.getXMPPConnection().isConnected())
+					xmppc.secureConnect();
+				XMPPConnection conn = xmppc.getXMPPConnection();
+				if (conn != boundConnection) {
+					// a new XMPPConnection: move everything over from the old one
+					PacketCollector old = iqPc;
+					conn.addConnectionListener(this);
+					xmppc.addPacketListenerAndFilter(this,this);
+					if (held != null)
+						held.attach();
+					if (codecs != null)
+						conn.addPacketListener(codecs, new PacketTypeFilter(Presence.class));
+					bindIQListeners(conn);
+					if (old != null) {
+						processIQ(old);
+						old.cancel();
+					}
+				}
+			}
+		}
+		catch (Exception e) {
+			if ((reconnectMaxAttempts > 0) && (reconnectAttempt >= reconnectMaxAttempts)) {
+				el.addEvent("Reconnect failed "+reconnectAttempt+" times. Agent terminating: "+e.getMessage());
+				running = false;
+				return;
+			}
+			long delay = backoff(reconnectAttempt);
+			nextReconnectAt = System.currentTimeMillis() + delay;
+			el.addEvent("Reconnect attempt "+reconnectAttempt+" failed, next in "+delay+" msec: "+e.getMessage());
+			return;
+		}
+		
+		sendAvailablePresence();
+		// send what may have been lost, before anything new goes out
+		int resent = 0;
+		synchronized (resend) {
+			List <Packet> again = resend.takeForResend();
+			for (int i = 0; i < again.size(); i++)
+				writePacket(again.get(i));
+			resent = again.size();
+			connectionLost = false;
+		}
+		lastOutageMsec = System.currentTimeMillis() - connectionLostAt;
+		reconnects++;
+		el.addEvent("Reconnected after "+lastOutageMsec+" msec and "+reconnectAttempt+" attempts. Sent "+resent+" stanzas again");
+		reconnectAttempt = 0;
+	}
+	
+	/**
+	 * @return the delay before the next reconnect attempt: exponential in the attempts so far, capped
+	 * at reconnectMaxMsec, and randomized between half of that and all of it
+	 */
+	private long backoff(int attempts) {
+		long delay = reconnectMaxMsec;
+		if (attempts < 30)
+			delay = Math.min(reconnectMaxMsec, reconnectInitialMsec << attempts);
+		long half = delay / 2;
+		return half + (long) (jitter.nextDouble() * (delay - half + 1));
 	}
 
 	
@@ -430,18 +1699,178 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 	
 	
 	/**
-	 * To implement an agent using BaseAgent as a starting point, extend this class and implement
-	 * the processIQ() method to operate on the messages in the PacketCollector. 
+	 * To implement an agent using BaseAgent as a starting point, extend this class and either
+	 * override the processIQ() method to operate on the messages in the PacketCollector,
+	 * or leave processIQ() alone and implement processIQPacket() to handle one packet at a time.
 	 * processIQ is called and blocks until it's complete... processIQ can run as long 
 	 * as it needs to... it's called from within a loop in the run() method of the BaseAgent
 	 * and that loop doesn't do anything significant, other than calling processIQ().
+	 * Between calls the loop either sleeps, or with setEventDispatch(true), waits for the next
+	 * packet to arrive.
+	 * 
+	 * <p>The provided processIQ() drains the PacketCollector (or the bounded queue, if setInboundCapacity() 
+	 * was called) and hands each packet to processIQPacket(), on the workers set up with setIQWorkerPool() 
+	 * or setIQLanes(), or right here on the run loop's thread if neither was called.</p>
 	 * 
-	 * If processing can block significantly at any point, implementations should spawn separate
-	 * processing threads, so that overall throughput is not trashed by a single slow process.
+	 * If processing can block significantly at any point, implementations that override processIQ() 
+	 * should spawn separate processing threads, so that overall throughput is not trashed by a single 
+	 * slow process. Implementations of processIQPacket() get this by calling setIQWorkerPool().
 	 * 
 	 * @param pc a PacketCollector with inbound packets for this agent
 	 */
-	public abstract void processIQ(PacketCollector pc);
+	public void processIQ(PacketCollector pc) {
+		if (journal != null) {
+			processJournalled(pc);
+			return;
+		}
+		if (inbound != null) {
+			InboundQueue.Entry e = inbound.poll();
+			while (e != null) {
+				dispatchInbound((IQ) e.packet, e.arrivalNanos, 0);
+				e = inbound.poll();
+			}
+		}
+		if (pc == null)
+			return;
+		Packet p = pc.pollResult();
+		while (p != null) {
+			dispatchInbound((IQ) p, System.nanoTime(), 0);
+			p = pc.pollResult();
+		}
+	}
+	
+	
+	/**
+	 * processIQ() with the journal on: take everything waiting, append it all to the journal, commit once,
+	 * then dispatch. A packet is only handled once it is on disk.
+	 */
+	private void processJournalled(PacketCollector pc) {
+		List <InboundQueue.Entry> batch = new ArrayList <InboundQueue.Entry> ();
+		if (inbound != null) {
+			InboundQueue.Entry e = inbound.poll();
+			while (e != null) {
+				batch.add(e);
+				e = inbound.poll();
+			}
+		}
+		if (pc != null) {
+			Packet p = pc.pollResult();
+			while (p != null) {
+				batch.add(new InboundQueue.Entry(p, System.nanoTime()));
+				p = pc.pollResult();
+			}
+		}
+		if (batch.isEmpty()) {
+			// write out done records from the last pass
+			try {
+				journal.commit();
+			}
+			catch (java.io.IOException ioe) {
+				el.addEvent("Inbound journal commit failed: "+ioe.getMessage());
+			}
+			return;
+		}
+		long[] ids = new long[batch.size()];
+		try {
+			for (int i = 0; i < ids.length; i++)
+				ids[i] = journal.append(batch.get(i).packet);
+			journal.commit();
+		}
+		catch (java.io.IOException ioe) {
+			// handle them anyway: the journal only makes things safer, it shouldn't stop the agent
+			el.addEvent("Inbound journal write failed, handling "+ids.length+" IQs without it: "+ioe.getMessage());
+		}
+		for (int i = 0; i < ids.length; i++) {
+			InboundQueue.Entry e = batch.get(i);
+			dispatchInbound((IQ) e.packet, e.arrivalNanos, ids[i]);
+		}
+	}
+	
+	
+	/**
+	 * Handle a single inbound IQ. This is called by the provided processIQ() once per packet,
+	 * and may be called from several worker threads at once if setIQWorkerPool() or setIQLanes()
+	 * was used, so implementations must be thread safe in that case. With setIQLanes(), calls for
+	 * packets from the same sender never overlap and arrive in order.
+	 * <p>The provided method just logs that the packet was ignored. Agents that override 
+	 * processIQ() never see calls here.</p>
+	 * 
+	 * @param iq an inbound packet that matched one of this agent's recognized classes
+	 */
+	public void processIQPacket(IQ iq) {
+		el.addEvent("No processIQPacket() handler. Ignored IQ from "+iq.getFrom());
+	}
+	
+	
+	/**
+	 * Dispatch an inbound IQ, unpacking it first if it is an MMBatch and batches aren't delivered whole.
+	 * Each MMObject in a batch is filtered and counted as if it had arrived alone. The batch's journal
+	 * record is marked done when the last of its objects has been handled.
+	 */
+	private void dispatchInbound(IQ iq, long arrivalNanos, long journalId) {
+		if ((! (iq instanceof MMBatch)) || batchDelivery) {
+			dispatchIQPacket(iq, arrivalNanos, journalId, null);
+			return;
+		}
+		batchesReceived.incrementAndGet();
+		List <MMObject> unpacked = ((MMBatch) iq).unpack();
+		List <IQ> accepted = new ArrayList <IQ> (unpacked.size());
+		for (int i = 0; i < unpacked.size(); i++) {
+			MMObject mmo = unpacked.get(i);
+			if (iqCompositeFilter.accept(mmo)) {
+				classMetrics.processPacket(mmo);
+				accepted.add(mmo);
+			}
+			else {
+				batchItemsRejected.incrementAndGet();
+			}
+		}
+		batchItemsUnpacked.addAndGet(accepted.size());
+		if (accepted.isEmpty()) {
+			if ((journalId != 0) && (journal != null))
+				journal.markDone(journalId);
+			return;
+		}
+		AtomicInteger remaining = (journalId != 0) ? new AtomicInteger(accepted.size()) : null;
+		for (int i = 0; i < accepted.size(); i++)
+			dispatchIQPacket(accepted.get(i), arrivalNanos, journalId, remaining);
+	}
+	
+	
+	/**
+	 * Run processIQPacket(iq) on the IQ executor, or on this thread if there is no executor.
+	 * Exceptions from the handler are logged, and don't escape into the run loop or the pool.
+	 * @param arrivalNanos the System.nanoTime() when the packet was queued, for the "queued" latency
+	 * @param journalId the packet's id in the inbound journal, to mark done when the handler returns, or 0
+	 * @param remaining if not null, the packets still to be handled that share the journal record, which is
+	 * marked done by the last of them
+	 */
+	private void dispatchIQPacket(final IQ iq, final long arrivalNanos, final long journalId, final AtomicInteger remaining) {
+		Runnable task = new Runnable() {
+			public void run() {
+				long startNanos = System.nanoTime();
+				metrics.recordQueued(startNanos - arrivalNanos);
+				try {
+					processIQPacket(iq);
+					long elapsed = System.nanoTime() - startNanos;
+					metrics.recordProcessing(elapsed);
+					classMetrics.recordProcessed(iq, elapsed);
+				}
+				catch (RuntimeException re) {
+					long elapsed = System.nanoTime() - startNanos;
+					metrics.recordProcessing(elapsed);
+					classMetrics.recordFailed(iq, elapsed);
+					el.addEvent("Exception in processIQPacket() handling IQ from "+iq.getFrom()+": "+re.getMessage());
+				}
+				if ((journalId != 0) && (journal != null) && ((remaining == null) || (remaining.decrementAndGet() == 0)))
+					journal.markDone(journalId);
+			}
+		};
+		if (iqExecutor != null)
+			iqExecutor.execute(iq,task);
+		else
+			task.run();
+	}
 		
 	/**
 	 * The destroy() method is called as the agent is shutting down.
@@ -492,8 +1921,22 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 	}
 
 	public void connectionClosedOnError(Exception e) {
+		if ((resend != null) && running && (! shutdownRequested)) {
+			synchronized (resend) {
+				if (! connectionLost) {
+					connectionLostAt = System.currentTimeMillis();
+					reconnectAttempt = 0;
+					nextReconnectAt = connectionLostAt + backoff(0);
+					connectionLost = true;
+				}
+			}
+			el.addEvent("Connection closed on error. Reconnecting: "+e.getMessage());
+			iqSignal.wakeup();
+			return;
+		}
 		el.addEvent("Connection closed on error. Agent terminating: "+e.getMessage());
 		running = false;
+		iqSignal.wakeup();
 	}
 	
 	public void reconnectingIn(int seconds) {
@@ -506,7 +1949,14 @@ implements Runnable, PacketListener, PacketFilter, ConnectionListener  {
 
 	public void reconnectionSuccessful() {
 		el.addEvent("Connection reconnect successful");
-		xmppc.sendPresence(Presence.Type.available,Presence.Mode.available);
+		if (connectionLost) {
+			// the run loop resumes on the reconnected connection, and sends presence when it does
+			nextReconnectAt = 0;
+			iqSignal.wakeup();
+		}
+		else if (xmppc != null) {
+			sendAvailablePresence();
+		}
 	}
 	
 
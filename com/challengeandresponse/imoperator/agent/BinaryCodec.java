@@ -0,0 +1,837 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compact binary PayloadCodecI. Each value is a one-byte tag followed by its data: integers as
+ * zigzag varints, strings as UTF-8, and objects as their fields' values in a fixed order, with no names.
+ *
+ * <p>Classes are described once per payload: the first time a class appears its name (and, for a plain
+ * object, the names of its fields) is written, and later appearances refer back to it by number. Classes of
+ * plain objects are numbered apart from the rest (array components, collections, enums), since only they have fields.
+ * The fields of each class are found by reflection once and cached, on both the encoding and the decoding
+ * side. The decoder matches fields by name, so a class that has gained or lost fields on one side still
+ * decodes: values for fields it doesn't have are dropped, and fields that weren't sent keep their defaults.
+ * An object that appears more than once in the graph is written once and referred to after that, so shared
+ * references and cycles survive, as they do with XStream.</p>
+ *
+ * <p>Handled: null, the primitive wrappers, String, Date, enums, arrays, Collections and Maps, and
+ * Serializable objects whose class has a no-argument constructor. Static and transient fields are skipped.
+ * Anything else (a class with no no-argument constructor, a sorted collection with its own comparator,
+ * a JDK class whose fields can't be reached, nesting deeper than MAX_DEPTH) makes encode() throw, and the caller
+ * sends XML instead. decode() refuses nesting deeper than MAX_DEPTH too.</p>
+ *
+ * <p>The payload names its classes, and comes from a peer, so the decoder only makes classes on an allow list:
+ * the primitive wrappers, String, Date, the java.util collections and maps below, MMBatch's items, and the
+ * classes given to allow(). An agent's own payload classes (objects, enums, array components) must be allowed
+ * before they can be decoded. The list is shared by every codec in the JVM, as the BinaryIQProvider is.
+ * encode() refuses classes that aren't on it, so they go as XML, and gives an unlisted collection or map
+ * the general-purpose class of its kind.</p>
+ *
+ * @author jim
+ */
+public class BinaryCodec
+implements PayloadCodecI {
+
+	public static final String NAME = "bin1";
+
+	private static final int VERSION = 1;
+
+	private static final int NULL = 0;
+	private static final int FALSE = 1;
+	private static final int TRUE = 2;
+	private static final int BYTE = 3;
+	private static final int SHORT = 4;
+	private static final int CHAR = 5;
+	private static final int INT = 6;
+	private static final int LONG = 7;
+	private static final int FLOAT = 8;
+	private static final int DOUBLE = 9;
+	private static final int STRING = 10;
+	private static final int BYTES = 11;
+	private static final int ARRAY = 12;
+	private static final int COLLECTION = 13;
+	private static final int MAP = 14;
+	private static final int ENUM = 15;
+	private static final int OBJECT = 16;
+	private static final int REF = 17;
+	private static final int DATE = 18;
+
+	private static final int MAX_DECODE_SCHEMAS = 1024;
+	/** how deeply arrays, collections, maps and objects may nest, so a hostile payload can't overflow the stack */
+	public static final int MAX_DEPTH = 256;
+
+	private static final Map <String,Class<?>> PRIMITIVES = new HashMap <String,Class<?>> ();
+	static {
+		Class<?>[] p = { boolean.class, byte.class, short.class, char.class, int.class, long.class, float.class, double.class };
+		for (int i = 0; i < p.length; i++)
+			PRIMITIVES.put(p[i].getName(), p[i]);
+	}
+
+	// the names of the classes the decoder will make, and the encoder will name
+	private static final Set <String> ALLOWED = Collections.newSetFromMap(new ConcurrentHashMap <String,Boolean> ());
+	static {
+		Class<?>[] a = { Object.class, String.class, Boolean.class, Byte.class, Short.class, Character.class, Integer.class,
+			Long.class, Float.class, Double.class, Number.class, Date.class,
+			ArrayList.class, LinkedList.class, Vector.class, ArrayDeque.class, HashSet.class, LinkedHashSet.class, TreeSet.class,
+			HashMap.class, LinkedHashMap.class, TreeMap.class, Hashtable.class,
+			MMBatch.Item.class };
+		for (int i = 0; i < a.length; i++)
+			ALLOWED.add(a[i].getName());
+	}
+
+	/**
+	 * The fields of a class, in the order their values are written
+	 */
+	private static class Schema {
+		final Constructor<?> constructor;
+		final Field[] fields;
+		final String[] names;
+
+		Schema(Constructor<?> constructor, Field[] fields, String[] names) {
+			this.constructor = constructor;
+			this.fields = fields;
+			this.names = names;
+		}
+	}
+
+	// the encoder's view of each class, found once
+	private static final ConcurrentMap <Class<?>,Schema> encodeSchemas = new ConcurrentHashMap <Class<?>,Schema> ();
+	// the decoder's: class name and the field names that came with it -> the local fields they fill (null where there is none)
+	private static final ConcurrentMap <String,Schema> decodeSchemas = new ConcurrentHashMap <String,Schema> ();
+
+
+	public String getName() {
+		return NAME;
+	}
+
+
+	/**
+	 * Let payloads contain objects of this class: a Serializable class with a no-argument constructor, or an enum.
+	 * Arrays of it are allowed too.
+	 */
+	public static void allow(Class<?> c) {
+		ALLOWED.add(c.getName());
+	}
+
+	/**
+	 * @return true if the class, or for an array its element class, is on the allow list or primitive
+	 */
+	public static boolean isAllowed(Class<?> c) {
+		while (c.isArray())
+			c = c.getComponentType();
+		return c.isPrimitive() || ALLOWED.contains(c.getName());
+	}
+
+	private static void checkAllowed(Class<?> c)
+	throws CodecException {
+		if (! isAllowed(c))
+			throw new CodecException(c.getName()+" is not allowed; see BinaryCodec.allow()");
+	}
+
+
+	public byte[] encode(Object o)
+	throws CodecException {
+		Writer w = new Writer();
+		w.out.write(VERSION);
+		try {
+			w.value(o);
+		}
+		catch (CodecException ce) {
+			throw ce;
+		}
+		catch (RuntimeException re) {
+			// usually a field the module system won't let us read
+			throw new CodecException("Can't encode "+((o == null) ? "null" : o.getClass().getName())+": "+re, re);
+		}
+		return w.out.toByteArray();
+	}
+
+
+	public Object decode(byte[] data)
+	throws CodecException {
+		Reader r = new Reader(data);
+		if (r.readByte() != VERSION)
+			throw new CodecException("Unknown "+NAME+" version "+data[0]);
+		try {
+			Object o = r.value();
+			if (r.pos != data.length)
+				throw new CodecException((data.length - r.pos)+" bytes left over after decoding");
+			return o;
+		}
+		catch (CodecException ce) {
+			throw ce;
+		}
+		catch (RuntimeException re) {
+			throw new CodecException("Can't decode: "+re, re);
+		}
+	}
+
+
+	/////// ENCODING
+
+	private static class Writer {
+		final Bytes out = new Bytes();
+		final Map <Class<?>,Integer> classes = new HashMap <Class<?>,Integer> ();		// described without fields
+		final Map <Class<?>,Integer> objectClasses = new HashMap <Class<?>,Integer> ();	// described with them
+		final IdentityHashMap <Object,Integer> seen = new IdentityHashMap <Object,Integer> ();
+		int depth = 0;
+
+		void value(Object o)
+		throws CodecException {
+			if (++depth > MAX_DEPTH)
+				throw new CodecException("Nested more than "+MAX_DEPTH+" deep");
+			try {
+				write(o);
+			}
+			finally {
+				depth--;
+			}
+		}
+
+		private void write(Object o)
+		throws CodecException {
+			if (o == null) {
+				out.write(NULL);
+				return;
+			}
+			Class<?> c = o.getClass();
+			if (c == String.class) {
+				out.write(STRING);
+				out.writeString((String) o);
+			}
+			else if (c == Integer.class) {
+				out.write(INT);
+				out.writeVarLong(((Integer) o).intValue());
+			}
+			else if (c == Long.class) {
+				out.write(LONG);
+				out.writeVarLong(((Long) o).longValue());
+			}
+			else if (c == Boolean.class) {
+				out.write(((Boolean) o).booleanValue() ? TRUE : FALSE);
+			}
+			else if (c == Double.class) {
+				out.write(DOUBLE);
+				out.writeFixed(Double.doubleToLongBits(((Double) o).doubleValue()), 8);
+			}
+			else if (c == Float.class) {
+				out.write(FLOAT);
+				out.writeFixed(Float.floatToIntBits(((Float) o).floatValue()), 4);
+			}
+			else if (c == Byte.class) {
+				out.write(BYTE);
+				out.write(((Byte) o).byteValue());
+			}
+			else if (c == Short.class) {
+				out.write(SHORT);
+				out.writeVarLong(((Short) o).shortValue());
+			}
+			else if (c == Character.class) {
+				out.write(CHAR);
+				out.writeVarLong(((Character) o).charValue());
+			}
+			else if (c == Date.class) {
+				out.write(DATE);
+				out.writeVarLong(((Date) o).getTime());
+			}
+			else if (c == byte[].class) {
+				out.write(BYTES);
+				byte[] b = (byte[]) o;
+				out.writeVarLong(b.length);
+				out.write(b, 0, b.length);
+			}
+			else if (o instanceof Enum) {
+				checkAllowed(((Enum<?>) o).getDeclaringClass());
+				out.write(ENUM);
+				classRef(((Enum<?>) o).getDeclaringClass());
+				out.writeString(((Enum<?>) o).name());
+			}
+			else if (! reference(o)) {
+				if (c.isArray())
+					array(o);
+				else if (o instanceof Collection)
+					collection((Collection<?>) o);
+				else if (o instanceof Map)
+					map((Map<?,?>) o);
+				else
+					object(o);
+			}
+		}
+
+		/**
+		 * Write a reference if the object has been written already, otherwise note it
+		 * @return true if a reference was written
+		 */
+		boolean reference(Object o) {
+			Integer n = seen.get(o);
+			if (n != null) {
+				out.write(REF);
+				out.writeVarLong(n.intValue());
+				return true;
+			}
+			seen.put(o, Integer.valueOf(seen.size()));
+			return false;
+		}
+
+		void array(Object o)
+		throws CodecException {
+			checkAllowed(o.getClass());
+			out.write(ARRAY);
+			classRef(o.getClass().getComponentType());
+			int n = java.lang.reflect.Array.getLength(o);
+			out.writeVarLong(n);
+			for (int i = 0; i < n; i++)
+				value(java.lang.reflect.Array.get(o, i));
+		}
+
+		void collection(Collection<?> c)
+		throws CodecException {
+			out.write(COLLECTION);
+			classRef(containerClass(c));
+			out.writeVarLong(c.size());
+			Iterator<?> it = c.iterator();
+			while (it.hasNext())
+				value(it.next());
+		}
+
+		void map(Map<?,?> m)
+		throws CodecException {
+			out.write(MAP);
+			classRef(containerClass(m));
+			out.writeVarLong(m.size());
+			Iterator<? extends Map.Entry<?,?>> it = m.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<?,?> e = it.next();
+				value(e.getKey());
+				value(e.getValue());
+			}
+		}
+
+		void object(Object o)
+		throws CodecException {
+			checkAllowed(o.getClass());
+			Schema s = encodeSchema(o.getClass());
+			out.write(OBJECT);
+			Integer n = objectClasses.get(o.getClass());
+			if (n != null) {
+				out.writeVarLong(n.intValue());
+			}
+			else {
+				objectClasses.put(o.getClass(), Integer.valueOf(objectClasses.size() + 1));
+				out.writeVarLong(0);
+				out.writeString(o.getClass().getName());
+				out.writeVarLong(s.names.length);
+				for (int i = 0; i < s.names.length; i++)
+					out.writeString(s.names[i]);
+			}
+			for (int i = 0; i < s.fields.length; i++) {
+				try {
+					value(s.fields[i].get(o));
+				}
+				catch (IllegalAccessException iae) {
+					throw new CodecException("Can't read "+s.names[i]+" of "+o.getClass().getName(), iae);
+				}
+			}
+		}
+
+		/**
+		 * Refer to a class by number, naming it first if this is its first appearance
+		 */
+		void classRef(Class<?> c) {
+			Integer n = classes.get(c);
+			if (n != null) {
+				out.writeVarLong(n.intValue());
+				return;
+			}
+			classes.put(c, Integer.valueOf(classes.size() + 1));
+			out.writeVarLong(0);
+			out.writeString(c.getName());
+		}
+	}
+
+
+	/**
+	 * The class a collection or map is rebuilt as: its own, if it is allowed and can be made empty with a public
+	 * constructor, otherwise a general-purpose one of the same kind
+	 */
+	private static Class<?> containerClass(Object o)
+	throws CodecException {
+		if ((o instanceof SortedSet) && (((SortedSet<?>) o).comparator() != null))
+			throw new CodecException("Can't encode a SortedSet with its own comparator");
+		if ((o instanceof SortedMap) && (((SortedMap<?,?>) o).comparator() != null))
+			throw new CodecException("Can't encode a SortedMap with its own comparator");
+		Class<?> c = o.getClass();
+		try {
+			if (isAllowed(c) && Modifier.isPublic(c.getModifiers()) && Modifier.isPublic(c.getConstructor().getModifiers()))
+				return c;
+		}
+		catch (NoSuchMethodException nsme) {
+		}
+		if (o instanceof SortedSet)
+			return TreeSet.class;
+		else if (o instanceof Set)
+			return LinkedHashSet.class;
+		else if (o instanceof SortedMap)
+			return TreeMap.class;
+		else if (o instanceof Map)
+			return LinkedHashMap.class;
+		return ArrayList.class;
+	}
+
+
+	private static Schema encodeSchema(Class<?> c)
+	throws CodecException {
+		Schema s = encodeSchemas.get(c);
+		if (s != null)
+			return s;
+		if (! Serializable.class.isAssignableFrom(c))
+			throw new CodecException(c.getName()+" is not Serializable");
+		List <Field> fields = new ArrayList <Field> ();
+		for (Class<?> k = c; (k != null) && (k != Object.class); k = k.getSuperclass()) {
+			Field[] declared = k.getDeclaredFields();
+			// superclass fields first, each class's in name order, so the order doesn't depend on the JVM
+			Arrays.sort(declared, new Comparator <Field> () {
+				public int compare(Field a, Field b) {
+					return a.getName().compareTo(b.getName());
+				}
+			});
+			List <Field> mine = new ArrayList <Field> ();
+			for (int i = 0; i < declared.length; i++) {
+				int m = declared[i].getModifiers();
+				if (Modifier.isStatic(m) || Modifier.isTransient(m))
+					continue;
+				declared[i].setAccessible(true);
+				mine.add(declared[i]);
+			}
+			fields.addAll(0, mine);
+		}
+		Field[] f = fields.toArray(new Field[fields.size()]);
+		String[] names = new String[f.length];
+		Set <String> used = new HashSet <String> ();
+		for (int i = f.length - 1; i >= 0; i--) {
+			// a field hidden by a subclass's field of the same name is qualified by its class
+			names[i] = used.add(f[i].getName()) ? f[i].getName() : f[i].getDeclaringClass().getName()+"."+f[i].getName();
+		}
+		s = new Schema(noArgConstructor(c), f, names);
+		encodeSchemas.putIfAbsent(c, s);
+		return s;
+	}
+
+	private static Constructor<?> noArgConstructor(Class<?> c)
+	throws CodecException {
+		if (Modifier.isAbstract(c.getModifiers()) || c.isInterface())
+			throw new CodecException(c.getName()+" is abstract");
+		try {
+			Constructor<?> k = c.getDeclaredConstructor();
+			k.setAccessible(true);
+			return k;
+		}
+		catch (NoSuchMethodException nsme) {
+			throw new CodecException(c.getName()+" has no no-argument constructor");
+		}
+	}
+
+
+	/////// DECODING
+
+	private static class Reader {
+		final byte[] in;
+		int pos;
+		final List <Class<?>> classes = new ArrayList <Class<?>> ();
+		final List <Class<?>> objectClasses = new ArrayList <Class<?>> ();
+		final List <Schema> schemas = new ArrayList <Schema> ();	// for each of objectClasses
+		final List <Object> seen = new ArrayList <Object> ();
+		int depth;
+
+		Reader(byte[] in) {
+			this.in = in;
+			this.pos = 0;
+			this.depth = 0;
+		}
+
+		Object value()
+		throws CodecException {
+			if (++depth > MAX_DEPTH)
+				throw new CodecException("Nested more than "+MAX_DEPTH+" deep at byte "+pos);
+			try {
+				return read();
+			}
+			finally {
+				depth--;
+			}
+		}
+
+		private Object read()
+		throws CodecException {
+			int tag = readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case FALSE:
+				return Boolean.FALSE;
+			case TRUE:
+				return Boolean.TRUE;
+			case BYTE:
+				return Byte.valueOf((byte) readByte());
+			case SHORT:
+				return Short.valueOf((short) readVarLong());
+			case CHAR:
+				return Character.valueOf((char) readVarLong());
+			case INT:
+				return Integer.valueOf((int) readVarLong());
+			case LONG:
+				return Long.valueOf(readVarLong());
+			case FLOAT:
+				return Float.valueOf(Float.intBitsToFloat((int) readFixed(4)));
+			case DOUBLE:
+				return Double.valueOf(Double.longBitsToDouble(readFixed(8)));
+			case STRING:
+				return readString();
+			case DATE:
+				return new Date(readVarLong());
+			case BYTES: {
+				int n = readLength(1);
+				byte[] b = new byte[n];
+				System.arraycopy(in, pos, b, 0, n);
+				pos += n;
+				return b;
+			}
+			case ENUM:
+				return enumValue(classRef(), readString());
+			case REF: {
+				int n = (int) readVarLong();
+				if ((n < 0) || (n >= seen.size()))
+					throw new CodecException("Reference to object "+n+" of "+seen.size());
+				return seen.get(n);
+			}
+			case ARRAY:
+				return array();
+			case COLLECTION:
+				return collection();
+			case MAP:
+				return map();
+			case OBJECT:
+				return object();
+			default:
+				throw new CodecException("Unknown tag "+tag+" at byte "+(pos - 1));
+			}
+		}
+
+		Object array()
+		throws CodecException {
+			Class<?> component = classRef();
+			int n = readLength(1);
+			Object a = java.lang.reflect.Array.newInstance(component, n);
+			seen.add(a);
+			for (int i = 0; i < n; i++)
+				java.lang.reflect.Array.set(a, i, value());
+			return a;
+		}
+
+		@SuppressWarnings("unchecked")
+		Object collection()
+		throws CodecException {
+			Class<?> c = classRef();
+			if (! Collection.class.isAssignableFrom(c))
+				throw new CodecException(c.getName()+" is not a Collection");
+			Collection <Object> coll = (Collection <Object>) newContainer(c);
+			seen.add(coll);
+			int n = readLength(1);
+			for (int i = 0; i < n; i++)
+				coll.add(value());
+			return coll;
+		}
+
+		@SuppressWarnings("unchecked")
+		Object map()
+		throws CodecException {
+			Class<?> c = classRef();
+			if (! Map.class.isAssignableFrom(c))
+				throw new CodecException(c.getName()+" is not a Map");
+			Map <Object,Object> m = (Map <Object,Object>) newContainer(c);
+			seen.add(m);
+			int n = readLength(2);
+			for (int i = 0; i < n; i++) {
+				Object k = value();
+				m.put(k, value());
+			}
+			return m;
+		}
+
+		Object object()
+		throws CodecException {
+			int index = objectClassIndex();
+			Schema s = schemas.get(index);
+			Object o;
+			try {
+				o = s.constructor.newInstance();
+			}
+			catch (Exception e) {
+				throw new CodecException("Can't make a "+objectClasses.get(index).getName(), e);
+			}
+			seen.add(o);
+			for (int i = 0; i < s.fields.length; i++) {
+				Object v = value();
+				if (s.fields[i] == null)
+					continue;	// a field this side doesn't have
+				try {
+					s.fields[i].set(o, v);
+				}
+				catch (Exception e) {
+					throw new CodecException("Can't set "+s.names[i]+" of "+objectClasses.get(index).getName(), e);
+				}
+			}
+			return o;
+		}
+
+		/**
+		 * Read a class reference, and the class's name if this is its first appearance
+		 */
+		Class<?> classRef()
+		throws CodecException {
+			int n = (int) readVarLong();
+			if (n == 0) {
+				Class<?> c = resolve(readString());
+				classes.add(c);
+				return c;
+			}
+			if ((n < 0) || (n > classes.size()))
+				throw new CodecException("Reference to class "+n+" of "+classes.size());
+			return classes.get(n - 1);
+		}
+
+		/**
+		 * Read a plain object's class reference, and the class's name and field names if this is its first appearance
+		 * @return the class's index in objectClasses and schemas
+		 */
+		int objectClassIndex()
+		throws CodecException {
+			int n = (int) readVarLong();
+			if (n == 0) {
+				Class<?> c = resolve(readString());
+				int nf = readLength(1);
+				String[] names = new String[nf];
+				for (int i = 0; i < nf; i++)
+					names[i] = readString();
+				objectClasses.add(c);
+				schemas.add(decodeSchema(c, names));
+				return objectClasses.size() - 1;
+			}
+			if ((n < 0) || (n > objectClasses.size()))
+				throw new CodecException("Reference to class "+n+" of "+objectClasses.size());
+			return n - 1;
+		}
+
+		int readByte()
+		throws CodecException {
+			if (pos >= in.length)
+				throw new CodecException("Payload ends early");
+			return in[pos++] & 0xff;
+		}
+
+		long readVarLong()
+		throws CodecException {
+			long raw = 0;
+			int shift = 0;
+			while (true) {
+				int b = readByte();
+				raw |= ((long) (b & 0x7f)) << shift;
+				if ((b & 0x80) == 0)
+					break;
+				shift += 7;
+				if (shift > 63)
+					throw new CodecException("Varint too long at byte "+pos);
+			}
+			return (raw >>> 1) ^ -(raw & 1);
+		}
+
+		long readFixed(int n)
+		throws CodecException {
+			long v = 0;
+			for (int i = 0; i < n; i++)
+				v = (v << 8) | readByte();
+			return v;
+		}
+
+		/**
+		 * A count of things that each take at least minBytes, checked against what is left, so a bad count can't make us allocate wildly
+		 */
+		int readLength(int minBytes)
+		throws CodecException {
+			long n = readVarLong();
+			if ((n < 0) || (n * minBytes > in.length - pos))
+				throw new CodecException("Length "+n+" at byte "+pos+" runs past the end of the payload");
+			return (int) n;
+		}
+
+		String readString()
+		throws CodecException {
+			int n = readLength(1);
+			String s = new String(in, pos, n, java.nio.charset.StandardCharsets.UTF_8);
+			pos += n;
+			return s;
+		}
+	}
+
+
+	/**
+	 * The class a payload names, if it is on the allow list. The name is checked before anything is loaded.
+	 */
+	private static Class<?> resolve(String name)
+	throws CodecException {
+		Class<?> p = PRIMITIVES.get(name);
+		if (p != null)
+			return p;
+		String element = elementName(name);
+		if ((! PRIMITIVES.containsKey(element)) && (! ALLOWED.contains(element)))
+			throw new CodecException(name+" is not allowed; see BinaryCodec.allow()");
+		try {
+			return Class.forName(name, false, BinaryCodec.class.getClassLoader());
+		}
+		catch (ClassNotFoundException cnfe) {
+			throw new CodecException("Unknown class "+name);
+		}
+		catch (LinkageError le) {
+			throw new CodecException("Can't load class "+name+": "+le);
+		}
+	}
+
+
+	/**
+	 * @return the element class name of an array class name ("[[Ljava.lang.String;" -> "java.lang.String",
+	 * "[I" -> "int"), or the name itself
+	 */
+	private static String elementName(String name) {
+		if (! name.startsWith("["))
+			return name;
+		int i = 0;
+		while ((i < name.length()) && (name.charAt(i) == '['))
+			i++;
+		if ((i < name.length() - 1) && (name.charAt(i) == 'L') && name.endsWith(";"))
+			return name.substring(i + 1, name.length() - 1);
+		if (i == name.length() - 1) {
+			switch (name.charAt(i)) {
+			case 'Z': return "boolean";
+			case 'B': return "byte";
+			case 'S': return "short";
+			case 'C': return "char";
+			case 'I': return "int";
+			case 'J': return "long";
+			case 'F': return "float";
+			case 'D': return "double";
+			}
+		}
+		return name;
+	}
+
+
+	private static Schema decodeSchema(Class<?> c, String[] names)
+	throws CodecException {
+		StringBuilder key = new StringBuilder(c.getName());
+		for (int i = 0; i < names.length; i++)
+			key.append('|').append(names[i]);
+		Schema s = decodeSchemas.get(key.toString());
+		if (s != null)
+			return s;
+		// the local view of the class, matched up with the fields the sender wrote
+		Schema local = encodeSchema(c);
+		Field[] fields = new Field[names.length];
+		for (int i = 0; i < names.length; i++) {
+			for (int j = 0; (j < local.names.length) && (fields[i] == null); j++) {
+				if (local.names[j].equals(names[i]))
+					fields[i] = local.fields[j];
+			}
+		}
+		s = new Schema(local.constructor, fields, names);
+		if (decodeSchemas.size() < MAX_DECODE_SCHEMAS)
+			decodeSchemas.putIfAbsent(key.toString(), s);
+		return s;
+	}
+
+
+	private static Object newContainer(Class<?> c)
+	throws CodecException {
+		if (! Serializable.class.isAssignableFrom(c))
+			throw new CodecException(c.getName()+" is not Serializable");
+		try {
+			return c.getConstructor().newInstance();
+		}
+		catch (Exception e) {
+			throw new CodecException("Can't make a "+c.getName(), e);
+		}
+	}
+
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object enumValue(Class<?> c, String name)
+	throws CodecException {
+		if (! c.isEnum())
+			throw new CodecException(c.getName()+" is not an enum");
+		try {
+			return Enum.valueOf((Class) c, name);
+		}
+		catch (IllegalArgumentException iae) {
+			throw new CodecException(c.getName()+" has no constant "+name);
+		}
+	}
+
+
+	/**
+	 * A growable byte array, with the codec's integer and string forms
+	 */
+	private static class Bytes {
+		private byte[] buf = new byte[256];
+		private int count = 0;
+
+		void write(int b) {
+			ensure(1);
+			buf[count++] = (byte) b;
+		}
+
+		void write(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		/** zigzag, so small negative numbers are small too */
+		void writeVarLong(long v) {
+			long z = (v << 1) ^ (v >> 63);
+			ensure(10);
+			while ((z & ~0x7fL) != 0) {
+				buf[count++] = (byte) ((z & 0x7f) | 0x80);
+				z >>>= 7;
+			}
+			buf[count++] = (byte) z;
+		}
+
+		void writeFixed(long v, int n) {
+			ensure(n);
+			for (int i = n - 1; i >= 0; i--)
+				buf[count++] = (byte) (v >>> (i * 8));
+		}
+
+		void writeString(String s) {
+			byte[] b = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+			writeVarLong(b.length);
+			write(b, 0, b.length);
+		}
+
+		private void ensure(int n) {
+			if (count + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, count);
+		}
+	}
+
+}
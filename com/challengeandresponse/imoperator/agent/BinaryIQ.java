@@ -0,0 +1,109 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.Base64;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.provider.ProviderManager;
+
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
+
+/**
+ * An MMObject on its way out with its payload encoded by a PayloadCodecI instead of XStream.
+ * The query element carries the codec's name, the MMObject's class, and the encoded payload in base64:<br />
+ * &lt;query xmlns='com.challengeandresponse.imoperator.agent.BinaryIQ' codec='bin1' class='...MMObject'&gt;AQY...&lt;/query&gt;
+ *
+ * <p>Only the sender sees a BinaryIQ. On arrival the BinaryIQProvider decodes it back into an MMObject of
+ * the class that was sent, so a receiving agent's filters and handlers see the same object either way.
+ * One that can't be decoded arrives as a BinaryIQ with getDecodeFailure() set, which the agents' filters drop.</p>
+ *
+ * @author jim
+ */
+public class BinaryIQ extends IQ {
+
+	public static final String NAMESPACE = BinaryIQ.class.getName();
+	public static final String ELEMENT = "query";
+
+	private final String codec;
+	private final String payloadClass;
+	private final byte[] data;
+	private String decodeFailure;
+
+
+	/**
+	 * @param codec the name of the codec that encoded the payload
+	 * @param payloadClass the class name of the MMObject the payload belongs in
+	 * @param data the encoded payload
+	 */
+	public BinaryIQ(String codec, String payloadClass, byte[] data) {
+		this.codec = codec;
+		this.payloadClass = payloadClass;
+		this.data = data;
+	}
+
+
+	/**
+	 * Encode an MMObject's payload, keeping its type, packet ID and addresses
+	 * @throws CodecException if the codec can't encode the payload
+	 */
+	public static BinaryIQ encode(MMObject mmo, PayloadCodecI codec)
+	throws CodecException {
+		BinaryIQ biq = new BinaryIQ(codec.getName(), mmo.getClass().getName(), codec.encode(mmo.getObject()));
+		biq.setType(mmo.getType());
+		biq.setPacketID(mmo.getPacketID());
+		biq.setTo(mmo.getTo());
+		biq.setFrom(mmo.getFrom());
+		return biq;
+	}
+
+	/**
+	 * Decode the payload into an MMObject of the class that was sent, with this IQ's type, packet ID and addresses.
+	 * The class must be one that agents here recognize, that is one with an IQ provider registered for it
+	 * (see BaseAgent.addRecognizedClass()), since its name comes from the peer.
+	 * @param codec the codec named by getCodec()
+	 * @throws CodecException if the class isn't recognized, or the payload can't be decoded
+	 */
+	public MMObject decode(PayloadCodecI codec)
+	throws CodecException {
+		if ((payloadClass == null) || (ProviderManager.getInstance().getIQProvider(ELEMENT, payloadClass) == null))
+			throw new CodecException("Not a recognized class: "+payloadClass);
+		MMObject mmo = MMBatch.instantiate(payloadClass, codec.decode(data));
+		mmo.setType(getType());
+		mmo.setPacketID(getPacketID());
+		mmo.setTo(getTo());
+		mmo.setFrom(getFrom());
+		return mmo;
+	}
+
+
+	/**
+	 * @return why the BinaryIQProvider couldn't decode this IQ on arrival, or null
+	 */
+	public String getDecodeFailure() {
+		return decodeFailure;
+	}
+
+	void setDecodeFailure(String decodeFailure) {
+		this.decodeFailure = decodeFailure;
+	}
+
+	public String getCodec() {
+		return codec;
+	}
+
+	public String getPayloadClass() {
+		return payloadClass;
+	}
+
+	/** @return the encoded payload, before base64 */
+	public byte[] getData() {
+		return data;
+	}
+
+
+	public String getChildElementXML() {
+		return "<"+ELEMENT+" xmlns='"+NAMESPACE+"' codec='"+StanzaXml.escape(codec)+"' class='"+StanzaXml.escape(payloadClass)+"'>"
+			+ Base64.getEncoder().encodeToString(data)
+			+ "</"+ELEMENT+">";
+	}
+
+}
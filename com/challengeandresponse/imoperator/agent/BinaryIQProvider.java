@@ -0,0 +1,123 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Turns the query element of a BinaryIQ back into the MMObject that was sent, with the codec it names.
+ * One provider serves every agent in the JVM, as the UniversalIQProvider does: it is registered with
+ * the ProviderManager for the BinaryIQ namespace by BaseAgent.setPayloadCodec(), which also registers the codec.
+ *
+ * @author jim
+ */
+public class BinaryIQProvider
+implements IQProvider {
+
+	private final ConcurrentMap <String,PayloadCodecI> codecs;
+	private final AtomicLong decoded;
+	private final AtomicLong failed;
+
+
+	public BinaryIQProvider() {
+		this.codecs = new ConcurrentHashMap <String,PayloadCodecI> ();
+		this.decoded = new AtomicLong(0);
+		this.failed = new AtomicLong(0);
+	}
+
+
+	/**
+	 * Decode payloads marked with this codec's name
+	 */
+	public void addCodec(PayloadCodecI codec) {
+		codecs.put(codec.getName(), codec);
+	}
+
+	/**
+	 * @return the codec registered under this name, or null
+	 */
+	public PayloadCodecI getCodec(String name) {
+		return (name == null) ? null : codecs.get(name);
+	}
+
+
+	/**
+	 * Called with the parser on the query element's start tag. Leaves it on the end tag.
+	 * The payload comes from a peer, and Smack takes any exception thrown here for a broken connection, so a
+	 * payload that can't be decoded (an unknown codec, bad base64, a class that isn't allowed here) doesn't throw:
+	 * it is counted, and the BinaryIQ itself is returned, marked with getDecodeFailure(). No agent recognizes
+	 * the BinaryIQ class, so their filters drop it.
+	 * @return the MMObject carried, or the BinaryIQ if it couldn't be decoded
+	 */
+	public IQ parseIQ(XmlPullParser parser)
+	throws Exception {
+		String name = parser.getAttributeValue("", "codec");
+		String payloadClass = parser.getAttributeValue("", "class");
+		String text = readText(parser);
+		PayloadCodecI codec = getCodec(name);
+		byte[] data = new byte[0];
+		try {
+			if (codec == null)
+				throw new CodecException("No codec named "+name);
+			try {
+				data = Base64.getMimeDecoder().decode(text);
+			}
+			catch (IllegalArgumentException iae) {
+				throw new CodecException("Payload is not base64: "+iae.getMessage());
+			}
+			IQ iq = new BinaryIQ(name, payloadClass, data).decode(codec);
+			decoded.incrementAndGet();
+			return iq;
+		}
+		catch (CodecException ce) {
+			return undecoded(name, payloadClass, data, ce.getMessage());
+		}
+		catch (RuntimeException re) {
+			// a codec other than the BinaryCodec may not wrap its own failures
+			return undecoded(name, payloadClass, data, re.toString());
+		}
+	}
+
+	private IQ undecoded(String name, String payloadClass, byte[] data, String reason) {
+		failed.incrementAndGet();
+		BinaryIQ biq = new BinaryIQ(name, payloadClass, data);
+		biq.setDecodeFailure(reason);
+		return biq;
+	}
+
+	/**
+	 * The text directly inside the element the parser is on, skipping any child elements, leaving the parser
+	 * on the element's end tag. Unlike nextText(), a child element where the payload should be isn't an error.
+	 */
+	private static String readText(XmlPullParser parser)
+	throws Exception {
+		int depth = parser.getDepth();
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			int event = parser.next();
+			if ((event == XmlPullParser.TEXT) && (parser.getDepth() == depth))
+				sb.append(parser.getText());
+			else if ((event == XmlPullParser.END_TAG) && (parser.getDepth() == depth))
+				return sb.toString();
+			else if (event == XmlPullParser.END_DOCUMENT)
+				return sb.toString();
+		}
+	}
+
+
+	/** @return the number of payloads decoded */
+	public long getDecodedCount() {
+		return decoded.get();
+	}
+
+	/** @return the number of payloads that couldn't be decoded, and were dropped */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+}
@@ -0,0 +1,600 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * A persistent store for an agent's status structure, so it survives a restart.
+ *
+ * <p>The store is a log of changes in a memory-mapped file. Each call to save() compares the
+ * status (every namespace, key and value) with what was last saved, and appends only the entries
+ * that changed, were added or were removed. A checkpoint's cost in writes is therefore proportional
+ * to what changed since the last one, not to the size of the status. When the log grows to more than
+ * twice the size of the live entries, it is compacted into a fresh file, which is renamed over the old one,
+ * so load() at startup reads little more than the current state.</p>
+ *
+ * <p>The file starts with a header holding the offset of the end of the last complete checkpoint.
+ * It is only advanced after the checkpoint's records have been forced to disk, so a crash part way
+ * through a checkpoint loses that checkpoint, not the store.</p>
+ *
+ * <p>Values that are Strings, Booleans or the primitive wrappers are stored directly. Other Serializable
+ * values are stored with Java serialization. Anything else is skipped, and counted (see getSkippedCount()).
+ * A serialized value that can't be read back by load(), because its class is gone or has changed incompatibly,
+ * is left out of the result and listed by getUnreadable().</p>
+ *
+ * <p>If save() can't write, nothing is recorded as saved, so the next save() tries the same changes again.</p>
+ *
+ * @author jim
+ */
+public class CheckpointStore {
+
+	private static final int MAGIC = 0x494d4350;	// "IMCP"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;		// magic, version, end offset (long)
+	private static final int INITIAL_SIZE = 64 * 1024;
+	private static final int MIN_COMPACT_SIZE = 64 * 1024;
+
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+
+	private static final byte T_STRING = 1;
+	private static final byte T_INT = 2;
+	private static final byte T_LONG = 3;
+	private static final byte T_BOOLEAN = 4;
+	private static final byte T_DOUBLE = 5;
+	private static final byte T_FLOAT = 6;
+	private static final byte T_SHORT = 7;
+	private static final byte T_BYTE = 8;
+	private static final byte T_SERIALIZED = 9;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * One entry that a checkpoint changes: its new value, or null if it is removed
+	 */
+	private static class Change {
+		final String namespace;
+		final String key;
+		final byte[] value;
+
+		Change(String namespace, String key, byte[] value) {
+			this.namespace = namespace;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private final File file;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private long end;			// where the next record goes
+
+	// namespace -> key -> the encoded value last written, for finding changes and for compaction
+	private final Map <String,Map<String,byte[]>> saved;
+	private long liveBytes;		// the size the saved entries would take as a fresh log
+	private final Map <String,String> unreadable;	// "namespace/key" -> reason, for each entry the last load() couldn't read
+
+	private long checkpoints;
+	private long recordsWritten;
+	private long skipped;
+	private long compactions;
+
+
+	/**
+	 * @param file the checkpoint file. It is created by the first save() if it doesn't exist.
+	 */
+	public CheckpointStore(File file) {
+		this.file = file;
+		this.saved = new HashMap <String,Map<String,byte[]>> ();
+		this.end = HEADER_SIZE;
+		this.liveBytes = 0;
+		this.unreadable = new LinkedHashMap <String,String> ();
+	}
+
+
+	/**
+	 * Read the last complete checkpoint
+	 * @return namespace -> key -> value, empty if there is no checkpoint file
+	 * @throws IOException if the file can't be read, or isn't a checkpoint file
+	 */
+	public synchronized Map <String,Map<String,Object>> load()
+	throws IOException {
+		Map <String,Map<String,Object>> result = new LinkedHashMap <String,Map<String,Object>> ();
+		saved.clear();
+		liveBytes = 0;
+		unreadable.clear();
+		if ((! file.exists()) || (file.length() < HEADER_SIZE)) {
+			end = HEADER_SIZE;
+			return result;
+		}
+		open(file.length());
+		if ((map.getInt(0) != MAGIC) || (map.getInt(4) != VERSION))
+			throw new IOException(file+" is not a checkpoint file");
+		long committed = map.getLong(8);
+		if ((committed < HEADER_SIZE) || (committed > map.capacity()))
+			throw new IOException(file+" has a bad end offset: "+committed);
+
+		ByteBuffer bb = map.duplicate();
+		bb.position(HEADER_SIZE);
+		bb.limit((int) committed);
+		while (bb.remaining() >= 4) {
+			int len = bb.getInt();
+			byte[] record = new byte[len];
+			bb.get(record);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+			byte op = in.readByte();
+			String namespace = readString(in);
+			String key = readString(in);
+			if (op == OP_PUT) {
+				byte[] value = new byte[in.available()];
+				in.readFully(value);
+				Object o = null;
+				String problem = null;
+				try {
+					o = decode(value);
+					if (o == null)
+						problem = "unknown value type "+value[0];
+				}
+				catch (ClassNotFoundException cnfe) {
+					problem = "class not found: "+cnfe.getMessage();
+				}
+				catch (ObjectStreamException ose) {
+					// for example an InvalidClassException, when the class's serialVersionUID has changed
+					problem = ose.toString();
+				}
+				if (o != null) {
+					namespaceMap(result, namespace).put(key, o);
+					remember(namespace, key, value);
+					unreadable.remove(namespace+"/"+key);
+				}
+				else {
+					// the entry's earlier value, if any, is out of date too
+					Map <String,Object> m = result.get(namespace);
+					if (m != null)
+						m.remove(key);
+					forget(namespace, key);
+					unreadable.put(namespace+"/"+key, problem);
+				}
+			}
+			else if (op == OP_REMOVE) {
+				Map <String,Object> m = result.get(namespace);
+				if (m != null)
+					m.remove(key);
+				forget(namespace, key);
+				unreadable.remove(namespace+"/"+key);
+			}
+		}
+		end = committed;
+		return result;
+	}
+
+
+	/**
+	 * Write a checkpoint: whatever in the snapshot is different from the last checkpoint.
+	 * Entries in a namespace that's missing from the snapshot are left alone; entries missing
+	 * from a namespace that is in the snapshot are removed.
+	 * @param snapshot namespace -> key -> value
+	 * @return the number of entries written (changed, added or removed)
+	 * @throws IOException if the file can't be written. Nothing is recorded as saved, so the next save() writes the same changes.
+	 */
+	public synchronized int save(Map <String,Map<String,Object>> snapshot)
+	throws IOException {
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(records);
+		List <Change> changes = new ArrayList <Change> ();
+		long nextLiveBytes = liveBytes;
+		Iterator <Map.Entry<String,Map<String,Object>>> nsIt = snapshot.entrySet().iterator();
+		while (nsIt.hasNext()) {
+			Map.Entry<String,Map<String,Object>> nsEntry = nsIt.next();
+			String namespace = nsEntry.getKey();
+			Map <String,Object> values = nsEntry.getValue();
+			Map <String,byte[]> previous = saved.get(namespace);
+
+			Iterator <Map.Entry<String,Object>> it = values.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String,Object> e = it.next();
+				byte[] value = encode(e.getValue());
+				if (value == null) {
+					skipped++;
+					continue;
+				}
+				byte[] old = (previous == null) ? null : previous.get(e.getKey());
+				if ((old != null) && Arrays.equals(old, value))
+					continue;
+				writeRecord(out, OP_PUT, namespace, e.getKey(), value);
+				changes.add(new Change(namespace, e.getKey(), value));
+				if (old != null)
+					nextLiveBytes -= recordSize(namespace, e.getKey(), old);
+				nextLiveBytes += recordSize(namespace, e.getKey(), value);
+			}
+			if (previous != null) {
+				Iterator <Map.Entry<String,byte[]>> prevIt = previous.entrySet().iterator();
+				while (prevIt.hasNext()) {
+					Map.Entry<String,byte[]> e = prevIt.next();
+					if (! values.containsKey(e.getKey())) {
+						writeRecord(out, OP_REMOVE, namespace, e.getKey(), null);
+						changes.add(new Change(namespace, e.getKey(), null));
+						nextLiveBytes -= recordSize(namespace, e.getKey(), e.getValue());
+					}
+				}
+			}
+		}
+		out.flush();
+		checkpoints++;
+		int n = changes.size();
+		if (n == 0)
+			return 0;
+
+		if ((end + records.size() > MIN_COMPACT_SIZE) && (end + records.size() > 2 * (HEADER_SIZE + nextLiveBytes)))
+			compact(changes);
+		else
+			append(records.toByteArray());
+		// written, so now they are the base for the next checkpoint's comparison
+		for (int i = 0; i < n; i++) {
+			Change c = changes.get(i);
+			if (c.value != null)
+				remember(c.namespace, c.key, c.value);
+			else
+				forget(c.namespace, c.key);
+		}
+		recordsWritten += n;
+		return n;
+	}
+
+
+	/**
+	 * Release the mapping and the file
+	 */
+	public synchronized void close() {
+		closeFile();
+	}
+
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the entries the last load() couldn't read, as "namespace/key: reason". They are left out of its result.
+	 */
+	public synchronized List <String> getUnreadable() {
+		List <String> l = new ArrayList <String> (unreadable.size());
+		Iterator <Map.Entry<String,String>> it = unreadable.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String,String> e = it.next();
+			l.add(e.getKey()+": "+e.getValue());
+		}
+		return l;
+	}
+
+	/** @return the number of save() calls */
+	public synchronized long getCheckpointCount() {
+		return checkpoints;
+	}
+
+	/** @return the number of entries written by all the save() calls */
+	public synchronized long getRecordsWritten() {
+		return recordsWritten;
+	}
+
+	/** @return the number of values that couldn't be stored because they aren't Serializable */
+	public synchronized long getSkippedCount() {
+		return skipped;
+	}
+
+	public synchronized long getCompactionCount() {
+		return compactions;
+	}
+
+	/** @return the size of the log, in bytes */
+	public synchronized long getLogSize() {
+		return end;
+	}
+
+
+	/**
+	 * Write the store's counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.CHECKPOINT_FILE,file.getPath());
+		status.setProperty(Vocabulary.Status.CHECKPOINT_COUNT,getCheckpointCount());
+		status.setProperty(Vocabulary.Status.CHECKPOINT_RECORDS,getRecordsWritten());
+		status.setProperty(Vocabulary.Status.CHECKPOINT_SKIPPED,getSkippedCount());
+		status.setProperty(Vocabulary.Status.CHECKPOINT_LOG_SIZE,getLogSize());
+	}
+
+
+
+	/// FILE HANDLING
+
+	private void open(long size)
+	throws IOException {
+		closeFile();
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, HEADER_SIZE));
+	}
+
+	private void closeFile() {
+		map = null;
+		try {
+			if (channel != null)
+				channel.close();
+			if (raf != null)
+				raf.close();
+		}
+		catch (IOException ioe) {
+		}
+		channel = null;
+		raf = null;
+	}
+
+	/**
+	 * Append framed records after the last checkpoint, force them out, then move the end offset past them
+	 */
+	private void append(byte[] records)
+	throws IOException {
+		if (map == null) {
+			open(Math.max(INITIAL_SIZE, HEADER_SIZE + records.length));
+			if (map.getInt(0) != MAGIC)
+				writeHeader(map, HEADER_SIZE);
+			end = map.getLong(8);
+		}
+		if (end + records.length > map.capacity()) {
+			long size = map.capacity();
+			while (size < end + records.length)
+				size *= 2;
+			open(size);
+		}
+		map.position((int) end);
+		map.put(records);
+		map.force();
+		end += records.length;
+		map.putLong(8, end);
+		map.force();
+	}
+
+	/**
+	 * Write every live entry, with a checkpoint's changes made, to a new file, and rename it over the old one.
+	 * The saved entries themselves are not changed.
+	 */
+	private void compact(List <Change> changes)
+	throws IOException {
+		Map <String,Map<String,byte[]>> live = new HashMap <String,Map<String,byte[]>> ();
+		Iterator <Map.Entry<String,Map<String,byte[]>>> nsIt = saved.entrySet().iterator();
+		while (nsIt.hasNext()) {
+			Map.Entry<String,Map<String,byte[]>> nsEntry = nsIt.next();
+			live.put(nsEntry.getKey(), new HashMap <String,byte[]> (nsEntry.getValue()));
+		}
+		for (int i = 0; i < changes.size(); i++) {
+			Change c = changes.get(i);
+			Map <String,byte[]> m = live.get(c.namespace);
+			if (m == null) {
+				m = new HashMap <String,byte[]> ();
+				live.put(c.namespace, m);
+			}
+			if (c.value != null)
+				m.put(c.key, c.value);
+			else
+				m.remove(c.key);
+		}
+
+		ByteArrayOutputStream records = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, liveBytes));
+		DataOutputStream out = new DataOutputStream(records);
+		nsIt = live.entrySet().iterator();
+		while (nsIt.hasNext()) {
+			Map.Entry<String,Map<String,byte[]>> nsEntry = nsIt.next();
+			Iterator <Map.Entry<String,byte[]>> it = nsEntry.getValue().entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String,byte[]> e = it.next();
+				writeRecord(out, OP_PUT, nsEntry.getKey(), e.getKey(), e.getValue());
+			}
+		}
+		out.flush();
+
+		File tmp = new File(file.getPath()+".tmp");
+		RandomAccessFile tmpRaf = new RandomAccessFile(tmp, "rw");
+		try {
+			tmpRaf.setLength(0);
+			FileChannel tmpChannel = tmpRaf.getChannel();
+			MappedByteBuffer tmpMap = tmpChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, 2L * (HEADER_SIZE + records.size())));
+			tmpMap.position(HEADER_SIZE);
+			tmpMap.put(records.toByteArray());
+			writeHeader(tmpMap, HEADER_SIZE + records.size());
+			tmpMap.force();
+		}
+		finally {
+			tmpRaf.close();
+		}
+		closeFile();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		open(file.length());
+		end = map.getLong(8);
+		compactions++;
+	}
+
+	private static void writeHeader(MappedByteBuffer m, long endOffset) {
+		m.putInt(0, MAGIC);
+		m.putInt(4, VERSION);
+		m.putLong(8, endOffset);
+	}
+
+
+
+	/// RECORDS
+
+	private static void writeRecord(DataOutputStream out, byte op, String namespace, String key, byte[] value)
+	throws IOException {
+		byte[] ns = namespace.getBytes(UTF8);
+		byte[] k = key.getBytes(UTF8);
+		int len = 1 + 4 + ns.length + 4 + k.length + ((value == null) ? 0 : value.length);
+		out.writeInt(len);
+		out.writeByte(op);
+		out.writeInt(ns.length);
+		out.write(ns);
+		out.writeInt(k.length);
+		out.write(k);
+		if (value != null)
+			out.write(value);
+	}
+
+	private static String readString(DataInputStream in)
+	throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, UTF8);
+	}
+
+	/**
+	 * @return the bytes writeRecord() puts on disk for this entry, which counts names by their UTF-8 encoding, not their length in chars
+	 */
+	private static int recordSize(String namespace, String key, byte[] value) {
+		return 4 + 1 + 4 + namespace.getBytes(UTF8).length + 4 + key.getBytes(UTF8).length + value.length;
+	}
+
+	private void remember(String namespace, String key, byte[] value) {
+		Map <String,byte[]> m = saved.get(namespace);
+		if (m == null) {
+			m = new HashMap <String,byte[]> ();
+			saved.put(namespace, m);
+		}
+		byte[] old = m.put(key, value);
+		if (old != null)
+			liveBytes -= recordSize(namespace, key, old);
+		liveBytes += recordSize(namespace, key, value);
+	}
+
+	private void forget(String namespace, String key) {
+		Map <String,byte[]> m = saved.get(namespace);
+		if (m == null)
+			return;
+		byte[] old = m.remove(key);
+		if (old != null)
+			liveBytes -= recordSize(namespace, key, old);
+	}
+
+	private static Map <String,Object> namespaceMap(Map <String,Map<String,Object>> result, String namespace) {
+		Map <String,Object> m = result.get(namespace);
+		if (m == null) {
+			m = new LinkedHashMap <String,Object> ();
+			result.put(namespace, m);
+		}
+		return m;
+	}
+
+
+
+	/// VALUES
+
+	/**
+	 * @return the value's type tag and bytes, or null if it can't be stored
+	 */
+	static byte[] encode(Object o)
+	throws IOException {
+		if (o == null)
+			return null;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		if (o instanceof String) {
+			out.writeByte(T_STRING);
+			out.write(((String) o).getBytes(UTF8));
+		}
+		else if (o instanceof Integer) {
+			out.writeByte(T_INT);
+			out.writeInt(((Integer) o).intValue());
+		}
+		else if (o instanceof Long) {
+			out.writeByte(T_LONG);
+			out.writeLong(((Long) o).longValue());
+		}
+		else if (o instanceof Boolean) {
+			out.writeByte(T_BOOLEAN);
+			out.writeBoolean(((Boolean) o).booleanValue());
+		}
+		else if (o instanceof Double) {
+			out.writeByte(T_DOUBLE);
+			out.writeDouble(((Double) o).doubleValue());
+		}
+		else if (o instanceof Float) {
+			out.writeByte(T_FLOAT);
+			out.writeFloat(((Float) o).floatValue());
+		}
+		else if (o instanceof Short) {
+			out.writeByte(T_SHORT);
+			out.writeShort(((Short) o).shortValue());
+		}
+		else if (o instanceof Byte) {
+			out.writeByte(T_BYTE);
+			out.writeByte(((Byte) o).byteValue());
+		}
+		else if (o instanceof Serializable) {
+			out.writeByte(T_SERIALIZED);
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			try {
+				oos.writeObject(o);
+			}
+			catch (NotSerializableException nse) {
+				// something inside it isn't Serializable
+				return null;
+			}
+			oos.flush();
+		}
+		else {
+			return null;
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return the value, or null if its type tag is unknown
+	 * @throws ClassNotFoundException if a serialized value's class no longer exists
+	 * @throws ObjectStreamException (an IOException) if a serialized value can't be read back, for example
+	 * an InvalidClassException when its class's serialVersionUID has changed
+	 */
+	static Object decode(byte[] value)
+	throws IOException, ClassNotFoundException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+		byte type = in.readByte();
+		switch (type) {
+		case T_STRING:
+			return new String(value, 1, value.length - 1, UTF8);
+		case T_INT:
+			return Integer.valueOf(in.readInt());
+		case T_LONG:
+			return Long.valueOf(in.readLong());
+		case T_BOOLEAN:
+			return Boolean.valueOf(in.readBoolean());
+		case T_DOUBLE:
+			return Double.valueOf(in.readDouble());
+		case T_FLOAT:
+			return Float.valueOf(in.readFloat());
+		case T_SHORT:
+			return Short.valueOf(in.readShort());
+		case T_BYTE:
+			return Byte.valueOf(in.readByte());
+		case T_SERIALIZED:
+			return new ObjectInputStream(in).readObject();
+		default:
+			return null;
+		}
+	}
+
+}
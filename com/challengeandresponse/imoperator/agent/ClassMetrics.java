@@ -0,0 +1,193 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.Packet;
+
+import com.challengeandresponse.appstack.AppStack;
+import com.challengeandresponse.appstack.AppStackPathI;
+
+/**
+ * Traffic and timing counters for each IQ class an agent recognizes, so it's possible
+ * to see which message type is costing an agent the most.
+ *
+ * <p>For each class the agent counts packets received, processed, failed (the handler threw)
+ * and dropped (shed by the inbound queue), and keeps a LatencyHistogram of handler time.
+ * Classes are registered by BaseAgent.addPCRecognizedClass(), and any other class that turns
+ * up is added the first time it's seen.</p>
+ *
+ * <p>ClassMetrics is also a PacketListener: the BaseAgent registers it with the same filter as its
+ * PacketCollector, which is how "received" gets counted whether or not the agent uses the provided
+ * processIQ(). "processed", "failed" and the latency histogram are only kept for agents that use
+ * the provided processIQ() and processIQPacket().</p>
+ *
+ * @author jim
+ */
+public class ClassMetrics
+implements PacketListener {
+
+	public static final String RECEIVED = "received";
+	public static final String PROCESSED = "processed";
+	public static final String FAILED = "failed";
+	public static final String DROPPED = "dropped";
+	public static final String PROCESSING = "processing";
+
+	private final ConcurrentMap <Class<?>,Stats> byClass;
+
+
+	public ClassMetrics() {
+		byClass = new ConcurrentHashMap <Class<?>,Stats> ();
+	}
+
+
+	/**
+	 * The counters for one class
+	 */
+	public static class Stats {
+		private final AtomicLong received = new AtomicLong(0);
+		private final AtomicLong processed = new AtomicLong(0);
+		private final AtomicLong failed = new AtomicLong(0);
+		private final AtomicLong dropped = new AtomicLong(0);
+		private final LatencyHistogram processing = new LatencyHistogram();
+
+		public long getReceived() {
+			return received.get();
+		}
+		public long getProcessed() {
+			return processed.get();
+		}
+		public long getFailed() {
+			return failed.get();
+		}
+		public long getDropped() {
+			return dropped.get();
+		}
+		public LatencyHistogram getProcessing() {
+			return processing;
+		}
+
+		/**
+		 * @return the counts, and the processing histogram's summary, in a map that prints well over chat
+		 */
+		public Map <String,Object> getSummary() {
+			Map <String,Object> m = new LinkedHashMap <String,Object> ();
+			m.put(RECEIVED,getReceived());
+			m.put(PROCESSED,getProcessed());
+			m.put(FAILED,getFailed());
+			m.put(DROPPED,getDropped());
+			m.put(PROCESSING,processing.getSummary());
+			return m;
+		}
+	}
+
+
+	/**
+	 * Make sure a class has counters, even before any of its packets arrive,
+	 * so it shows up in the listings as a zero.
+	 * @param c the class
+	 */
+	public void register(Class<?> c) {
+		if (c != null)
+			statsFor(c);
+	}
+
+	/**
+	 * @param c a class
+	 * @return the counters for that class, created if necessary
+	 */
+	public Stats statsFor(Class<?> c) {
+		Stats s = byClass.get(c);
+		if (s == null) {
+			Stats fresh = new Stats();
+			s = byClass.putIfAbsent(c, fresh);
+			if (s == null)
+				s = fresh;
+		}
+		return s;
+	}
+
+
+	/**
+	 * Counts each packet that passes the agent's IQ filter as received
+	 */
+	public void processPacket(Packet packet) {
+		statsFor(packet.getClass()).received.incrementAndGet();
+	}
+
+	public void recordProcessed(Packet packet, long nanos) {
+		Stats s = statsFor(packet.getClass());
+		s.processed.incrementAndGet();
+		s.processing.record(nanos);
+	}
+
+	public void recordFailed(Packet packet, long nanos) {
+		Stats s = statsFor(packet.getClass());
+		s.failed.incrementAndGet();
+		s.processing.record(nanos);
+	}
+
+	public void recordDropped(Packet packet) {
+		statsFor(packet.getClass()).dropped.incrementAndGet();
+	}
+
+
+	/**
+	 * A point-in-time copy of every class's counters, keyed by full class name and sorted by name.
+	 * The maps returned are copies and can be kept or changed freely.
+	 * @return class name -> summary map, see Stats.getSummary()
+	 */
+	public Map <String,Map<String,Object>> snapshot() {
+		Map <String,Map<String,Object>> m = new TreeMap <String,Map<String,Object>> ();
+		Iterator <Map.Entry<Class<?>,Stats>> it = byClass.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Class<?>,Stats> e = it.next();
+			m.put(e.getKey().getName(), e.getValue().getSummary());
+		}
+		return m;
+	}
+
+
+	/**
+	 * AppStack-style lookup for getStatus/classes/...<br />
+	 * classes/* returns the whole snapshot, classes/? lists the class names, and
+	 * classes/MMObject (or the full class name) returns one class's summary. A further element
+	 * selects one value from the summary, e.g. classes/MMObject/received
+	 * @param aspi the path, positioned after "classes"
+	 * @return the matching value, or null if nothing matches
+	 */
+	public Object get(AppStackPathI aspi) {
+		if (! aspi.hasNext())
+			return null;
+		String s = aspi.popNext();
+		if (AppStack.getGetAllSymbol().equals(s))
+			return snapshot();
+		else if (AppStack.getGetParamsSymbol().equals(s))
+			return snapshot().keySet();
+		Stats stats = null;
+		Iterator <Map.Entry<Class<?>,Stats>> it = byClass.entrySet().iterator();
+		while (it.hasNext() && (stats == null)) {
+			Map.Entry<Class<?>,Stats> e = it.next();
+			if (s.equals(e.getKey().getName()) || s.equals(e.getKey().getSimpleName()))
+				stats = e.getValue();
+		}
+		if (stats == null)
+			return null;
+		Map <String,Object> summary = stats.getSummary();
+		if (! aspi.hasNext())
+			return summary;
+		s = aspi.popNext();
+		if (AppStack.getGetAllSymbol().equals(s))
+			return summary;
+		else if (AppStack.getGetParamsSymbol().equals(s))
+			return summary.keySet();
+		return summary.get(s);
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.challengeandresponse.imoperator.agent;
+
+/**
+ * Thrown by a PayloadCodecI that can't encode or decode a payload
+ *
+ * @author jim
+ */
+public class CodecException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public CodecException(String message) {
+		super(message);
+	}
+
+	public CodecException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,180 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.Presence;
+
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * Decides, per recipient, whether an agent's MMObjects go out encoded by its PayloadCodecI or as XStream XML.
+ *
+ * <p>Agents that can decode the codec say so in their available presence, with an extension naming it:<br />
+ * &lt;codecs xmlns='com.challengeandresponse.imoperator.agent.CodecNegotiator'&gt;&lt;codec&gt;bin1&lt;/codec&gt;&lt;/codecs&gt;<br />
+ * The negotiator is a PacketListener for presence, and remembers which full JIDs have advertised the codec,
+ * until they go unavailable or send a presence without it. A peer known some other way can be declared with declare().</p>
+ *
+ * <p>encode() then turns an MMObject for a peer that has advertised the codec into a BinaryIQ, and leaves
+ * anything else alone: IQs that aren't MMObjects, MMObjects for peers that haven't advertised the codec (including
+ * any addressed to a bare JID, which could reach a resource that can't decode it), and payloads the codec can't
+ * encode, which go as XML and are counted as encode failures.</p>
+ *
+ * @author jim
+ */
+public class CodecNegotiator
+implements PacketListener {
+
+	public static final String ELEMENT = "codecs";
+	public static final String NAMESPACE = CodecNegotiator.class.getName();
+	public static final String CODEC = "codec";
+
+	private final PayloadCodecI codec;
+	private final ConcurrentMap <String,Boolean> peers;	// lowercase full JID of each peer that can decode the codec
+
+	private final AtomicLong binarySent;
+	private final AtomicLong binaryBytes;
+	private final AtomicLong xmlSent;
+	private final AtomicLong encodeFailures;
+
+
+	/**
+	 * @param codec the codec this agent offers, and encodes with
+	 */
+	public CodecNegotiator(PayloadCodecI codec) {
+		this.codec = codec;
+		this.peers = new ConcurrentHashMap <String,Boolean> ();
+		this.binarySent = new AtomicLong(0);
+		this.binaryBytes = new AtomicLong(0);
+		this.xmlSent = new AtomicLong(0);
+		this.encodeFailures = new AtomicLong(0);
+	}
+
+
+	public PayloadCodecI getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return a presence extension advertising the codec, for the agent's available presence
+	 */
+	public PacketExtension advertisement() {
+		DefaultPacketExtension ext = new DefaultPacketExtension(ELEMENT, NAMESPACE);
+		ext.setValue(CODEC, codec.getName());
+		return ext;
+	}
+
+
+	/**
+	 * Hears presence, and notes whether each sender can decode the codec
+	 */
+	public void processPacket(Packet packet) {
+		if ((! (packet instanceof Presence)) || (packet.getFrom() == null))
+			return;
+		Presence p = (Presence) packet;
+		String jid = packet.getFrom().toLowerCase();
+		if (p.getType() == Presence.Type.unavailable) {
+			peers.remove(jid);
+		}
+		else if (p.getType() == Presence.Type.available) {
+			PacketExtension ext = p.getExtension(ELEMENT, NAMESPACE);
+			if ((ext instanceof DefaultPacketExtension) && codec.getName().equals(((DefaultPacketExtension) ext).getValue(CODEC)))
+				peers.put(jid, Boolean.TRUE);
+			else
+				peers.remove(jid);
+		}
+	}
+
+	/**
+	 * Say whether a peer can decode the codec, without waiting for its presence
+	 * @param jid the peer's full JID
+	 * @param supported true if it can
+	 */
+	public void declare(String jid, boolean supported) {
+		if (supported)
+			peers.put(jid.toLowerCase(), Boolean.TRUE);
+		else
+			peers.remove(jid.toLowerCase());
+	}
+
+	/**
+	 * @return true if the peer has advertised the codec
+	 */
+	public boolean supports(String jid) {
+		return (jid != null) && peers.containsKey(jid.toLowerCase());
+	}
+
+
+	/**
+	 * @param to the recipient
+	 * @param iq an IQ about to be sent
+	 * @return a BinaryIQ carrying the IQ, if it is an MMObject and the recipient can decode it, otherwise the IQ itself
+	 */
+	public IQ encode(String to, IQ iq) {
+		if ((! (iq instanceof MMObject)) || (to == null))
+			return iq;
+		if (! supports(to)) {
+			xmlSent.incrementAndGet();
+			return iq;
+		}
+		try {
+			BinaryIQ biq = BinaryIQ.encode((MMObject) iq, codec);
+			binarySent.incrementAndGet();
+			binaryBytes.addAndGet(biq.getData().length);
+			return biq;
+		}
+		catch (CodecException ce) {
+			encodeFailures.incrementAndGet();
+			xmlSent.incrementAndGet();
+			return iq;
+		}
+	}
+
+
+	/** @return the number of peers known to decode the codec */
+	public int getPeerCount() {
+		return peers.size();
+	}
+
+	/** @return the number of MMObjects sent encoded by the codec */
+	public long getBinarySentCount() {
+		return binarySent.get();
+	}
+
+	/** @return the total size of the payloads sent encoded, before base64 */
+	public long getBinaryBytes() {
+		return binaryBytes.get();
+	}
+
+	/** @return the number of MMObjects sent as XML */
+	public long getXmlSentCount() {
+		return xmlSent.get();
+	}
+
+	/** @return the number of MMObjects sent as XML to a peer that could decode the codec, because the payload couldn't be encoded */
+	public long getEncodeFailureCount() {
+		return encodeFailures.get();
+	}
+
+
+	/**
+	 * Write the negotiator's counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.CODEC_NAME,codec.getName());
+		status.setProperty(Vocabulary.Status.CODEC_PEERS,getPeerCount());
+		status.setProperty(Vocabulary.Status.CODEC_BINARY_SENT,getBinarySentCount());
+		status.setProperty(Vocabulary.Status.CODEC_BINARY_BYTES,getBinaryBytes());
+		status.setProperty(Vocabulary.Status.CODEC_XML_SENT,getXmlSentCount());
+		status.setProperty(Vocabulary.Status.CODEC_ENCODE_FAILURES,getEncodeFailureCount());
+	}
+
+}
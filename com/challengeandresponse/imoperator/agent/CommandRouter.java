@@ -0,0 +1,457 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import com.challengeandresponse.appstack.AppStack;
+import com.challengeandresponse.appstack.AppStackDelimitedPath;
+import com.challengeandresponse.appstack.AppStackException;
+import com.challengeandresponse.appstack.AppStackPathI;
+
+/**
+ * A precompiled dispatcher for chat commands, sitting in front of an AppStack.
+ *
+ * <p>Commands are registered once, at startup, with the same name and method name given to
+ * AppStack.addMethod(). Each command name goes into a character trie, and its method is looked up,
+ * checked and bound once, to a generated function or a MethodHandle, and kept in the command's Invoker
+ * (see bind()). A method with the wrong signature is reported by register(), at startup, rather than
+ * when someone first sends the command. A chat message is then routed by walking the trie over the
+ * message's first path element in place - no lowercasing, trimming, substring or path object is made
+ * to find the command - and the rest of the message is handed to the method as an AppStackPathI
+ * that reads straight from the message string.</p>
+ *
+ * <p>Anything the router doesn't recognize is passed to AppStack.get() as before, which keeps the
+ * AppStack's own behaviour: "?" for the catalog, "*" for get-all, and its errors for unknown commands.</p>
+ *
+ * <p>Register all commands before messages start arriving (from the constructor or init()).
+ * Lookups are not synchronized against registration.</p>
+ *
+ * @author jim
+ */
+public class CommandRouter {
+
+	/** the separator between path elements, as in AppStackDelimitedPath */
+	public static final char DELIMITER = '/';
+
+	/**
+	 * Calls a registered command's method
+	 */
+	public static interface Invoker {
+		/**
+		 * @param aspi the rest of the path, after the command name
+		 * @param o the optional object argument, for methods that take one
+		 * @return whatever the method returns
+		 */
+		public Object invoke(AppStackPathI aspi, Object o)
+		throws AppStackException;
+	}
+
+
+	/**
+	 * One registered command
+	 */
+	public static class Command {
+		private final String name;
+		private final String methodName;
+		private final Invoker invoker;
+
+		Command(String name, String methodName, Invoker invoker) {
+			this.name = name;
+			this.methodName = methodName;
+			this.invoker = invoker;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getMethodName() {
+			return methodName;
+		}
+
+		/**
+		 * Run the command with an empty path
+		 */
+		public Object invoke(Object o)
+		throws AppStackException {
+			return invoker.invoke(new MessagePath("",0,0), o);
+		}
+
+		public Object invoke(AppStackPathI aspi, Object o)
+		throws AppStackException {
+			return invoker.invoke(aspi, o);
+		}
+	}
+
+
+	/**
+	 * A trie node. Children are kept in small parallel arrays, since command names are few and short.
+	 */
+	private static class Node {
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+		Command command;
+
+		Node child(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c)
+					return children[i];
+			}
+			return null;
+		}
+
+		Node addChild(char c) {
+			Node n = child(c);
+			if (n != null)
+				return n;
+			n = new Node();
+			char[] k = new char[keys.length+1];
+			Node[] ch = new Node[children.length+1];
+			System.arraycopy(keys, 0, k, 0, keys.length);
+			System.arraycopy(children, 0, ch, 0, children.length);
+			k[keys.length] = c;
+			ch[children.length] = n;
+			children = ch;
+			keys = k;
+			return n;
+		}
+	}
+
+
+	private final AppStack target;
+	private final boolean ignoreCase;
+	private final Node root;
+	private int size;
+
+
+	/**
+	 * @param target the AppStack whose methods are called, and which handles anything the router doesn't
+	 * @param ignoreCase true to match command names regardless of case
+	 */
+	public CommandRouter(AppStack target, boolean ignoreCase) {
+		this.target = target;
+		this.ignoreCase = ignoreCase;
+		this.root = new Node();
+		this.size = 0;
+	}
+
+
+	/**
+	 * Register a command. The AppStack should also have the method registered under the same name
+	 * (with addMethod()) so that "?" lists it.
+	 * @param name the command name, as typed in a chat message
+	 * @param methodName the name of the method on the target to call
+	 * @throws AppStackException if the name can't be typed as a path element, or the target has no
+	 * public method of that name taking (AppStackPathI, Object) or (AppStackPathI)
+	 */
+	public synchronized void register(String name, String methodName)
+	throws AppStackException {
+		if ((name.length() == 0) || (name.indexOf(DELIMITER) >= 0))
+			throw new AppStackException("Command name must be non-empty and not contain '"+DELIMITER+"': "+name);
+		Invoker invoker = bind(target, methodName);
+		Node n = root;
+		for (int i = 0; i < name.length(); i++)
+			n = n.addChild(fold(name.charAt(i)));
+		if (n.command == null)
+			size++;
+		n.command = new Command(name, methodName, invoker);
+	}
+
+
+	/**
+	 * @return the number of commands registered with the router
+	 */
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * Find the command that a whole message names, ignoring surrounding whitespace.
+	 * A message with anything after the command name, such as a path, doesn't match.
+	 * @param message the message
+	 * @return the command, or null if the message isn't exactly a registered command name
+	 */
+	public Command lookup(String message) {
+		if (message == null)
+			return null;
+		int start = skipSpace(message, 0);
+		int end = trimEnd(message, start);
+		Node n = root;
+		for (int i = start; (i < end) && (n != null); i++)
+			n = n.child(fold(message.charAt(i)));
+		return (n == null) ? null : n.command;
+	}
+
+
+	/**
+	 * Run the path in a message: call the named command's method with the rest of the path,
+	 * or if the first element isn't a registered command (including "?" and "*"), pass the whole
+	 * path to AppStack.get().
+	 * @param message the message holding the path
+	 * @param offset where in the message the path starts
+	 * @param o the optional object argument, for methods that take one
+	 * @return the method's result
+	 * @throws AppStackException if the AppStack can't resolve the path, or the method fails
+	 */
+	public Object dispatch(String message, int offset, Object o)
+	throws AppStackException {
+		int start = skipSpace(message, offset);
+		int end = trimEnd(message, start);
+		// follow the trie over the first path element
+		Node n = root;
+		int i = start;
+		while ((i < end) && (message.charAt(i) != DELIMITER) && (n != null)) {
+			n = n.child(fold(message.charAt(i)));
+			i++;
+		}
+		if ((n != null) && (n.command != null))
+			return n.command.invoke(new MessagePath(message, i, end), o);
+		return target.get(new AppStackDelimitedPath(message.substring(start, end)), o);
+	}
+
+	/**
+	 * dispatch() for a message that is entirely a path
+	 */
+	public Object dispatch(String message, Object o)
+	throws AppStackException {
+		return dispatch(message, 0, o);
+	}
+
+
+
+	private char fold(char c) {
+		return ignoreCase ? Character.toLowerCase(c) : c;
+	}
+
+	private static int skipSpace(String s, int i) {
+		int len = s.length();
+		while ((i < len) && (s.charAt(i) <= ' '))
+			i++;
+		return i;
+	}
+
+	private static int trimEnd(String s, int start) {
+		int end = s.length();
+		while ((end > start) && (s.charAt(end-1) <= ' '))
+			end--;
+		return end;
+	}
+
+
+
+	/**
+	 * The two shapes of AppStack method, as functional interfaces for LambdaMetafactory
+	 */
+	static interface PathFunction {
+		public Object apply(AppStackPathI aspi)
+		throws AppStackException;
+	}
+
+	static interface PathObjectFunction {
+		public Object apply(AppStackPathI aspi, Object o)
+		throws AppStackException;
+	}
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+
+	/**
+	 * Find the method once, check its signature, and make an Invoker for it.
+	 *
+	 * <p>The method must be public and take (AppStackPathI, Object) or (AppStackPathI); if it has both,
+	 * the two-argument one is used. Where the method's class and return type allow, the Invoker calls
+	 * a LambdaMetafactory-generated implementation of PathFunction or PathObjectFunction, which the JIT
+	 * treats like a direct call. Otherwise it calls a MethodHandle adapted to (AppStackPathI, Object)Object.</p>
+	 *
+	 * @param target the object the method is called on
+	 * @param methodName the method's name
+	 * @return the invoker
+	 * @throws AppStackException if the target has no method of that name with a usable signature
+	 */
+	static Invoker bind(Object target, String methodName)
+	throws AppStackException {
+		Class<?> c = target.getClass();
+		boolean withObject = true;
+		Method m = findMethod(c, methodName, AppStackPathI.class, Object.class);
+		if (m == null) {
+			withObject = false;
+			m = findMethod(c, methodName, AppStackPathI.class);
+		}
+		if (m == null)
+			throw new AppStackException(c.getName()+" has no public method "+methodName+"(AppStackPathI, Object) or "+methodName+"(AppStackPathI)");
+
+		MethodHandle mh;
+		boolean accessible = true;
+		try {
+			mh = LOOKUP.unreflect(m);
+		}
+		catch (IllegalAccessException iae) {
+			// a public method on a class this package can't see, such as a non-public agent class
+			accessible = false;
+			try {
+				m.setAccessible(true);
+				mh = LOOKUP.unreflect(m);
+			}
+			catch (Exception e) {
+				throw new AppStackException("Cannot bind "+c.getName()+"."+methodName+": "+e.getMessage());
+			}
+		}
+
+		Invoker invoker = null;
+		if (accessible && (! m.getReturnType().isPrimitive()))
+			invoker = bindFunction(target, methodName, m, mh, withObject);
+		if (invoker == null)
+			invoker = bindHandle(target, methodName, mh, withObject);
+		return invoker;
+	}
+
+
+	private static Method findMethod(Class<?> c, String methodName, Class<?>... parameterTypes) {
+		try {
+			return c.getMethod(methodName, parameterTypes);
+		}
+		catch (NoSuchMethodException nsme) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * @return an Invoker calling a LambdaMetafactory-generated function for the method, or null if one can't be made
+	 */
+	private static Invoker bindFunction(Object target, final String methodName, Method m, MethodHandle mh, boolean withObject) {
+		Class<?> receiver = m.getDeclaringClass();
+		if (! Modifier.isPublic(receiver.getModifiers()))
+			return null;
+		try {
+			if (withObject) {
+				CallSite cs = LambdaMetafactory.metafactory(LOOKUP, "apply",
+						MethodType.methodType(PathObjectFunction.class, receiver),
+						MethodType.methodType(Object.class, AppStackPathI.class, Object.class),
+						mh,
+						MethodType.methodType(m.getReturnType(), AppStackPathI.class, Object.class));
+				final PathObjectFunction f = (PathObjectFunction) cs.getTarget().invoke(target);
+				return new Invoker() {
+					public Object invoke(AppStackPathI aspi, Object o)
+					throws AppStackException {
+						try {
+							return f.apply(aspi, o);
+						}
+						catch (AppStackException ase) {
+							throw ase;
+						}
+						catch (Exception e) {
+							throw failed(methodName, e);
+						}
+					}
+				};
+			}
+			else {
+				CallSite cs = LambdaMetafactory.metafactory(LOOKUP, "apply",
+						MethodType.methodType(PathFunction.class, receiver),
+						MethodType.methodType(Object.class, AppStackPathI.class),
+						mh,
+						MethodType.methodType(m.getReturnType(), AppStackPathI.class));
+				final PathFunction f = (PathFunction) cs.getTarget().invoke(target);
+				return new Invoker() {
+					public Object invoke(AppStackPathI aspi, Object o)
+					throws AppStackException {
+						try {
+							return f.apply(aspi);
+						}
+						catch (AppStackException ase) {
+							throw ase;
+						}
+						catch (Exception e) {
+							throw failed(methodName, e);
+						}
+					}
+				};
+			}
+		}
+		catch (Throwable t) {
+			// LambdaConversionException, or a class loader that won't let us define the function. The MethodHandle will do.
+			return null;
+		}
+	}
+
+
+	/**
+	 * @return an Invoker calling the method through a MethodHandle bound to the target
+	 */
+	private static Invoker bindHandle(Object target, final String methodName, MethodHandle mh, boolean withObject) {
+		MethodHandle h = mh.bindTo(target);
+		if (! withObject)
+			h = MethodHandles.dropArguments(h, 1, Object.class);
+		final MethodHandle exact = h.asType(MethodType.methodType(Object.class, AppStackPathI.class, Object.class));
+		return new Invoker() {
+			public Object invoke(AppStackPathI aspi, Object o)
+			throws AppStackException {
+				try {
+					return (Object) exact.invokeExact(aspi, o);
+				}
+				catch (AppStackException ase) {
+					throw ase;
+				}
+				catch (Error e) {
+					throw e;
+				}
+				catch (Throwable t) {
+					throw failed(methodName, t);
+				}
+			}
+		};
+	}
+
+
+	private static AppStackException failed(String methodName, Throwable t) {
+		return new AppStackException(methodName+": "+t);
+	}
+
+
+
+	/**
+	 * An AppStackPathI over part of a message string. Elements are separated by DELIMITER,
+	 * and each one is only copied out of the message when popNext() asks for it.
+	 */
+	static class MessagePath
+	implements AppStackPathI {
+		private final String message;
+		private final int end;
+		private int pos;
+
+		MessagePath(String message, int start, int end) {
+			this.message = message;
+			this.end = end;
+			this.pos = skipDelimiters(start);
+		}
+
+		public boolean hasNext() {
+			return (pos < end);
+		}
+
+		public String popNext() {
+			if (pos >= end)
+				return null;
+			int i = message.indexOf(DELIMITER, pos);
+			if ((i < 0) || (i > end))
+				i = end;
+			String s = message.substring(pos, i).trim();
+			pos = skipDelimiters(i);
+			return s;
+		}
+
+		private int skipDelimiters(int i) {
+			while ((i < end) && (message.charAt(i) == DELIMITER))
+				i++;
+			return i;
+		}
+	}
+
+}
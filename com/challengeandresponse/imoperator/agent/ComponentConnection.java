@@ -0,0 +1,453 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * One connection to an XMPP server as an external component (XEP-0114), carrying the traffic
+ * of many agents: every address in the component's domain, such as agent1@agents.example.com and
+ * agent2@agents.example.com, arrives over this one socket.
+ *
+ * <p>Compared with each agent logging in as a client, there is one socket and one handshake for
+ * the whole domain, and no TLS, SASL, resource binding or roster fetch per agent. Components
+ * normally connect to the server over a trusted network or the loopback interface; the connection
+ * is authenticated by a shared secret.</p>
+ *
+ * <p>Agents are attached with BaseAgent.setComponent() before they are run. As each one starts it
+ * registers its JID here, and inbound stanzas are routed to it by the bare JID in their "to" attribute:
+ * IQs go to the agent's inbound queue (so the agent must use processIQPacket(), not its own processIQ()),
+ * and chat messages are queued for its processPacket(), which runs on the agent's own message thread, so one
+ * agent's slow command doesn't hold up the reader. get and set IQs for addresses nobody has registered
+ * are answered with a service-unavailable error.</p>
+ *
+ * <p>LoopbackServer.addComponent() provides a local endpoint to test against.</p>
+ *
+ * @author jim
+ */
+public class ComponentConnection {
+
+	public static final String NS_COMPONENT = "jabber:component:accept";
+	public static final int DEFAULT_PORT = 5275;
+
+	private static final String SERVICE_UNAVAILABLE =
+		"<error type='cancel' code='503'><service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error>";
+
+	private final String host;
+	private final int port;
+	private final String domain;
+	private final String secret;
+	private final EventLoggerI el;
+
+	private final ConcurrentMap <String,BaseAgent> routes;	// bare JID -> agent
+
+	private Socket socket;
+	private Writer writer;
+	private XmlPullParser parser;
+	private Thread readerThread;
+	private volatile boolean connected;
+
+	private final AtomicLong received;
+	private final AtomicLong unroutable;
+	private final AtomicLong sent;
+
+
+	/**
+	 * @param host the server's host
+	 * @param port the server's component port
+	 * @param domain the component's domain, e.g. agents.example.com. The agents' JIDs are name@domain/resource.
+	 * @param secret the secret shared with the server
+	 * @param el an event logger
+	 */
+	public ComponentConnection(String host, int port, String domain, String secret, EventLoggerI el) {
+		this.host = host;
+		this.port = port;
+		this.domain = domain.toLowerCase();
+		this.secret = secret;
+		this.el = el;
+		this.routes = new ConcurrentHashMap <String,BaseAgent> ();
+		this.connected = false;
+		this.received = new AtomicLong(0);
+		this.unroutable = new AtomicLong(0);
+		this.sent = new AtomicLong(0);
+	}
+
+
+	/**
+	 * Open the socket, open the stream, and authenticate with the handshake. Returns once
+	 * the server has accepted the component, and starts a thread that reads and routes stanzas.
+	 * @throws IOException if the server can't be reached or refuses the handshake
+	 */
+	public synchronized void connect()
+	throws IOException {
+		if (connected)
+			return;
+		socket = new Socket();
+		socket.connect(new InetSocketAddress(host, port), 10000);
+		socket.setTcpNoDelay(true);
+		writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+		try {
+			write("<?xml version='1.0'?><stream:stream xmlns='"+NS_COMPONENT+"' xmlns:stream='http://etherx.jabber.org/streams' to='"+StanzaXml.escape(domain)+"'>");
+			parser = new MXParser();
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+			parser.setInput(new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")));
+			int event = parser.next();
+			while (! ((event == XmlPullParser.START_TAG) && "stream:stream".equals(parser.getName()))) {
+				if (event == XmlPullParser.END_DOCUMENT)
+					throw new IOException("Server closed the stream before it started");
+				event = parser.next();
+			}
+			String streamId = StanzaXml.attribute(parser, "id");
+			if (streamId == null)
+				throw new IOException("Server's stream header has no id");
+			write("<handshake>"+handshake(streamId, secret)+"</handshake>");
+
+			event = parser.next();
+			while (event != XmlPullParser.START_TAG) {
+				if (event == XmlPullParser.END_DOCUMENT)
+					throw new IOException("Server closed the stream during the handshake");
+				event = parser.next();
+			}
+			if (! "handshake".equals(parser.getName()))
+				throw new IOException("Handshake refused: <"+parser.getName()+">");
+			StanzaXml.skipElement(parser);
+		}
+		catch (XmlPullParserException xppe) {
+			closeSocket();
+			throw new IOException("Bad stream from server: "+xppe.getMessage());
+		}
+		catch (IOException ioe) {
+			closeSocket();
+			throw ioe;
+		}
+		connected = true;
+		final XmlPullParser streamParser = parser;
+		final Socket streamSocket = socket;
+		readerThread = new Thread(new Runnable() {
+			public void run() {
+				readLoop(streamParser, streamSocket);
+			}
+		}, "component-"+domain);
+		readerThread.setDaemon(true);
+		readerThread.start();
+		el.addEvent("Component "+domain+" connected to "+host+":"+port);
+	}
+
+
+	/**
+	 * The handshake value: the lowercase hex SHA-1 of the stream id followed by the secret
+	 */
+	public static String handshake(String streamId, String secret) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest((streamId + secret).getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (int i = 0; i < digest.length; i++) {
+				int b = digest[i] & 0xff;
+				if (b < 0x10)
+					sb.append('0');
+				sb.append(Integer.toHexString(b));
+			}
+			return sb.toString();
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("SHA-1 is not available");
+		}
+		catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not available");
+		}
+	}
+
+
+	/**
+	 * Route stanzas for a JID to an agent. Called by BaseAgent.run() for agents attached with setComponent().
+	 * @param jid the agent's JID, in this component's domain
+	 * @param agent the agent
+	 */
+	public void register(String jid, BaseAgent agent) {
+		String bare = bareJid(jid);
+		if (! bare.endsWith("@"+domain))
+			throw new IllegalArgumentException(jid+" is not in the component's domain "+domain);
+		routes.put(bare, agent);
+	}
+
+	/**
+	 * Stop routing stanzas for a JID
+	 */
+	public void unregister(String jid) {
+		routes.remove(bareJid(jid));
+	}
+
+
+	/**
+	 * Send a stanza. It must have its from-address set to one of the component's JIDs.
+	 * @throws IllegalStateException if it wasn't sent, see send()
+	 */
+	public void sendPacket(Packet p) {
+		send(p.toXML());
+	}
+
+	/**
+	 * Send some XML. Agents share the socket, so writes are serialized.
+	 * @throws IllegalStateException if the connection is closed, or the write failed and closed it. As with
+	 * an XMPPConnection, this is how the sender learns the stanza wasn't sent (BaseAgent keeps it to send again).
+	 */
+	public void send(String xml) {
+		if (! connected)
+			throw new IllegalStateException("Component "+domain+" is not connected");
+		try {
+			write(xml);
+			sent.incrementAndGet();
+		}
+		catch (IOException ioe) {
+			el.addEvent("Component "+domain+" write failed: "+ioe.getMessage());
+			lost(socket, ioe);
+			throw new IllegalStateException("Component "+domain+" write failed: "+ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Announce a JID's presence, so that clients (and SimpleXMPPConnection's presence checks) see it.
+	 * Does nothing if the connection is closed: agents announce themselves again when it is back.
+	 * @param jid the agent's full JID
+	 * @param available true for available, false for unavailable
+	 */
+	public void sendPresence(String jid, boolean available) {
+		if (! connected)
+			return;
+		try {
+			send("<presence from='"+StanzaXml.escape(jid)+"'"+(available ? "" : " type='unavailable'")+"/>");
+		}
+		catch (IllegalStateException ise) {
+			// the connection went as we wrote, and the agents have been told
+		}
+	}
+
+	private void write(String xml)
+	throws IOException {
+		synchronized (writer) {
+			writer.write(xml);
+			writer.flush();
+		}
+	}
+
+
+	/**
+	 * Close the stream and the socket. Agents that are still registered stay registered, and
+	 * are routed to again if connect() is called.
+	 */
+	public void close() {
+		shutdownStream(null);
+	}
+
+	/**
+	 * @param s the socket the caller was using, or null for the current one. If the connection has
+	 * since been reconnected on another socket, it is left alone.
+	 * @return true if this call closed the connection, false if it was already closed
+	 */
+	private boolean shutdownStream(Socket s) {
+		synchronized (this) {
+			if ((! connected) || ((s != null) && (s != socket)))
+				return false;
+			connected = false;
+		}
+		try {
+			write("</stream:stream>");
+		}
+		catch (IOException ioe) {
+		}
+		closeSocket();
+		el.addEvent("Component "+domain+" disconnected");
+		return true;
+	}
+
+	/**
+	 * The connection failed: close it, and tell the registered agents with connectionClosedOnError()
+	 */
+	private void lost(Socket s, Exception e) {
+		if (! shutdownStream(s))
+			return;
+		BaseAgent[] agents = routes.values().toArray(new BaseAgent[0]);
+		for (int i = 0; i < agents.length; i++)
+			agents[i].connectionClosedOnError(e);
+	}
+
+	private void closeSocket() {
+		try {
+			if (socket != null)
+				socket.close();
+		}
+		catch (IOException ioe) {
+		}
+	}
+
+
+	private void readLoop(XmlPullParser parser, Socket s) {
+		Exception failure = null;
+		try {
+			int event = parser.next();
+			while (connected) {
+				if ((event == XmlPullParser.START_TAG) && (parser.getDepth() == 2))
+					route(parser);
+				else if ((event == XmlPullParser.END_TAG) && (parser.getDepth() == 1))
+					break;
+				else if (event == XmlPullParser.END_DOCUMENT)
+					break;
+				if (connected)
+					event = parser.next();
+			}
+		}
+		catch (Exception e) {
+			failure = e;
+		}
+		lost(s, (failure != null) ? failure : new IOException("Server closed the component stream"));
+	}
+
+
+	/**
+	 * Hand the stanza the parser is on to the agent it is addressed to
+	 */
+	private void route(XmlPullParser parser)
+	throws XmlPullParserException, IOException {
+		String name = parser.getName();
+		String to = StanzaXml.attribute(parser, "to");
+		BaseAgent agent = (to == null) ? null : routes.get(bareJid(to));
+		received.incrementAndGet();
+
+		if ("iq".equals(name)) {
+			String type = StanzaXml.attribute(parser, "type");
+			String id = StanzaXml.attribute(parser, "id");
+			String from = StanzaXml.attribute(parser, "from");
+			String xml = StanzaXml.copyElement(parser, null);
+			IQ iq = null;
+			if (agent != null) {
+				try {
+					iq = IQParser.parse(xml);
+				}
+				catch (IOException ioe) {
+					el.addEvent("Component "+domain+" could not parse an IQ for "+to+": "+ioe.getMessage());
+				}
+			}
+			if ((agent != null) && ("result".equals(type) || "error".equals(type))) {
+				IQ answer = (iq != null) ? iq
+						: new IQRequestTracker.EmptyIQ(IQ.Type.fromString(type), id, to, from);
+				if (agent.iqAnswered(answer))
+					return;
+			}
+			if ((iq == null) || (! agent.deliverIQ(iq))) {
+				unroutable.incrementAndGet();
+				if (("get".equals(type) || "set".equals(type)) && (from != null) && (to != null))
+					send("<iq type='error' from='"+StanzaXml.escape(to)+"' to='"+StanzaXml.escape(from)+"'"
+							+ ((id == null) ? "" : " id='"+StanzaXml.escape(id)+"'")
+							+ ">"+SERVICE_UNAVAILABLE+"</iq>");
+			}
+		}
+		else if ("message".equals(name) && (agent != null)) {
+			Message m = readMessage(parser);
+			if (! agent.deliverMessage(m))
+				unroutable.incrementAndGet();
+		}
+		else {
+			// presence, and anything else, isn't routed to agents
+			if (agent == null)
+				unroutable.incrementAndGet();
+			StanzaXml.skipElement(parser);
+		}
+	}
+
+
+	/**
+	 * Build a Message from the message element the parser is on, leaving the parser on its END_TAG
+	 */
+	private Message readMessage(XmlPullParser parser)
+	throws XmlPullParserException, IOException {
+		Message m = new Message();
+		m.setTo(StanzaXml.attribute(parser, "to"));
+		m.setFrom(StanzaXml.attribute(parser, "from"));
+		m.setPacketID(StanzaXml.attribute(parser, "id"));
+		String type = StanzaXml.attribute(parser, "type");
+		Message.Type t = (type == null) ? Message.Type.normal : Message.Type.fromString(type);
+		m.setType((t == null) ? Message.Type.normal : t);
+		int depth = parser.getDepth();
+		int event = parser.next();
+		while (! ((event == XmlPullParser.END_TAG) && (parser.getDepth() == depth))) {
+			if ((event == XmlPullParser.START_TAG) && (parser.getDepth() == depth + 1)) {
+				if ("body".equals(parser.getName()))
+					m.setBody(parser.nextText());
+				else if ("subject".equals(parser.getName()))
+					m.setSubject(parser.nextText());
+				else if ("thread".equals(parser.getName()))
+					m.setThread(parser.nextText());
+				else
+					StanzaXml.skipElement(parser);
+			}
+			else if (event == XmlPullParser.END_DOCUMENT) {
+				throw new IOException("Stream ended inside a message");
+			}
+			event = parser.next();
+		}
+		return m;
+	}
+
+
+	private static String bareJid(String jid) {
+		int slash = jid.indexOf('/');
+		return ((slash < 0) ? jid : jid.substring(0,slash)).toLowerCase();
+	}
+
+
+	public String getDomain() {
+		return domain;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/** @return the number of JIDs registered */
+	public int getRouteCount() {
+		return routes.size();
+	}
+
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	/** @return the number of stanzas that no registered agent took */
+	public long getUnroutableCount() {
+		return unroutable.get();
+	}
+
+	public long getSentCount() {
+		return sent.get();
+	}
+
+
+	/**
+	 * Write the connection's counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.COMPONENT_DOMAIN,domain);
+		status.setProperty(Vocabulary.Status.COMPONENT_ROUTES,getRouteCount());
+		status.setProperty(Vocabulary.Status.COMPONENT_RECEIVED,getReceivedCount());
+		status.setProperty(Vocabulary.Status.COMPONENT_UNROUTABLE,getUnroutableCount());
+		status.setProperty(Vocabulary.Status.COMPONENT_SENT,getSentCount());
+	}
+
+}
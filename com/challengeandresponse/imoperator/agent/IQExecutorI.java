@@ -0,0 +1,38 @@
+package com.challengeandresponse.imoperator.agent;
+
+import org.jivesoftware.smack.packet.IQ;
+
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * An IQExecutorI runs an agent's per-packet IQ handlers somewhere other than
+ * on the agent's run loop thread. The BaseAgent hands each inbound IQ, along with
+ * the task that handles it, to its executor. The packet is supplied so that executors
+ * can decide where the task runs based on what's in it, such as the sender.
+ *
+ * @author jim
+ */
+public interface IQExecutorI {
+
+	/**
+	 * Run the task that handles iq. Executors may run the task on the calling thread,
+	 * or block the caller, when they are full.
+	 * @param iq the packet the task will handle
+	 * @param task the handler to run
+	 */
+	public void execute(IQ iq, Runnable task);
+
+	/**
+	 * Stop accepting tasks, and wait up to timeoutMsec for queued and running tasks to finish.
+	 * @param timeoutMsec how long to wait for outstanding work
+	 * @return true if all the work finished, false if the timeout expired first
+	 */
+	public boolean shutdown(long timeoutMsec);
+
+	/**
+	 * Write the executor's configuration and current counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status);
+
+}
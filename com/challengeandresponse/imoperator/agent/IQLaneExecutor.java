@@ -0,0 +1,294 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.packet.IQ;
+
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * Runs an agent's per-packet IQ handlers on a fixed set of "lanes", each with one worker
+ * thread and its own bounded queue. The sender's bare JID (the from-address without its resource)
+ * picks the lane, so all the packets from one sender are handled strictly in the order
+ * they arrived, one at a time, while packets from different senders are handled in parallel.
+ *
+ * <p>When a lane's queue is full, execute() blocks until there is room. Running the
+ * task on the caller's thread (as IQWorkerPool does) would let it jump ahead of the packets
+ * already queued in that lane, so that isn't an option here.</p>
+ *
+ * <p>Note that one slow conversation holds up every other sender that hashes to the same lane.
+ * Use more lanes than cores if that matters.</p>
+ *
+ * <p>An idle lane's thread sleeps in take() until a task comes. shutdown() queues a STOP marker behind the
+ * tasks already waiting; a lane finishes everything queued before it stops.</p>
+ *
+ * @author jim
+ */
+public class IQLaneExecutor
+implements IQExecutorI {
+
+	// queued by shutdown() to tell a lane to finish what is queued and stop
+	private static final Runnable STOP = new Runnable() {
+		public void run() {
+		}
+	};
+
+	private final Lane[] lanes;
+	private final int laneCapacity;
+	private final boolean virtual;
+	private volatile boolean shutdown;
+
+
+	/**
+	 * @param name a name for the executor, used as a prefix for the lane thread names
+	 * @param nLanes the number of lanes (and worker threads), at least 1
+	 * @param laneCapacity the number of tasks that may wait in each lane, at least 1
+	 * @param virtualThreads true to run the lanes on virtual threads if the JVM supports them
+	 */
+	public IQLaneExecutor(String name, int nLanes, int laneCapacity, boolean virtualThreads) {
+		if (nLanes < 1)
+			throw new IllegalArgumentException("nLanes must be at least 1");
+		if (laneCapacity < 1)
+			throw new IllegalArgumentException("laneCapacity must be at least 1");
+		this.laneCapacity = laneCapacity;
+		this.shutdown = false;
+
+		ThreadFactory tf = virtualThreads ? IQWorkerPool.virtualThreadFactory(name+"-lane-") : null;
+		this.virtual = (tf != null);
+		if (tf == null)
+			tf = IQWorkerPool.platformThreadFactory(name+"-lane-");
+
+		lanes = new Lane[nLanes];
+		for (int i = 0; i < nLanes; i++) {
+			lanes[i] = new Lane(laneCapacity);
+			lanes[i].thread = tf.newThread(lanes[i]);
+			lanes[i].thread.start();
+		}
+	}
+
+
+	/**
+	 * Queue task on the lane belonging to iq's sender, blocking while that lane is full.
+	 * After shutdown() the task is still queued while the lane drains, so it can't overtake the
+	 * sender's earlier packets. Once the lane has stopped it is run on the calling thread, so late packets are
+	 * still handled.
+	 */
+	public void execute(IQ iq, Runnable task) {
+		Lane lane = lanes[laneFor(iq.getFrom(),lanes.length)];
+		if (! lane.offer(task))
+			task.run();	// the lane is empty and stopped, so nothing is ahead of this task
+	}
+
+
+	public boolean shutdown(long timeoutMsec) {
+		long deadline = System.currentTimeMillis() + timeoutMsec;
+		boolean finished = true;
+		if (! shutdown) {
+			shutdown = true;
+			for (int i = 0; i < lanes.length; i++)
+				lanes[i].stop(deadline);
+		}
+		for (int i = 0; i < lanes.length; i++) {
+			long remaining = deadline - System.currentTimeMillis();
+			try {
+				if (remaining > 0)
+					lanes[i].thread.join(remaining);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			if (lanes[i].thread.isAlive())
+				finished = false;
+		}
+		return finished;
+	}
+
+
+	/**
+	 * Pick a lane for a sender. The hash covers the bare JID only, case-insensitively,
+	 * so every resource of one user lands in the same lane. It's computed straight off
+	 * the from-address, without making a substring or a lowercased copy.
+	 *
+	 * @param from the sender's JID, with or without a resource. null maps to lane 0
+	 * @param nLanes the number of lanes
+	 * @return the lane index, 0..nLanes-1
+	 */
+	public static int laneFor(String from, int nLanes) {
+		if (from == null)
+			return 0;
+		int h = 0;
+		int len = from.length();
+		for (int i = 0; i < len; i++) {
+			char c = from.charAt(i);
+			if (c == '/')
+				break;
+			h = 31*h + Character.toLowerCase(c);
+		}
+		// spread the bits a little, since JIDs on one server share a long common suffix
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % nLanes;
+	}
+
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	public int getLaneCapacity() {
+		return laneCapacity;
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @return the number of tasks currently waiting in each lane, indexed by lane
+	 */
+	public int[] getLaneQueueDepths() {
+		int[] depths = new int[lanes.length];
+		for (int i = 0; i < lanes.length; i++)
+			depths[i] = lanes[i].queue.size();
+		return depths;
+	}
+
+	public long getCompletedCount() {
+		long total = 0;
+		for (int i = 0; i < lanes.length; i++)
+			total += lanes[i].completed.get();
+		return total;
+	}
+
+
+	public void reportStatus(PropertyThang status) {
+		int[] depths = getLaneQueueDepths();
+		StringBuffer sb = new StringBuffer();
+		int total = 0;
+		for (int i = 0; i < depths.length; i++) {
+			if (i > 0)
+				sb.append(",");
+			sb.append(depths[i]);
+			total += depths[i];
+		}
+		status.setProperty(Vocabulary.Status.IQ_LANES,lanes.length);
+		status.setProperty(Vocabulary.Status.IQ_POOL_VIRTUAL,isVirtual());
+		status.setProperty(Vocabulary.Status.IQ_LANE_QUEUE_CAPACITY,laneCapacity);
+		status.setProperty(Vocabulary.Status.IQ_LANE_QUEUE_DEPTHS,sb.toString());
+		status.setProperty(Vocabulary.Status.IQ_POOL_QUEUE_DEPTH,total);
+		status.setProperty(Vocabulary.Status.IQ_POOL_COMPLETED,getCompletedCount());
+	}
+
+
+
+	/**
+	 * One lane: a queue and the single thread that empties it, in order.
+	 */
+	private static class Lane
+	implements Runnable {
+		private final BlockingQueue <Runnable> queue;
+		private final AtomicLong completed;
+		private boolean drained;	// stopped with nothing left. Guarded by the lane's lock, as is:
+		private int putting;		// execute() calls between checking drained and their task being queued
+		private Thread thread;
+
+		Lane(int capacity) {
+			queue = new ArrayBlockingQueue <Runnable> (capacity);
+			completed = new AtomicLong(0);
+			drained = false;
+		}
+
+		/**
+		 * Queue a task, waiting for room
+		 * @return false if the lane has stopped with its queue empty, so the caller should run the task itself
+		 */
+		boolean offer(Runnable task) {
+			synchronized (this) {
+				if (drained)
+					return false;
+				putting++;
+			}
+			boolean interrupted = false;
+			try {
+				while (true) {
+					try {
+						queue.put(task);
+						break;
+					}
+					catch (InterruptedException ie) {
+						// running the task here instead would put it ahead of the ones queued
+						interrupted = true;
+					}
+				}
+			}
+			finally {
+				synchronized (this) {
+					putting--;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			return true;
+		}
+
+		/**
+		 * Queue STOP behind whatever is waiting, if there is room for it by the deadline
+		 */
+		void stop(long deadline) {
+			try {
+				queue.offer(STOP, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void run() {
+			boolean stopping = false;
+			while (true) {
+				Runnable task;
+				if (! stopping) {
+					try {
+						task = queue.take();
+					}
+					catch (InterruptedException ie) {
+						// only STOP ends a lane, so what is queued is never dropped
+						continue;
+					}
+					if (task == STOP) {
+						stopping = true;
+						continue;
+					}
+				}
+				else {
+					// after STOP, tasks queued by late execute() calls, until the queue is empty
+					task = queue.poll();
+					if (task == null) {
+						synchronized (this) {
+							if (queue.isEmpty() && (putting == 0)) {
+								drained = true;
+								return;
+							}
+						}
+						// a task is on its way in
+						Thread.yield();
+						continue;
+					}
+					if (task == STOP)
+						continue;
+				}
+				try {
+					task.run();
+					completed.incrementAndGet();
+				}
+				catch (RuntimeException re) {
+					// the BaseAgent's tasks catch their own exceptions; this just keeps the lane alive
+				}
+			}
+		}
+	}
+
+}
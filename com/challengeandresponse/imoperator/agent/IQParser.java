@@ -0,0 +1,77 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Turns the XML of an IQ (as produced by IQ.toXML()) back into an IQ object, using the
+ * IQProvider registered with Smack's ProviderManager for its child element, the same way
+ * Smack does for packets arriving on a connection.
+ *
+ * <p>This is for IQs that were stored as text, such as the ones an InboundJournal replays.
+ * Only IQs whose child element has a registered IQProvider instance can be parsed: that covers
+ * every class an agent registered with addRecognizedClass(), since those go through the UniversalIQProvider.</p>
+ *
+ * @author jim
+ */
+public class IQParser {
+
+	private IQParser() {
+	}
+
+
+	/**
+	 * @param xml an &lt;iq&gt; element
+	 * @return the IQ, with its id, to, from and type set from the element's attributes, or null
+	 * if no IQProvider is registered for its child element
+	 * @throws IOException if the XML can't be parsed, or the provider fails
+	 */
+	public static IQ parse(String xml)
+	throws IOException {
+		try {
+			XmlPullParser parser = new MXParser();
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+			parser.setInput(new StringReader(xml));
+			int event = parser.getEventType();
+			while (event != XmlPullParser.START_TAG) {
+				if (event == XmlPullParser.END_DOCUMENT)
+					throw new IOException("No element in stored IQ");
+				event = parser.next();
+			}
+			if (! "iq".equals(parser.getName()))
+				throw new IOException("Stored packet is <"+parser.getName()+">, not <iq>");
+			String id = parser.getAttributeValue("", "id");
+			String to = parser.getAttributeValue("", "to");
+			String from = parser.getAttributeValue("", "from");
+			IQ.Type type = IQ.Type.fromString(parser.getAttributeValue("", "type"));
+
+			if (parser.nextTag() != XmlPullParser.START_TAG)
+				return null;	// an IQ with no child element carries nothing for an agent
+			Object provider = ProviderManager.getInstance().getIQProvider(parser.getName(), parser.getNamespace());
+			if (! (provider instanceof IQProvider))
+				return null;
+			IQ iq = ((IQProvider) provider).parseIQ(parser);
+			if (iq == null)
+				return null;
+			iq.setPacketID(id);
+			iq.setTo(to);
+			iq.setFrom(from);
+			if (type != null)
+				iq.setType(type);
+			return iq;
+		}
+		catch (IOException ioe) {
+			throw ioe;
+		}
+		catch (Exception e) {
+			throw new IOException("Could not parse stored IQ: "+e.getMessage());
+		}
+	}
+
+}
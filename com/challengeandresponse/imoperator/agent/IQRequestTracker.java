@@ -0,0 +1,337 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * Matches answers to the IQs an agent sends, so a request can be waited on as a future
+ * instead of its answer being picked out of the PacketCollector on a later pass of the run loop.
+ *
+ * <p>expect() registers an outgoing get or set IQ by its packet ID and recipient, before it is sent, and returns a
+ * CompletableFuture. When a result or error IQ with that packet ID arrives from the recipient, the future is completed:
+ * normally with the result, or exceptionally with an ErrorResponse holding the error IQ.
+ * If no answer arrives within the request's timeout, it fails with a TimeoutException. Cancelling the
+ * future forgets the request, and an answer that turns up later is dropped.</p>
+ *
+ * <p>Packet IDs are easy to guess, so an answer must also come from the JID the request went to: that full JID
+ * if the request went to one, or any resource of the bare JID if it went to a bare JID. A request sent with no
+ * recipient only takes an answer with no sender. An answer from anyone else is left for the agent's collector,
+ * and the request keeps waiting.</p>
+ *
+ * <p>Any number of requests may be outstanding at once. They are held in a concurrent map, and answers
+ * complete them on the thread that delivers the answer, so dependent stages that do real work should
+ * be attached with one of the CompletableFuture ...Async methods.</p>
+ *
+ * <p>The tracker is both a PacketListener, to hear the answers, and a PacketFilter that accepts them,
+ * for use as an exclude filter so they don't reach the agent's collector as well. It accepts answers to
+ * recently completed requests too, since the collector's filter may be checked after the listener has run.</p>
+ *
+ * @author jim
+ */
+public class IQRequestTracker
+implements PacketListener, PacketFilter {
+
+	private static final int RECENT_ANSWERS = 256;
+
+	/**
+	 * The request was answered with an error IQ
+	 */
+	public static class ErrorResponse extends Exception {
+		private static final long serialVersionUID = 1L;
+		private final IQ iq;
+
+		public ErrorResponse(IQ iq) {
+			super("Error answer to IQ "+iq.getPacketID()+" from "+iq.getFrom()
+					+ ((iq.getError() == null) ? "" : ": "+iq.getError()));
+			this.iq = iq;
+		}
+
+		/** @return the error IQ */
+		public IQ getIQ() {
+			return iq;
+		}
+	}
+
+	/**
+	 * An answer whose child element, if it had one, couldn't be turned into an object. An empty
+	 * result is the usual answer to a set, and this stands in for it.
+	 */
+	public static class EmptyIQ extends IQ {
+		public EmptyIQ(IQ.Type type, String packetId, String to, String from) {
+			setType(type);
+			setPacketID(packetId);
+			setTo(to);
+			setFrom(from);
+		}
+
+		public String getChildElementXML() {
+			return null;
+		}
+	}
+
+	private class Request {
+		final String packetId;
+		final String to;		// the recipient, or null
+		final CompletableFuture <IQ> future;
+		ScheduledFuture <?> timeout;
+
+		Request(String packetId, String to) {
+			this.packetId = packetId;
+			this.to = to;
+			this.future = new CompletableFuture <IQ> ();
+		}
+	}
+
+
+	private final String name;
+	private final ConcurrentMap <String,Request> requests;	// packet ID -> request waiting for its answer
+	private final Map <String,String> recent;		// packet ID -> recipient of requests answered lately, oldest first ("" for none)
+	private ScheduledExecutorService timer;			// made when the first request with a timeout is registered
+
+	private final AtomicLong nextId;
+	private final AtomicLong sent;
+	private final AtomicLong answered;
+	private final AtomicLong errors;
+	private final AtomicLong timedOut;
+	private final AtomicLong cancelled;
+
+
+	/**
+	 * @param name names the timeout thread, and the packet IDs given to IQs that have none
+	 */
+	public IQRequestTracker(String name) {
+		this.name = name;
+		this.requests = new ConcurrentHashMap <String,Request> ();
+		this.recent = Collections.synchronizedMap(new LinkedHashMap <String,String> () {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry <String,String> eldest) {
+				return size() > RECENT_ANSWERS;
+			}
+		});
+		this.nextId = new AtomicLong(0);
+		this.sent = new AtomicLong(0);
+		this.answered = new AtomicLong(0);
+		this.errors = new AtomicLong(0);
+		this.timedOut = new AtomicLong(0);
+		this.cancelled = new AtomicLong(0);
+	}
+
+
+	/**
+	 * Register an IQ that is about to be sent. Gives it a packet ID if it has none.
+	 * @param to the JID the IQ is sent to, which the answer must come from
+	 * @param iq a get or set IQ
+	 * @param timeoutMsec fail the future if no answer arrives in this long. 0 waits forever.
+	 * @return a future for the answer
+	 */
+	public CompletableFuture <IQ> expect(String to, IQ iq, long timeoutMsec) {
+		if (timeoutMsec < 0)
+			throw new IllegalArgumentException("timeoutMsec must not be negative");
+		if (iq.getPacketID() == null)
+			iq.setPacketID(name+"-"+nextId.incrementAndGet());
+		final Request r = new Request(iq.getPacketID(), to);
+		if (requests.putIfAbsent(r.packetId, r) != null)
+			throw new IllegalArgumentException("An IQ with packet ID "+r.packetId+" is already waiting for an answer");
+		sent.incrementAndGet();
+		if (timeoutMsec > 0) {
+			final long t = timeoutMsec;
+			r.timeout = timer().schedule(new Runnable() {
+				public void run() {
+					if (requests.remove(r.packetId, r)) {
+						timedOut.incrementAndGet();
+						r.future.completeExceptionally(new TimeoutException("No answer to IQ "+r.packetId+" within "+t+" msec"));
+					}
+				}
+			}, timeoutMsec, TimeUnit.MILLISECONDS);
+		}
+		// however the future ends - answered, timed out, failed or cancelled by the caller - the request is done
+		r.future.whenComplete(new BiConsumer <IQ,Throwable> () {
+			public void accept(IQ answer, Throwable t) {
+				if (requests.remove(r.packetId, r) && r.future.isCancelled())
+					cancelled.incrementAndGet();
+				if (r.timeout != null)
+					r.timeout.cancel(false);
+			}
+		});
+		return r.future;
+	}
+
+
+	/**
+	 * @return true if a request is waiting for the answer to the IQ with this packet ID
+	 */
+	public boolean isPending(String packetId) {
+		return (packetId != null) && requests.containsKey(packetId);
+	}
+
+
+	/**
+	 * Fail a request whose IQ couldn't be sent
+	 * @param packetId the IQ's packet ID
+	 * @param cause why it wasn't sent
+	 */
+	public void failed(String packetId, Throwable cause) {
+		Request r = (packetId == null) ? null : requests.remove(packetId);
+		if (r != null)
+			r.future.completeExceptionally(cause);
+	}
+
+
+	/**
+	 * Complete the request an IQ answers, if there is one and the IQ comes from its recipient
+	 * @param iq an IQ that has arrived
+	 * @return true if it was the answer to a request
+	 */
+	public boolean complete(IQ iq) {
+		if ((iq.getType() != IQ.Type.RESULT) && (iq.getType() != IQ.Type.ERROR))
+			return false;
+		String id = iq.getPacketID();
+		Request r = (id == null) ? null : requests.get(id);
+		if ((r == null) || (! answeredBy(r.to, iq.getFrom())) || (! requests.remove(id, r)))
+			return false;
+		recent.put(id, (r.to == null) ? "" : r.to);
+		if (iq.getType() == IQ.Type.ERROR) {
+			errors.incrementAndGet();
+			r.future.completeExceptionally(new ErrorResponse(iq));
+		}
+		else {
+			answered.incrementAndGet();
+			r.future.complete(iq);
+		}
+		return true;
+	}
+
+
+	/**
+	 * Hears IQs from the connection, and completes the requests they answer
+	 */
+	public void processPacket(Packet packet) {
+		if (packet instanceof IQ)
+			complete((IQ) packet);
+	}
+
+	/**
+	 * @return true if the packet answers, from its recipient, a request that is waiting or was answered lately
+	 */
+	public boolean accept(Packet packet) {
+		if (! (packet instanceof IQ))
+			return false;
+		IQ.Type t = ((IQ) packet).getType();
+		if ((t != IQ.Type.RESULT) && (t != IQ.Type.ERROR))
+			return false;
+		String id = packet.getPacketID();
+		if (id == null)
+			return false;
+		Request r = requests.get(id);
+		if (r != null)
+			return answeredBy(r.to, packet.getFrom());
+		String to = recent.get(id);
+		return (to != null) && answeredBy((to.length() == 0) ? null : to, packet.getFrom());
+	}
+
+	/**
+	 * @return true if an answer from this JID can be the answer to a request sent to that one
+	 */
+	private static boolean answeredBy(String to, String from) {
+		if ((to == null) || (from == null))
+			return (to == null) && (from == null);
+		if (! bareJid(to).equals(bareJid(from)))
+			return false;
+		// sent to a bare JID, any of its resources may answer; sent to a full JID, only that resource
+		int slash = to.indexOf('/');
+		if (slash < 0)
+			return true;
+		int fromSlash = from.indexOf('/');
+		return (fromSlash >= 0) && to.substring(slash).equals(from.substring(fromSlash));
+	}
+
+	private static String bareJid(String jid) {
+		int slash = jid.indexOf('/');
+		return ((slash < 0) ? jid : jid.substring(0,slash)).toLowerCase();
+	}
+
+
+	/**
+	 * Fail every waiting request, and stop the timeout thread. The tracker can still be used
+	 * afterwards, for an agent that is run again.
+	 * @param cause what the waiting requests fail with
+	 */
+	public void close(Throwable cause) {
+		Iterator <Request> it = requests.values().iterator();
+		while (it.hasNext()) {
+			Request r = it.next();
+			it.remove();
+			r.future.completeExceptionally(cause);
+		}
+		synchronized (this) {
+			if (timer != null)
+				timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	private synchronized ScheduledExecutorService timer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name+"-iq-timeouts");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+
+
+	/** @return the number of requests waiting for an answer */
+	public int getPendingCount() {
+		return requests.size();
+	}
+
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/** @return the number of requests answered with a result */
+	public long getAnsweredCount() {
+		return answered.get();
+	}
+
+	/** @return the number of requests answered with an error */
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	public long getTimedOutCount() {
+		return timedOut.get();
+	}
+
+	public long getCancelledCount() {
+		return cancelled.get();
+	}
+
+
+	/**
+	 * Write the tracker's counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.REQUESTS_PENDING,getPendingCount());
+		status.setProperty(Vocabulary.Status.REQUESTS_SENT,getSentCount());
+		status.setProperty(Vocabulary.Status.REQUESTS_ANSWERED,getAnsweredCount());
+		status.setProperty(Vocabulary.Status.REQUESTS_ERRORS,getErrorCount());
+		status.setProperty(Vocabulary.Status.REQUESTS_TIMED_OUT,getTimedOutCount());
+		status.setProperty(Vocabulary.Status.REQUESTS_CANCELLED,getCancelledCount());
+	}
+
+}
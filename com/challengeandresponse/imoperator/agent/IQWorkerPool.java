@@ -0,0 +1,157 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.smack.packet.IQ;
+
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * A bounded pool of worker threads for running an agent's per-packet IQ handlers.
+ *
+ * <p>The pool has a fixed number of threads and a fixed-capacity work queue. When the
+ * queue is full, the task is run by the thread that submitted it (the agent's run loop),
+ * which throttles intake from the PacketCollector until the workers catch up.</p>
+ *
+ * <p>Workers can be ordinary platform threads, or virtual threads if the JVM has them.
+ * On JVMs without virtual threads, asking for them quietly gets platform threads instead;
+ * isVirtual() reports which kind was actually used.</p>
+ *
+ * <p>Tasks run in no particular order, so two packets from the same sender may be handled
+ * out of order. Use an IQLaneExecutor where per-sender ordering matters.</p>
+ *
+ * @author jim
+ */
+public class IQWorkerPool
+implements IQExecutorI {
+
+	private final ThreadPoolExecutor executor;
+	private final int queueCapacity;
+	private final boolean virtual;
+
+	/**
+	 * @param name a name for the pool, used as a prefix for the worker thread names
+	 * @param threads the number of worker threads, at least 1
+	 * @param queueCapacity the number of tasks that may wait for a worker, at least 1
+	 * @param virtualThreads true to run the workers on virtual threads if the JVM supports them
+	 */
+	public IQWorkerPool(String name, int threads, int queueCapacity, boolean virtualThreads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1");
+		if (queueCapacity < 1)
+			throw new IllegalArgumentException("queueCapacity must be at least 1");
+		this.queueCapacity = queueCapacity;
+
+		ThreadFactory tf = virtualThreads ? virtualThreadFactory(name+"-iq-") : null;
+		this.virtual = (tf != null);
+		if (tf == null)
+			tf = platformThreadFactory(name+"-iq-");
+
+		this.executor = new ThreadPoolExecutor(
+				threads, threads,
+				60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue <Runnable> (queueCapacity),
+				tf,
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+
+	/**
+	 * Queue a task to run on a worker thread. If the queue is full the task runs
+	 * on the calling thread before this method returns.
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	public void execute(IQ iq, Runnable task) {
+		executor.execute(task);
+	}
+
+
+	/**
+	 * Stop accepting tasks, and wait up to timeoutMsec for queued and running tasks to finish.
+	 * @param timeoutMsec how long to wait for outstanding work
+	 * @return true if all the work finished, false if the timeout expired first
+	 */
+	public boolean shutdown(long timeoutMsec) {
+		executor.shutdown();
+		try {
+			return executor.awaitTermination(timeoutMsec, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ie) {
+			return false;
+		}
+	}
+
+
+	public int getPoolSize() {
+		return executor.getCorePoolSize();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public long getCompletedCount() {
+		return executor.getCompletedTaskCount();
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.IQ_POOL_SIZE,getPoolSize());
+		status.setProperty(Vocabulary.Status.IQ_POOL_VIRTUAL,isVirtual());
+		status.setProperty(Vocabulary.Status.IQ_POOL_QUEUE_CAPACITY,getQueueCapacity());
+		status.setProperty(Vocabulary.Status.IQ_POOL_ACTIVE,getActiveCount());
+		status.setProperty(Vocabulary.Status.IQ_POOL_QUEUE_DEPTH,getQueueDepth());
+		status.setProperty(Vocabulary.Status.IQ_POOL_COMPLETED,getCompletedCount());
+	}
+
+
+
+	static ThreadFactory platformThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+
+	/**
+	 * Thread.ofVirtual() is looked up reflectively so this class still loads
+	 * on JVMs that predate virtual threads.
+	 * @return a factory for virtual threads, or null if this JVM doesn't have them
+	 */
+	static ThreadFactory virtualThreadFactory(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, prefix, Long.valueOf(1));
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,405 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.jivesoftware.smack.packet.Packet;
+
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * A write-ahead journal of an agent's inbound IQs, so that packets the agent has accepted
+ * aren't lost if it stops before handling them.
+ *
+ * <p>Each packet is append()ed as XML before it is handled, and markDone() is called once it has been
+ * handled. On the next startup, pending() lists the packets that were appended but never marked done,
+ * to be handled again. Delivery is therefore at least once: a packet whose handler ran, but whose done
+ * record didn't reach the disk, is handled a second time.</p>
+ *
+ * <p>append() only buffers. commit() writes everything buffered and forces it to disk with one fsync,
+ * so a caller that appends a whole batch and then commits once pays for one disk flush per batch, not
+ * one per packet (group commit). Done records are buffered too, and go out with the next commit.</p>
+ *
+ * <p>The journal is a series of segment files, journal-NNNNNNNN.log in its directory. A new segment is
+ * started when the current one reaches segmentBytes. Segments are deleted oldest first, once every packet
+ * in them is done, so the disk holds roughly the packets still being worked on (a packet that is never
+ * marked done keeps its segment, and the ones after it, until it is). Each record carries
+ * a CRC, and a torn record at the end of a segment (from a crash part way through a write) is ignored.</p>
+ *
+ * @author jim
+ */
+public class InboundJournal {
+
+	/** the default size at which a new segment is started */
+	public static final long DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".log";
+	private static final int RECORD_HEADER = 4 + 4 + 1 + 8;	// length, crc, type, id
+
+	private static final byte T_PACKET = 1;
+	private static final byte T_DONE = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A packet that was appended and never marked done
+	 */
+	public static class Entry {
+		public final long id;
+		public final String xml;
+
+		Entry(long id, String xml) {
+			this.id = id;
+			this.xml = xml;
+		}
+	}
+
+	private static class Segment {
+		final long seq;
+		final File file;
+		int outstanding;	// packets in this segment not yet done
+
+		Segment(long seq, File file) {
+			this.seq = seq;
+			this.file = file;
+		}
+	}
+
+
+	private final File directory;
+	private final long segmentBytes;
+
+	private final TreeMap <Long,Segment> segments;		// by sequence number
+	private final Map <Long,Segment> outstanding;		// packet id -> its segment
+	private final List <Entry> pending;				// found by open(), in order
+	private Segment current;
+	private FileOutputStream currentOut;
+	private FileChannel currentChannel;
+	private long currentSize;
+	private final ByteArrayOutputStream buffer;
+	private long nextId;
+	private boolean closed;
+
+	private long appended;
+	private long done;
+	private long commits;
+	private long recovered;
+
+
+	/**
+	 * Open a journal, creating its directory if needed, and read back what an earlier run left in it.
+	 * @param directory where the segment files go. Use one directory per agent.
+	 * @param segmentBytes the size at which a new segment file is started
+	 * @throws IOException if the directory can't be made, or a segment can't be read or created
+	 */
+	public InboundJournal(File directory, long segmentBytes)
+	throws IOException {
+		if (segmentBytes < 1024)
+			throw new IllegalArgumentException("segmentBytes must be at least 1024");
+		if ((! directory.isDirectory()) && (! directory.mkdirs()))
+			throw new IOException("Could not create journal directory "+directory);
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.segments = new TreeMap <Long,Segment> ();
+		this.outstanding = new HashMap <Long,Segment> ();
+		this.pending = new ArrayList <Entry> ();
+		this.buffer = new ByteArrayOutputStream(8192);
+		this.nextId = 1;
+		this.closed = false;
+		recover();
+		startSegment();
+	}
+
+
+	/**
+	 * @return the packets an earlier run appended and never marked done, oldest first.
+	 * Handle each one, and markDone() its id.
+	 */
+	public synchronized List <Entry> pending() {
+		return new ArrayList <Entry> (pending);
+	}
+
+
+	/**
+	 * Buffer a packet. It is not on disk until commit() returns.
+	 * @param p the packet
+	 * @return the packet's journal id, for markDone()
+	 * @throws IOException if the journal is closed
+	 */
+	public synchronized long append(Packet p)
+	throws IOException {
+		if (closed)
+			throw new IOException("Journal is closed");
+		long id = nextId++;
+		writeRecord(T_PACKET, id, p.toXML().getBytes(UTF8));
+		current.outstanding++;
+		outstanding.put(Long.valueOf(id), current);
+		appended++;
+		return id;
+	}
+
+
+	/**
+	 * Write everything buffered by append() and markDone() to the current segment, and force it to disk.
+	 * Starts a new segment afterwards if the current one is full.
+	 * @throws IOException if the write or the force fails
+	 */
+	public synchronized void commit()
+	throws IOException {
+		if (closed || (buffer.size() == 0))
+			return;
+		ByteBuffer bb = ByteBuffer.wrap(buffer.toByteArray());
+		buffer.reset();
+		while (bb.hasRemaining())
+			currentSize += currentChannel.write(bb);
+		currentChannel.force(false);
+		commits++;
+		if (currentSize >= segmentBytes) {
+			startSegment();
+			deleteFinished();
+		}
+	}
+
+
+	/**
+	 * Record that a packet has been handled, so it won't be replayed. The record is buffered
+	 * until the next commit(). Safe to call from any thread.
+	 * @param id the id from append(), or from an Entry returned by pending()
+	 */
+	public synchronized void markDone(long id) {
+		Segment s = outstanding.remove(Long.valueOf(id));
+		if (s == null)
+			return;
+		done++;
+		s.outstanding--;
+		if (closed)
+			return;
+		try {
+			writeRecord(T_DONE, id, null);
+		}
+		catch (IOException ioe) {
+			// can't happen writing to a ByteArrayOutputStream
+		}
+		for (int i = pending.size() - 1; i >= 0; i--) {
+			if (pending.get(i).id == id) {
+				pending.remove(i);
+				break;
+			}
+		}
+		if (s != current)
+			deleteFinished();
+	}
+
+
+	/**
+	 * Commit whatever is buffered, and close the current segment.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		try {
+			commit();
+		}
+		catch (IOException ioe) {
+		}
+		closed = true;
+		closeCurrent();
+		deleteFinished();
+	}
+
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/** @return the number of packets appended and not yet marked done, including ones found at startup */
+	public synchronized int getPendingCount() {
+		return outstanding.size();
+	}
+
+	public synchronized long getAppendedCount() {
+		return appended;
+	}
+
+	public synchronized long getDoneCount() {
+		return done;
+	}
+
+	/** @return the number of commits that wrote something: one fsync each */
+	public synchronized long getCommitCount() {
+		return commits;
+	}
+
+	/** @return the number of packets found pending when the journal was opened */
+	public synchronized long getRecoveredCount() {
+		return recovered;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+
+	/**
+	 * Write the journal's counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.JOURNAL_DIRECTORY,directory.getPath());
+		status.setProperty(Vocabulary.Status.JOURNAL_PENDING,getPendingCount());
+		status.setProperty(Vocabulary.Status.JOURNAL_APPENDED,getAppendedCount());
+		status.setProperty(Vocabulary.Status.JOURNAL_DONE,getDoneCount());
+		status.setProperty(Vocabulary.Status.JOURNAL_COMMITS,getCommitCount());
+		status.setProperty(Vocabulary.Status.JOURNAL_RECOVERED,getRecoveredCount());
+		status.setProperty(Vocabulary.Status.JOURNAL_SEGMENTS,getSegmentCount());
+	}
+
+
+
+	/// SEGMENTS
+
+	/**
+	 * Read every segment left by an earlier run, collecting the packets that were never marked done
+	 */
+	private void recover()
+	throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+				try {
+					long seq = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+					segments.put(Long.valueOf(seq), new Segment(seq, files[i]));
+				}
+				catch (NumberFormatException nfe) {
+					// not one of ours
+				}
+			}
+		}
+
+		LinkedHashMap <Long,Entry> found = new LinkedHashMap <Long,Entry> ();
+		Set <Long> doneIds = new HashSet <Long> ();
+		Iterator <Segment> it = segments.values().iterator();
+		while (it.hasNext()) {
+			Segment s = it.next();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s.file)));
+			try {
+				while (true) {
+					int len;
+					try {
+						len = in.readInt();
+					}
+					catch (EOFException eofe) {
+						break;
+					}
+					if ((len < RECORD_HEADER - 4) || (len > s.file.length()))
+						break;
+					int crc = in.readInt();
+					byte[] body = new byte[len - 4];
+					try {
+						in.readFully(body);
+					}
+					catch (EOFException eofe) {
+						break;	// torn write at the tail
+					}
+					CRC32 c = new CRC32();
+					c.update(body);
+					if ((int) c.getValue() != crc)
+						break;
+					ByteBuffer bb = ByteBuffer.wrap(body);
+					byte type = bb.get();
+					Long id = Long.valueOf(bb.getLong());
+					if (id.longValue() >= nextId)
+						nextId = id.longValue() + 1;
+					if (type == T_PACKET) {
+						found.put(id, new Entry(id.longValue(), new String(body, 9, body.length - 9, UTF8)));
+						outstanding.put(id, s);
+						s.outstanding++;
+					}
+					else if (type == T_DONE) {
+						doneIds.add(id);
+					}
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		Iterator <Long> dit = doneIds.iterator();
+		while (dit.hasNext()) {
+			Long id = dit.next();
+			found.remove(id);
+			Segment s = outstanding.remove(id);
+			if (s != null)
+				s.outstanding--;
+		}
+		pending.addAll(found.values());
+		recovered = pending.size();
+
+		// segments with nothing pending are finished with
+		deleteFinished();
+	}
+
+	private void startSegment()
+	throws IOException {
+		closeCurrent();
+		long seq = segments.isEmpty() ? 1 : segments.lastKey().longValue() + 1;
+		File f = new File(directory, PREFIX+String.format("%08d", Long.valueOf(seq))+SUFFIX);
+		current = new Segment(seq, f);
+		segments.put(Long.valueOf(seq), current);
+		currentOut = new FileOutputStream(f, true);
+		currentChannel = currentOut.getChannel();
+		currentSize = currentChannel.size();
+	}
+
+	private void closeCurrent() {
+		try {
+			if (currentOut != null)
+				currentOut.close();
+		}
+		catch (IOException ioe) {
+		}
+		currentOut = null;
+		currentChannel = null;
+	}
+
+	/**
+	 * Delete finished segments, oldest first. A segment can hold done records for packets in
+	 * older segments, so it is only deleted once every older segment has been.
+	 */
+	private void deleteFinished() {
+		while (! segments.isEmpty()) {
+			Segment s = segments.firstEntry().getValue();
+			if ((s.outstanding > 0) || ((s == current) && (! closed)))
+				return;
+			if (! (s.file.delete() || (! s.file.exists())))
+				return;
+			segments.remove(Long.valueOf(s.seq));
+		}
+	}
+
+	private void writeRecord(byte type, long id, byte[] payload)
+	throws IOException {
+		int payloadLen = (payload == null) ? 0 : payload.length;
+		ByteBuffer body = ByteBuffer.allocate(1 + 8 + payloadLen);
+		body.put(type);
+		body.putLong(id);
+		if (payload != null)
+			body.put(payload);
+		CRC32 c = new CRC32();
+		c.update(body.array());
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(4 + body.capacity());
+		out.writeInt((int) c.getValue());
+		out.write(body.array());
+	}
+
+}
@@ -0,0 +1,236 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.XMPPError;
+
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * A fixed-capacity holding area for an agent's inbound IQs.
+ *
+ * <p>Smack's PacketCollector keeps whatever it is given, so a burst of traffic piles up
+ * in the heap until something gives. The InboundQueue is registered as a PacketListener with the
+ * same filter as the agent's PacketCollector, and each time it is called it moves everything in
+ * the collector into its own bounded queue. The collector stays (nearly) empty, and when the
+ * queue is full the overflow policy decides what gets thrown away:</p>
+ * <li>DROP_OLDEST - the packet that has waited longest is discarded to make room</li>
+ * <li>DROP_NEWEST - the arriving packet is discarded</li>
+ * <li>REJECT_WAIT - the arriving packet is discarded, and if it was a get or set, the sender gets
+ * an error reply with the resource-constraint condition (an XMPP "wait" error), which tells it to back off and retry later</li>
+ *
+ * <p>Every discarded packet is counted as "shed", and the counts are reported in the agent's status.</p>
+ *
+ * @author jim
+ */
+public class InboundQueue
+implements PacketListener {
+
+	public static enum Overflow { DROP_OLDEST, DROP_NEWEST, REJECT_WAIT }
+
+	/**
+	 * A queued packet, stamped with the System.nanoTime() at which it was queued
+	 */
+	public static class Entry {
+		public final Packet packet;
+		public final long arrivalNanos;
+
+		Entry(Packet packet, long arrivalNanos) {
+			this.packet = packet;
+			this.arrivalNanos = arrivalNanos;
+		}
+	}
+
+	private final ArrayBlockingQueue <Entry> queue;
+	private final int capacity;
+	private final Overflow overflow;
+
+	private final AtomicLong accepted;
+	private final AtomicLong shed;
+	private final AtomicLong rejected;
+
+	private PacketCollector pc;
+	private XMPPConnection connection;
+	private PacketSignal signal;
+	private ClassMetrics classMetrics;
+
+
+	/**
+	 * @param capacity the most packets the queue will hold, at least 1
+	 * @param overflow what to do with a packet that arrives when the queue is full
+	 */
+	public InboundQueue(int capacity, Overflow overflow) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1");
+		if (overflow == null)
+			throw new IllegalArgumentException("overflow policy must not be null");
+		this.capacity = capacity;
+		this.overflow = overflow;
+		this.queue = new ArrayBlockingQueue <Entry> (capacity);
+		this.accepted = new AtomicLong(0);
+		this.shed = new AtomicLong(0);
+		this.rejected = new AtomicLong(0);
+	}
+
+
+	/**
+	 * Connect the queue to its source. Call this before registering the queue as a PacketListener.
+	 * @param pc the PacketCollector to move packets out of
+	 * @param connection the connection for sending REJECT_WAIT error replies
+	 * @param signal a signal to wake whoever consumes the queue, or null
+	 */
+	public synchronized void attach(PacketCollector pc, XMPPConnection connection, PacketSignal signal) {
+		this.pc = pc;
+		this.connection = connection;
+		this.signal = signal;
+	}
+
+	/**
+	 * @param classMetrics per-class counters to record shed packets in, or null
+	 */
+	public void setClassMetrics(ClassMetrics classMetrics) {
+		this.classMetrics = classMetrics;
+	}
+
+
+	/**
+	 * Called by Smack after the packet has been put in the collector. Moves everything
+	 * waiting in the collector into this queue, applying the overflow policy as needed.
+	 * Synchronized so that packets are moved in the order the collector got them, even if
+	 * Smack calls listeners from more than one thread.
+	 */
+	public synchronized void processPacket(Packet packet) {
+		if (pc == null)
+			return;
+		Packet p = pc.pollResult();
+		while (p != null) {
+			offer(p);
+			p = pc.pollResult();
+		}
+		if (signal != null)
+			signal.wakeup();
+	}
+
+
+	/**
+	 * Add a packet, applying the overflow policy if the queue is full
+	 * @param p the packet to add
+	 * @return true if p was queued, false if it was shed
+	 */
+	public boolean offer(Packet p) {
+		Entry e = new Entry(p, System.nanoTime());
+		if (queue.offer(e)) {
+			accepted.incrementAndGet();
+			return true;
+		}
+		switch (overflow) {
+		case DROP_OLDEST:
+			// the consumer may empty a slot between these calls, in which case nothing is dropped
+			while (! queue.offer(e)) {
+				Entry oldest = queue.poll();
+				if (oldest != null)
+					shed(oldest.packet);
+			}
+			accepted.incrementAndGet();
+			return true;
+		case REJECT_WAIT:
+			shed(p);
+			reject(p);
+			return false;
+		case DROP_NEWEST:
+		default:
+			shed(p);
+			return false;
+		}
+	}
+
+	private void shed(Packet p) {
+		shed.incrementAndGet();
+		if (classMetrics != null)
+			classMetrics.recordDropped(p);
+	}
+
+
+	/**
+	 * Tell the sender of p to wait and retry. Only get and set IQs are answered, since
+	 * replying to a result or error is not allowed and could start an error loop between agents.
+	 * The answer is a new IQ: p itself is shared with the connection's other listeners, and is left as it arrived.
+	 */
+	private void reject(Packet p) {
+		if ((connection == null) || (! (p instanceof IQ)))
+			return;
+		IQ iq = (IQ) p;
+		if ((iq.getType() != IQ.Type.GET) && (iq.getType() != IQ.Type.SET))
+			return;
+		IQ error = new IQ() {
+			public String getChildElementXML() {
+				return null;
+			}
+		};
+		error.setPacketID(iq.getPacketID());
+		error.setFrom(iq.getTo());
+		error.setTo(iq.getFrom());
+		error.setType(IQ.Type.ERROR);
+		error.setError(new XMPPError(XMPPError.Condition.resource_constraint,"Inbound queue full, retry later"));
+		try {
+			connection.sendPacket(error);
+			rejected.incrementAndGet();
+		}
+		catch (RuntimeException re) {
+			// the connection may be going away. The packet is already counted as shed.
+		}
+	}
+
+
+	/**
+	 * @return the oldest waiting packet and its arrival time, or null if the queue is empty
+	 */
+	public Entry poll() {
+		return queue.poll();
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public Overflow getOverflow() {
+		return overflow;
+	}
+
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+
+	public long getShedCount() {
+		return shed.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+
+	/**
+	 * Write the queue's configuration and counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.INBOUND_CAPACITY,capacity);
+		status.setProperty(Vocabulary.Status.INBOUND_OVERFLOW,overflow.toString());
+		status.setProperty(Vocabulary.Status.INBOUND_DEPTH,size());
+		status.setProperty(Vocabulary.Status.INBOUND_ACCEPTED,getAcceptedCount());
+		status.setProperty(Vocabulary.Status.INBOUND_SHED,getShedCount());
+		status.setProperty(Vocabulary.Status.INBOUND_REJECTED,getRejectedCount());
+	}
+
+}
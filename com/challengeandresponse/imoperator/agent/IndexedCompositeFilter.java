@@ -0,0 +1,344 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+
+import com.challengeandresponse.appstack.AppStack;
+import com.challengeandresponse.appstack.AppStackPathI;
+
+/**
+ * The agent's IQ filter: accepts a packet if its class is one of the recognized classes (or one of the other
+ * include filters accepts it), and none of the exclude filters accepts it. This is what a CompositeFilter of
+ * PacketClassFilters does, without trying each class in turn: the packet's class is looked up in a map, so the
+ * cost doesn't grow with the number of classes an agent recognizes. Classes match exactly, as the UniversalIQProvider
+ * makes objects of exactly the registered class.
+ *
+ * <p>Exclude filters are tried in order of how often they have rejected packets lately, most often first,
+ * so the usual rejections cost one test. The order is worked out again every REORDER_INTERVAL packets
+ * that get as far as the exclude filters. The filters' results are combined the same way whatever the order,
+ * so reordering changes only the cost.</p>
+ *
+ * <p>Every recognized class counts its hits, and every exclude filter counts the packets it was tried on and
+ * the ones it rejected, for tuning. BaseAgent shows them at getStatus/filters/*, see get(). The counts are per
+ * packet only if each packet is counted once, so where the same packets go through the filter more than once
+ * (a PacketCollector and PacketListeners on one connection), only one registration should use the filter itself,
+ * and the others uncounted(), which decides the same way without counting or reordering. BaseAgent counts at its
+ * PacketCollector, or in deliverIQ() in component mode, and counts each object unpacked from an MMBatch as
+ * if it had arrived alone, as ClassMetrics does.</p>
+ *
+ * <p>accept() may be called from several threads at once. Adding and removing filters copies the tables, so
+ * it is meant for setup, not for every packet.</p>
+ *
+ * @author jim
+ */
+public class IndexedCompositeFilter
+implements PacketFilter {
+
+	public static final String HITS = "hits";
+	public static final String CHECKS = "checks";
+	public static final String REJECTIONS = "rejections";
+	public static final String INCLUDES = "includes";
+	public static final String EXCLUDES = "excludes";
+	public static final String ACCEPTED = "accepted";
+	public static final String UNRECOGNIZED = "unrecognized";
+	public static final String REORDERS = "reorders";
+
+	/** how many packets reach the exclude filters between reorderings */
+	public static final int REORDER_INTERVAL = 1024;
+
+	/**
+	 * An exclude filter and its counters. The window counts are since the last reordering, and decide the next one.
+	 */
+	private static class Exclude {
+		final PacketFilter filter;
+		final AtomicLong checks = new AtomicLong(0);
+		final AtomicLong rejections = new AtomicLong(0);
+		long windowChecks;		// the totals at the last reordering
+		long windowRejections;
+		double rate;			// rejections per check in the last window
+
+		Exclude(PacketFilter filter) {
+			this.filter = filter;
+		}
+	}
+
+
+	private volatile Map <Class<?>,AtomicLong> includes;	// recognized class -> its hits. Replaced, never changed.
+	private volatile PacketFilter[] otherIncludes;		// include filters that aren't classes, tried in turn on a miss
+	private volatile Exclude[] excludes;				// in the order they're tried. Replaced, never changed.
+
+	private final AtomicLong accepted;
+	private final AtomicLong unrecognized;
+	private final AtomicLong sinceReorder;
+	private long reorders;
+
+	private final PacketFilter uncounted;
+
+	public IndexedCompositeFilter() {
+		this.includes = new HashMap <Class<?>,AtomicLong> ();
+		this.otherIncludes = new PacketFilter[0];
+		this.excludes = new Exclude[0];
+		this.accepted = new AtomicLong(0);
+		this.unrecognized = new AtomicLong(0);
+		this.sinceReorder = new AtomicLong(0);
+		this.reorders = 0;
+		this.uncounted = new PacketFilter() {
+			public boolean accept(Packet packet) {
+				return evaluate(packet, false);
+			}
+		};
+	}
+
+
+	/**
+	 * Accept packets of exactly this class
+	 */
+	public synchronized void addIncludeClass(Class<?> c) {
+		if ((c == null) || includes.containsKey(c))
+			return;
+		Map <Class<?>,AtomicLong> m = new HashMap <Class<?>,AtomicLong> (includes);
+		m.put(c, new AtomicLong(0));
+		includes = m;
+	}
+
+	/**
+	 * Accept packets that this filter accepts. Tried, in the order added, only for packets whose class isn't
+	 * recognized, so recognized classes should be added with addIncludeClass().
+	 */
+	public synchronized void addIncludeFilter(PacketFilter pf) {
+		if (pf == null)
+			return;
+		PacketFilter[] a = Arrays.copyOf(otherIncludes, otherIncludes.length + 1);
+		a[a.length - 1] = pf;
+		otherIncludes = a;
+	}
+
+	/**
+	 * Reject packets that this filter accepts, even if they are included
+	 */
+	public synchronized void addExcludeFilter(PacketFilter pf) {
+		if (pf == null)
+			return;
+		Exclude[] a = Arrays.copyOf(excludes, excludes.length + 1);
+		a[a.length - 1] = new Exclude(pf);
+		excludes = a;
+	}
+
+	public synchronized void removeExcludeFilter(PacketFilter pf) {
+		List <Exclude> l = new ArrayList <Exclude> (Arrays.asList(excludes));
+		Iterator <Exclude> it = l.iterator();
+		while (it.hasNext()) {
+			if (it.next().filter == pf)
+				it.remove();
+		}
+		excludes = l.toArray(new Exclude[l.size()]);
+	}
+
+
+	/**
+	 * Decide, and count the packet. See uncounted() for filtering the same packet again.
+	 */
+	public boolean accept(Packet packet) {
+		return evaluate(packet, true);
+	}
+
+	/**
+	 * @return a filter that decides as this one does, without counting or reordering, for a second
+	 * listener on packets this filter already counts
+	 */
+	public PacketFilter uncounted() {
+		return uncounted;
+	}
+
+	private boolean evaluate(Packet packet, boolean count) {
+		if (packet == null)
+			return false;
+		AtomicLong hits = includes.get(packet.getClass());
+		if (hits != null) {
+			if (count)
+				hits.incrementAndGet();
+		}
+		else if (! acceptedByOther(packet)) {
+			if (count)
+				unrecognized.incrementAndGet();
+			return false;
+		}
+		Exclude[] ex = excludes;
+		if (ex.length == 0) {
+			if (count)
+				accepted.incrementAndGet();
+			return true;
+		}
+		boolean rejected = false;
+		for (int i = 0; (i < ex.length) && (! rejected); i++) {
+			if (count)
+				ex[i].checks.incrementAndGet();
+			if (ex[i].filter.accept(packet)) {
+				if (count)
+					ex[i].rejections.incrementAndGet();
+				rejected = true;
+			}
+		}
+		if (! count)
+			return (! rejected);
+		if (! rejected)
+			accepted.incrementAndGet();
+		if ((ex.length > 1) && (sinceReorder.incrementAndGet() >= REORDER_INTERVAL))
+			reorder();
+		return (! rejected);
+	}
+
+	private boolean acceptedByOther(Packet packet) {
+		PacketFilter[] other = otherIncludes;
+		for (int i = 0; i < other.length; i++) {
+			if (other[i].accept(packet))
+				return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Sort the exclude filters by their rejection rate over the last window, highest first.
+	 * Filters that rejected nothing keep their order, behind the rest.
+	 */
+	private synchronized void reorder() {
+		if (sinceReorder.get() < REORDER_INTERVAL)
+			return;	// another thread just did it
+		sinceReorder.set(0);
+		Exclude[] a = excludes.clone();
+		for (int i = 0; i < a.length; i++) {
+			long c = a[i].checks.get();
+			long r = a[i].rejections.get();
+			long dc = c - a[i].windowChecks;
+			long dr = r - a[i].windowRejections;
+			a[i].windowChecks = c;
+			a[i].windowRejections = r;
+			// a filter that wasn't tried at all this window keeps its last rate
+			if (dc > 0)
+				a[i].rate = (double) dr / (double) dc;
+		}
+		// a stable sort, so equal rates keep their order
+		Arrays.sort(a, new Comparator <Exclude> () {
+			public int compare(Exclude x, Exclude y) {
+				return Double.compare(y.rate, x.rate);
+			}
+		});
+		excludes = a;
+		reorders++;
+	}
+
+
+	/** @return the number of packets accepted */
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+
+	/** @return the number of packets whose class wasn't recognized, and no other include filter accepted */
+	public long getUnrecognizedCount() {
+		return unrecognized.get();
+	}
+
+	/** @return the number of times the exclude filters have been reordered */
+	public synchronized long getReorderCount() {
+		return reorders;
+	}
+
+	/**
+	 * @return the exclude filters, in the order they are tried now
+	 */
+	public List <PacketFilter> getExcludeOrder() {
+		Exclude[] ex = excludes;
+		List <PacketFilter> l = new ArrayList <PacketFilter> (ex.length);
+		for (int i = 0; i < ex.length; i++)
+			l.add(ex[i].filter);
+		return l;
+	}
+
+
+	/**
+	 * A point-in-time copy of the counters: recognized class name -> hits (sorted by name), exclude filter -> its
+	 * checks and rejections (in the order they are tried), and the totals. The maps returned are copies.
+	 */
+	public Map <String,Object> snapshot() {
+		Map <String,Object> m = new LinkedHashMap <String,Object> ();
+		m.put(ACCEPTED, getAcceptedCount());
+		m.put(UNRECOGNIZED, getUnrecognizedCount());
+		m.put(REORDERS, getReorderCount());
+		m.put(INCLUDES, includeHits());
+		m.put(EXCLUDES, excludeCounts());
+		return m;
+	}
+
+	private Map <String,Long> includeHits() {
+		Map <String,Long> m = new TreeMap <String,Long> ();
+		Iterator <Map.Entry<Class<?>,AtomicLong>> it = includes.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Class<?>,AtomicLong> e = it.next();
+			m.put(e.getKey().getName(), Long.valueOf(e.getValue().get()));
+		}
+		return m;
+	}
+
+	private Map <String,Map<String,Long>> excludeCounts() {
+		Map <String,Map<String,Long>> m = new LinkedHashMap <String,Map<String,Long>> ();
+		Exclude[] ex = excludes;
+		for (int i = 0; i < ex.length; i++) {
+			Map <String,Long> counts = new LinkedHashMap <String,Long> ();
+			counts.put(CHECKS, Long.valueOf(ex[i].checks.get()));
+			counts.put(REJECTIONS, Long.valueOf(ex[i].rejections.get()));
+			m.put(ex[i].filter.toString(), counts);
+		}
+		return m;
+	}
+
+
+	/**
+	 * AppStack-style lookup for getStatus/filters/...<br />
+	 * filters/* returns the whole snapshot, filters/? lists its keys, and filters/includes (or excludes,
+	 * accepted, unrecognized, reorders) returns one part. A further element selects one class or filter,
+	 * e.g. filters/includes/MMObject, by full or simple class name, or by the filter's toString().
+	 * @param aspi the path, positioned after "filters"
+	 * @return the matching value, or null if nothing matches
+	 */
+	@SuppressWarnings("unchecked")
+	public Object get(AppStackPathI aspi) {
+		if (! aspi.hasNext())
+			return null;
+		Map <String,Object> snapshot = snapshot();
+		String s = aspi.popNext();
+		if (AppStack.getGetAllSymbol().equals(s))
+			return snapshot;
+		else if (AppStack.getGetParamsSymbol().equals(s))
+			return snapshot.keySet();
+		Object part = snapshot.get(s);
+		if ((! (part instanceof Map)) || (! aspi.hasNext()))
+			return part;
+		Map <String,Object> m = (Map <String,Object>) part;
+		s = aspi.popNext();
+		if (AppStack.getGetAllSymbol().equals(s))
+			return m;
+		else if (AppStack.getGetParamsSymbol().equals(s))
+			return m.keySet();
+		if (m.containsKey(s))
+			return m.get(s);
+		// a class by its simple name
+		Iterator <Map.Entry<String,Object>> it = m.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String,Object> e = it.next();
+			if (e.getKey().endsWith("."+s) || e.getKey().endsWith("$"+s))
+				return e.getValue();
+		}
+		return null;
+	}
+
+
+	public String toString() {
+		return "IndexedCompositeFilter includes="+includes.keySet()+" otherIncludes="+otherIncludes.length
+			+ " excludes="+getExcludeOrder();
+	}
+
+}
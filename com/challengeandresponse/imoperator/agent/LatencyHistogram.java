@@ -0,0 +1,149 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, for tracking latency percentiles in the run loop
+ * and the IQ handlers without slowing them down.
+ *
+ * <p>Durations are recorded in nanoseconds into logarithmic buckets: each power of two is
+ * split into 16 equal sub-buckets, so any recorded value is off by at most 1/16 (about 6%)
+ * from the value its bucket reports. Values below 16ns are counted exactly. That covers
+ * everything up to Long.MAX_VALUE in under a thousand buckets, with a fixed footprint and no
+ * allocation per record().</p>
+ *
+ * <p>record() may be called from any number of threads at once. Reads (percentiles, summaries)
+ * are not atomic snapshots: a record() racing with a read may or may not be included.</p>
+ *
+ * @author jim
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int N_BUCKETS = SUB_COUNT + (64 - SUB_BITS) * SUB_COUNT;
+
+	public static final String COUNT = "count";
+	public static final String MEAN_USEC = "meanUsec";
+	public static final String MAX_USEC = "maxUsec";
+	public static final String P50_USEC = "p50Usec";
+	public static final String P99_USEC = "p99Usec";
+	public static final String P999_USEC = "p999Usec";
+
+	private final AtomicLongArray buckets;
+	private final AtomicLong count;
+	private final AtomicLong total;
+	private final AtomicLong max;
+
+
+	public LatencyHistogram() {
+		buckets = new AtomicLongArray(N_BUCKETS);
+		count = new AtomicLong(0);
+		total = new AtomicLong(0);
+		max = new AtomicLong(0);
+	}
+
+
+	/**
+	 * Record one duration. Negative values (from a clock that stepped backwards) count as 0.
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(bucketFor(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long m = max.get();
+		while ((nanos > m) && (! max.compareAndSet(m, nanos)))
+			m = max.get();
+	}
+
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return total.get();
+	}
+
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	public long getMeanNanos() {
+		long n = count.get();
+		return (n == 0) ? 0 : (total.get() / n);
+	}
+
+
+	/**
+	 * @param fraction the percentile wanted, as a fraction: 0.5 for the median, 0.99 for p99, etc.
+	 * @return the duration in nanoseconds that the given fraction of recorded values are at or below, or 0 if nothing has been recorded
+	 */
+	public long getPercentileNanos(double fraction) {
+		long n = 0;
+		long[] snapshot = new long[N_BUCKETS];
+		for (int i = 0; i < N_BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(fraction * n);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < N_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValueIn(i), max.get());
+		}
+		return max.get();
+	}
+
+
+	/**
+	 * @return count, mean, max and the p50/p99/p999 percentiles, with durations in microseconds, in a map that prints well over chat
+	 */
+	public Map <String,Object> getSummary() {
+		Map <String,Object> m = new LinkedHashMap <String,Object> ();
+		m.put(COUNT,getCount());
+		m.put(MEAN_USEC,getMeanNanos() / 1000);
+		m.put(MAX_USEC,getMaxNanos() / 1000);
+		m.put(P50_USEC,getPercentileNanos(0.5) / 1000);
+		m.put(P99_USEC,getPercentileNanos(0.99) / 1000);
+		m.put(P999_USEC,getPercentileNanos(0.999) / 1000);
+		return m;
+	}
+
+
+
+	static int bucketFor(long v) {
+		if (v < SUB_COUNT)
+			return (int) v;
+		int shift = (63 - Long.numberOfLeadingZeros(v)) - SUB_BITS;
+		int sub = (int) (v >>> shift) & (SUB_COUNT - 1);
+		return SUB_COUNT + shift * SUB_COUNT + sub;
+	}
+
+	static long lowestValueIn(int bucket) {
+		if (bucket < SUB_COUNT)
+			return bucket;
+		int shift = (bucket - SUB_COUNT) / SUB_COUNT;
+		int sub = (bucket - SUB_COUNT) % SUB_COUNT;
+		return ((long) (SUB_COUNT + sub)) << shift;
+	}
+
+	static long highestValueIn(int bucket) {
+		if (bucket < SUB_COUNT)
+			return bucket;
+		int shift = (bucket - SUB_COUNT) / SUB_COUNT;
+		return lowestValueIn(bucket) + (1L << shift) - 1;
+	}
+
+}
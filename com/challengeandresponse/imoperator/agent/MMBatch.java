@@ -0,0 +1,155 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
+
+/**
+ * An envelope carrying many MMObjects to one recipient in a single IQ, so a busy producer pays
+ * for one stanza's framing, routing and UniversalIQProvider parse instead of one per object.
+ *
+ * <p>The envelope's object is a List of Items: each holds one MMObject's payload (its getObject())
+ * and the name of its class, so that unpack() can give the receiver back an object of the class that was sent.
+ * Only the payloads travel; the MMObjects' own packet IDs and addresses are replaced by the envelope's.</p>
+ *
+ * <p>Batches are built by an MMBatcher, through BaseAgent.sendMMObject(), and unpacked by the BaseAgent
+ * that receives them. See BaseAgent.setMMBatching() and BaseAgent.setBatchDelivery().</p>
+ *
+ * @author jim
+ */
+public class MMBatch extends MMObject {
+
+	/**
+	 * One MMObject in a batch
+	 */
+	public static class Item
+	implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		public final String type;	// the MMObject's class name
+		public final Object object;	// its payload
+
+		public Item(String type, Object object) {
+			this.type = type;
+			this.object = object;
+		}
+
+		// for codecs that make the object first and fill its fields after
+		private Item() {
+			this(null, null);
+		}
+	}
+
+	// MMObject class name -> its (Object) constructor
+	private static final ConcurrentMap <String,Constructor<? extends MMObject>> constructors =
+		new ConcurrentHashMap <String,Constructor<? extends MMObject>> ();
+
+
+	/**
+	 * This is the constructor the UniversalIQProvider uses, as for any MMObject.
+	 * @param items a List of Items
+	 */
+	public MMBatch(Object items) {
+		super(items);
+	}
+
+	/**
+	 * @param objects the MMObjects to carry, in order
+	 * @return an envelope with each object's class and payload
+	 */
+	public static MMBatch wrap(List <? extends MMObject> objects) {
+		ArrayList <Item> items = new ArrayList <Item> (objects.size());
+		for (int i = 0; i < objects.size(); i++) {
+			MMObject mmo = objects.get(i);
+			items.add(new Item(mmo.getClass().getName(), mmo.getObject()));
+		}
+		return new MMBatch(items);
+	}
+
+
+	/**
+	 * @return the Items carried, never null
+	 */
+	@SuppressWarnings("unchecked")
+	public List <Item> getItems() {
+		Object o = getObject();
+		if (o instanceof List)
+			return (List <Item>) o;
+		return new ArrayList <Item> ();
+	}
+
+	public int size() {
+		return getItems().size();
+	}
+
+
+	/**
+	 * Turn the envelope back into the MMObjects it carries, in the order they were sent.
+	 * Each has the envelope's type, to and from, and a packet ID made from the envelope's and its position.
+	 * An item whose class isn't an MMObject with an (Object) constructor in this JVM comes back as a plain MMObject.
+	 * @return the MMObjects
+	 */
+	public List <MMObject> unpack() {
+		List <Item> items = getItems();
+		List <MMObject> result = new ArrayList <MMObject> (items.size());
+		for (int i = 0; i < items.size(); i++) {
+			Object o = items.get(i);
+			MMObject mmo = (o instanceof Item) ? instantiate(((Item) o).type, ((Item) o).object) : new MMObject(o);
+			mmo.setType(getType());
+			mmo.setTo(getTo());
+			mmo.setFrom(getFrom());
+			if (getPacketID() != null)
+				mmo.setPacketID(getPacketID()+"-"+(i+1));
+			result.add(mmo);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Make an MMObject of the named class around a payload, or a plain MMObject if the class isn't
+	 * an MMObject with an (Object) constructor in this JVM
+	 * @param type the class name
+	 * @param object the payload
+	 */
+	static MMObject instantiate(String type, Object object) {
+		if ((type == null) || MMObject.class.getName().equals(type))
+			return new MMObject(object);
+		try {
+			return constructorFor(type).newInstance(object);
+		}
+		catch (Exception e) {
+			return new MMObject(object);
+		}
+	}
+
+	/**
+	 * Only MMObject classes are made from a name that came over the wire: anything else gets the MMObject constructor.
+	 */
+	private static Constructor <? extends MMObject> constructorFor(String type)
+	throws NoSuchMethodException {
+		Constructor <? extends MMObject> c = constructors.get(type);
+		if (c != null)
+			return c;
+		try {
+			Class <?> cls = Class.forName(type, false, MMBatch.class.getClassLoader());
+			if (MMObject.class.isAssignableFrom(cls))
+				c = cls.asSubclass(MMObject.class).getConstructor(Object.class);
+		}
+		catch (ClassNotFoundException cnfe) {
+		}
+		catch (NoSuchMethodException nsme) {
+		}
+		// names that don't resolve aren't kept, so junk from the wire can't fill the map
+		if (c == null)
+			return MMObject.class.getConstructor(Object.class);
+		constructors.putIfAbsent(type, c);
+		return c;
+	}
+
+}
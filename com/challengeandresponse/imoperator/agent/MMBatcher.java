@@ -0,0 +1,280 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.packet.IQ;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+import com.challengeandresponse.imoperator.comm.SimpleXMPPException;
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * Gathers the MMObjects an agent sends to each recipient, and sends them together in MMBatch envelopes.
+ *
+ * <p>Objects handed to send() are queued by recipient, and a background thread sends everything waiting
+ * when the oldest object has waited windowMsec, or as soon as any one recipient has maxBatch objects waiting.
+ * Each recipient's objects go out in one MMBatch (or several, of at most maxBatch each); a recipient with
+ * only one object waiting gets it as it is, with no envelope. An envelope has one IQ type, which its objects
+ * get back when it is unpacked, so a change of type in a recipient's queue starts a new envelope.</p>
+ *
+ * <p>Objects for any one recipient are sent in the order they were queued. Envelopes go out through the
+ * agent's sendIQ(), so they are held for unavailable recipients, or resent after a lost connection,
+ * as any other IQ the agent sends. Envelopes sendIQ() refuses are logged, and their objects counted as failed.</p>
+ *
+ * @author jim
+ */
+public class MMBatcher {
+
+	private final BaseAgent agent;
+	private final EventLoggerI el;
+	private final long windowMsec;
+	private final int maxBatch;
+
+	// recipient -> its objects waiting, in order. Recipients are sent to in the order they first queued something.
+	private Map <String,List<MMObject>> pending;
+	private int depth;
+	private long oldestQueuedAt;
+	private boolean full;		// some recipient has maxBatch objects waiting
+	private boolean closed;
+
+	// held while a batch is being sent, so batches go out one at a time and in order
+	private final Object sendLock;
+	private final Thread flusher;
+
+	private final AtomicLong queued;
+	private final AtomicLong sent;
+	private final AtomicLong envelopes;
+	private final AtomicLong unbatched;
+	private final AtomicLong failed;
+
+
+	/**
+	 * @param agent the agent to send through
+	 * @param el an event logger for send failures
+	 * @param windowMsec the longest an object waits before it is sent
+	 * @param maxBatch the most objects in one envelope, and the number waiting for one recipient that triggers a send
+	 */
+	public MMBatcher(BaseAgent agent, EventLoggerI el, long windowMsec, int maxBatch) {
+		if (windowMsec < 0)
+			throw new IllegalArgumentException("windowMsec must not be negative");
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be at least 1");
+		this.agent = agent;
+		this.el = el;
+		this.windowMsec = windowMsec;
+		this.maxBatch = maxBatch;
+		this.pending = new LinkedHashMap <String,List<MMObject>> ();
+		this.depth = 0;
+		this.full = false;
+		this.closed = false;
+		this.sendLock = new Object();
+		this.queued = new AtomicLong(0);
+		this.sent = new AtomicLong(0);
+		this.envelopes = new AtomicLong(0);
+		this.unbatched = new AtomicLong(0);
+		this.failed = new AtomicLong(0);
+		this.flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "mm-batcher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+
+	/**
+	 * Queue an object for a recipient
+	 * @param to the recipient's JID
+	 * @param mmo the object. Its packet ID, if it has one, is not kept.
+	 */
+	public void send(String to, MMObject mmo) {
+		synchronized (this) {
+			if (closed) {
+				failed.incrementAndGet();
+				return;
+			}
+			queued.incrementAndGet();
+			List <MMObject> l = pending.get(to);
+			if (l == null) {
+				l = new ArrayList <MMObject> ();
+				pending.put(to, l);
+			}
+			l.add(mmo);
+			if (depth++ == 0) {
+				oldestQueuedAt = System.currentTimeMillis();
+				notifyAll();
+			}
+			if ((l.size() >= maxBatch) && (! full)) {
+				full = true;
+				notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * Send everything waiting now, on the calling thread
+	 */
+	public void flush() {
+		synchronized (sendLock) {
+			Map <String,List<MMObject>> batch = take();
+			if (batch != null)
+				send(batch);
+		}
+	}
+
+
+	/**
+	 * Send whatever is waiting, and stop. Objects queued after close() are refused and counted as failed.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join(Math.max(1000, windowMsec * 2));
+		}
+		catch (InterruptedException ie) {
+		}
+		flush();
+	}
+
+
+	private synchronized Map <String,List<MMObject>> take() {
+		if (depth == 0)
+			return null;
+		Map <String,List<MMObject>> batch = pending;
+		pending = new LinkedHashMap <String,List<MMObject>> ();
+		depth = 0;
+		full = false;
+		return batch;
+	}
+
+
+	private void flushLoop() {
+		while (true) {
+			synchronized (this) {
+				try {
+					while ((! closed) && (depth == 0))
+						wait();
+					long wait = (oldestQueuedAt + windowMsec) - System.currentTimeMillis();
+					while ((! closed) && (wait > 0) && (! full)) {
+						wait(wait);
+						wait = (oldestQueuedAt + windowMsec) - System.currentTimeMillis();
+					}
+				}
+				catch (InterruptedException ie) {
+					return;
+				}
+			}
+			flush();
+			synchronized (this) {
+				if (closed && (depth == 0))
+					return;
+			}
+		}
+	}
+
+
+	private void send(Map <String,List<MMObject>> batch) {
+		Iterator <Map.Entry<String,List<MMObject>>> it = batch.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String,List<MMObject>> e = it.next();
+			List <MMObject> l = e.getValue();
+			int from = 0;
+			while (from < l.size()) {
+				// a run of objects of one type, at most maxBatch long
+				IQ.Type type = l.get(from).getType();
+				int to = from + 1;
+				while ((to < l.size()) && (to - from < maxBatch) && (l.get(to).getType() == type))
+					to++;
+				List <MMObject> chunk = l.subList(from, to);
+				from = to;
+				try {
+					if (chunk.size() == 1) {
+						agent.sendIQ(e.getKey(), chunk.get(0));
+						unbatched.incrementAndGet();
+					}
+					else {
+						MMBatch envelope = MMBatch.wrap(chunk);
+						envelope.setType(type);
+						agent.sendIQ(e.getKey(), envelope);
+						envelopes.incrementAndGet();
+					}
+					sent.addAndGet(chunk.size());
+				}
+				catch (SimpleXMPPException sxe) {
+					failed.addAndGet(chunk.size());
+					el.addEvent("MMBatcher could not send "+chunk.size()+" objects to "+e.getKey()+": "+sxe.getMessage());
+				}
+				catch (RuntimeException re) {
+					failed.addAndGet(chunk.size());
+					el.addEvent("MMBatcher could not send "+chunk.size()+" objects to "+e.getKey()+": "+re);
+				}
+			}
+		}
+	}
+
+
+	/** @return the number of objects waiting */
+	public synchronized int size() {
+		return depth;
+	}
+
+	public long getWindowMsec() {
+		return windowMsec;
+	}
+
+	public int getMaxBatch() {
+		return maxBatch;
+	}
+
+	/** @return the number of objects handed to send() */
+	public long getQueuedCount() {
+		return queued.get();
+	}
+
+	/** @return the number of objects sent, in envelopes or alone */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/** @return the number of MMBatch envelopes sent */
+	public long getEnvelopeCount() {
+		return envelopes.get();
+	}
+
+	/** @return the number of objects sent alone, because nothing else was waiting for their recipient */
+	public long getUnbatchedCount() {
+		return unbatched.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+
+	/**
+	 * Write the batcher's configuration and counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.MM_BATCH_WINDOW_MSEC,windowMsec);
+		status.setProperty(Vocabulary.Status.MM_BATCH_MAX,maxBatch);
+		status.setProperty(Vocabulary.Status.MM_BATCH_DEPTH,size());
+		status.setProperty(Vocabulary.Status.MM_BATCH_QUEUED,getQueuedCount());
+		status.setProperty(Vocabulary.Status.MM_BATCH_SENT,getSentCount());
+		status.setProperty(Vocabulary.Status.MM_BATCH_ENVELOPES,getEnvelopeCount());
+		status.setProperty(Vocabulary.Status.MM_BATCH_UNBATCHED,getUnbatchedCount());
+		status.setProperty(Vocabulary.Status.MM_BATCH_FAILED,getFailedCount());
+	}
+
+}
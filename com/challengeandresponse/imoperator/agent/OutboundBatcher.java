@@ -0,0 +1,315 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+import com.challengeandresponse.imoperator.comm.SimpleXMPPConnection;
+import com.challengeandresponse.imoperator.comm.SimpleXMPPException;
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * An outbound queue for an agent's chat replies, coalesced per recipient.
+ *
+ * <p>Chat messages handed to sendMessage() are queued, and a background thread sends the queue
+ * when the oldest message has waited windowMsec, or as soon as maxBatch recipients have one waiting.
+ * Chat messages to a recipient who already has a chat message waiting are appended to that
+ * message's body (separated by a newline) instead of being queued separately, so a burst of replies
+ * to one person goes out as one stanza: one serialization, one write. That is the only saving: the
+ * connection writes each stanza on its own, so holding anything else back would only delay it.</p>
+ *
+ * <p>Other stanzas therefore go straight to the connection, and the agent calls flushTo() first, so that a chat
+ * message waiting for the same recipient goes out ahead of them and stanzas for any one recipient still go out
+ * in the order they were handed over. Call flush() to send everything waiting right away, for replies where
+ * latency matters more than batching.</p>
+ *
+ * <p>Chat messages go out through SimpleXMPPConnection.sendMessage(), which checks the recipient's
+ * presence. Messages it refuses are logged and counted as failed; by then the caller has moved on.</p>
+ *
+ * @author jim
+ */
+public class OutboundBatcher {
+
+	/**
+	 * A queued chat message, whose body may still grow
+	 */
+	private static class Pending {
+		final String to;
+		final StringBuilder body;
+
+		Pending(String to, String body) {
+			this.to = to;
+			this.body = new StringBuilder(body);
+		}
+	}
+
+
+	private final SimpleXMPPConnection xmppc;
+	private final EventLoggerI el;
+	private final long windowMsec;
+	private final int maxBatch;
+
+	// the queue, in order, and each recipient's chat message that can still be appended to (at most one each)
+	private List <Pending> pending;
+	private final Map <String,Pending> openChat;
+	private long oldestQueuedAt;
+	private boolean closed;
+
+	// held while a batch is being sent, so batches go out one at a time and in order
+	private final Object sendLock;
+	private final Thread flusher;
+
+	private final AtomicLong queued;
+	private final AtomicLong coalesced;
+	private final AtomicLong sent;
+	private final AtomicLong batches;
+	private final AtomicLong failed;
+
+
+	/**
+	 * @param xmppc the connection to send on
+	 * @param el an event logger for send failures
+	 * @param windowMsec the longest a stanza waits before its batch is sent
+	 * @param maxBatch the number of waiting stanzas that triggers a send without waiting for the window
+	 */
+	public OutboundBatcher(SimpleXMPPConnection xmppc, EventLoggerI el, long windowMsec, int maxBatch) {
+		if (windowMsec < 0)
+			throw new IllegalArgumentException("windowMsec must not be negative");
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be at least 1");
+		this.xmppc = xmppc;
+		this.el = el;
+		this.windowMsec = windowMsec;
+		this.maxBatch = maxBatch;
+		this.pending = new ArrayList <Pending> ();
+		this.openChat = new HashMap <String,Pending> ();
+		this.closed = false;
+		this.sendLock = new Object();
+		this.queued = new AtomicLong(0);
+		this.coalesced = new AtomicLong(0);
+		this.sent = new AtomicLong(0);
+		this.batches = new AtomicLong(0);
+		this.failed = new AtomicLong(0);
+		this.flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "outbound-batcher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+
+	/**
+	 * Queue a chat message. If a chat message to the same recipient is already waiting, the body is added to it.
+	 * @param to the recipient
+	 * @param body the message text
+	 */
+	public void sendMessage(String to, String body) {
+		synchronized (this) {
+			if (closed) {
+				failed.incrementAndGet();
+				return;
+			}
+			queued.incrementAndGet();
+			Pending p = openChat.get(to);
+			if (p != null) {
+				p.body.append('\n').append(body);
+				coalesced.incrementAndGet();
+				return;
+			}
+			p = new Pending(to, body);
+			openChat.put(to, p);
+			add(p);
+		}
+	}
+
+	/**
+	 * Send the chat messages waiting for this recipient now, on the calling thread, and wait for a batch being
+	 * sent to finish. Call this before sending the recipient any other stanza, so it can't overtake them.
+	 * Recipients are matched by bare JID, so a message to any of the recipient's resources goes first.
+	 * @param to the recipient of the stanza about to be sent
+	 */
+	public void flushTo(String to) {
+		if (to == null)
+			return;
+		String bare = bareJid(to);
+		synchronized (sendLock) {
+			List <Pending> mine = null;
+			synchronized (this) {
+				Iterator <Pending> it = pending.iterator();
+				while (it.hasNext()) {
+					Pending p = it.next();
+					if (bare.equals(bareJid(p.to))) {
+						it.remove();
+						openChat.remove(p.to);
+						if (mine == null)
+							mine = new ArrayList <Pending> ();
+						mine.add(p);
+					}
+				}
+			}
+			if (mine != null) {
+				for (int i = 0; i < mine.size(); i++)
+					send(mine.get(i));
+			}
+		}
+	}
+
+	private static String bareJid(String jid) {
+		int slash = jid.indexOf('/');
+		return ((slash < 0) ? jid : jid.substring(0,slash)).toLowerCase();
+	}
+
+	// called holding the lock
+	private void add(Pending p) {
+		if (pending.isEmpty())
+			oldestQueuedAt = System.currentTimeMillis();
+		pending.add(p);
+		if ((pending.size() == 1) || (pending.size() >= maxBatch))
+			notifyAll();
+	}
+
+
+	/**
+	 * Send everything waiting now, on the calling thread. Returns when it has been handed to the connection.
+	 */
+	public void flush() {
+		synchronized (sendLock) {
+			List <Pending> batch = take();
+			if (batch != null)
+				send(batch);
+		}
+	}
+
+
+	/**
+	 * Send whatever is waiting, and stop. Stanzas queued after close() are refused and counted as failed.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join(Math.max(1000, windowMsec * 2));
+		}
+		catch (InterruptedException ie) {
+		}
+		flush();
+	}
+
+
+	private synchronized List <Pending> take() {
+		if (pending.isEmpty())
+			return null;
+		List <Pending> batch = pending;
+		pending = new ArrayList <Pending> ();
+		openChat.clear();
+		return batch;
+	}
+
+
+	private void flushLoop() {
+		while (true) {
+			synchronized (this) {
+				try {
+					while ((! closed) && pending.isEmpty())
+						wait();
+					long wait = (oldestQueuedAt + windowMsec) - System.currentTimeMillis();
+					while ((! closed) && (wait > 0) && (pending.size() < maxBatch)) {
+						wait(wait);
+						wait = (oldestQueuedAt + windowMsec) - System.currentTimeMillis();
+					}
+				}
+				catch (InterruptedException ie) {
+					return;
+				}
+			}
+			flush();
+			synchronized (this) {
+				if (closed && pending.isEmpty())
+					return;
+			}
+		}
+	}
+
+
+	private void send(List <Pending> batch) {
+		batches.incrementAndGet();
+		for (int i = 0; i < batch.size(); i++)
+			send(batch.get(i));
+	}
+
+	private void send(Pending p) {
+		try {
+			xmppc.sendMessage(p.to, p.body.toString());
+			sent.incrementAndGet();
+		}
+		catch (SimpleXMPPException sxe) {
+			failed.incrementAndGet();
+			el.addEvent("OutboundBatcher could not send to "+p.to+": "+sxe.getMessage());
+		}
+		catch (RuntimeException re) {
+			failed.incrementAndGet();
+			el.addEvent("OutboundBatcher could not send to "+p.to+": "+re);
+		}
+	}
+
+
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	public long getWindowMsec() {
+		return windowMsec;
+	}
+
+	public int getMaxBatch() {
+		return maxBatch;
+	}
+
+	/** @return the number of chat messages handed to sendMessage() */
+	public long getQueuedCount() {
+		return queued.get();
+	}
+
+	/** @return the number of chat messages that were appended to another, rather than sent on their own */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/** @return the number of stanzas actually sent */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+
+	/**
+	 * Write the batcher's configuration and counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.OUTBOUND_WINDOW_MSEC,windowMsec);
+		status.setProperty(Vocabulary.Status.OUTBOUND_MAX_BATCH,maxBatch);
+		status.setProperty(Vocabulary.Status.OUTBOUND_DEPTH,size());
+		status.setProperty(Vocabulary.Status.OUTBOUND_QUEUED,getQueuedCount());
+		status.setProperty(Vocabulary.Status.OUTBOUND_COALESCED,getCoalescedCount());
+		status.setProperty(Vocabulary.Status.OUTBOUND_SENT,getSentCount());
+		status.setProperty(Vocabulary.Status.OUTBOUND_BATCHES,getBatchCount());
+		status.setProperty(Vocabulary.Status.OUTBOUND_FAILED,getFailedCount());
+	}
+
+}
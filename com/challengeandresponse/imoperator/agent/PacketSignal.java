@@ -0,0 +1,121 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * PacketSignal is a PacketListener that does nothing with the packets it hears
+ * except note that they arrived. The BaseAgent registers one of these with the
+ * same filter as its PacketCollector, so the run loop can block in await() until
+ * there is something in the collector to process, instead of sleeping a fixed time.
+ *
+ * <p>Smack hands a packet to all PacketCollectors before it notifies any PacketListeners,
+ * so by the time await() returns because of an arrival, the packet is already
+ * waiting in the collector.</p>
+ *
+ * <p>An arrival that happens while nobody is waiting is remembered, so the next
+ * call to await() returns immediately and nothing is missed between passes.</p>
+ *
+ * <p>The signal waits on a java.util.concurrent lock rather than a monitor, so an agent
+ * run on a virtual thread (see AgentContainer) gives up its carrier thread while it waits.</p>
+ *
+ * @author jim
+ */
+public class PacketSignal
+implements PacketListener {
+
+	private final ReentrantLock lock;
+	private final Condition signalled;
+	private boolean pending;
+	private long arrivals;
+
+	public PacketSignal() {
+		this.lock = new ReentrantLock();
+		this.signalled = lock.newCondition();
+		this.pending = false;
+		this.arrivals = 0;
+	}
+
+
+	/**
+	 * Called by Smack for each packet that passes the filter this signal was registered with.
+	 */
+	public void processPacket(Packet packet) {
+		lock.lock();
+		try {
+			arrivals++;
+			pending = true;
+			signalled.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Wake up any thread blocked in await(), whether or not a packet has arrived.
+	 * Used at shutdown so the run loop doesn't sit out the rest of its timeout.
+	 */
+	public void wakeup() {
+		lock.lock();
+		try {
+			pending = true;
+			signalled.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Block until a packet arrives, wakeup() is called, or the timeout expires,
+	 * whichever comes first. The pending flag is cleared on return.
+	 *
+	 * @param timeoutMsec the longest time to wait, in milliseconds
+	 * @return true if the wait ended because of an arrival or a wakeup, false if it timed out.
+	 * An interrupt ends the wait early, with the thread's interrupt flag still set.
+	 */
+	public boolean await(long timeoutMsec) {
+		lock.lock();
+		try {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMsec);
+			while ((! pending) && (remaining > 0)) {
+				try {
+					remaining = signalled.awaitNanos(remaining);
+				}
+				catch (InterruptedException ie) {
+					// leave the interrupt for the caller to act on
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			boolean wasSignalled = pending;
+			pending = false;
+			return wasSignalled;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * @return the number of packets this signal has heard since it was created
+	 */
+	public long getArrivals() {
+		lock.lock();
+		try {
+			return arrivals;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+}
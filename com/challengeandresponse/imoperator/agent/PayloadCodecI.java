@@ -0,0 +1,34 @@
+package com.challengeandresponse.imoperator.agent;
+
+/**
+ * A way of turning an MMObject's payload into bytes and back, as an alternative to the XStream XML
+ * that UniversalIQ uses. Payloads encoded with a codec travel base64-encoded in a BinaryIQ, and the
+ * receiver finds the codec to decode them by name. Implementations must be thread safe.
+ *
+ * @author jim
+ */
+public interface PayloadCodecI {
+
+	/**
+	 * @return the codec's name, as advertised to peers in presence and carried in each BinaryIQ
+	 */
+	public String getName();
+
+	/**
+	 * @param o the object to encode, may be null
+	 * @return the encoded bytes
+	 * @throws CodecException if the object, or something it refers to, can't be encoded by this codec.
+	 * The caller falls back to XML.
+	 */
+	public byte[] encode(Object o)
+	throws CodecException;
+
+	/**
+	 * @param data bytes produced by encode()
+	 * @return the object
+	 * @throws CodecException if the bytes are malformed, or name a class that can't be made here
+	 */
+	public Object decode(byte[] data)
+	throws CodecException;
+
+}
@@ -0,0 +1,273 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.util.*;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * Keeps an agent's outbound stanzas that may not have reached their recipient, so they can be
+ * sent again when the connection comes back after being lost.
+ *
+ * <p>Two kinds of stanza are kept, in the order they were sent:<br />
+ * - get and set IQs that have been written to the connection while a request in the IQRequestTracker
+ * (a sendIQAsync() future) is waiting for their answer, until the answering result or error arrives.
+ * The answer is the acknowledgement: until it comes, the IQ may have been lost with the connection.<br />
+ * - any stanza sent while the connection is down, which couldn't be written at all.<br />
+ * </p>
+ *
+ * <p>Smack's connection has no stream-level acknowledgement, so a stanza that was written is known to have
+ * arrived only if it is answered. IQs nobody waits for (the usual fire-and-forget MMObject set), chats and
+ * results are not kept once written, and those written just before the connection dropped may be lost.
+ * Keeping them would mean sending every one of them again on every reconnect, as their answers never come.</p>
+ *
+ * <p>When the connection is back, takeForResend() hands over everything kept, oldest first, to be written
+ * again. Stanzas that were never written are then forgotten; IQs stay while their requests wait, in case the
+ * connection drops again, and an IQ whose request has ended (timed out, failed or cancelled) is dropped
+ * rather than sent again. An IQ that was received, but whose answer was lost, is delivered twice, so IQs
+ * sent with sendIQAsync() through an agent that reconnects should be safe to repeat.</p>
+ *
+ * <p>At most capacity stanzas are kept: past that the oldest is dropped (counted as overflowed). Stanzas
+ * older than ttlMsec, and IQs whose requests have ended, are dropped by purgeExpired(), so IQs that are never
+ * answered don't pile up.</p>
+ *
+ * <p>Register the buffer on the connection for IQs, so it sees the answers.</p>
+ *
+ * @author jim
+ */
+public class ResendBuffer
+implements PacketListener {
+
+	private static class Kept {
+		final Packet packet;
+		final String packetId;		// if not null, an IQ waiting for its answer
+		final long keptAt;
+
+		Kept(Packet packet, String packetId, long keptAt) {
+			this.packet = packet;
+			this.packetId = packetId;
+			this.keptAt = keptAt;
+		}
+	}
+
+
+	private final int capacity;
+	private final long ttlMsec;
+	private final IQRequestTracker requests;
+
+	private final LinkedHashMap <Long,Kept> kept;	// by sequence, oldest first
+	private final Map <String,Long> byPacketId;	// unanswered IQ's packet ID -> its sequence
+	private long nextSeq;
+
+	private long tracked;
+	private long queued;
+	private long acknowledged;
+	private long resent;
+	private long expired;
+	private long overflowed;
+
+
+	/**
+	 * @param capacity the most stanzas kept
+	 * @param ttlMsec how long a stanza is kept before purgeExpired() drops it
+	 * @param requests the agent's requests: a written IQ is kept only while one of them waits for its answer
+	 */
+	public ResendBuffer(int capacity, long ttlMsec, IQRequestTracker requests) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1");
+		if (ttlMsec <= 0)
+			throw new IllegalArgumentException("ttlMsec must be positive");
+		this.capacity = capacity;
+		this.ttlMsec = ttlMsec;
+		this.requests = requests;
+		this.kept = new LinkedHashMap <Long,Kept> ();
+		this.byPacketId = new HashMap <String,Long> ();
+		this.nextSeq = 1;
+	}
+
+
+	/**
+	 * Note a stanza that is about to be written to the connection. Get and set IQs that a request
+	 * is waiting on are kept until answered; anything else isn't kept. Call this before writing, so an
+	 * answer that arrives quickly isn't missed.
+	 */
+	public synchronized void sending(Packet p) {
+		String id = awaitsAnswer(p) ? p.getPacketID() : null;
+		if (id == null)
+			return;
+		Long seq = add(p, id);
+		byPacketId.put(id, seq);
+		tracked++;
+	}
+
+	/**
+	 * Forget a stanza passed to sending() that couldn't be written after all
+	 */
+	public synchronized void notSent(Packet p) {
+		String id = p.getPacketID();
+		if (id == null)
+			return;
+		Long seq = byPacketId.remove(id);
+		if (seq != null)
+			kept.remove(seq);
+	}
+
+	/**
+	 * Keep a stanza that couldn't be written because the connection is down
+	 */
+	public synchronized void queue(Packet p) {
+		String id = awaitsAnswer(p) ? p.getPacketID() : null;
+		Long seq = add(p, id);
+		if (id != null)
+			byPacketId.put(id, seq);
+		queued++;
+	}
+
+	private Long add(Packet p, String id) {
+		Long seq = Long.valueOf(nextSeq++);
+		kept.put(seq, new Kept(p, id, System.currentTimeMillis()));
+		while (kept.size() > capacity) {
+			Iterator <Kept> it = kept.values().iterator();
+			Kept oldest = it.next();
+			it.remove();
+			if (oldest.packetId != null)
+				byPacketId.remove(oldest.packetId);
+			overflowed++;
+		}
+		return seq;
+	}
+
+	/**
+	 * @return true if the stanza is a get or set IQ that a request is waiting on
+	 */
+	private boolean awaitsAnswer(Packet p) {
+		if (! (p instanceof IQ))
+			return false;
+		IQ.Type t = ((IQ) p).getType();
+		return ((t == IQ.Type.GET) || (t == IQ.Type.SET)) && requests.isPending(p.getPacketID());
+	}
+
+
+	/**
+	 * An IQ arrived: if it answers one that is kept, that one has been delivered
+	 */
+	public void processPacket(Packet packet) {
+		if (! (packet instanceof IQ))
+			return;
+		IQ.Type t = ((IQ) packet).getType();
+		if ((t == IQ.Type.RESULT) || (t == IQ.Type.ERROR))
+			acknowledge(packet.getPacketID());
+	}
+
+	/**
+	 * The IQ with this packet ID has been answered
+	 */
+	public synchronized void acknowledge(String packetId) {
+		if (packetId == null)
+			return;
+		Long seq = byPacketId.remove(packetId);
+		if ((seq != null) && (kept.remove(seq) != null))
+			acknowledged++;
+	}
+
+
+	/**
+	 * Everything kept, oldest first, for writing to the connection again. Unanswered IQs stay kept
+	 * while their requests wait; IQs whose requests have ended are dropped, and everything else is forgotten.
+	 */
+	public synchronized List <Packet> takeForResend() {
+		List <Packet> result = new ArrayList <Packet> (kept.size());
+		Iterator <Kept> it = kept.values().iterator();
+		while (it.hasNext()) {
+			Kept k = it.next();
+			if ((k.packetId != null) && (! requests.isPending(k.packetId))) {
+				it.remove();
+				byPacketId.remove(k.packetId);
+				expired++;
+				continue;
+			}
+			result.add(k.packet);
+			if (k.packetId == null)
+				it.remove();
+		}
+		resent += result.size();
+		return result;
+	}
+
+
+	/**
+	 * Drop stanzas kept longer than ttlMsec, and IQs whose requests are no longer waiting
+	 * @return the number dropped
+	 */
+	public synchronized int purgeExpired() {
+		long cutoff = System.currentTimeMillis() - ttlMsec;
+		int n = 0;
+		Iterator <Kept> it = kept.values().iterator();
+		while (it.hasNext()) {
+			Kept k = it.next();
+			if ((k.keptAt >= cutoff) && ((k.packetId == null) || requests.isPending(k.packetId)))
+				continue;
+			it.remove();
+			if (k.packetId != null)
+				byPacketId.remove(k.packetId);
+			n++;
+		}
+		expired += n;
+		return n;
+	}
+
+
+	/** @return the number of stanzas kept now */
+	public synchronized int size() {
+		return kept.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** @return the number of sent IQs kept to wait for their answer, because a request waits for it */
+	public synchronized long getTrackedCount() {
+		return tracked;
+	}
+
+	/** @return the number of stanzas kept because the connection was down */
+	public synchronized long getQueuedCount() {
+		return queued;
+	}
+
+	public synchronized long getAcknowledgedCount() {
+		return acknowledged;
+	}
+
+	public synchronized long getResentCount() {
+		return resent;
+	}
+
+	public synchronized long getExpiredCount() {
+		return expired;
+	}
+
+	public synchronized long getOverflowedCount() {
+		return overflowed;
+	}
+
+
+	/**
+	 * Write the buffer's counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.RESEND_KEPT,size());
+		status.setProperty(Vocabulary.Status.RESEND_TRACKED,getTrackedCount());
+		status.setProperty(Vocabulary.Status.RESEND_QUEUED,getQueuedCount());
+		status.setProperty(Vocabulary.Status.RESEND_ACKNOWLEDGED,getAcknowledgedCount());
+		status.setProperty(Vocabulary.Status.RESEND_RESENT,getResentCount());
+		status.setProperty(Vocabulary.Status.RESEND_EXPIRED,getExpiredCount());
+		status.setProperty(Vocabulary.Status.RESEND_OVERFLOWED,getOverflowedCount());
+	}
+
+}
@@ -0,0 +1,155 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Helpers for copying XML stanzas out of a pull parser as text, so they can be
+ * routed on without being turned into objects and back. Used by the agent's ComponentConnection,
+ * and by the LoopbackServer.
+ *
+ * <p>The parser must have namespace processing turned OFF, so that xmlns declarations
+ * come through as ordinary attributes and prefixed names (stream:features) keep their prefix.
+ * The copy is then the same XML, apart from whitespace and the attribute quoting.</p>
+ *
+ * @author jim
+ */
+public class StanzaXml {
+
+	private StanzaXml() {
+	}
+
+
+	/**
+	 * Copy the element the parser is positioned on (a START_TAG), including everything inside it,
+	 * and leave the parser on its END_TAG.
+	 *
+	 * @param parser a parser positioned on a START_TAG
+	 * @param replaceAttributes attribute values to use on the outermost element instead of the ones it has, 
+	 * added if it doesn't have them. A null value removes the attribute. May be null.
+	 * @return the element as XML text
+	 */
+	public static String copyElement(XmlPullParser parser, Map <String,String> replaceAttributes)
+	throws XmlPullParserException, IOException {
+		StringBuilder sb = new StringBuilder(256);
+		int depth = parser.getDepth();
+		openTag(sb, parser, replaceAttributes);
+		int event = parser.next();
+		while (! ((event == XmlPullParser.END_TAG) && (parser.getDepth() == depth))) {
+			switch (event) {
+			case XmlPullParser.START_TAG:
+				openTag(sb, parser, null);
+				break;
+			case XmlPullParser.END_TAG:
+				sb.append("</").append(parser.getName()).append('>');
+				break;
+			case XmlPullParser.TEXT:
+				escape(sb, parser.getText(), false);
+				break;
+			case XmlPullParser.END_DOCUMENT:
+				throw new IOException("Stream ended inside <"+parser.getName()+">");
+			default:
+				break;
+			}
+			event = parser.next();
+		}
+		sb.append("</").append(parser.getName()).append('>');
+		return sb.toString();
+	}
+
+
+	/**
+	 * Skip over the element the parser is positioned on, leaving the parser on its END_TAG
+	 */
+	public static void skipElement(XmlPullParser parser)
+	throws XmlPullParserException, IOException {
+		int depth = parser.getDepth();
+		int event = parser.next();
+		while (! ((event == XmlPullParser.END_TAG) && (parser.getDepth() == depth))) {
+			if (event == XmlPullParser.END_DOCUMENT)
+				throw new IOException("Stream ended inside an element");
+			event = parser.next();
+		}
+	}
+
+
+	/**
+	 * @return the value of the named attribute on the current START_TAG, or null. Names are matched exactly, prefix included.
+	 */
+	public static String attribute(XmlPullParser parser, String name) {
+		int n = parser.getAttributeCount();
+		for (int i = 0; i < n; i++) {
+			if (name.equals(parser.getAttributeName(i)))
+				return parser.getAttributeValue(i);
+		}
+		return null;
+	}
+
+
+	/**
+	 * Append s to sb with the XML special characters escaped
+	 * @param inAttribute true to escape quotes as well, for attribute values
+	 */
+	public static void escape(StringBuilder sb, String s, boolean inAttribute) {
+		if (s == null)
+			return;
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '"':
+				sb.append(inAttribute ? "&quot;" : "\"");
+				break;
+			case '\'':
+				sb.append(inAttribute ? "&apos;" : "'");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+
+	public static String escape(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 16);
+		escape(sb, s, true);
+		return sb.toString();
+	}
+
+
+	private static void openTag(StringBuilder sb, XmlPullParser parser, Map <String,String> replace) {
+		sb.append('<').append(parser.getName());
+		int n = parser.getAttributeCount();
+		for (int i = 0; i < n; i++) {
+			String name = parser.getAttributeName(i);
+			if ((replace != null) && replace.containsKey(name))
+				continue;
+			attribute(sb, name, parser.getAttributeValue(i));
+		}
+		if (replace != null) {
+			for (Map.Entry <String,String> e : replace.entrySet()) {
+				if (e.getValue() != null)
+					attribute(sb, e.getKey(), e.getValue());
+			}
+		}
+		sb.append('>');
+	}
+
+	private static void attribute(StringBuilder sb, String name, String value) {
+		sb.append(' ').append(name).append("=\"");
+		escape(sb, value, true);
+		sb.append('"');
+	}
+
+}
@@ -0,0 +1,472 @@
+package com.challengeandresponse.imoperator.agent;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+import com.challengeandresponse.imoperator.comm.SimpleXMPPConnection;
+import com.challengeandresponse.imoperator.comm.SimpleXMPPException;
+import com.challengeandresponse.utils.PropertyThang;
+
+/**
+ * Holds stanzas for recipients who are unavailable, and sends them when the recipient comes back.
+ *
+ * <p>SimpleXMPPConnection refuses to send to an addressee whose last known presence is unavailable.
+ * sendIQ() and sendMessage() here try the connection first, and if it refuses because the recipient is
+ * unavailable (by the roster), keep the stanza for the recipient instead of handing the exception back to
+ * the caller to retry. A refusal for any other reason is thrown, as no presence will come to release the stanza. When an available
+ * presence arrives from the recipient (any resource of its bare JID), everything held for it is sent
+ * in one burst, oldest first. Once something is held for a recipient, later stanzas for that recipient
+ * are held behind it rather than sent, so they arrive in the order they were sent.</p>
+ *
+ * <p>Each recipient's first memoryThreshold stanzas are kept in memory. Past that they spill to a file per
+ * recipient in the spill directory, and past maxPerRecipient they are refused (counted as overflowed).
+ * Held stanzas expire ttlMsec after they were sent; expired stanzas are dropped at the next flush,
+ * or by purgeExpired().</p>
+ *
+ * <p>Register the queue for presence packets with attach() once the connection is up. If the agent resends
+ * after a reconnect, give the queue its ResendBuffer with setResendBuffer(), so the IQs it writes are noted there.</p>
+ *
+ * @author jim
+ */
+public class StoreAndForwardQueue
+implements PacketListener {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SPILL_SUFFIX = ".spill";
+
+	/**
+	 * A packet read back from a spill file: sent as the XML it was stored as
+	 */
+	private static class StoredPacket extends Packet {
+		private final String xml;
+
+		StoredPacket(String xml) {
+			this.xml = xml;
+		}
+
+		public String toXML() {
+			return xml;
+		}
+	}
+
+	private static class Held {
+		final Packet packet;
+		final long expires;
+
+		Held(Packet packet, long expires) {
+			this.packet = packet;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Everything held for one bare JID
+	 */
+	private static class Recipient {
+		final String bareJid;
+		final LinkedList <Held> memory;
+		File spill;
+		int spilled;		// entries in the spill file
+		long lastExpiry;	// the latest expiry time of anything spilled
+
+		Recipient(String bareJid) {
+			this.bareJid = bareJid;
+			this.memory = new LinkedList <Held> ();
+		}
+
+		int size() {
+			return memory.size() + spilled;
+		}
+	}
+
+
+	private final SimpleXMPPConnection xmppc;
+	private final EventLoggerI el;
+	private final File spillDirectory;
+	private final int memoryThreshold;
+	private final int maxPerRecipient;
+	private final long ttlMsec;
+
+	private final Map <String,Recipient> recipients;	// bare JID -> held stanzas
+	private ResendBuffer resend;
+
+	private long held;
+	private long spilledCount;
+	private long forwarded;
+	private long expired;
+	private long overflowed;
+
+
+	/**
+	 * @param xmppc the connection to send on
+	 * @param el an event logger for spill-file problems
+	 * @param spillDirectory where stanzas past memoryThreshold are written, one file per recipient
+	 * @param memoryThreshold the most stanzas kept in memory for one recipient
+	 * @param maxPerRecipient the most stanzas held for one recipient, in memory and on disk together
+	 * @param ttlMsec how long a stanza is held before it is dropped
+	 */
+	public StoreAndForwardQueue(SimpleXMPPConnection xmppc, EventLoggerI el, File spillDirectory,
+			int memoryThreshold, int maxPerRecipient, long ttlMsec) {
+		if (memoryThreshold < 0)
+			throw new IllegalArgumentException("memoryThreshold must not be negative");
+		if (maxPerRecipient < 1)
+			throw new IllegalArgumentException("maxPerRecipient must be at least 1");
+		if (ttlMsec <= 0)
+			throw new IllegalArgumentException("ttlMsec must be positive");
+		this.xmppc = xmppc;
+		this.el = el;
+		this.spillDirectory = spillDirectory;
+		this.memoryThreshold = memoryThreshold;
+		this.maxPerRecipient = maxPerRecipient;
+		this.ttlMsec = ttlMsec;
+		this.recipients = new HashMap <String,Recipient> ();
+	}
+
+
+	/**
+	 * Note each stanza written to the connection in this buffer, as BaseAgent.sendPacket() does,
+	 * so IQs lost with the connection are sent again after a reconnect
+	 * @param resend the agent's ResendBuffer, or null
+	 */
+	public synchronized void setResendBuffer(ResendBuffer resend) {
+		this.resend = resend;
+	}
+
+
+	/**
+	 * Start listening for presence packets, to know when recipients come back
+	 */
+	public void attach() {
+		xmppc.getXMPPConnection().addPacketListener(this, new PacketTypeFilter(Presence.class));
+	}
+
+
+	/**
+	 * Send an IQ, or hold it if the recipient is unavailable or already has stanzas held
+	 * @param to the recipient's JID
+	 * @param iq the IQ
+	 * @return true if it was sent or held, false if it was refused because the recipient's hold is full
+	 * @throws SimpleXMPPException if the connection refused it while the recipient is available
+	 */
+	public boolean sendIQ(String to, IQ iq)
+	throws SimpleXMPPException {
+		iq.setTo(to);
+		synchronized (this) {
+			if (isHolding(to))
+				return hold(to, iq);
+			if (resend != null)
+				resend.sending(iq);
+			try {
+				xmppc.sendIQ(to, iq, true);
+				return true;
+			}
+			catch (SimpleXMPPException sxe) {
+				if (resend != null)
+					resend.notSent(iq);
+				if (! isUnavailable(to))
+					throw sxe;
+				return hold(to, iq);
+			}
+		}
+	}
+
+
+	/**
+	 * Send a chat message, or hold it if the recipient is unavailable or already has stanzas held
+	 * @param to the recipient's JID
+	 * @param body the message text
+	 * @return true if it was sent or held, false if it was refused because the recipient's hold is full
+	 * @throws SimpleXMPPException if the connection refused it while the recipient is available
+	 */
+	public boolean sendMessage(String to, String body)
+	throws SimpleXMPPException {
+		synchronized (this) {
+			if (isHolding(to))
+				return hold(to, chat(to, body));
+			try {
+				xmppc.sendMessage(to, body);
+				return true;
+			}
+			catch (SimpleXMPPException sxe) {
+				if (! isUnavailable(to))
+					throw sxe;
+				return hold(to, chat(to, body));
+			}
+		}
+	}
+
+	/**
+	 * @return true if the roster's presence for the recipient is unavailable, which is the refusal worth
+	 * holding for: an available presence will come to release the stanza
+	 */
+	private boolean isUnavailable(String to) {
+		try {
+			Presence p = xmppc.getXMPPConnection().getRoster().getPresence(to);
+			return (p == null) || (p.getType() != Presence.Type.available);
+		}
+		catch (RuntimeException re) {
+			// no connection or roster to ask: the refusal wasn't about the recipient
+			return false;
+		}
+	}
+
+	private static Message chat(String to, String body) {
+		Message m = new Message(to, Message.Type.chat);
+		m.setBody(body);
+		return m;
+	}
+
+
+	/**
+	 * Called by Smack for each presence packet. An available presence sends whatever is held for the sender.
+	 */
+	public void processPacket(Packet packet) {
+		Presence p = (Presence) packet;
+		if ((p.getType() != Presence.Type.available) || (p.getFrom() == null))
+			return;
+		flush(bareJid(p.getFrom()));
+	}
+
+
+	/**
+	 * Send everything held for a recipient now, dropping anything that has expired
+	 * @param jid the recipient's JID, with or without a resource
+	 * @return the number of stanzas sent
+	 */
+	public synchronized int flush(String jid) {
+		Recipient r = recipients.remove(bareJid(jid));
+		if (r == null)
+			return 0;
+		long now = System.currentTimeMillis();
+		int n = 0;
+		Iterator <Held> it = r.memory.iterator();
+		while (it.hasNext()) {
+			Held h = it.next();
+			if (h.expires > now) {
+				send(h.packet);
+				n++;
+			}
+			else {
+				expired++;
+			}
+		}
+		if (r.spill != null) {
+			n += flushSpill(r, now);
+			if (! r.spill.delete())
+				el.addEvent("StoreAndForwardQueue could not delete "+r.spill);
+		}
+		forwarded += n;
+		return n;
+	}
+
+
+	/**
+	 * Drop held stanzas that have expired, and forget recipients with nothing left.
+	 * Spilled stanzas are only dropped once everything in the spill file has expired.
+	 */
+	public synchronized void purgeExpired() {
+		long now = System.currentTimeMillis();
+		Iterator <Recipient> it = recipients.values().iterator();
+		while (it.hasNext()) {
+			Recipient r = it.next();
+			while ((! r.memory.isEmpty()) && (r.memory.getFirst().expires <= now)) {
+				r.memory.removeFirst();
+				expired++;
+			}
+			if ((r.spill != null) && (r.lastExpiry <= now)) {
+				expired += r.spilled;
+				if (! r.spill.delete())
+					el.addEvent("StoreAndForwardQueue could not delete "+r.spill);
+				r.spill = null;
+				r.spilled = 0;
+			}
+			if (r.size() == 0)
+				it.remove();
+		}
+	}
+
+
+	private boolean isHolding(String to) {
+		return recipients.containsKey(bareJid(to));
+	}
+
+	// called holding the lock
+	private boolean hold(String to, Packet packet) {
+		String bare = bareJid(to);
+		Recipient r = recipients.get(bare);
+		if (r == null) {
+			r = new Recipient(bare);
+			recipients.put(bare, r);
+		}
+		if (r.size() >= maxPerRecipient) {
+			overflowed++;
+			return false;
+		}
+		long expires = System.currentTimeMillis() + ttlMsec;
+		if ((r.memory.size() < memoryThreshold) && (r.spilled == 0)) {
+			r.memory.add(new Held(packet, expires));
+		}
+		else if (! spill(r, packet, expires)) {
+			overflowed++;
+			return false;
+		}
+		held++;
+		return true;
+	}
+
+
+	/**
+	 * Append a stanza to a recipient's spill file
+	 * @return false if it couldn't be written
+	 */
+	private boolean spill(Recipient r, Packet packet, long expires) {
+		try {
+			if (r.spill == null) {
+				if ((! spillDirectory.isDirectory()) && (! spillDirectory.mkdirs()))
+					throw new IOException("Could not create "+spillDirectory);
+				r.spill = new File(spillDirectory, URLEncoder.encode(r.bareJid, "UTF-8")+SPILL_SUFFIX);
+			}
+			// the first entry truncates, so a file left by an earlier run, or one that couldn't be deleted, isn't read back as ours
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(r.spill, r.spilled > 0)));
+			try {
+				byte[] xml = packet.toXML().getBytes(UTF8);
+				out.writeLong(expires);
+				out.writeInt(xml.length);
+				out.write(xml);
+			}
+			finally {
+				out.close();
+			}
+			r.spilled++;
+			r.lastExpiry = expires;
+			spilledCount++;
+			return true;
+		}
+		catch (IOException ioe) {
+			el.addEvent("StoreAndForwardQueue could not spill a stanza for "+r.bareJid+": "+ioe.getMessage());
+			return false;
+		}
+	}
+
+
+	/**
+	 * Send the unexpired stanzas in a recipient's spill file
+	 * @return the number sent
+	 */
+	private int flushSpill(Recipient r, long now) {
+		int n = 0;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(r.spill)));
+			try {
+				for (int i = 0; i < r.spilled; i++) {
+					long expires = in.readLong();
+					byte[] xml = new byte[in.readInt()];
+					in.readFully(xml);
+					if (expires > now) {
+						send(new StoredPacket(new String(xml, UTF8)));
+						n++;
+					}
+					else {
+						expired++;
+					}
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException ioe) {
+			el.addEvent("StoreAndForwardQueue could not read "+r.spill+": "+ioe.getMessage());
+		}
+		return n;
+	}
+
+
+	private void send(Packet p) {
+		if (resend != null)
+			resend.sending(p);
+		try {
+			xmppc.getXMPPConnection().sendPacket(p);
+		}
+		catch (RuntimeException re) {
+			if (resend != null)
+				resend.notSent(p);
+			el.addEvent("StoreAndForwardQueue could not forward to "+p.getTo()+": "+re);
+		}
+	}
+
+
+	/**
+	 * @param jid a JID
+	 * @return the JID lowercased, without its resource
+	 */
+	private static String bareJid(String jid) {
+		int slash = jid.indexOf('/');
+		return ((slash < 0) ? jid : jid.substring(0,slash)).toLowerCase();
+	}
+
+
+	/** @return the number of recipients with stanzas held */
+	public synchronized int getRecipientCount() {
+		return recipients.size();
+	}
+
+	/** @return the number of stanzas held now, in memory and on disk */
+	public synchronized int size() {
+		int n = 0;
+		Iterator <Recipient> it = recipients.values().iterator();
+		while (it.hasNext())
+			n += it.next().size();
+		return n;
+	}
+
+	/** @return the number of stanzas that have been held */
+	public synchronized long getHeldCount() {
+		return held;
+	}
+
+	/** @return the number of held stanzas that were written to a spill file */
+	public synchronized long getSpilledCount() {
+		return spilledCount;
+	}
+
+	/** @return the number of held stanzas sent when their recipient came back */
+	public synchronized long getForwardedCount() {
+		return forwarded;
+	}
+
+	public synchronized long getExpiredCount() {
+		return expired;
+	}
+
+	/** @return the number of stanzas refused because their recipient's hold was full */
+	public synchronized long getOverflowedCount() {
+		return overflowed;
+	}
+
+
+	/**
+	 * Write the queue's counters into an agent's status structure.
+	 * @param status the agent's status PropertyThang
+	 */
+	public void reportStatus(PropertyThang status) {
+		status.setProperty(Vocabulary.Status.STORE_FORWARD_RECIPIENTS,getRecipientCount());
+		status.setProperty(Vocabulary.Status.STORE_FORWARD_DEPTH,size());
+		status.setProperty(Vocabulary.Status.STORE_FORWARD_HELD,getHeldCount());
+		status.setProperty(Vocabulary.Status.STORE_FORWARD_SPILLED,getSpilledCount());
+		status.setProperty(Vocabulary.Status.STORE_FORWARD_FORWARDED,getForwardedCount());
+		status.setProperty(Vocabulary.Status.STORE_FORWARD_EXPIRED,getExpiredCount());
+		status.setProperty(Vocabulary.Status.STORE_FORWARD_OVERFLOWED,getOverflowedCount());
+	}
+
+}
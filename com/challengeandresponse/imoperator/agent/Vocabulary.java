@@ -4,13 +4,129 @@ public class Vocabulary {
 	
 	public static final class Status {
 		public static final String LOOP_SLEEP_TIME = 	"loopSleepTime";
+		public static final String EVENT_DISPATCH =	"eventDispatch";
 		public static final String AGENT_START_TIME =	"agentStartTime";
 		public static final String RUNTIME_LAST_PASS = "runtimeLastPass";
 		public static final String RUNTIME_TOTAL = 	"runtimeTotal";
 		public static final String RUNTIME_NRUNS = 	"runtimeNRuns";
 		public static final String RUNTIME_MEAN = 		"runtimeMean";
+		public static final String LATENCY =			"latency";
+		public static final String CLASSES =			"classes";
+		public static final String FILTERS =			"filters";
 		
 		public static final String	AGENT_JID =			"jid";
+		
+		public static final String IQ_POOL_SIZE =			"iqPoolSize";
+		public static final String IQ_POOL_VIRTUAL =		"iqPoolVirtual";
+		public static final String IQ_POOL_ACTIVE =		"iqPoolActive";
+		public static final String IQ_POOL_QUEUE_DEPTH =	"iqPoolQueueDepth";
+		public static final String IQ_POOL_QUEUE_CAPACITY =	"iqPoolQueueCapacity";
+		public static final String IQ_POOL_COMPLETED =		"iqPoolCompleted";
+		public static final String IQ_LANES =				"iqLanes";
+		public static final String IQ_LANE_QUEUE_CAPACITY =	"iqLaneQueueCapacity";
+		public static final String IQ_LANE_QUEUE_DEPTHS =	"iqLaneQueueDepths";
+		
+		public static final String INBOUND_CAPACITY =		"inboundCapacity";
+		public static final String INBOUND_OVERFLOW =		"inboundOverflow";
+		public static final String INBOUND_DEPTH =			"inboundDepth";
+		public static final String INBOUND_ACCEPTED =		"inboundAccepted";
+		public static final String INBOUND_SHED =			"inboundShed";
+		public static final String INBOUND_REJECTED =		"inboundRejected";
+		
+		public static final String OUTBOUND_WINDOW_MSEC =	"outboundWindowMsec";
+		public static final String OUTBOUND_MAX_BATCH =		"outboundMaxBatch";
+		public static final String OUTBOUND_DEPTH =			"outboundDepth";
+		public static final String OUTBOUND_QUEUED =		"outboundQueued";
+		public static final String OUTBOUND_COALESCED =		"outboundCoalesced";
+		public static final String OUTBOUND_SENT =			"outboundSent";
+		public static final String OUTBOUND_BATCHES =		"outboundBatches";
+		public static final String OUTBOUND_FAILED =		"outboundFailed";
+		
+		public static final String RESULT_CACHE_SIZE =		"resultCacheSize";
+		public static final String RESULT_CACHE_MAX_ENTRIES =	"resultCacheMaxEntries";
+		public static final String RESULT_CACHE_HITS =		"resultCacheHits";
+		public static final String RESULT_CACHE_MISSES =	"resultCacheMisses";
+		public static final String RESULT_CACHE_EVICTIONS =	"resultCacheEvictions";
+		
+		public static final String CHECKPOINT_FILE =		"checkpointFile";
+		public static final String CHECKPOINT_COUNT =		"checkpointCount";
+		public static final String CHECKPOINT_RECORDS =		"checkpointRecords";
+		public static final String CHECKPOINT_SKIPPED =		"checkpointSkipped";
+		public static final String CHECKPOINT_LOG_SIZE =	"checkpointLogSize";
+		
+		public static final String JOURNAL_DIRECTORY =		"journalDirectory";
+		public static final String JOURNAL_PENDING =		"journalPending";
+		public static final String JOURNAL_APPENDED =		"journalAppended";
+		public static final String JOURNAL_DONE =			"journalDone";
+		public static final String JOURNAL_COMMITS =		"journalCommits";
+		public static final String JOURNAL_RECOVERED =		"journalRecovered";
+		public static final String JOURNAL_SEGMENTS =		"journalSegments";
+		
+		public static final String STORE_FORWARD_RECIPIENTS =	"storeForwardRecipients";
+		public static final String STORE_FORWARD_DEPTH =	"storeForwardDepth";
+		public static final String STORE_FORWARD_HELD =		"storeForwardHeld";
+		public static final String STORE_FORWARD_SPILLED =	"storeForwardSpilled";
+		public static final String STORE_FORWARD_FORWARDED =	"storeForwardForwarded";
+		public static final String STORE_FORWARD_EXPIRED =	"storeForwardExpired";
+		public static final String STORE_FORWARD_OVERFLOWED =	"storeForwardOverflowed";
+		
+		public static final String COMPONENT_DOMAIN =		"componentDomain";
+		public static final String COMPONENT_ROUTES =		"componentRoutes";
+		public static final String COMPONENT_RECEIVED =	"componentReceived";
+		public static final String COMPONENT_UNROUTABLE =	"componentUnroutable";
+		public static final String COMPONENT_SENT =		"componentSent";
+		
+		public static final String CONNECTION_LOST =		"connectionLost";
+		public static final String RECONNECTS =			"reconnects";
+		public static final String RECONNECT_ATTEMPTS =	"reconnectAttempts";
+		public static final String RECONNECT_LAST_OUTAGE_MSEC =	"reconnectLastOutageMsec";
+		public static final String RESEND_KEPT =			"resendKept";
+		public static final String RESEND_TRACKED =		"resendTracked";
+		public static final String RESEND_QUEUED =			"resendQueued";
+		public static final String RESEND_ACKNOWLEDGED =	"resendAcknowledged";
+		public static final String RESEND_RESENT =			"resendResent";
+		public static final String RESEND_EXPIRED =		"resendExpired";
+		public static final String RESEND_OVERFLOWED =		"resendOverflowed";
+		
+		public static final String REQUESTS_PENDING =		"requestsPending";
+		public static final String REQUESTS_SENT =			"requestsSent";
+		public static final String REQUESTS_ANSWERED =		"requestsAnswered";
+		public static final String REQUESTS_ERRORS =		"requestsErrors";
+		public static final String REQUESTS_TIMED_OUT =	"requestsTimedOut";
+		public static final String REQUESTS_CANCELLED =	"requestsCancelled";
+		
+		public static final String MM_BATCH_WINDOW_MSEC =	"mmBatchWindowMsec";
+		public static final String MM_BATCH_MAX =			"mmBatchMax";
+		public static final String MM_BATCH_DEPTH =		"mmBatchDepth";
+		public static final String MM_BATCH_QUEUED =		"mmBatchQueued";
+		public static final String MM_BATCH_SENT =			"mmBatchSent";
+		public static final String MM_BATCH_ENVELOPES =	"mmBatchEnvelopes";
+		public static final String MM_BATCH_UNBATCHED =	"mmBatchUnbatched";
+		public static final String MM_BATCH_FAILED =		"mmBatchFailed";
+		public static final String BATCHES_RECEIVED =		"batchesReceived";
+		public static final String BATCH_ITEMS_UNPACKED =	"batchItemsUnpacked";
+		public static final String BATCH_ITEMS_REJECTED =	"batchItemsRejected";
+		
+		public static final String CODEC_NAME =			"codecName";
+		public static final String CODEC_PEERS =			"codecPeers";
+		public static final String CODEC_BINARY_SENT =		"codecBinarySent";
+		public static final String CODEC_BINARY_BYTES =	"codecBinaryBytes";
+		public static final String CODEC_XML_SENT =		"codecXmlSent";
+		public static final String CODEC_ENCODE_FAILURES =	"codecEncodeFailures";
+		// the BinaryIQProvider's, for every agent in the JVM
+		public static final String CODEC_DECODED =			"codecDecoded";
+		public static final String CODEC_DECODE_FAILURES =	"codecDecodeFailures";
+		
+		// an AgentContainer's summary of each hosted agent
+		public static final String AGENT_STATE =			"agentState";
+		public static final String AGENT_THREAD =			"agentThread";
+		public static final String AGENT_RESTARTS =		"agentRestarts";
+		public static final String AGENT_UPTIME_MSEC =		"agentUptimeMsec";
+		public static final String AGENT_LOOP_MSEC =		"agentLoopMsec";
+		public static final String AGENT_HANDLER_MSEC =	"agentHandlerMsec";
+		public static final String AGENT_IQS_HANDLED =		"agentIQsHandled";
+		public static final String AGENT_CPU_MSEC =		"agentCpuMsec";
+		public static final String AGENT_LAST_FAILURE =	"agentLastFailure";
 	}
 	
 	
@@ -20,6 +136,12 @@ public class Vocabulary {
 		public static final String SHUTDOWN = 		"shutdown";
 		public static final String GET_STATUS = 	"getStatus";
 		public static final String DATE = 			"date";
+		
+		// AgentContainer
+		public static final String AGENTS =			"agents";
+		public static final String AGENT_STATUS =		"agentStatus";
+		public static final String START_AGENT =		"startAgent";
+		public static final String STOP_AGENT =		"stopAgent";
 	}
 
 }
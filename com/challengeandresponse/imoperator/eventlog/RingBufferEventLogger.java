@@ -0,0 +1,248 @@
+package com.challengeandresponse.imoperator.eventlog;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+
+/**
+ * An EventLoggerI that never makes the caller wait for the disk.
+ *
+ * <p>addEvent() puts the event into a preallocated ring buffer and returns. A background
+ * writer thread takes events out of the ring and hands them to another EventLoggerI
+ * (typically a TextfileEventLogger) which does the actual writing. Packet dispatch threads
+ * that log are then only as slow as a couple of atomic operations.</p>
+ *
+ * <p>addEvent(prefix, detail) defers building the message: the prefix and the detail object are
+ * stored as they are, and prefix + detail.toString() is only worked out by the writer thread.
+ * Callers pass e.g. ("Packet as string: ", packet) rather than concatenating, so the toString()
+ * and the concatenation are off the hot path. The detail object must not be changed after it is logged.</p>
+ *
+ * <p>The writer sleeps while the ring is empty, and the producer that publishes to it wakes the writer.</p>
+ *
+ * <p>If the ring fills up because the writer can't keep up, new events are dropped and counted
+ * rather than blocking the caller. See getDroppedCount().</p>
+ *
+ * <p>getLastN() first waits (briefly) for the writer to catch up with everything logged so far, then
+ * asks the wrapped logger, so "tail" still shows the most recent events.</p>
+ *
+ * <p>Call close() at shutdown to write out whatever is still in the ring.</p>
+ *
+ * @author jim
+ */
+public class RingBufferEventLogger
+implements EventLoggerI {
+
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	/** how long getLastN() and close() will wait for the writer to catch up */
+	private static final long FLUSH_TIMEOUT_MSEC = 2000;
+
+	private final EventLoggerI target;
+	private final int capacity;
+	private final int mask;
+
+	// the ring. A slot holds a message prefix and an optional detail object.
+	// published[i] holds the sequence number of the event last written into slot i,
+	// which is how the writer knows a claimed slot has been filled in
+	private final String[] prefixes;
+	private final Object[] details;
+	private final AtomicLongArray published;
+
+	private final AtomicLong claimed;		// next sequence number to hand to a producer
+	private volatile long consumed;			// next sequence number the writer will take
+	private final AtomicLong dropped;
+
+	private final Thread writer;
+	private volatile boolean running;
+	private volatile boolean writerParked;	// set by the writer before it parks on an empty ring, so producers know to wake it
+
+
+	/**
+	 * @param target the logger that does the actual writing
+	 */
+	public RingBufferEventLogger(EventLoggerI target) {
+		this(target, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param target the logger that does the actual writing
+	 * @param capacity the number of events the ring holds, rounded up to a power of two
+	 */
+	public RingBufferEventLogger(EventLoggerI target, int capacity) {
+		if (target == null)
+			throw new IllegalArgumentException("target logger must not be null");
+		if (capacity < 2)
+			throw new IllegalArgumentException("capacity must be at least 2");
+		int c = Integer.highestOneBit(capacity);
+		if (c < capacity)
+			c <<= 1;
+		this.target = target;
+		this.capacity = c;
+		this.mask = c - 1;
+		this.prefixes = new String[c];
+		this.details = new Object[c];
+		this.published = new AtomicLongArray(c);
+		for (int i = 0; i < c; i++)
+			published.set(i, -1);
+		this.claimed = new AtomicLong(0);
+		this.consumed = 0;
+		this.dropped = new AtomicLong(0);
+		this.running = true;
+		this.writerParked = false;
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "event-log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+
+	/**
+	 * Log an event. Returns without waiting for it to be written.
+	 */
+	public void addEvent(String s) {
+		addEvent(s, null);
+	}
+
+	/**
+	 * Log an event whose text is prefix followed by String.valueOf(detail). The concatenation and
+	 * detail.toString() are done later, by the writer thread.
+	 * @param prefix the fixed part of the message
+	 * @param detail an object to append to the message, or null for none
+	 */
+	public void addEvent(String prefix, Object detail) {
+		long seq;
+		do {
+			seq = claimed.get();
+			if ((seq - consumed >= capacity) || (! running)) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (! claimed.compareAndSet(seq, seq + 1));
+		int slot = (int) (seq & mask);
+		prefixes[slot] = prefix;
+		details[slot] = detail;
+		// a full write, not lazySet(), so that either this sees writerParked or the writer sees the event
+		published.set(slot, seq);
+		if (writerParked)
+			LockSupport.unpark(writer);
+	}
+
+
+	/**
+	 * Log a deferred event to el. If el is a RingBufferEventLogger, the message is built later
+	 * on its writer thread; any other logger gets the concatenated message now.
+	 */
+	public static void addEvent(EventLoggerI el, String prefix, Object detail) {
+		if (el instanceof RingBufferEventLogger)
+			((RingBufferEventLogger) el).addEvent(prefix, detail);
+		else
+			el.addEvent(prefix + detail);
+	}
+
+
+	/**
+	 * Waits for the writer to write everything logged before the call, then returns the wrapped logger's last n events
+	 */
+	public List <String> getLastN(int n) {
+		flush(FLUSH_TIMEOUT_MSEC);
+		return target.getLastN(n);
+	}
+
+
+	/**
+	 * Wait until every event logged before this call has been handed to the wrapped logger
+	 * @param timeoutMsec the longest to wait
+	 * @return true if everything was written, false if the wait timed out
+	 */
+	public boolean flush(long timeoutMsec) {
+		long upTo = claimed.get();
+		long deadline = System.currentTimeMillis() + timeoutMsec;
+		while (consumed < upTo) {
+			if ((! writer.isAlive()) || (System.currentTimeMillis() > deadline))
+				return false;
+			LockSupport.unpark(writer);
+			Thread.yield();
+		}
+		return true;
+	}
+
+
+	/**
+	 * Stop accepting events, write out the ones already in the ring, and stop the writer thread
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(FLUSH_TIMEOUT_MSEC);
+		}
+		catch (InterruptedException ie) {
+		}
+	}
+
+
+	/**
+	 * @return the number of events thrown away because the ring was full, or the logger was closed
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of events waiting to be written
+	 */
+	public long getBacklog() {
+		return claimed.get() - consumed;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+
+
+	private void writeLoop() {
+		long seq = consumed;
+		while (true) {
+			int slot = (int) (seq & mask);
+			if (published.get(slot) == seq) {
+				String prefix = prefixes[slot];
+				Object detail = details[slot];
+				// let go of the references now, so logged packets aren't kept alive by the ring
+				prefixes[slot] = null;
+				details[slot] = null;
+				seq++;
+				consumed = seq;
+				write(prefix, detail);
+			}
+			else if (running || (seq < claimed.get())) {
+				// sleep until a producer, flush() or close() unparks us. Checked again after writerParked
+				// is set, so an event published in between isn't slept through
+				writerParked = true;
+				if ((published.get(slot) != seq) && running)
+					LockSupport.park(this);
+				writerParked = false;
+			}
+			else {
+				break;
+			}
+		}
+	}
+
+	private void write(String prefix, Object detail) {
+		try {
+			target.addEvent((detail == null) ? prefix : prefix + detail);
+		}
+		catch (RuntimeException re) {
+			// a detail's toString() or the target logger failed. Keep the writer alive for the next event.
+			dropped.incrementAndGet();
+		}
+	}
+
+}
@@ -0,0 +1,355 @@
+package com.challengeandresponse.imoperator.loopback;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Map;
+
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.challengeandresponse.imoperator.agent.StanzaXml;
+
+/**
+ * One client connection to a LoopbackServer. Runs the client's side of the
+ * conversation on its own thread: stream setup, SASL PLAIN login, resource binding,
+ * then reading stanzas and handing them to the server for routing.
+ *
+ * @author jim
+ */
+class ClientSession
+implements Runnable {
+
+	private static final String NS_SASL = "urn:ietf:params:xml:ns:xmpp-sasl";
+	private static final String NS_BIND = "urn:ietf:params:xml:ns:xmpp-bind";
+	private static final String NS_SESSION = "urn:ietf:params:xml:ns:xmpp-session";
+	private static final String NS_ROSTER = "jabber:iq:roster";
+	private static final String NS_PING = "urn:xmpp:ping";
+
+	private final LoopbackServer server;
+	private final Socket socket;
+	private final Writer writer;
+	private final String streamId;
+
+	private Reader reader;
+	private XmlPullParser parser;
+
+	private String username;	// set by a successful login
+	private String jid;			// full JID, set by binding a resource
+	private volatile String presenceXml;	// the last available presence this client broadcast, or null if unavailable
+	private volatile boolean closed;
+
+
+	ClientSession(LoopbackServer server, Socket socket, String streamId)
+	throws IOException {
+		this.server = server;
+		this.socket = socket;
+		this.streamId = streamId;
+		this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+		this.username = null;
+		this.jid = null;
+		this.presenceXml = null;
+		this.closed = false;
+	}
+
+
+	public void run() {
+		try {
+			reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			openStream();
+			int event = parser.next();
+			while (! closed) {
+				if ((event == XmlPullParser.START_TAG) && (parser.getDepth() == 2))
+					handleTopLevel();
+				else if ((event == XmlPullParser.END_TAG) && (parser.getDepth() == 1))
+					break;	// </stream:stream>
+				else if (event == XmlPullParser.END_DOCUMENT)
+					break;
+				if (! closed)
+					event = parser.next();
+			}
+		}
+		catch (Exception e) {
+			// the client went away, or sent something we can't parse. Either way the session is over.
+		}
+		finally {
+			close();
+		}
+	}
+
+
+	/**
+	 * Wait for the client's stream header, then answer with ours and the features
+	 * that apply at this point: SASL before login, binding after.
+	 */
+	private void openStream()
+	throws XmlPullParserException, IOException {
+		parser = new MXParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+		parser.setInput(reader);
+		int event = parser.next();
+		while (! ((event == XmlPullParser.START_TAG) && "stream:stream".equals(parser.getName()))) {
+			if (event == XmlPullParser.END_DOCUMENT)
+				throw new IOException("Stream ended before it started");
+			event = parser.next();
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version='1.0' encoding='UTF-8'?>");
+		sb.append("<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' id='");
+		sb.append(streamId).append("' from='").append(server.getDomain()).append("' version='1.0'>");
+		sb.append("<stream:features>");
+		if (username == null)
+			sb.append("<mechanisms xmlns='"+NS_SASL+"'><mechanism>PLAIN</mechanism></mechanisms>");
+		else
+			sb.append("<bind xmlns='"+NS_BIND+"'/><session xmlns='"+NS_SESSION+"'/>");
+		sb.append("</stream:features>");
+		send(sb.toString());
+	}
+
+
+	private void handleTopLevel()
+	throws XmlPullParserException, IOException {
+		String name = parser.getName();
+		if ("auth".equals(name)) {
+			handleAuth();
+		}
+		else if (jid == null) {
+			// nothing but login and binding is allowed before a resource is bound
+			if ("iq".equals(name))
+				handleServerIQ(StanzaXml.attribute(parser,"id"),StanzaXml.attribute(parser,"type"));
+			else
+				StanzaXml.skipElement(parser);
+		}
+		else if ("iq".equals(name)) {
+			String to = StanzaXml.attribute(parser,"to");
+			if ((to == null) || to.equalsIgnoreCase(server.getDomain()) || to.equalsIgnoreCase(getBareJid()))
+				handleServerIQ(StanzaXml.attribute(parser,"id"),StanzaXml.attribute(parser,"type"));
+			else
+				server.routeIQ(this, to, StanzaXml.attribute(parser,"type"), StanzaXml.attribute(parser,"id"), copyFromMe());
+		}
+		else if ("message".equals(name)) {
+			String to = StanzaXml.attribute(parser,"to");
+			server.routeMessage(this, to, copyFromMe());
+		}
+		else if ("presence".equals(name)) {
+			handlePresence();
+		}
+		else {
+			StanzaXml.skipElement(parser);
+		}
+	}
+
+
+	/**
+	 * SASL PLAIN: base64 of authzid NUL username NUL password
+	 */
+	private void handleAuth()
+	throws XmlPullParserException, IOException {
+		String mechanism = StanzaXml.attribute(parser,"mechanism");
+		String response = parser.nextText();
+		String user = null;
+		String password = null;
+		if ("PLAIN".equals(mechanism)) {
+			try {
+				String decoded = new String(java.util.Base64.getDecoder().decode(response.trim()), "UTF-8");
+				String[] parts = decoded.split("\u0000", -1);
+				if (parts.length == 3) {
+					user = parts[1];
+					password = parts[2];
+					// some clients send the whole JID as the username
+					if (user.indexOf('@') >= 0)
+						user = user.substring(0, user.indexOf('@'));
+				}
+			}
+			catch (IllegalArgumentException iae) {
+				user = null;
+			}
+		}
+		if ((user == null) || (! server.authenticate(user, password))) {
+			send("<failure xmlns='"+NS_SASL+"'><not-authorized/></failure>");
+			close();
+			return;
+		}
+		username = user.toLowerCase();
+		send("<success xmlns='"+NS_SASL+"'/>");
+		// the client now starts a new stream on the same socket
+		openStream();
+	}
+
+
+	/**
+	 * IQs addressed to the server itself: resource binding, session, roster and ping.
+	 * Anything else that expects an answer gets service-unavailable.
+	 */
+	private void handleServerIQ(String id, String type)
+	throws XmlPullParserException, IOException {
+		int depth = parser.getDepth();
+		String childName = null;
+		String childNs = null;
+		String resource = null;
+		int event = parser.next();
+		while (! ((event == XmlPullParser.END_TAG) && (parser.getDepth() == depth))) {
+			if (event == XmlPullParser.START_TAG) {
+				if (parser.getDepth() == depth + 1) {
+					childName = parser.getName();
+					childNs = StanzaXml.attribute(parser,"xmlns");
+				}
+				else if ("resource".equals(parser.getName())) {
+					resource = parser.nextText().trim();
+				}
+			}
+			else if (event == XmlPullParser.END_DOCUMENT) {
+				throw new IOException("Stream ended inside an IQ");
+			}
+			event = parser.next();
+		}
+		if ("result".equals(type) || "error".equals(type))
+			return;
+
+		String idAttr = (id == null) ? "" : " id='"+StanzaXml.escape(id)+"'";
+		if (NS_BIND.equals(childNs) && (username != null) && (jid == null)) {
+			if ((resource == null) || (resource.length() == 0))
+				resource = "loopback-"+streamId;
+			jid = username+"@"+server.getDomain()+"/"+resource;
+			server.bind(this);
+			send("<iq type='result'"+idAttr+"><bind xmlns='"+NS_BIND+"'><jid>"+StanzaXml.escape(jid)+"</jid></bind></iq>");
+		}
+		else if (NS_SESSION.equals(childNs) || NS_PING.equals(childNs)) {
+			send("<iq type='result'"+idAttr+" from='"+server.getDomain()+"'/>");
+		}
+		else if (NS_ROSTER.equals(childNs) && (jid != null)) {
+			if ("get".equals(type))
+				send("<iq type='result'"+idAttr+" to='"+StanzaXml.escape(jid)+"'>"+server.rosterXml(this)+"</iq>");
+			else
+				send("<iq type='result'"+idAttr+" to='"+StanzaXml.escape(jid)+"'/>");
+		}
+		else {
+			send("<iq type='error'"+idAttr+" from='"+server.getDomain()+"'>"
+					+ ((childName != null) ? "<"+childName+" xmlns='"+StanzaXml.escape(childNs == null ? "" : childNs)+"'/>" : "")
+					+ LoopbackServer.SERVICE_UNAVAILABLE+"</iq>");
+		}
+	}
+
+
+	private void handlePresence()
+	throws XmlPullParserException, IOException {
+		String to = StanzaXml.attribute(parser,"to");
+		String type = StanzaXml.attribute(parser,"type");
+		String xml = copyFromMe();
+		if (to != null) {
+			// directed presence, including subscription requests, go straight to the addressee
+			server.routePresence(this, to, type, xml);
+		}
+		else if ((type == null) || "available".equals(type)) {
+			boolean first = (presenceXml == null);
+			presenceXml = xml;
+			if (first)
+				server.sendPresencesTo(this);
+			server.broadcastPresence(this, xml);
+		}
+		else if ("unavailable".equals(type)) {
+			presenceXml = null;
+			server.broadcastPresence(this, xml);
+		}
+	}
+
+
+	/**
+	 * Copy the current stanza, stamped with this client's full JID as the sender
+	 */
+	private String copyFromMe()
+	throws XmlPullParserException, IOException {
+		Map <String,String> from = Collections.singletonMap("from", jid);
+		return StanzaXml.copyElement(parser, from);
+	}
+
+
+	/**
+	 * Write some XML to the client. Stanzas from many sessions' threads may arrive at once,
+	 * so writes are serialized. A failed write closes the session.
+	 */
+	void send(String xml) {
+		if (closed)
+			return;
+		synchronized (writer) {
+			try {
+				writer.write(xml);
+				writer.flush();
+			}
+			catch (IOException ioe) {
+				closed = true;
+			}
+		}
+		if (closed)
+			close();
+	}
+
+
+	/**
+	 * Cut the connection as a network failure would: close the socket without ending the stream.
+	 * The client sees an error rather than a clean close, and the other clients are told it is unavailable.
+	 */
+	void drop() {
+		synchronized (this) {
+			if (closed && socket.isClosed())
+				return;
+			closed = true;
+		}
+		server.unbind(this);
+		try {
+			socket.close();
+		}
+		catch (IOException ioe) {
+		}
+	}
+
+
+	/**
+	 * End the session: tell the other clients this one is gone, close the stream and the socket.
+	 * Safe to call more than once, from any thread.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed && socket.isClosed())
+				return;
+			closed = true;
+		}
+		server.unbind(this);
+		synchronized (writer) {
+			try {
+				writer.write("</stream:stream>");
+				writer.flush();
+			}
+			catch (IOException ioe) {
+			}
+		}
+		try {
+			socket.close();
+		}
+		catch (IOException ioe) {
+		}
+	}
+
+
+	String getJid() {
+		return jid;
+	}
+
+	String getBareJid() {
+		return (jid == null) ? null : jid.substring(0, jid.indexOf('/'));
+	}
+
+	String getPresenceXml() {
+		return presenceXml;
+	}
+
+	boolean isAvailable() {
+		return (presenceXml != null);
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+}
@@ -0,0 +1,290 @@
+package com.challengeandresponse.imoperator.loopback;
+
+import java.io.*;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.challengeandresponse.imoperator.agent.StanzaXml;
+
+/**
+ * One external component's connection to a LoopbackServer (XEP-0114). Runs the server's side
+ * on its own thread: the stream header, checking the handshake against the component's secret,
+ * then reading stanzas from any address in the component's domain and handing them to the server for routing.
+ *
+ * @author jim
+ */
+class ComponentSession
+implements Runnable {
+
+	private static final String NS_COMPONENT = "jabber:component:accept";
+	private static final String NS_STREAMS = "urn:ietf:params:xml:ns:xmpp-streams";
+
+	private final LoopbackServer server;
+	private final Socket socket;
+	private final Writer writer;
+	private final String streamId;
+
+	private XmlPullParser parser;
+
+	private String domain;		// set once the handshake succeeds
+	private final ConcurrentMap <String,String> presences;	// normalized full JID in the domain -> its available presence
+	private volatile boolean closed;
+
+
+	ComponentSession(LoopbackServer server, Socket socket, String streamId)
+	throws IOException {
+		this.server = server;
+		this.socket = socket;
+		this.streamId = streamId;
+		this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+		this.domain = null;
+		this.presences = new ConcurrentHashMap <String,String> ();
+		this.closed = false;
+	}
+
+
+	public void run() {
+		try {
+			parser = new MXParser();
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+			parser.setInput(new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")));
+			if (! handshake())
+				return;
+			int event = parser.next();
+			while (! closed) {
+				if ((event == XmlPullParser.START_TAG) && (parser.getDepth() == 2))
+					handleTopLevel();
+				else if ((event == XmlPullParser.END_TAG) && (parser.getDepth() == 1))
+					break;	// </stream:stream>
+				else if (event == XmlPullParser.END_DOCUMENT)
+					break;
+				if (! closed)
+					event = parser.next();
+			}
+		}
+		catch (Exception e) {
+			// the component went away, or sent something we can't parse. Either way the session is over.
+		}
+		finally {
+			close();
+		}
+	}
+
+
+	/**
+	 * Answer the component's stream header, and check its handshake: the hex SHA-1 of
+	 * our stream id and the secret the component was added with.
+	 * @return true if the component is in, false if it was turned away
+	 */
+	private boolean handshake()
+	throws XmlPullParserException, IOException {
+		int event = parser.next();
+		while (! ((event == XmlPullParser.START_TAG) && "stream:stream".equals(parser.getName()))) {
+			if (event == XmlPullParser.END_DOCUMENT)
+				throw new IOException("Stream ended before it started");
+			event = parser.next();
+		}
+		String to = StanzaXml.attribute(parser, "to");
+		String name = (to == null) ? "" : to.toLowerCase();
+		send("<?xml version='1.0'?><stream:stream xmlns='"+NS_COMPONENT+"' xmlns:stream='http://etherx.jabber.org/streams' id='"
+				+ streamId+"' from='"+StanzaXml.escape(name)+"'>");
+		String secret = server.componentSecret(name);
+		if (secret == null) {
+			streamError("host-unknown");
+			return false;
+		}
+
+		event = parser.next();
+		while (event != XmlPullParser.START_TAG) {
+			if (event == XmlPullParser.END_DOCUMENT)
+				throw new IOException("Stream ended before the handshake");
+			event = parser.next();
+		}
+		if (! "handshake".equals(parser.getName())) {
+			streamError("not-authorized");
+			return false;
+		}
+		String digest = parser.nextText().trim();
+		if (! digest.equalsIgnoreCase(expectedHandshake(secret))) {
+			streamError("not-authorized");
+			return false;
+		}
+		domain = name;
+		send("<handshake/>");
+		server.bindComponent(this);
+		return true;
+	}
+
+	/**
+	 * @return the lowercase hex SHA-1 of the stream id followed by the secret
+	 */
+	private String expectedHandshake(String secret)
+	throws IOException {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest((streamId + secret).getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (int i = 0; i < digest.length; i++)
+				sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+			return sb.toString();
+		}
+		catch (java.security.NoSuchAlgorithmException nsae) {
+			throw new IOException("SHA-1 is not available");
+		}
+	}
+
+	private void streamError(String condition) {
+		send("<stream:error><"+condition+" xmlns='"+NS_STREAMS+"'/></stream:error>");
+		close();
+	}
+
+
+	private void handleTopLevel()
+	throws XmlPullParserException, IOException {
+		String name = parser.getName();
+		String from = StanzaXml.attribute(parser, "from");
+		String to = StanzaXml.attribute(parser, "to");
+		if ((from == null) || (! inDomain(from))) {
+			// a component may only speak for addresses in its own domain
+			StanzaXml.skipElement(parser);
+		}
+		else if ("iq".equals(name)) {
+			String type = StanzaXml.attribute(parser, "type");
+			String id = StanzaXml.attribute(parser, "id");
+			String xml = StanzaXml.copyElement(parser, null);
+			if (! server.deliver(to, xml)) {
+				if ("get".equals(type) || "set".equals(type))
+					send(LoopbackServer.iqError(to, from, id));
+			}
+		}
+		else if ("message".equals(name)) {
+			server.deliver(to, StanzaXml.copyElement(parser, null));
+		}
+		else if ("presence".equals(name)) {
+			handlePresence(from, to);
+		}
+		else {
+			StanzaXml.skipElement(parser);
+		}
+	}
+
+
+	/**
+	 * Presence from one of the component's addresses. Undirected presence is kept, and broadcast
+	 * to the server's clients as if the address were a logged-in user.
+	 */
+	private void handlePresence(String from, String to)
+	throws XmlPullParserException, IOException {
+		String type = StanzaXml.attribute(parser, "type");
+		String xml = StanzaXml.copyElement(parser, null);
+		if (to != null) {
+			server.routePresence(null, to, type, xml);
+		}
+		else if ((type == null) || "available".equals(type)) {
+			presences.put(LoopbackServer.normalize(from), xml);
+			server.broadcastPresence(null, xml);
+		}
+		else if ("unavailable".equals(type)) {
+			if (presences.remove(LoopbackServer.normalize(from)) != null)
+				server.broadcastPresence(null, xml);
+		}
+	}
+
+
+	/**
+	 * @return true if jid is the component's domain, or an address in it
+	 */
+	private boolean inDomain(String jid) {
+		return domain.equals(LoopbackServer.domainOf(jid));
+	}
+
+
+	/**
+	 * Write some XML to the component. Stanzas from many sessions' threads may arrive at once,
+	 * so writes are serialized. A failed write closes the session.
+	 */
+	void send(String xml) {
+		if (closed)
+			return;
+		synchronized (writer) {
+			try {
+				writer.write(xml);
+				writer.flush();
+			}
+			catch (IOException ioe) {
+				closed = true;
+			}
+		}
+		if (closed)
+			close();
+	}
+
+
+	/**
+	 * Cut the connection as a network failure would: close the socket without ending the stream.
+	 * The component sees an error rather than a clean close, and the clients are told its addresses are unavailable.
+	 */
+	void drop() {
+		synchronized (this) {
+			if (closed && socket.isClosed())
+				return;
+			closed = true;
+		}
+		server.unbindComponent(this);
+		try {
+			socket.close();
+		}
+		catch (IOException ioe) {
+		}
+	}
+
+
+	/**
+	 * End the session: tell the clients that the component's addresses are gone, close the stream and the socket.
+	 * Safe to call more than once, from any thread.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed && socket.isClosed())
+				return;
+			closed = true;
+		}
+		server.unbindComponent(this);
+		synchronized (writer) {
+			try {
+				writer.write("</stream:stream>");
+				writer.flush();
+			}
+			catch (IOException ioe) {
+			}
+		}
+		try {
+			socket.close();
+		}
+		catch (IOException ioe) {
+		}
+	}
+
+
+	String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * @return the available presence of each of the component's addresses, by normalized full JID
+	 */
+	Map <String,String> getPresences() {
+		return presences;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+}
@@ -0,0 +1,585 @@
+package com.challengeandresponse.imoperator.loopback;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.challengeandresponse.imoperator.agent.StanzaXml;
+import com.challengeandresponse.imoperator.comm.SimpleXMPPConnection;
+import com.challengeandresponse.imoperator.comm.XMPPConfig;
+
+/**
+ * A small, embedded stand-in for an XMPP server, for running agents in one JVM without
+ * a real server: in tests, for load testing, and on a laptop.
+ *
+ * <p>It listens on the loopback interface only, and speaks just enough XMPP for Smack clients,
+ * and so SimpleXMPPConnection and BaseAgent, to work normally:<br />
+ * <li>login with SASL PLAIN (no TLS - the server doesn't offer it, so clients must not require it)</li>
+ * <li>resource binding and session establishment</li>
+ * <li>a roster listing everyone who is connected</li>
+ * <li>presence, broadcast to every connected client, so presence checks before sending succeed</li>
+ * <li>chat and other messages, routed by the to-address</li>
+ * <li>IQs between clients, routed by the to-address, with service-unavailable errors when the addressee isn't connected</li>
+ * <li>external components (XEP-0114) on a separate port, for subdomains added with addComponent(). Everything
+ * addressed to a component's domain goes to it, and the presence it sends for its addresses is shown to the clients.</li>
+ * </p>
+ * <p>There is no storage: no offline messages, no persistent roster, no subscriptions to approve.
+ * Anyone may log in with any password unless accounts are added with addAccount().</p>
+ *
+ * <p>Usage:<br />
+ * <code>
+ * LoopbackServer server = new LoopbackServer("localhost");<br />
+ * server.start();<br />
+ * new Thread(new ExampleAgent(el, "localhost", server.getPort(), null, "example", "example", "example")).start();<br />
+ * ...<br />
+ * server.stop();<br />
+ * </code></p>
+ *
+ * <p>Each client uses one thread on the server. With presence broadcasting on, every client is told about
+ * every other, which is N-squared presence traffic as N clients log in. For thousands of clients that
+ * don't check presence before sending, turn it off with setBroadcastPresence(false).</p>
+ *
+ * @author jim
+ */
+public class LoopbackServer {
+
+	static final String SERVICE_UNAVAILABLE =
+		"<error type='cancel' code='503'><service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error>";
+
+	private final String domain;
+	private final int requestedPort;
+
+	private ServerSocket serverSocket;
+	private Thread acceptThread;
+	private final int requestedComponentPort;
+	private ServerSocket componentSocket;	// only opened if components were added
+	private Thread componentAcceptThread;
+	private volatile boolean running;
+	private volatile boolean broadcastPresence;
+
+	private final ConcurrentMap <String,String> accounts;			// username -> password. empty means anyone may log in
+	private final ConcurrentMap <String,ClientSession> sessions;	// normalized full JID -> session
+	private final ConcurrentMap <String,CopyOnWriteArrayList<ClientSession>> byBareJid;	// bare JID -> that user's sessions
+	private final ConcurrentMap <String,String> componentSecrets;		// component domain -> its secret
+	private final ConcurrentMap <String,ComponentSession> components;	// component domain -> its connected session
+
+	private final AtomicInteger sessionCounter;
+	private final AtomicLong routed;
+	private final AtomicLong undeliverable;
+
+
+	/**
+	 * Make a server for the given domain, on an ephemeral port chosen at start()
+	 * @param domain the server's domain, the part of each JID after the @. Clients should use it as their service name.
+	 */
+	public LoopbackServer(String domain) {
+		this(domain, 0);
+	}
+
+	/**
+	 * @param domain the server's domain, the part of each JID after the @. Clients should use it as their service name.
+	 * @param port the port to listen on, or 0 to have one chosen at start()
+	 */
+	public LoopbackServer(String domain, int port) {
+		this(domain, port, 0);
+	}
+
+	/**
+	 * @param domain the server's domain, the part of each JID after the @. Clients should use it as their service name.
+	 * @param port the port to listen on, or 0 to have one chosen at start()
+	 * @param componentPort the port to listen on for components, or 0 to have one chosen at start()
+	 */
+	public LoopbackServer(String domain, int port, int componentPort) {
+		this.domain = domain.toLowerCase();
+		this.requestedPort = port;
+		this.requestedComponentPort = componentPort;
+		this.running = false;
+		this.broadcastPresence = true;
+		this.accounts = new ConcurrentHashMap <String,String> ();
+		this.sessions = new ConcurrentHashMap <String,ClientSession> ();
+		this.byBareJid = new ConcurrentHashMap <String,CopyOnWriteArrayList<ClientSession>> ();
+		this.componentSecrets = new ConcurrentHashMap <String,String> ();
+		this.components = new ConcurrentHashMap <String,ComponentSession> ();
+		this.sessionCounter = new AtomicInteger(0);
+		this.routed = new AtomicLong(0);
+		this.undeliverable = new AtomicLong(0);
+	}
+
+
+	/**
+	 * Start listening. Returns once the server is ready for connections.
+	 * @throws IOException if the port can't be opened
+	 */
+	public synchronized void start()
+	throws IOException {
+		if (running)
+			return;
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), requestedPort), 1024);
+		running = true;
+		acceptThread = new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, "loopback-xmpp-"+domain);
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		if (! componentSecrets.isEmpty()) {
+			componentSocket = new ServerSocket();
+			componentSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), requestedComponentPort), 64);
+			componentAcceptThread = new Thread(new Runnable() {
+				public void run() {
+					componentAcceptLoop();
+				}
+			}, "loopback-component-"+domain);
+			componentAcceptThread.setDaemon(true);
+			componentAcceptThread.start();
+		}
+	}
+
+
+	/**
+	 * Stop listening and disconnect every client
+	 */
+	public synchronized void stop() {
+		running = false;
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+			if (componentSocket != null)
+				componentSocket.close();
+		}
+		catch (IOException ioe) {
+		}
+		Iterator <ClientSession> it = sessions.values().iterator();
+		while (it.hasNext())
+			it.next().close();
+		Iterator <ComponentSession> cit = components.values().iterator();
+		while (cit.hasNext())
+			cit.next().close();
+	}
+
+
+	private void acceptLoop() {
+		while (running) {
+			try {
+				Socket s = serverSocket.accept();
+				s.setTcpNoDelay(true);
+				int n = sessionCounter.incrementAndGet();
+				ClientSession cs = new ClientSession(this, s, Integer.toHexString(n)+Long.toHexString(System.nanoTime()));
+				Thread t = new Thread(cs, "loopback-session-"+n);
+				t.setDaemon(true);
+				t.start();
+			}
+			catch (IOException ioe) {
+				// the server socket was closed by stop(), or a client hung up mid-accept
+			}
+		}
+	}
+
+
+	private void componentAcceptLoop() {
+		while (running) {
+			try {
+				Socket s = componentSocket.accept();
+				s.setTcpNoDelay(true);
+				int n = sessionCounter.incrementAndGet();
+				ComponentSession cs = new ComponentSession(this, s, Integer.toHexString(n)+Long.toHexString(System.nanoTime()));
+				Thread t = new Thread(cs, "loopback-component-session-"+n);
+				t.setDaemon(true);
+				t.start();
+			}
+			catch (IOException ioe) {
+				// the server socket was closed by stop(), or a component hung up mid-accept
+			}
+		}
+	}
+
+
+	/**
+	 * Accept an external component for a subdomain of this server. Call this before start(), which
+	 * opens the component port if any components were added.
+	 * @param subdomain the component's name, e.g. "agents"
+	 * @param secret the secret the component must use in its handshake
+	 * @return the component's domain, e.g. agents.localhost
+	 */
+	public String addComponent(String subdomain, String secret) {
+		String componentDomain = subdomain.toLowerCase()+"."+domain;
+		componentSecrets.put(componentDomain, secret);
+		return componentDomain;
+	}
+
+	String componentSecret(String componentDomain) {
+		return componentSecrets.get(componentDomain);
+	}
+
+
+	/**
+	 * Cut a client's connection as a network failure would, for testing how it recovers.
+	 * The socket is closed without ending the stream.
+	 * @param jid a full JID for that session, or a bare JID for all of the user's sessions
+	 * @return the number of sessions dropped
+	 */
+	public int dropSession(String jid) {
+		int n = 0;
+		if (jid.indexOf('/') >= 0) {
+			ClientSession cs = sessions.get(normalize(jid));
+			if (cs != null) {
+				cs.drop();
+				n++;
+			}
+		}
+		else {
+			CopyOnWriteArrayList <ClientSession> list = byBareJid.get(jid.toLowerCase());
+			if (list != null) {
+				Iterator <ClientSession> it = list.iterator();
+				while (it.hasNext()) {
+					it.next().drop();
+					n++;
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Cut a component's connection as a network failure would, for testing how it recovers
+	 * @param componentDomain the component's domain, as returned by addComponent()
+	 * @return true if the component was connected
+	 */
+	public boolean dropComponent(String componentDomain) {
+		ComponentSession cs = components.get(componentDomain.toLowerCase());
+		if (cs == null)
+			return false;
+		cs.drop();
+		return true;
+	}
+
+
+	/**
+	 * Require a password for a username. Once any account is added, only added accounts may log in.
+	 */
+	public void addAccount(String username, String password) {
+		accounts.put(username.toLowerCase(), password);
+	}
+
+	boolean authenticate(String username, String password) {
+		if (accounts.isEmpty())
+			return true;
+		String expected = accounts.get(username.toLowerCase());
+		return (expected != null) && expected.equals(password);
+	}
+
+
+	/**
+	 * @param broadcastPresence true (the default) to send every client's presence to every other client
+	 */
+	public void setBroadcastPresence(boolean broadcastPresence) {
+		this.broadcastPresence = broadcastPresence;
+	}
+
+
+	/**
+	 * Make an XMPPConfig for logging in to this server, for use with SimpleXMPPConnection and BaseAgent
+	 */
+	public XMPPConfig makeConfig(String username, String password, String resource) {
+		return new XMPPConfig("127.0.0.1", getPort(), resource, domain, username, password);
+	}
+
+	/**
+	 * @return a connected, logged-in SimpleXMPPConnection to this server
+	 */
+	public SimpleXMPPConnection connect(String username, String password, String resource)
+	throws Exception {
+		SimpleXMPPConnection xmppc = new SimpleXMPPConnection(makeConfig(username, password, resource),true);
+		xmppc.secureConnect();
+		return xmppc;
+	}
+
+
+	public String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * @return the port the server is listening on, or -1 if it isn't started
+	 */
+	public int getPort() {
+		return (serverSocket == null) ? -1 : serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return the port components connect to, or -1 if there are none or the server isn't started
+	 */
+	public int getComponentPort() {
+		return (componentSocket == null) ? -1 : componentSocket.getLocalPort();
+	}
+
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/** @return the number of components connected */
+	public int getComponentCount() {
+		return components.size();
+	}
+
+	public long getRoutedCount() {
+		return routed.get();
+	}
+
+	public long getUndeliverableCount() {
+		return undeliverable.get();
+	}
+
+
+
+	////// ROUTING - called by ClientSessions
+
+	void bind(ClientSession cs) {
+		ClientSession old = sessions.put(normalize(cs.getJid()), cs);
+		CopyOnWriteArrayList <ClientSession> list = byBareJid.get(cs.getBareJid());
+		if (list == null) {
+			CopyOnWriteArrayList <ClientSession> fresh = new CopyOnWriteArrayList <ClientSession> ();
+			list = byBareJid.putIfAbsent(cs.getBareJid(), fresh);
+			if (list == null)
+				list = fresh;
+		}
+		list.add(cs);
+		// same JID logging in again replaces the old session, as real servers do
+		if ((old != null) && (old != cs))
+			old.close();
+	}
+
+	void unbind(ClientSession cs) {
+		String jid = cs.getJid();
+		if (jid == null)
+			return;
+		CopyOnWriteArrayList <ClientSession> list = byBareJid.get(cs.getBareJid());
+		if (list != null)
+			list.remove(cs);
+		if (sessions.remove(normalize(jid), cs) && broadcastPresence)
+			broadcastPresence(cs, "<presence type='unavailable' from='"+StanzaXml.escape(jid)+"'/>");
+	}
+
+
+	/**
+	 * A component takes everything addressed to its domain. Everything else goes to a client.
+	 * @return true if the stanza was sent on, false if nobody could take it
+	 */
+	boolean deliver(String to, String xml) {
+		ComponentSession component = findComponent(to);
+		if (component != null) {
+			component.send(xml);
+			routed.incrementAndGet();
+			return true;
+		}
+		ClientSession target = find(to);
+		if (target != null) {
+			target.send(xml);
+			routed.incrementAndGet();
+			return true;
+		}
+		undeliverable.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Deliver an IQ. If nobody can take a get or set, the sender gets a service-unavailable error.
+	 */
+	void routeIQ(ClientSession from, String to, String type, String id, String xml) {
+		if (deliver(to, xml))
+			return;
+		if ("get".equals(type) || "set".equals(type))
+			from.send(iqError(to, from.getJid(), id));
+	}
+
+	void routeMessage(ClientSession from, String to, String xml) {
+		deliver(to, xml);
+	}
+
+	/**
+	 * @return a service-unavailable error answering an IQ that couldn't be delivered
+	 */
+	static String iqError(String from, String to, String id) {
+		return "<iq type='error'"
+				+ ((from == null) ? "" : " from='"+StanzaXml.escape(from)+"'")
+				+ " to='"+StanzaXml.escape(to)+"'"
+				+ ((id == null) ? "" : " id='"+StanzaXml.escape(id)+"'")
+				+ ">"+SERVICE_UNAVAILABLE+"</iq>";
+	}
+
+	/**
+	 * Directed presence. Subscription requests from clients are approved on the addressee's behalf, since
+	 * everyone on this server can see everyone anyway.
+	 * @param from the client sending it, or null if it came from a component
+	 */
+	void routePresence(ClientSession from, String to, String type, String xml) {
+		if ((from != null) && "subscribe".equals(type)) {
+			from.send("<presence type='subscribed' from='"+StanzaXml.escape(bare(to))+"' to='"+StanzaXml.escape(from.getBareJid())+"'/>");
+			return;
+		}
+		ComponentSession component = findComponent(to);
+		if (component != null) {
+			component.send(xml);
+			return;
+		}
+		ClientSession target = find(to);
+		if (target != null)
+			target.send(xml);
+	}
+
+	/**
+	 * Send a presence to every client
+	 * @param from the client it came from, which isn't sent its own presence, or null if it came from a component
+	 */
+	void broadcastPresence(ClientSession from, String xml) {
+		if (! broadcastPresence)
+			return;
+		Iterator <ClientSession> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			ClientSession cs = it.next();
+			if (cs != from)
+				cs.send(xml);
+		}
+	}
+
+	/**
+	 * Tell a client that just became available about everyone who already is
+	 */
+	void sendPresencesTo(ClientSession newcomer) {
+		if (! broadcastPresence)
+			return;
+		Iterator <ClientSession> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			ClientSession cs = it.next();
+			String p = cs.getPresenceXml();
+			if ((cs != newcomer) && (p != null))
+				newcomer.send(p);
+		}
+		Iterator <ComponentSession> cit = components.values().iterator();
+		while (cit.hasNext()) {
+			Iterator <String> pit = cit.next().getPresences().values().iterator();
+			while (pit.hasNext())
+				newcomer.send(pit.next());
+		}
+	}
+
+	/**
+	 * @return a roster query listing everyone connected, other than the asker
+	 */
+	String rosterXml(ClientSession asker) {
+		StringBuilder sb = new StringBuilder("<query xmlns='jabber:iq:roster'>");
+		Map <String,Boolean> seen = new java.util.HashMap <String,Boolean> ();
+		seen.put(asker.getBareJid(), Boolean.TRUE);
+		if (broadcastPresence) {
+			Iterator <ClientSession> it = sessions.values().iterator();
+			while (it.hasNext()) {
+				String bare = it.next().getBareJid();
+				if (seen.put(bare, Boolean.TRUE) == null)
+					sb.append("<item jid='").append(StanzaXml.escape(bare)).append("' subscription='both'/>");
+			}
+			Iterator <ComponentSession> cit = components.values().iterator();
+			while (cit.hasNext()) {
+				Iterator <String> jit = cit.next().getPresences().keySet().iterator();
+				while (jit.hasNext()) {
+					String bare = bare(jit.next());
+					if (seen.put(bare, Boolean.TRUE) == null)
+						sb.append("<item jid='").append(StanzaXml.escape(bare)).append("' subscription='both'/>");
+				}
+			}
+		}
+		sb.append("</query>");
+		return sb.toString();
+	}
+
+
+	/**
+	 * A component that authenticated. It replaces any earlier session for the same domain.
+	 */
+	void bindComponent(ComponentSession cs) {
+		ComponentSession old = components.put(cs.getDomain(), cs);
+		if ((old != null) && (old != cs))
+			old.close();
+	}
+
+	/**
+	 * A component that went away: its addresses become unavailable to the clients
+	 */
+	void unbindComponent(ComponentSession cs) {
+		if ((cs.getDomain() == null) || (! components.remove(cs.getDomain(), cs)))
+			return;
+		Iterator <String> it = cs.getPresences().keySet().iterator();
+		while (it.hasNext())
+			broadcastPresence(null, "<presence type='unavailable' from='"+StanzaXml.escape(it.next())+"'/>");
+		cs.getPresences().clear();
+	}
+
+	/**
+	 * @return the component serving the address's domain, or null if it isn't a component's
+	 */
+	private ComponentSession findComponent(String to) {
+		if ((to == null) || components.isEmpty())
+			return null;
+		return components.get(domainOf(to));
+	}
+
+
+	/**
+	 * Find the session for an address. A full JID must match exactly. A bare JID goes to
+	 * an available session of that user if there is one, or any session of that user if not.
+	 */
+	private ClientSession find(String to) {
+		if (to == null)
+			return null;
+		if (to.indexOf('/') >= 0)
+			return sessions.get(normalize(to));
+		CopyOnWriteArrayList <ClientSession> list = byBareJid.get(to.toLowerCase());
+		if (list == null)
+			return null;
+		ClientSession fallback = null;
+		Iterator <ClientSession> it = list.iterator();
+		while (it.hasNext()) {
+			ClientSession cs = it.next();
+			if (cs.isAvailable())
+				return cs;
+			fallback = cs;
+		}
+		return fallback;
+	}
+
+
+	/**
+	 * Usernames and domains are case-insensitive, resources are not
+	 */
+	static String normalize(String jid) {
+		int slash = jid.indexOf('/');
+		if (slash < 0)
+			return jid.toLowerCase();
+		return jid.substring(0, slash).toLowerCase() + jid.substring(slash);
+	}
+
+	/**
+	 * @return the domain part of a JID, lowercased
+	 */
+	static String domainOf(String jid) {
+		int at = jid.indexOf('@');
+		int slash = jid.indexOf('/', (at < 0) ? 0 : at);
+		return jid.substring(at + 1, (slash < 0) ? jid.length() : slash).toLowerCase();
+	}
+
+	static String bare(String jid) {
+		int slash = jid.indexOf('/');
+		return ((slash < 0) ? jid : jid.substring(0, slash)).toLowerCase();
+	}
+
+}
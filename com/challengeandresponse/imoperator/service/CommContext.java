@@ -1,6 +1,11 @@
 package com.challengeandresponse.imoperator.service;
 
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jivesoftware.smack.packet.Packet;
 
 import com.challengeandresponse.utils.PropertyThang;
 
@@ -13,7 +18,20 @@ import com.challengeandresponse.utils.PropertyThang;
  * This is still not well defined. For now we focus on which service the message
  * came from, the username at that service for writing back to, and the user's
  * IMOperator identity.
- * 
+ *
+ * <p>The dictionary's properties are held in plain fields rather than in the PropertyThang's
+ * map, so filling in a CommContext for a packet is a few field writes: no boxing, no dictionary
+ * check, and the sender's JID without its resource is only worked out if someone asks for it.
+ * They are still read and written by the same property names, through getProperty(),
+ * getStringProperty(), getIntProperty() and setProperty(), so existing code doesn't change.
+ * Every PropertyThang accessor is overridden to use the fields, so the inherited table is never
+ * written and can't get out of step with them. Keys outside the dictionary are refused.</p>
+ *
+ * <p>A CommContext can be reused: reset(packet) fills it in for the next packet. perThread() makes
+ * a ThreadLocal that gives each dispatch thread its own CommContext to reset, so a processor can
+ * handle packet after packet without allocating. A reused CommContext belongs to the thread's
+ * current packet only, and must not be kept after the handler returns.</p>
+ *
  * @author jim
  *
  */
@@ -24,12 +42,12 @@ public class CommContext extends PropertyThang {
 	public static final String PROP_SERVICE_USERNAME_NO_RESOURCE = "serviceUsernameNoResource";
 	public static final String PROP_IMOP_USERNAME = "imoperatorUsername";
 	public static final String PROP_MESSAGE_TO = "messageTo";
-	
+
 	public static final int	VALUE_SERVICE_XMPP = 1;
 	public static final int	VALUE_SERVICE_AIM = 2;
 	public static final int	VALUE_SERVICE_YAHOO = 3;
-	
-	// build the dictionary of named properties 
+
+	// build the dictionary of named properties
 	private static HashSet <String> PROP_DICTIONARY;
 	static {
 		PROP_DICTIONARY = new HashSet <String> ();
@@ -39,15 +57,226 @@ public class CommContext extends PropertyThang {
 		PROP_DICTIONARY.add(PROP_MESSAGE_TO);
 		PROP_DICTIONARY.add(PROP_SERVICE_USERNAME_NO_RESOURCE);
 	}
-	
 
-	
+	private static final int NO_SERVICE = 0;
+
+	private int service;
+	private String serviceUsername;
+	private String serviceUsernameNoResource;	// worked out from serviceUsername when first asked for, unless set
+	private String imopUsername;
+	private String messageTo;
+
 
 	public CommContext(String namespace) {
 		super(namespace);
-		setDictionary(PROP_DICTIONARY);
+		super.setDictionary(PROP_DICTIONARY);
+		clear();
+	}
+
+
+	/**
+	 * Build the CommContext for an inbound XMPP packet: the service, the sender with and
+	 * without its resource, and the addressee.
+	 * @param namespace the namespace for the CommContext's properties
+	 * @param packet the inbound packet
+	 * @return a new CommContext describing the packet
+	 */
+	public static CommContext fromPacket(String namespace, Packet packet) {
+		return new CommContext(namespace).reset(packet);
+	}
+
+
+	/**
+	 * @param namespace the namespace for the CommContexts' properties
+	 * @return a ThreadLocal that gives each thread one CommContext of its own, for use with reset()
+	 */
+	public static ThreadLocal <CommContext> perThread(final String namespace) {
+		return new ThreadLocal <CommContext> () {
+			@Override
+			protected CommContext initialValue() {
+				return new CommContext(namespace);
+			}
+		};
+	}
+
+
+	/**
+	 * Forget the previous packet and fill this CommContext in for an inbound XMPP packet,
+	 * as fromPacket() does for a new one.
+	 * @param packet the inbound packet
+	 * @return this CommContext
+	 */
+	public CommContext reset(Packet packet) {
+		clear();
+		service = VALUE_SERVICE_XMPP;
+		serviceUsername = packet.getFrom();
+		messageTo = packet.getTo();
+		return this;
+	}
+
+
+	/**
+	 * Empty all the dictionary properties
+	 */
+	public void clear() {
+		service = NO_SERVICE;
+		serviceUsername = null;
+		serviceUsernameNoResource = null;
+		imopUsername = null;
+		messageTo = null;
+	}
+
+
+
+	/// typed accessors
+
+	public int getService() {
+		return service;
+	}
+
+	public String getServiceUsername() {
+		return serviceUsername;
+	}
+
+	/**
+	 * @return the service username with any resource removed (user@host rather than user@host/resource)
+	 */
+	public String getServiceUsernameNoResource() {
+		if ((serviceUsernameNoResource == null) && (serviceUsername != null)) {
+			int slash = serviceUsername.indexOf('/');
+			serviceUsernameNoResource = (slash < 0) ? serviceUsername : serviceUsername.substring(0,slash);
+		}
+		return serviceUsernameNoResource;
+	}
+
+	public String getImopUsername() {
+		return imopUsername;
+	}
+
+	public String getMessageTo() {
+		return messageTo;
+	}
+
+
+
+	/// the PropertyThang interface, by name, for code written against the dictionary
+
+	/**
+	 * The dictionary is fixed
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public void setDictionary(Set <String> dictionary) {
+		throw new UnsupportedOperationException("CommContext's dictionary can't be changed");
+	}
+
+	@Override
+	public void setProperty(String key, int value) {
+		setProperty(key, Integer.valueOf(value));
+	}
+
+	@Override
+	public void setProperty(String key, long value) {
+		setProperty(key, Long.valueOf(value));
+	}
+
+	/**
+	 * @throws IllegalArgumentException if key isn't in the dictionary
+	 */
+	@Override
+	public void setProperty(String key, Object value) {
+		if (PROP_SERVICE.equals(key))
+			service = (value instanceof Number) ? ((Number) value).intValue() : NO_SERVICE;
+		else if (PROP_SERVICE_USERNAME.equals(key)) {
+			serviceUsername = (value == null) ? null : value.toString();
+			serviceUsernameNoResource = null;
+		}
+		else if (PROP_SERVICE_USERNAME_NO_RESOURCE.equals(key))
+			serviceUsernameNoResource = (value == null) ? null : value.toString();
+		else if (PROP_IMOP_USERNAME.equals(key))
+			imopUsername = (value == null) ? null : value.toString();
+		else if (PROP_MESSAGE_TO.equals(key))
+			messageTo = (value == null) ? null : value.toString();
+		else
+			throw new IllegalArgumentException("Not a CommContext property: "+key);
+	}
+
+	@Override
+	public Object getProperty(String key, Object defaultValue) {
+		if (PROP_SERVICE.equals(key))
+			return (service == NO_SERVICE) ? defaultValue : Integer.valueOf(service);
+		else if (isStringProperty(key)) {
+			String s = stringProperty(key);
+			return (s == null) ? defaultValue : s;
+		}
+		return defaultValue;
+	}
+
+	@Override
+	public String getStringProperty(String key, String defaultValue) {
+		if (isStringProperty(key)) {
+			String s = stringProperty(key);
+			return (s == null) ? defaultValue : s;
+		}
+		else if (PROP_SERVICE.equals(key))
+			return (service == NO_SERVICE) ? defaultValue : Integer.toString(service);
+		return defaultValue;
+	}
+
+	@Override
+	public int getIntProperty(String key, int defaultValue) {
+		if (PROP_SERVICE.equals(key))
+			return (service == NO_SERVICE) ? defaultValue : service;
+		return defaultValue;
+	}
+
+	/**
+	 * @return the dictionary properties that are set, by name
+	 */
+	@Override
+	public Map <String,Object> getPropertyKeysAndValues() {
+		Map <String,Object> m = new LinkedHashMap <String,Object> ();
+		if (service != NO_SERVICE)
+			m.put(PROP_SERVICE,Integer.valueOf(service));
+		addIfSet(m,PROP_SERVICE_USERNAME);
+		addIfSet(m,PROP_SERVICE_USERNAME_NO_RESOURCE);
+		addIfSet(m,PROP_IMOP_USERNAME);
+		addIfSet(m,PROP_MESSAGE_TO);
+		return m;
+	}
+
+	@Override
+	public Set <String> getPropertyKeys() {
+		return getPropertyKeysAndValues().keySet();
+	}
+
+	@Override
+	public String toString() {
+		return getPropertyKeysAndValues().toString();
+	}
+
+
+	private static boolean isStringProperty(String key) {
+		return PROP_SERVICE_USERNAME.equals(key) || PROP_SERVICE_USERNAME_NO_RESOURCE.equals(key)
+			|| PROP_IMOP_USERNAME.equals(key) || PROP_MESSAGE_TO.equals(key);
+	}
+
+	private String stringProperty(String key) {
+		if (PROP_SERVICE_USERNAME.equals(key))
+			return serviceUsername;
+		else if (PROP_SERVICE_USERNAME_NO_RESOURCE.equals(key))
+			return getServiceUsernameNoResource();
+		else if (PROP_IMOP_USERNAME.equals(key))
+			return imopUsername;
+		else if (PROP_MESSAGE_TO.equals(key))
+			return messageTo;
+		return null;
+	}
+
+	private void addIfSet(Map <String,Object> m, String key) {
+		String s = stringProperty(key);
+		if (s != null)
+			m.put(key,s);
 	}
-	
-	
 
 }
@@ -8,14 +8,18 @@ import org.jivesoftware.smack.provider.ProviderManager;
 import com.challengeandresponse.appstack.AppStackException;
 import com.challengeandresponse.eventlogger.EventLoggerException;
 import com.challengeandresponse.eventlogger.TextfileEventLogger;
+import com.challengeandresponse.imoperator.agent.OutboundBatcher;
 import com.challengeandresponse.imoperator.comm.*;
+import com.challengeandresponse.imoperator.eventlog.RingBufferEventLogger;
 import com.challengeandresponse.imoperator.m2mobjects.MMObject;
 import com.challengeandresponse.imoperator.universaliq.UniversalIQProvider;
 
 public class IMOperator {
 
-	private TextfileEventLogger el;
+	private RingBufferEventLogger el;
 	private SimpleXMPPConnection xmppc;
+	private OperatorAcl operatorAcl;
+	private OutboundBatcher outbound;
 	
 	private boolean isRunning;
 	
@@ -29,6 +33,8 @@ public class IMOperator {
 	private static final String	OPERATOR_RESOURCE = "operator";
 	private static final String	ADMIN_USERNAME = "admin@localhost";
 	private static final int 		LOOP_CYCLE_TIME = 10000;
+	private static final int 		OUTBOUND_WINDOW = 50;
+	private static final int 		OUTBOUND_MAX_BATCH = 32;
 	
 	
 	private static final Vector <String>	OPERATORS;
@@ -48,7 +54,8 @@ public class IMOperator {
 	
 	private boolean startup() {
 		try {
-			el = new TextfileEventLogger(LOG_PATH,true);
+			// packet handlers log on every stanza, so the file is written from a background thread
+			el = new RingBufferEventLogger(new TextfileEventLogger(LOG_PATH,true));
 			el.addEvent("IMOperator starting");
 
 			el.addEvent("Opening connection to server "+XMPP_SERVER);
@@ -65,7 +72,10 @@ public class IMOperator {
 
 			el.addEvent("Configuring packet listeners and filters");
 			// interactive CHAT processors
-			ProcessorChatAdmin mpAdmin = new ProcessorChatAdmin(this, xmppc, el, OPERATORS);
+			operatorAcl = new OperatorAcl(OPERATORS);
+			ProcessorChatAdmin mpAdmin = new ProcessorChatAdmin(this, xmppc, el, operatorAcl);
+			outbound = new OutboundBatcher(xmppc, el, OUTBOUND_WINDOW, OUTBOUND_MAX_BATCH);
+			mpAdmin.setOutboundBatcher(outbound);
 			xmppc.addPacketListenerAndFilter(mpAdmin, mpAdmin);
 
 			ProcessorChat mpChat = new ProcessorChat(this, xmppc, el, OPERATORS);
@@ -107,6 +117,14 @@ public class IMOperator {
 	public void shutdown() {
 		this.isRunning = false;
 	}
+
+
+	/**
+	 * @return the operators allowed to use the admin service. Call reload() on it to change them while running.
+	 */
+	public OperatorAcl getOperatorAcl() {
+		return operatorAcl;
+	}
 	
 
 	
@@ -126,10 +144,12 @@ public class IMOperator {
 		
 		// sleep before terminating, to be sure all shutdown-related messages are delivered (or at least attempted)
 		imo.el.addEvent("Disconnecting from server");
+		imo.outbound.close();
 		sleep(2000);
 		
 		imo.xmppc.disconnect();
 		imo.el.addEvent("Terminating");
+		imo.el.close();
 	}
 	
 	
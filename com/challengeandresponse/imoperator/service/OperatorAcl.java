@@ -0,0 +1,82 @@
+package com.challengeandresponse.imoperator.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The list of operators: the bare JIDs (name@host) allowed to use the admin service.
+ *
+ * <p>isOperator() is called for every chat message that reaches the admin processor, most of them
+ * from people who aren't operators, so it is kept cheap:<br />
+ * <li>the operators are normalized - resource removed, lowercased - once, when the set is loaded</li>
+ * <li>a sender is normalized the same way and looked up in a HashSet</li>
+ * <li>the operator set is replaced whole by reload(), and read through a volatile reference, so
+ * checks never lock and never see a half-built set</li>
+ * </p>
+ *
+ * @author jim
+ */
+public class OperatorAcl {
+
+	private volatile Set <String> operators;
+
+
+	/**
+	 * @param operators the operators' JIDs, in any case, with or without resources
+	 */
+	public OperatorAcl(Collection <String> operators) {
+		reload(operators);
+	}
+
+
+	/**
+	 * Replace the operator set. Checks already under way finish against the old set;
+	 * checks that start after reload() returns use the new one.
+	 * @param operators the operators' JIDs, in any case, with or without resources
+	 */
+	public void reload(Collection <String> operators) {
+		Set <String> s = new HashSet <String> ();
+		if (operators != null) {
+			Iterator <String> it = operators.iterator();
+			while (it.hasNext()) {
+				String jid = it.next();
+				if (jid != null)
+					s.add(bareJid(jid));
+			}
+		}
+		this.operators = Collections.unmodifiableSet(s);
+	}
+
+
+	/**
+	 * @param jid a JID, typically a packet's from-address
+	 * @return true if the JID, without its resource and ignoring case, is an operator
+	 */
+	public boolean isOperator(String jid) {
+		if (jid == null)
+			return false;
+		return operators.contains(bareJid(jid));
+	}
+
+
+	/**
+	 * @return the current operators, normalized. The set can't be changed.
+	 */
+	public Set <String> getOperators() {
+		return operators;
+	}
+
+
+	/**
+	 * @param jid a JID
+	 * @return the JID lowercased, without its resource (user@host rather than user@host/resource)
+	 */
+	public static String bareJid(String jid) {
+		int slash = jid.indexOf('/');
+		return ((slash < 0) ? jid : jid.substring(0,slash)).toLowerCase();
+	}
+
+}
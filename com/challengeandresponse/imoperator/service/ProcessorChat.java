@@ -10,8 +10,10 @@ import org.jivesoftware.smack.packet.Packet;
 
 import com.challengeandresponse.appstack.*;
 import com.challengeandresponse.eventlogger.EventLoggerI;
+import com.challengeandresponse.imoperator.agent.CommandRouter;
 import com.challengeandresponse.imoperator.comm.SimpleXMPPConnection;
 import com.challengeandresponse.imoperator.comm.SimpleXMPPException;
+import com.challengeandresponse.imoperator.eventlog.RingBufferEventLogger;
 import com.challengeandresponse.utils.ChatUtils;
 
 
@@ -32,6 +34,8 @@ implements PacketFilter, PacketListener
 	private EventLoggerI el;
 	private SimpleXMPPConnection xmppc;
 	private List operators;
+	private CommandRouter commands = new CommandRouter(this,true);
+	private ThreadLocal <CommContext> contexts = CommContext.perThread("com.challengeandresponse.imoperator.service.ProcessorChat");
 
 	
 	private int debugLevel = 0; // no debug
@@ -66,6 +70,15 @@ implements PacketFilter, PacketListener
 	}
 
 	
+	@Override
+	public void addMethod(String name, String methodName)
+	throws AppStackException {
+		// AppStack first, so a method it rejects never gets a route. One the router rejects is still reachable through AppStack.
+		super.addMethod(name, methodName);
+		commands.register(name, methodName);
+	}
+
+	
 	// APPSTACK commands 
 	public String date(AppStackPathI aspi) {
 		return (new Date()).toString();
@@ -92,8 +105,8 @@ implements PacketFilter, PacketListener
 	// FILTER  -- filter a JABBER message
 	public boolean accept(Packet packet) {
 		if (debugLevel >= 2) {
-			el.addEvent("Examining packet from:"+packet.getFrom());
-			el.addEvent("Packet as string: "+packet.toString());
+			RingBufferEventLogger.addEvent(el,"Examining packet from:",packet.getFrom());
+			RingBufferEventLogger.addEvent(el,"Packet as string: ",packet);
 		}
 		// packet must be a message, and the message must be of type 'chat'
 		if ( (packet instanceof Message) && (((Message) packet).getType() == Message.Type.chat) ) {
@@ -117,16 +130,11 @@ implements PacketFilter, PacketListener
      */
 	public void processPacket(Packet packet) {
 		if (debugLevel >= 2)
-			el.addEvent("in JABBER processPacket, message from "+packet.getFrom());
-		CommContext cc= new CommContext("com.challengeandresponse.imoperator.service.ProcessorChat");
-		cc.setProperty(CommContext.PROP_SERVICE,CommContext.VALUE_SERVICE_XMPP);
-		cc.setProperty(CommContext.PROP_SERVICE_USERNAME,packet.getFrom());
-		cc.setProperty(CommContext.PROP_MESSAGE_TO,packet.getTo());
-		cc.setProperty(CommContext.PROP_SERVICE_USERNAME_NO_RESOURCE,
-				packet.getFrom().contains("/") ? packet.getFrom().substring(0,packet.getFrom().indexOf("/")) : packet.getFrom());
+			RingBufferEventLogger.addEvent(el,"in JABBER processPacket, message from ",packet.getFrom());
+		CommContext cc = contexts.get().reset(packet);
 		String message = ((Message) packet).getBody();
 		if (debugLevel >= 2)
-			el.addEvent("calling handleMessage. First message record:"+message);
+			RingBufferEventLogger.addEvent(el,"calling handleMessage. First message record:",message);
 		handleMessage(cc,message);
 	}
 
@@ -139,20 +147,11 @@ implements PacketFilter, PacketListener
 	 * @param message A vector of message lines found in an incoming message
 	 */
 	private void handleMessage(CommContext cc, String message) {
-		String lcMessage = message.toLowerCase().trim();
 		try {
-			// interpret what was typed, including figuring out the currently attached service
-			if (lcMessage.equals("date")) {
-				execute(cc.getStringProperty(CommContext.PROP_SERVICE_USERNAME,""),"date");
-			}
-			else if (lcMessage.equals("time")) {
-				execute(cc.getStringProperty(CommContext.PROP_SERVICE_USERNAME,""),"time");
-			}
-			else if (lcMessage.equals("version")) {
-				execute(cc.getStringProperty(CommContext.PROP_SERVICE_USERNAME,""),"version");
-			}
-			else if (lcMessage.equals("help")) {
-				execute(cc.getStringProperty(CommContext.PROP_SERVICE_USERNAME,""),"help");
+			// interpret what was typed: a command name on its own runs the command, anything else is echoed
+			CommandRouter.Command command = commands.lookup(message);
+			if (command != null) {
+				execute(cc.getStringProperty(CommContext.PROP_SERVICE_USERNAME,""),command);
 			}
 			else {
 				xmppc.sendMessage(cc.getStringProperty(CommContext.PROP_SERVICE_USERNAME, ""),message);
@@ -164,9 +163,9 @@ implements PacketFilter, PacketListener
 	}
 
 	
-	private void execute(String to, String slashPath) {
+	private void execute(String to, CommandRouter.Command command) {
 		try {
-			Object result = get(new AppStackDelimitedPath(slashPath.trim()));
+			Object result = command.invoke(null);
 			xmppc.sendMessage(to, ChatUtils.objectToString(result,"\n"));
 		}
 		catch (AppStackException ase) {
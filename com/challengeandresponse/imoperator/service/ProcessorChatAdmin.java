@@ -9,6 +9,8 @@ import org.jivesoftware.smack.packet.Packet;
 
 import com.challengeandresponse.appstack.*;
 import com.challengeandresponse.eventlogger.EventLoggerI;
+import com.challengeandresponse.imoperator.agent.CommandRouter;
+import com.challengeandresponse.imoperator.agent.OutboundBatcher;
 import com.challengeandresponse.imoperator.comm.SimpleXMPPConnection;
 import com.challengeandresponse.imoperator.comm.SimpleXMPPException;
 import com.challengeandresponse.imoperator.service.IMOperator;
@@ -31,8 +33,10 @@ implements PacketFilter, PacketListener
 {
 	private IMOperator imo;
 	private SimpleXMPPConnection xmppc;
-	private Vector operators;
+	private OperatorAcl operators;
 	private EventLoggerI el;
+	private CommandRouter commands = new CommandRouter(this,false);
+	private OutboundBatcher outbound;	// if not null, replies are queued here rather than sent one by one
 	
 //	private String XHTML_EXTENSION_NS = "http://jabber.org/protocol/xhtml-im";
 
@@ -44,8 +48,19 @@ implements PacketFilter, PacketListener
 	 * @param el a TextFileEventLogger to write interesting events to
 	 * @param operators the usernames (name@host) that are operators of this server
 	 */
-	
+	@SuppressWarnings("unchecked")
 	public ProcessorChatAdmin(IMOperator imo, SimpleXMPPConnection xmppc, EventLoggerI el, Vector operators)
+	throws AppStackException {
+		this(imo, xmppc, el, new OperatorAcl(operators));
+	}
+
+	/**
+	 * @param imo the controlling IMOperator object
+	 * @param xmppc a live XMPPCommunicator that this class can use for talking-back to clients
+	 * @param el a TextFileEventLogger to write interesting events to
+	 * @param operators the operators of this server. It may be reloaded while the processor is running.
+	 */
+	public ProcessorChatAdmin(IMOperator imo, SimpleXMPPConnection xmppc, EventLoggerI el, OperatorAcl operators)
 	throws AppStackException {
 		this.imo = imo;
 		this.xmppc = xmppc;
@@ -65,6 +80,25 @@ implements PacketFilter, PacketListener
 	}
 
 
+	@Override
+	public void addMethod(String name, String methodName)
+	throws AppStackException {
+		// AppStack first, so a method it rejects never gets a route. One the router rejects is still reachable through AppStack.
+		super.addMethod(name, methodName);
+		commands.register(name, methodName);
+	}
+
+
+	/**
+	 * Queue replies in an OutboundBatcher, so the "running:" acknowledgement and the result of
+	 * an exec: go out as one message. Each exec: is flushed as soon as its result is ready.
+	 * @param outbound the batcher, or null to send each reply straight away
+	 */
+	public void setOutboundBatcher(OutboundBatcher outbound) {
+		this.outbound = outbound;
+	}
+
+
 	/// APPSTACK commands for the IMOperator
 	
 	// tail the log file, the path should indicate how many lines
@@ -108,9 +142,7 @@ implements PacketFilter, PacketListener
 		if ( ((Message) packet).getType() != Message.Type.chat)
 			return false;
 		// this processor only examines packets from system operators
-		String from = packet.getFrom();
-		String fromNoresource = from.toLowerCase().contains("/") ? from.substring(0,from.indexOf("/")) : from;
-		return (operators.contains(fromNoresource));
+		return operators.isOperator(packet.getFrom());
 	}
 
 
@@ -121,15 +153,23 @@ implements PacketFilter, PacketListener
 	
 		if (msg.startsWith("exec:")) {
 			try {
-				xmppc.sendMessage(packet.getFrom(),"running: "+msg.substring(5));
-				Object result = get(new AppStackDelimitedPath(msg.substring(5).trim()));
-				xmppc.sendMessage(packet.getFrom(), ChatUtils.objectToString(result,"\n"));
+				reply(packet.getFrom(),"running: "+msg.substring(5));
+				Object result = commands.dispatch(msg,5,null);
+				reply(packet.getFrom(), ChatUtils.objectToString(result,"\n"));
+				// the result is what the operator is waiting for, so don't hold it for the batch window
+				if (outbound != null)
+					outbound.flush();
 			}
 			catch (AppStackException ase) {
+				// the "running:" acknowledgement may still be queued, and must go first
+				if (outbound != null)
+					outbound.flush();
 				xmppc.sendNoExceptionMessage(packet.getFrom(),"Problem: "+ase.getMessage());
 				el.addEvent("ProcessorAdminDirect AppStackException from "+packet.getFrom()+" "+ase.getMessage());
 			}
 			catch (SimpleXMPPException sxe) {
+				if (outbound != null)
+					outbound.flush();
 				xmppc.sendNoExceptionMessage(packet.getFrom(),"Problem: "+sxe.getMessage());
 				el.addEvent("ProcessorAdminDirect XMPPException from "+packet.getFrom()+" "+sxe.getMessage());
 			}
@@ -137,4 +177,14 @@ implements PacketFilter, PacketListener
 	}
 
 
+
+	private void reply(String to, String message)
+	throws SimpleXMPPException {
+		if (outbound != null)
+			outbound.sendMessage(to, message);
+		else
+			xmppc.sendMessage(to, message);
+	}
+
+
 }
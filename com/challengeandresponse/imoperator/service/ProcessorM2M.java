@@ -6,6 +6,7 @@ import org.jivesoftware.smack.packet.*;
 
 import com.challengeandresponse.eventlogger.EventLoggerI;
 import com.challengeandresponse.imoperator.comm.SimpleXMPPConnection;
+import com.challengeandresponse.imoperator.eventlog.RingBufferEventLogger;
 import com.challengeandresponse.imoperator.universaliq.UniversalIQRPC;
 
 
@@ -26,6 +27,7 @@ implements PacketFilter, PacketListener
 	private IMOperator imo;
 	private EventLoggerI el;
 	private SimpleXMPPConnection xmppc;
+	private ThreadLocal <CommContext> contexts = CommContext.perThread("com.challengeandresponse.imoperator.service.ProcessorM2M");
 
 	private int debugLevel = 0; // no debug
 
@@ -55,7 +57,7 @@ implements PacketFilter, PacketListener
 	// FILTER 
 	public boolean accept(Packet packet) {
 		if (debugLevel > 2)
-			el.addEvent("ProcessorM2M evaluating packet from "+packet.getFrom());
+			RingBufferEventLogger.addEvent(el,"ProcessorM2M evaluating packet from ",packet.getFrom());
 
 		if (packet instanceof IQ) {
 			if (debugLevel > 1)
@@ -79,29 +81,22 @@ implements PacketFilter, PacketListener
 	 */
 	public void processPacket(Packet packet) {
 		if (debugLevel > 1)
-			el.addEvent("in processPacket of ProcessorM2M, message from "+packet.getFrom());
-		CommContext cc= new CommContext("com.challengeandresponse.imoperator.service.ProcessorM2M");
-		cc.setProperty(CommContext.PROP_SERVICE,CommContext.VALUE_SERVICE_XMPP);
-		cc.setProperty(CommContext.PROP_SERVICE_USERNAME,packet.getFrom());
-		cc.setProperty(CommContext.PROP_MESSAGE_TO,packet.getTo());
-		cc.setProperty(CommContext.PROP_SERVICE_USERNAME_NO_RESOURCE,
-				packet.getFrom().contains("/") ? packet.getFrom().substring(0,packet.getFrom().indexOf("/")) : packet.getFrom());
+			RingBufferEventLogger.addEvent(el,"in processPacket of ProcessorM2M, message from ",packet.getFrom());
+		CommContext cc = contexts.get().reset(packet);
 
 		// unpack the object, then call the appropriate method on it
 		// -- that's handleMessage() - how is that divided between processPacket and handleMessage?
 
 		IQ iq = (IQ) packet;
 
-		System.out.println("IQ type: "+iq.getType());
-		System.out.println(iq);
-
-		XMPPError xmppe = iq.getError();
-		System.out.println("Error: "+xmppe);
-		System.out.println("Error code: "+((xmppe != null) ? xmppe.getCode() : "n/a"));
-
-		if (iq instanceof UniversalIQRPC) {
-			System.out.println("it's an IQQuery object");
-			System.out.println("methodCall is "+((UniversalIQRPC)iq).getMethodName());
+		if (debugLevel > 1) {
+			RingBufferEventLogger.addEvent(el,"IQ type: ",iq.getType());
+			RingBufferEventLogger.addEvent(el,"IQ: ",iq);
+			XMPPError xmppe = iq.getError();
+			if (xmppe != null)
+				RingBufferEventLogger.addEvent(el,"Error: ",xmppe);
+			if (iq instanceof UniversalIQRPC)
+				RingBufferEventLogger.addEvent(el,"UniversalIQRPC methodCall is ",((UniversalIQRPC)iq).getMethodName());
 		}
 		//		sendMessage(cc,message.get(0));
 	}
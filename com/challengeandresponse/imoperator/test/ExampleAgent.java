@@ -9,6 +9,7 @@ import com.challengeandresponse.eventlogger.EventLoggerI;
 import com.challengeandresponse.eventlogger.StdoutEventLogger;
 import com.challengeandresponse.imoperator.agent.BaseAgent;
 import com.challengeandresponse.imoperator.comm.SimpleXMPPConnection;
+import com.challengeandresponse.imoperator.comm.SimpleXMPPException;
 import com.challengeandresponse.imoperator.m2mobjects.MMObject;
 import com.challengeandresponse.utils.ChatUtils;
 
@@ -47,6 +48,8 @@ extends BaseAgent {
 			if (iq instanceof MMObject) {
 				System.out.println("MMObject: "+ChatUtils.objectToString( ((MMObject) iq).getObject(),"\n") );
 			}
+			if ((iq.getType() == IQ.Type.GET) || (iq.getType() == IQ.Type.SET))
+				acknowledge(iq);
 			
 			// get the next one, if there is a next one
 			p = pc.pollResult();
@@ -54,6 +57,25 @@ extends BaseAgent {
 		System.out.println("processIQ is exiting");
 	}
 	
+	/**
+	 * Answer a get or set with an empty result, so a sender waiting with sendIQAsync() hears back
+	 */
+	private void acknowledge(IQ request) {
+		IQ result = new IQ() {
+			public String getChildElementXML() {
+				return null;
+			}
+		};
+		result.setType(IQ.Type.RESULT);
+		result.setPacketID(request.getPacketID());
+		try {
+			sendIQ(request.getFrom(),result);
+		}
+		catch (SimpleXMPPException sxe) {
+			System.out.println("Exception answering: "+sxe.getMessage());
+		}
+	}
+	
 	
 
 	
@@ -0,0 +1,57 @@
+package com.challengeandresponse.imoperator.test;
+
+import com.challengeandresponse.appstack.AppStackDelimitedPath;
+import com.challengeandresponse.eventlogger.EventLoggerI;
+import com.challengeandresponse.eventlogger.StdoutEventLogger;
+import com.challengeandresponse.imoperator.agent.AgentContainer;
+import com.challengeandresponse.imoperator.comm.SimpleXMPPConnection;
+import com.challengeandresponse.imoperator.loopback.LoopbackServer;
+import com.challengeandresponse.imoperator.m2mobjects.MMObject;
+
+/**
+ * A class just for testing - starts an embedded LoopbackServer, a number of ExampleAgents
+ * connected to it, and sends each of them an MMObject. No external XMPP server is needed.
+ * The agents are hosted in an AgentContainer, so thousands of them can be started on one JVM.
+ *
+ * usage: LoopbackExample [number of agents]
+ *
+ * @author jim
+ */
+public class LoopbackExample {
+
+	private static final String DOMAIN = "localhost";
+
+	public static void main(String[] args) {
+		int nAgents = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+		try {
+			EventLoggerI el = new StdoutEventLogger();
+			LoopbackServer server = new LoopbackServer(DOMAIN);
+			server.start();
+			el.addEvent("Loopback server listening on port "+server.getPort());
+
+			AgentContainer container = new AgentContainer(el);
+			container.registerRecognizedClass(MMObject.class);
+			for (int i = 0; i < nAgents; i++)
+				container.host("example"+i, new ExampleAgent(el, "127.0.0.1", server.getPort(), DOMAIN, "example"+i, "example", "example"));
+			container.startAll();
+
+			// give the agents a moment to log in, then send each one an object
+			Thread.sleep(2000);
+			SimpleXMPPConnection sender = server.connect("sender", "sender", "sender");
+			for (int i = 0; i < nAgents; i++)
+				sender.sendIQ("example"+i+"@"+DOMAIN+"/example",new MMObject(Integer.valueOf(i)),true);
+
+			Thread.sleep(5000);
+			el.addEvent("Routed "+server.getRoutedCount()+" stanzas, "+server.getUndeliverableCount()+" undeliverable");
+			el.addEvent("Agents: "+container.agents(new AppStackDelimitedPath("*"), null));
+			container.stopAll(10000);
+			sender.disconnect();
+			server.stop();
+		}
+		catch (Exception e) {
+			System.out.println("Exception: "+e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+}
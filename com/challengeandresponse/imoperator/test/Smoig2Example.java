@@ -1,5 +1,7 @@
 package com.challengeandresponse.imoperator.test;
 
+import java.util.function.BiConsumer;
+
 import org.jivesoftware.smack.PacketCollector;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
@@ -8,7 +10,6 @@ import com.challengeandresponse.appstack.AppStackException;
 import com.challengeandresponse.eventlogger.*;
 import com.challengeandresponse.imoperator.agent.BaseAgent;
 import com.challengeandresponse.imoperator.comm.SimpleXMPPConnection;
-import com.challengeandresponse.imoperator.comm.SimpleXMPPException;
 import com.challengeandresponse.imoperator.m2mobjects.MMObject;
 import com.challengeandresponse.utils.ChatUtils;
 
@@ -25,10 +26,14 @@ public class Smoig2Example extends BaseAgent {
 	private static final String	PASSWORD = "smoig";
 	private static final String	RESOURCE = "smoig";
 	private static final String	XMPP_SERVER = "localhost";
+	// how long the IQ may wait for example@localhost to show up, and so how long to wait for its answer
+	private static final long	HOLD_MSEC = 60 * 60 * 1000L;
 
 	public Smoig2Example(EventLoggerI el, String hostname, int portNum, String servicename, String username, String password, String resource) 
 	throws AppStackException {
 		super(el, hostname, portNum, servicename, username, password, resource);
+		// if example@localhost isn't there yet, hold the IQ until it shows up (for at most an hour)
+		setStoreAndForward(new java.io.File("smoig-held"), 100, 1000, HOLD_MSEC);
 	}
 	
 	private boolean oneshot = true;
@@ -53,12 +58,18 @@ public class Smoig2Example extends BaseAgent {
 		if (oneshot) {
 			System.out.println("Sending the whois thingy 1");
 			MMObject mmObject = new MMObject(new Integer("12"));
-			try {
-				getXmppConnection().sendIQ("example@localhost/example",mmObject,true);
-			}
-			catch (SimpleXMPPException sxe) {
-				System.out.println("Exception sending: "+sxe.getMessage());
-			}
+			// the answer (ExampleAgent sends an empty result) comes back to the future, not through the PacketCollector below.
+			// The IQ may be held until example shows up, so the future waits as long as the hold does
+			sendIQAsync("example@localhost/example",mmObject,HOLD_MSEC).whenComplete(new BiConsumer <IQ,Throwable> () {
+				public void accept(IQ answer, Throwable t) {
+					if (t != null)
+						System.out.println("No answer to the whois thingy: "+t.getMessage());
+					else if (answer instanceof MMObject)
+						System.out.println("Answer: "+ChatUtils.objectToString( ((MMObject) answer).getObject(),"\n") );
+					else
+						System.out.println("Answer from: "+answer.getFrom());
+				}
+			});
 			oneshot = false;
 		}
 		